@@ -0,0 +1,144 @@
+package ru.ratauth.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ru.ratauth.benchmarks.stub.StubSessionService;
+import ru.ratauth.benchmarks.stub.StubAuthProvider;
+import ru.ratauth.benchmarks.stub.StubClientService;
+import ru.ratauth.benchmarks.stub.StubTokenCacheService;
+import ru.ratauth.entities.AccessTokenFormat;
+import ru.ratauth.entities.RelyingParty;
+import ru.ratauth.providers.auth.AuthProvider;
+import ru.ratauth.providers.auth.dto.BaseAuthFields;
+import ru.ratauth.server.secutiry.*;
+import ru.ratauth.server.services.*;
+import ru.ratauth.server.services.log.AuthActionLogger;
+
+import java.util.*;
+
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+/**
+ * Auth server services wired by hand over in-memory SPI stubs,
+ * configuration values are the same as in application.yml
+ * @since 18/10/26
+ */
+public class AuthServerFixture {
+  public static final String MASTER_SECRET = "cnlqV2hVQml3aWdrc1RqWXBSaFpma3l5enhNVU1TS1A=";
+  public static final String CLIENT_SECRET = "HdC4t2Wpjn/obYj9JHLVwmGzSqQ5SlatYqMF6zuAL0s=";
+  public static final String PASSWORD = "password";
+  public static final String IDENTITY_PROVIDER = "STUB";
+  public static final String ISSUER = "http://ratauth.ru";
+
+  public final StubSessionService sessionStorage = new StubSessionService();
+  public final StubClientService clientStorage = new StubClientService();
+  public final MacContextCache macContextCache;
+  public final HS256TokenProcessor tokenProcessor;
+  public final JWTTokenCacheService tokenCacheService;
+  public final SecureRandomValueGenerator valueGenerator;
+  public final TaggedOAuthIssuer issuer;
+  public final SessionNearCache sessionNearCache;
+  public final RevocationFilter revocationFilter;
+  public final OpenIdSessionService sessionService;
+  public final ClientRegistry clientRegistry;
+  public final ClientCredentialsVerifier credentialsVerifier;
+  public final OpenIdClientService clientService;
+  public final BackgroundSessionStatusChecker statusChecker;
+  public final OpenIdAuthTokenService authTokenService;
+
+  public AuthServerFixture() {
+    macContextCache = new MacContextCache();
+    setField(macContextCache, "cacheSize", 1000);
+    setField(macContextCache, "cacheTTL", 3600);
+    macContextCache.init();
+
+    tokenProcessor = new HS256TokenProcessor(new ObjectMapper(), macContextCache);
+    setField(tokenProcessor, "issuer", ISSUER);
+
+    tokenCacheService = new JWTTokenCacheService(tokenProcessor, Collections.singletonMap("HS256", tokenProcessor));
+    setField(tokenCacheService, "persistentTokenCache", new StubTokenCacheService());
+    setField(tokenCacheService, "masterSecret", MASTER_SECRET);
+    setField(tokenCacheService, "userInfoCacheSize", 100000);
+    setField(tokenCacheService, "userInfoCacheTTL", 3600);
+    setField(tokenCacheService, "idTokenCacheSize", 100000);
+    setField(tokenCacheService, "idTokenCacheTTL", 3600);
+    tokenCacheService.init();
+
+    valueGenerator = new SecureRandomValueGenerator(0, 128);
+    valueGenerator.init();
+    issuer = new TaggedOAuthIssuer(valueGenerator);
+    setField(issuer, "masterSecret", MASTER_SECRET);
+    setField(issuer, "enforce", false);
+    issuer.init();
+
+    sessionNearCache = new SessionNearCache();
+    setField(sessionNearCache, "maxWeight", 128L * 1024 * 1024);
+    setField(sessionNearCache, "cacheTTL", 10);
+    sessionNearCache.init();
+    revocationFilter = new RevocationFilter(sessionStorage);
+    setField(revocationFilter, "exactMaxSize", 100000);
+    setField(revocationFilter, "expectedSize", 1000000);
+    setField(revocationFilter, "fpp", 0.001);
+    setField(revocationFilter, "retention", 2678400);
+    setField(revocationFilter, "refreshInterval", 60);
+    setField(revocationFilter, "rebuildInterval", 3600);
+    revocationFilter.init();
+    sessionService = new OpenIdSessionService(sessionStorage, tokenProcessor, tokenCacheService, issuer,
+        new AuthActionLogger(), sessionNearCache, revocationFilter,
+        Arrays.asList(tokenCacheService, sessionNearCache, revocationFilter));
+    setField(sessionService, "masterSecret", MASTER_SECRET);
+    setField(sessionService, "trustSelfContained", false);
+
+    clientRegistry = new ClientRegistry(clientStorage, macContextCache);
+    setField(clientRegistry, "refreshInterval", 300);
+    setField(clientRegistry, "negativeCacheSize", 10000);
+    setField(clientRegistry, "negativeCacheTTL", 60);
+    clientRegistry.init();
+    credentialsVerifier = new ClientCredentialsVerifier();
+    setField(credentialsVerifier, "cacheSize", 10000);
+    setField(credentialsVerifier, "cacheTTL", 300);
+    setField(credentialsVerifier, "hashThreads", 4);
+    setField(credentialsVerifier, "hashConcurrency", 2);
+    credentialsVerifier.init();
+    clientService = new OpenIdClientService(clientRegistry, credentialsVerifier);
+    final Map<String, AuthProvider> providers = Collections.singletonMap(IDENTITY_PROVIDER, new StubAuthProvider());
+    statusChecker = new BackgroundSessionStatusChecker(sessionService, providers, tokenCacheService);
+    setField(statusChecker, "backgroundCheckEnabled", false);
+    authTokenService = new OpenIdAuthTokenService(providers, sessionService, tokenCacheService, clientService, statusChecker);
+    setField(authTokenService, "batchMaxSize", 100);
+    setField(authTokenService, "batchConcurrency", 16);
+  }
+
+  public void destroy() {
+    clientRegistry.destroy();
+    credentialsVerifier.destroy();
+    valueGenerator.destroy();
+  }
+
+  public RelyingParty addRelyingParty(String name, AccessTokenFormat format) {
+    final RelyingParty relyingParty = new RelyingParty();
+    relyingParty.setId(name);
+    relyingParty.setName(name);
+    relyingParty.setPassword(PASSWORD);
+    relyingParty.setSecret(CLIENT_SECRET);
+    relyingParty.setIdentityProvider(IDENTITY_PROVIDER);
+    relyingParty.setCodeTTL(36000L);
+    relyingParty.setTokenTTL(36000L);
+    relyingParty.setRefreshTokenTTL(36000L);
+    relyingParty.setSessionTTL(36000L);
+    relyingParty.setAccessTokenFormat(format);
+    clientStorage.add(relyingParty);
+    clientRegistry.refresh();
+    return relyingParty;
+  }
+
+  public static Map<String, Object> userInfo(String userId) {
+    final Map<String, Object> userInfo = new HashMap<>();
+    userInfo.put(BaseAuthFields.USER_ID.val(), userId);
+    userInfo.put(BaseAuthFields.USERNAME.val(), "login");
+    return userInfo;
+  }
+
+  public static Set<String> scopes() {
+    return new HashSet<>(Arrays.asList("rs.read", "rs.write"));
+  }
+}
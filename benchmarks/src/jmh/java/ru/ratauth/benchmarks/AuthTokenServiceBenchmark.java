@@ -0,0 +1,76 @@
+package ru.ratauth.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ratauth.entities.AccessTokenFormat;
+import ru.ratauth.entities.RelyingParty;
+import ru.ratauth.entities.Session;
+import ru.ratauth.interaction.CheckTokenRequest;
+import ru.ratauth.interaction.CheckTokenResponse;
+import ru.ratauth.interaction.GrantType;
+import ru.ratauth.interaction.TokenRequest;
+import ru.ratauth.interaction.TokenResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * check_token and refresh token flows over in-memory storage
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AuthTokenServiceBenchmark {
+  private static final String CLIENT = "client";
+
+  @Param({"OPAQUE", "JWT"})
+  private AccessTokenFormat format;
+
+  private AuthServerFixture fixture;
+  private CheckTokenRequest checkTokenRequest;
+  private TokenRequest refreshRequest;
+
+  @Setup
+  public void setup() {
+    fixture = new AuthServerFixture();
+    final RelyingParty relyingParty = fixture.addRelyingParty(CLIENT, format);
+    final Session session = fixture.sessionService
+        .createSession(relyingParty, AuthServerFixture.userInfo("user"), AuthServerFixture.scopes(), null)
+        .toBlocking().single();
+    checkTokenRequest = CheckTokenRequest.builder()
+        .token(session.getToken(CLIENT).get().getToken())
+        .clientId(CLIENT)
+        .clientSecret(AuthServerFixture.PASSWORD)
+        .build();
+    refreshRequest = TokenRequest.builder()
+        .refreshToken(session.getEntry(CLIENT).get().getRefreshToken())
+        .clientId(CLIENT)
+        .clientSecret(AuthServerFixture.PASSWORD)
+        .grantType(GrantType.REFRESH_TOKEN)
+        .build();
+  }
+
+  /**
+   * refresh flow issues new access token per call
+   */
+  @Setup(Level.Iteration)
+  public void clearIssuedTokens() {
+    fixture.sessionStorage.clearIssuedTokens();
+  }
+
+  @TearDown
+  public void tearDown() {
+    fixture.destroy();
+  }
+
+  @Benchmark
+  public CheckTokenResponse checkToken() {
+    return fixture.authTokenService.checkToken(checkTokenRequest)
+        .toBlocking().single();
+  }
+
+  @Benchmark
+  public TokenResponse getToken() throws Exception {
+    return fixture.authTokenService.getToken(refreshRequest)
+        .toBlocking().single();
+  }
+}
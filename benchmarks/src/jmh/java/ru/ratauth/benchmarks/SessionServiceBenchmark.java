@@ -0,0 +1,62 @@
+package ru.ratauth.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ratauth.entities.AccessTokenFormat;
+import ru.ratauth.entities.RelyingParty;
+import ru.ratauth.entities.Session;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session creation and token issuance over in-memory storage
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SessionServiceBenchmark {
+  @Param({"OPAQUE", "JWT"})
+  private AccessTokenFormat format;
+
+  private AuthServerFixture fixture;
+  private RelyingParty relyingParty;
+  private Map<String, Object> userInfo;
+  private Set<String> scopes;
+  private Session session;
+
+  @Setup
+  public void setup() {
+    fixture = new AuthServerFixture();
+    relyingParty = fixture.addRelyingParty("client", format);
+    userInfo = AuthServerFixture.userInfo("user");
+    scopes = AuthServerFixture.scopes();
+  }
+
+  /**
+   * both flows store new values per call, so storage and issued tokens of session are dropped every iteration
+   */
+  @Setup(Level.Iteration)
+  public void resetStorage() {
+    fixture.sessionStorage.clear();
+    session = createSession();
+  }
+
+  @TearDown
+  public void tearDown() {
+    fixture.destroy();
+  }
+
+  @Benchmark
+  public Session createSession() {
+    return fixture.sessionService.createSession(relyingParty, userInfo, scopes, null)
+        .toBlocking().single();
+  }
+
+  @Benchmark
+  public Boolean addToken() {
+    return fixture.sessionService.addToken(session, relyingParty)
+        .toBlocking().single();
+  }
+}
@@ -0,0 +1,123 @@
+package ru.ratauth.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ratauth.entities.*;
+import ru.ratauth.server.persistence.InMemorySessionService;
+import ru.ratauth.server.persistence.OffHeapSessionService;
+import ru.ratauth.services.SessionService;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+/**
+ * Token lookups and session creation of on-heap and off-heap storages filled with sessions,
+ * gc profiler shows difference of allocation and collection costs
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SessionStorageBenchmark {
+  private static final String CLIENT = "client";
+
+  public enum Storage {
+    HEAP, OFFHEAP
+  }
+
+  @Param({"HEAP", "OFFHEAP"})
+  private Storage storage;
+  @Param({"1000000"})
+  private int sessions;
+
+  private SessionService sessionService;
+  private File dir;
+  private String[] tokens;
+  private Date now;
+
+  @Setup
+  public void setup() throws Exception {
+    if (Storage.HEAP == storage) {
+      final InMemorySessionService heap = new InMemorySessionService();
+      setField(heap, "maxBytes", Long.MAX_VALUE);
+      setField(heap, "expiredRetention", 300);
+      setField(heap, "tick", 1000);
+      setField(heap, "wheelSize", 4096);
+      heap.init();
+      sessionService = heap;
+    } else {
+      dir = Files.createTempDirectory("sessions").toFile();
+      final OffHeapSessionService offHeap = new OffHeapSessionService();
+      setField(offHeap, "dir", dir.getPath());
+      setField(offHeap, "segmentSize", 256 * 1024 * 1024);
+      setField(offHeap, "indexCapacity", 2 * sessions);
+      setField(offHeap, "compactionThreshold", 0.5);
+      setField(offHeap, "sweepInterval", 3600);
+      setField(offHeap, "expiredRetention", 300);
+      offHeap.init();
+      sessionService = offHeap;
+    }
+    tokens = new String[sessions];
+    for (int i = 0; i < sessions; i++) {
+      tokens[i] = UUID.randomUUID().toString();
+      sessionService.create(session(tokens[i])).toBlocking().single();
+    }
+    now = new Date();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    if (sessionService instanceof InMemorySessionService)
+      ((InMemorySessionService) sessionService).destroy();
+    if (sessionService instanceof OffHeapSessionService) {
+      ((OffHeapSessionService) sessionService).destroy();
+      final File[] files = dir.listFiles();
+      for (File file : files == null ? new File[0] : files)
+        Files.delete(file.toPath());
+      Files.delete(dir.toPath());
+    }
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Session getByValidToken() {
+    return sessionService.getByValidToken(tokens[ThreadLocalRandom.current().nextInt(tokens.length)], now)
+        .toBlocking().single();
+  }
+
+  @Benchmark
+  public Session create() {
+    return sessionService.create(session(UUID.randomUUID().toString()))
+        .toBlocking().single();
+  }
+
+  private static Session session(String token) {
+    final Date created = new Date();
+    final Date expiresIn = new Date(created.getTime() + TimeUnit.DAYS.toMillis(1));
+    final AuthEntry entry = AuthEntry.builder()
+        .authCode(UUID.randomUUID().toString())
+        .codeExpiresIn(expiresIn)
+        .refreshToken(UUID.randomUUID().toString())
+        .refreshTokenExpiresIn(expiresIn)
+        .relyingParty(CLIENT)
+        .scopes(AuthServerFixture.scopes())
+        .authType(AuthType.COMMON)
+        .created(created)
+        .build();
+    entry.addToken(Token.builder().token(token).created(created).expiresIn(expiresIn).build());
+    return Session.builder()
+        .identityProvider(AuthServerFixture.IDENTITY_PROVIDER)
+        .authClient(CLIENT)
+        .userId(UUID.randomUUID().toString())
+        .userInfo(token)
+        .status(Status.ACTIVE)
+        .created(created)
+        .expiresIn(expiresIn)
+        .entries(new HashSet<>(Collections.singletonList(entry)))
+        .build();
+  }
+}
@@ -0,0 +1,62 @@
+package ru.ratauth.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ratauth.entities.*;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * idToken retrieval from in-process cache and idToken signing on cache miss
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TokenCacheBenchmark {
+  private static final String CLIENT = "client";
+
+  private final AtomicLong counter = new AtomicLong();
+  private AuthServerFixture fixture;
+  private RelyingParty relyingParty;
+  private Session session;
+
+  @Setup
+  public void setup() {
+    fixture = new AuthServerFixture();
+    relyingParty = fixture.addRelyingParty(CLIENT, AccessTokenFormat.OPAQUE);
+    session = fixture.sessionService
+        .createSession(relyingParty, AuthServerFixture.userInfo("user"), AuthServerFixture.scopes(), null)
+        .toBlocking().single();
+  }
+
+  @TearDown
+  public void tearDown() {
+    fixture.destroy();
+  }
+
+  @Benchmark
+  public TokenCache getTokenCached() {
+    return fixture.tokenCacheService.getToken(session, relyingParty, session.getEntry(CLIENT).get())
+        .toBlocking().single();
+  }
+
+  @Benchmark
+  public TokenCache getTokenSigned() {
+    final Date now = new Date();
+    final AuthEntry source = session.getEntry(CLIENT).get();
+    final AuthEntry entry = AuthEntry.builder()
+        .relyingParty(CLIENT)
+        .scopes(source.getScopes())
+        .build();
+    //unique token value, so every call misses the cache
+    entry.addToken(Token.builder()
+        .token(Long.toString(counter.incrementAndGet()))
+        .created(now)
+        .expiresIn(new Date(now.getTime() + 36000000L))
+        .build());
+    return fixture.tokenCacheService.getToken(session, relyingParty, entry)
+        .toBlocking().single();
+  }
+}
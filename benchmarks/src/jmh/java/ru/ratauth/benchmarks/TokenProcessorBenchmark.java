@@ -0,0 +1,48 @@
+package ru.ratauth.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HS256 jwt signing and verification
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TokenProcessorBenchmark {
+  private AuthServerFixture fixture;
+  private Map<String, Object> userInfo;
+  private Set<String> scopes;
+  private String jwt;
+
+  @Setup
+  public void setup() {
+    fixture = new AuthServerFixture();
+    userInfo = AuthServerFixture.userInfo("user");
+    scopes = AuthServerFixture.scopes();
+    jwt = createToken();
+  }
+
+  @TearDown
+  public void tearDown() {
+    fixture.destroy();
+  }
+
+  @Benchmark
+  public String createToken() {
+    final Date now = new Date();
+    return fixture.tokenProcessor.createToken("client", AuthServerFixture.CLIENT_SECRET, "identifier",
+        now, new Date(now.getTime() + 36000000L), Collections.emptySet(), scopes, "user", userInfo);
+  }
+
+  @Benchmark
+  public Map<String, Object> extractInfo() {
+    return fixture.tokenProcessor.extractInfo(jwt, AuthServerFixture.CLIENT_SECRET);
+  }
+}
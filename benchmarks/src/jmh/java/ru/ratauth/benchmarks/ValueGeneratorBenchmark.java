@@ -0,0 +1,54 @@
+package ru.ratauth.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.ratauth.server.secutiry.OAuthSystemException;
+import ru.ratauth.server.secutiry.SecureRandomValueGenerator;
+import ru.ratauth.server.secutiry.UUIDValueGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares token value generators in single thread and under contention
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ValueGeneratorBenchmark {
+  private UUIDValueGenerator uuidGenerator;
+  private SecureRandomValueGenerator secureRandomGenerator;
+
+  @Setup
+  public void setup() {
+    uuidGenerator = new UUIDValueGenerator();
+    secureRandomGenerator = new SecureRandomValueGenerator(0, 128);
+    secureRandomGenerator.init();
+  }
+
+  @TearDown
+  public void tearDown() {
+    secureRandomGenerator.destroy();
+  }
+
+  @Benchmark
+  public String uuid() throws OAuthSystemException {
+    return uuidGenerator.generateValue();
+  }
+
+  @Benchmark
+  public String secureRandom() {
+    return secureRandomGenerator.generateValue();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String uuidContended() throws OAuthSystemException {
+    return uuidGenerator.generateValue();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String secureRandomContended() {
+    return secureRandomGenerator.generateValue();
+  }
+}
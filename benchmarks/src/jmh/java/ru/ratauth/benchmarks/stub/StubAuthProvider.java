@@ -0,0 +1,26 @@
+package ru.ratauth.benchmarks.stub;
+
+import ru.ratauth.providers.auth.AuthProvider;
+import ru.ratauth.providers.auth.dto.AuthInput;
+import ru.ratauth.providers.auth.dto.AuthResult;
+import rx.Observable;
+
+/**
+ * @since 18/10/26
+ */
+public class StubAuthProvider implements AuthProvider {
+  @Override
+  public Observable<AuthResult> authenticate(AuthInput input) {
+    return Observable.empty();
+  }
+
+  @Override
+  public boolean isAuthCodeSupported() {
+    return false;
+  }
+
+  @Override
+  public Observable<Boolean> checkUserStatus(AuthInput input) {
+    return Observable.just(true);
+  }
+}
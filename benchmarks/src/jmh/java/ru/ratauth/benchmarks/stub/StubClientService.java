@@ -0,0 +1,36 @@
+package ru.ratauth.benchmarks.stub;
+
+import ru.ratauth.entities.AuthClient;
+import ru.ratauth.entities.RelyingParty;
+import ru.ratauth.services.ClientService;
+import rx.Observable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @since 18/10/26
+ */
+public class StubClientService implements ClientService {
+  private final Map<String, RelyingParty> relyingParties = new ConcurrentHashMap<>();
+
+  public void add(RelyingParty relyingParty) {
+    relyingParties.put(relyingParty.getName(), relyingParty);
+  }
+
+  @Override
+  public Observable<AuthClient> getClient(String name) {
+    return getRelyingParty(name).cast(AuthClient.class);
+  }
+
+  @Override
+  public Observable<RelyingParty> getRelyingParty(String name) {
+    RelyingParty relyingParty = relyingParties.get(name);
+    return relyingParty == null ? Observable.empty() : Observable.just(relyingParty);
+  }
+
+  @Override
+  public Observable<AuthClient> getClients() {
+    return Observable.from(relyingParties.values());
+  }
+}
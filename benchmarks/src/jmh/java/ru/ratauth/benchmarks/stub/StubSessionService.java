@@ -0,0 +1,136 @@
+package ru.ratauth.benchmarks.stub;
+
+import ru.ratauth.entities.AuthEntry;
+import ru.ratauth.entities.Session;
+import ru.ratauth.entities.Status;
+import ru.ratauth.entities.Token;
+import ru.ratauth.services.SessionService;
+import rx.Observable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map based storage without expiration and copying, so benchmarks measure only auth server overhead
+ * @since 18/10/26
+ */
+public class StubSessionService implements SessionService {
+  private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+  private final Map<String, String> codes = new ConcurrentHashMap<>();
+  private final Map<String, String> refreshTokens = new ConcurrentHashMap<>();
+  private final Map<String, String> tokens = new ConcurrentHashMap<>();
+
+  @Override
+  public Observable<Session> create(Session session) {
+    session.setId(UUID.randomUUID().toString());
+    sessions.put(session.getId(), session);
+    session.getEntries().forEach(entry -> index(session.getId(), entry));
+    return Observable.just(session);
+  }
+
+  @Override
+  public Observable<Session> getByValidCode(String code, Date now) {
+    return find(codes.get(code), null);
+  }
+
+  @Override
+  public Observable<Session> getByValidRefreshToken(String token, Date now) {
+    return find(refreshTokens.get(token), null);
+  }
+
+  @Override
+  public Observable<Session> getByValidToken(String token, Date now) {
+    return find(tokens.get(token), token);
+  }
+
+  @Override
+  public Observable<Map<String, Session>> getByTokens(Collection<String> values) {
+    return Observable.from(values)
+        .flatMap(token -> find(tokens.get(token), token).map(session -> new AbstractMap.SimpleImmutableEntry<>(token, session)))
+        .toMap(Map.Entry::getKey, Map.Entry::getValue);
+  }
+
+  @Override
+  public Observable<Boolean> addEntry(String sessionId, AuthEntry entry) {
+    index(sessionId, entry);
+    return Observable.just(true);
+  }
+
+  @Override
+  public Observable<Boolean> addToken(String sessionId, String relyingParty, Token token) {
+    tokens.put(token.getToken(), sessionId);
+    return Observable.just(true);
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSession(String sessionId, Date blocked) {
+    Session session = sessions.get(sessionId);
+    if (session != null)
+      session.setStatus(Status.BLOCKED);
+    return Observable.just(session != null);
+  }
+
+  @Override
+  public Observable<Boolean> invalidateForClient(String relyingParty, Date blocked) {
+    return Observable.just(true);
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) {
+    return Observable.just(true);
+  }
+
+  @Override
+  public Observable<Boolean> isActive(String sessionId, Date now) {
+    Session session = sessions.get(sessionId);
+    return Observable.just(session != null && Status.ACTIVE == session.getStatus() && session.getExpiresIn().after(now));
+  }
+
+  /**
+   * Drops all sessions with their codes and tokens
+   */
+  public void clear() {
+    sessions.clear();
+    codes.clear();
+    refreshTokens.clear();
+    tokens.clear();
+  }
+
+  /**
+   * Drops access tokens issued after sessions were created, so repeated token issuance does not grow the index
+   */
+  public void clearIssuedTokens() {
+    tokens.clear();
+    sessions.values().forEach(session -> session.getEntries().forEach(entry -> index(session.getId(), entry)));
+  }
+
+  private void index(String sessionId, AuthEntry entry) {
+    if (entry.getAuthCode() != null)
+      codes.put(entry.getAuthCode(), sessionId);
+    if (entry.getRefreshToken() != null)
+      refreshTokens.put(entry.getRefreshToken(), sessionId);
+    if (entry.getTokens() != null)
+      entry.getTokens().forEach(token -> tokens.put(token.getToken(), sessionId));
+  }
+
+  /**
+   * Returns copy of session like real storage does, so issued tokens are not accumulated in stored entity
+   */
+  private Observable<Session> find(String sessionId, String token) {
+    if (sessionId == null)
+      return Observable.empty();
+    final Session session = sessions.get(sessionId);
+    final Set<AuthEntry> entries = new HashSet<>();
+    session.getEntries().forEach(entry -> {
+      AuthEntry copy = new AuthEntry(entry.getId(), entry.getAuthCode(), entry.getCodeExpiresIn(), entry.getCreated(),
+          entry.getRefreshToken(), entry.getRefreshTokenExpiresIn(), entry.getScopes(), entry.getRelyingParty(),
+          null, entry.getAuthType(), entry.getRedirectUrl());
+      if (token != null)
+        copy.addToken(Token.builder().token(token).expiresIn(session.getExpiresIn()).created(session.getCreated()).build());
+      entries.add(copy);
+    });
+    return Observable.just(new Session(session.getId(), session.getIdentityProvider(), session.getAuthClient(),
+        session.getUserId(), session.getUserInfo(), session.getStatus(), session.getCreated(), session.getBlocked(),
+        session.getExpiresIn(), session.getLastCheck(), entries));
+  }
+}
@@ -0,0 +1,21 @@
+package ru.ratauth.benchmarks.stub;
+
+import ru.ratauth.entities.TokenCache;
+import ru.ratauth.services.TokenCacheService;
+import rx.Observable;
+
+/**
+ * Persistent idToken cache that never hits, so in-process cache and signing are measured
+ * @since 18/10/26
+ */
+public class StubTokenCacheService implements TokenCacheService {
+  @Override
+  public Observable<TokenCache> create(TokenCache cache) {
+    return Observable.just(cache);
+  }
+
+  @Override
+  public Observable<TokenCache> get(String token, String client) {
+    return Observable.empty();
+  }
+}
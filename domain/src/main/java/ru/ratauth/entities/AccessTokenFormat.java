@@ -0,0 +1,16 @@
+package ru.ratauth.entities;
+
+/**
+ * @since 18/10/26
+ */
+public enum AccessTokenFormat {
+  /**
+   * random value, all token data is kept in session storage
+   */
+  OPAQUE,
+  /**
+   * JWT signed by server secret, contains scopes, expiration, session and client,
+   * so only session status must be checked in storage
+   */
+  JWT
+}
@@ -37,6 +37,10 @@ public class AuthClient {
   private Date secretExpiresIn;
   private ClientType clientType;
   private Status status;
+  /**
+   * algorithm of idToken signature, HS256 by client secret if not defined
+   */
+  private SignatureAlgorithm idTokenSignatureAlgorithm;
 
   public enum Status {
     ACTIVE,
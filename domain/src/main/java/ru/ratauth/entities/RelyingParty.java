@@ -31,4 +31,8 @@ public class RelyingParty extends AuthClient {
    * Set of unique grants (means only internal grants, it's not resource server scope)
    */
   private Set<String> grants;
+  /**
+   * format of issued access tokens, OPAQUE if not defined
+   */
+  private AccessTokenFormat accessTokenFormat;
 }
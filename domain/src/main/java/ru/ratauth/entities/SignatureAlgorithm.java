@@ -0,0 +1,17 @@
+package ru.ratauth.entities;
+
+/**
+ * Algorithm of idToken signature
+ * @since 18/10/26
+ */
+public enum SignatureAlgorithm {
+  /**
+   * HMAC by client secret, token could be verified only by auth server or client itself
+   */
+  HS256,
+  /**
+   * Signature by auth server key, token could be verified offline by published jwks
+   */
+  RS256,
+  ES256
+}
@@ -35,6 +35,7 @@ public class BaseAuthServerException extends RuntimeException implements BaseIde
     AUTHORIZATION,
     REGISTRATION,
     PROVIDER,
-    EXPIRED
+    EXPIRED,
+    THROTTLED
   }
 }
@@ -0,0 +1,43 @@
+package ru.ratauth.exception;
+
+/**
+ * Request is rejected by load limits, it could be retried later with the same data
+ * @since 18/10/26
+ */
+public class ThrottledException extends BaseAuthServerException implements IdentifiedException {
+  private final String id;
+
+  public ThrottledException(ID id) {
+    super(id.baseText);
+    this.id = id.name();
+  }
+
+  public ThrottledException(String id, String message) {
+    super(message);
+    this.id = id;
+  }
+
+  @Override
+  public String getTypeId() {
+    return Type.THROTTLED.name();
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  public enum ID {
+    CREDENTIALS_CHECK_THROTTLED("Too many concurrent credentials checks of client, retry later");
+
+    private final String baseText;
+
+    ID(String baseText) {
+      this.baseText = baseText;
+    }
+
+    public String getBaseText() {
+      return baseText;
+    }
+  }
+}
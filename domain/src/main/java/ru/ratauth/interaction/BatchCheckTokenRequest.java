@@ -0,0 +1,20 @@
+package ru.ratauth.interaction;
+
+import lombok.*;
+
+import java.util.List;
+
+/**
+ * Check of several access tokens by one request of resource server
+ * @since 18/10/26
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class BatchCheckTokenRequest {
+  private @Singular List<String> tokens;
+  private String clientId;
+  private String clientSecret;
+  private String externalClientId;
+}
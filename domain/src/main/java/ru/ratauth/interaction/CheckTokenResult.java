@@ -0,0 +1,20 @@
+package ru.ratauth.interaction;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Result of single token check within batch: response in case of valid token, otherwise identifier of error
+ * @since 18/10/26
+ */
+@Data
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class CheckTokenResult {
+  private String token;
+  private CheckTokenResponse response;
+  private String error;
+}
@@ -4,6 +4,9 @@ import ru.ratauth.providers.auth.dto.AuthInput;
 import ru.ratauth.providers.auth.dto.AuthResult;
 import rx.Observable;
 
+import java.util.AbstractMap;
+import java.util.Map;
+
 /**
  * @author mgorelikov
  * @since 01/11/15
@@ -30,4 +33,18 @@ public interface AuthProvider {
    * @return true if user account is active, otherwise - false
    */
   Observable<Boolean> checkUserStatus(AuthInput input);
+
+  /**
+   * Checks statuses of several users by one call. Should be overridden by providers with bulk remote API,
+   * default implementation makes single {@link #checkUserStatus} call per user
+   * @param inputs fields containers by user identifier
+   * @return map of user identifier to true if user account is active, otherwise - false.
+   * Users with unknown status may be absent in result
+   */
+  default Observable<Map<String, Boolean>> checkUserStatuses(Map<String, AuthInput> inputs) {
+    return Observable.from(inputs.entrySet())
+        .flatMap(entry -> checkUserStatus(entry.getValue())
+            .map(active -> new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), active)))
+        .toMap(Map.Entry::getKey, Map.Entry::getValue);
+  }
 }
@@ -0,0 +1,21 @@
+package ru.ratauth.providers.auth;
+
+import rx.Observable;
+
+import java.util.Date;
+
+/**
+ * @since 18/10/26
+ * Callback for identity providers that push user status changes instead of being polled by {@link AuthProvider#checkUserStatus}.
+ * Implemented by auth server, providers could inject it as bean or use user_blocked endpoint
+ */
+public interface UserStatusListener {
+  /**
+   * Invalidates all sessions of blocked user immediately
+   * @param identityProvider unique name of identity provider
+   * @param userId user identifier got from provider
+   * @param blocked date of blocking
+   * @return Observable of number of invalidated sessions
+   */
+  Observable<Integer> onUserBlocked(String identityProvider, String userId, Date blocked);
+}
@@ -25,4 +25,13 @@ public interface ClientService {
    * @return loaded authClient entity
    */
   Observable<RelyingParty> getRelyingParty(String name);
+
+  /**
+   * Loads all clients, relying parties must be loaded as {@link RelyingParty} entities.
+   * Used by auth server to keep in-memory registry of clients instead of loading them on each request
+   * @return all authClient entities
+   */
+  default Observable<AuthClient> getClients() {
+    return Observable.error(new UnsupportedOperationException("Loading of all clients is not supported"));
+  }
 }
@@ -0,0 +1,15 @@
+package ru.ratauth.services;
+
+/**
+ * Provided by storages that route sessions by codes and tokens issued for them, e.g. by shards.
+ * Auth server puts hint of session in front of every opaque value of session, values of storages
+ * without provider are issued without hint
+ * @since 18/10/26
+ */
+public interface SessionHintProvider {
+  /**
+   * @param sessionId session identifier
+   * @return routing prefix for codes and tokens of session, it must not contain '.'
+   */
+  String hint(String sessionId);
+}
@@ -5,7 +5,11 @@ import ru.ratauth.entities.Session;
 import ru.ratauth.entities.Token;
 import rx.Observable;
 
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 
 /**
  * @author mgorelikov
@@ -46,6 +50,23 @@ public interface SessionService {
    */
   Observable<Session> getByValidToken(String token, Date now);
 
+  /**
+   * Loads sessions by several access tokens by one call, e.g. multi-get. Expiration is not checked,
+   * so expired sessions and tokens must be loaded too. Every session must be loaded with only one entry and token entity.
+   * Should be overridden by storages with bulk reads support, default implementation makes single
+   * {@link #getByValidToken} call per token
+   * @param tokens access token values
+   * @return Observable of single map of token to session, tokens that were not found are absent
+   */
+  default Observable<Map<String, Session>> getByTokens(Collection<String> tokens) {
+    //nothing is expired at epoch, so expired sessions and tokens are loaded too
+    final Date epoch = new Date(0);
+    return Observable.from(tokens)
+        .flatMap(token -> getByValidToken(token, epoch)
+            .map(session -> new AbstractMap.SimpleImmutableEntry<>(token, session)))
+        .toMap(Map.Entry::getKey, Map.Entry::getValue);
+  }
+
   /**
    * Adds new entry into existing session
    * @param sessionId session identifier
@@ -75,10 +96,89 @@ public interface SessionService {
    */
   Observable<Boolean> invalidateForClient(String relyingParty, Date blocked);
 
+  /**
+   * Invalidates all active sessions of user and all token database cache(if supported).
+   * Storage should keep index by identityProvider and userId for this operation.
+   * Required only in case of identity providers that push user status changes: without it pushed user blocking
+   * is rejected and sessions of blocked users are invalidated only by background status check
+   * @param identityProvider unique name of identity provider
+   * @param userId user identifier got from provider
+   * @param blocked date of blocking
+   * @return Observable of identifiers of invalidated sessions
+   */
+  default Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked) {
+    return Observable.error(new UnsupportedOperationException("Session invalidation by user is not supported"));
+  }
+
   /**
    * Updates session lastCheck date
    * @param sessionId session identifier
    * @param lastCheck date of lastCheck
    */
   Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck);
+
+  /**
+   * Invalidates several sessions by one call. Should be overridden by storages with batch updates support,
+   * default implementation makes single {@link #invalidateSession} call per session
+   * @param sessionIds session identifiers
+   * @param blocked date of blocking
+   * @return Observable of true if all sessions were invalidated
+   */
+  default Observable<Boolean> invalidateSessions(Collection<String> sessionIds, Date blocked) {
+    return Observable.from(sessionIds)
+        .flatMap(sessionId -> invalidateSession(sessionId, blocked))
+        .all(Boolean.TRUE::equals);
+  }
+
+  /**
+   * Updates lastCheck date of several sessions by one call. Should be overridden by storages with batch updates support,
+   * default implementation makes single {@link #updateCheckDate} call per session
+   * @param sessionIds session identifiers
+   * @param lastCheck date of lastCheck
+   * @return Observable of true if all sessions were updated
+   */
+  default Observable<Boolean> updateCheckDates(Collection<String> sessionIds, Date lastCheck) {
+    return Observable.from(sessionIds)
+        .flatMap(sessionId -> updateCheckDate(sessionId, lastCheck))
+        .all(Boolean.TRUE::equals);
+  }
+
+  /**
+   * Loads identifiers of sessions that were invalidated since given date and have not expired yet.
+   * Used by auth server to rebuild in-memory revocation filter, required only in case of trusted cached tokens:
+   * without it revocation filter knows only revocations made by the same node, so self-contained tokens
+   * are always checked by {@link #isActive}
+   * @param since date of earliest invalidation
+   * @param now current date
+   * @return Observable of session identifiers
+   */
+  default Observable<String> getInvalidatedSessions(Date since, Date now) {
+    return Observable.error(new UnsupportedOperationException("Loading of invalidated sessions is not supported"));
+  }
+
+  /**
+   * Loads clients whose sessions were invalidated by {@link #invalidateForClient} since given date.
+   * Used by auth server to load revocations of other nodes into in-memory revocation filter.
+   * Storages that invalidate every session of client and return them by {@link #getInvalidatedSessions}
+   * may keep default implementation, which returns no clients
+   * @param since date of earliest invalidation
+   * @return Observable of single map of client unique name to the latest date of its blocking
+   */
+  default Observable<Map<String, Date>> getInvalidatedClients(Date since) {
+    return Observable.just(Collections.emptyMap());
+  }
+
+  /**
+   * Compact revocation check for self-contained access tokens. Must not load session entries and tokens
+   * and must take into account both session and client invalidation.
+   * Should be overridden by storages used with JWT access tokens: without it auth server loads the whole session
+   * by {@link #getByValidToken} with JWT access token value, unless revocation filter trusts the token
+   * (auth.revocation.trust_self_contained)
+   * @param sessionId session identifier
+   * @param now current date
+   * @return Observable of true if session exists, is active and has not expired, false otherwise
+   */
+  default Observable<Boolean> isActive(String sessionId, Date now) {
+    return Observable.error(new UnsupportedOperationException("Session status check is not supported"));
+  }
 }
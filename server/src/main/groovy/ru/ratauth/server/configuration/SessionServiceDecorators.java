@@ -0,0 +1,142 @@
+package ru.ratauth.server.configuration;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.config.DestructionAwareBeanPostProcessor;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.PriorityOrdered;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import ru.ratauth.server.persistence.BatchingSessionService;
+import ru.ratauth.server.persistence.InMemorySessionService;
+import ru.ratauth.server.persistence.JournaledSessionService;
+import ru.ratauth.server.persistence.WriteBehindSessionService;
+import ru.ratauth.services.SessionService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wraps {@link SessionService} provided by persistence module with optional decorators enabled by properties.
+ * Decorators of storage are destroyed right before destroy callbacks of storage itself, from the outermost one,
+ * so pending writes are flushed and journal is closed while storage is still alive
+ * @since 18/10/26
+ */
+@Slf4j
+@Component
+public class SessionServiceDecorators implements DestructionAwareBeanPostProcessor, PriorityOrdered, EnvironmentAware,
+    PublicMetrics {
+  private Environment environment;
+  private final List<BatchingSessionService> batching = new ArrayList<>();
+  private final List<JournaledSessionService> journaled = new ArrayList<>();
+  private final List<WriteBehindSessionService> writeBehind = new ArrayList<>();
+  /**
+   * metrics of decorated storages are not collected by actuator, since decorators replace them in context
+   */
+  private final List<PublicMetrics> decoratedMetrics = new ArrayList<>();
+  /**
+   * destroy callbacks of decorators by name of decorated storage, the outermost decorator first
+   */
+  private final Map<String, List<Runnable>> teardowns = new ConcurrentHashMap<>();
+
+  @Override
+  public void setEnvironment(Environment environment) {
+    this.environment = environment;
+  }
+
+  @Override
+  public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+    return bean;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+    if (!(bean instanceof SessionService))
+      return bean;
+    SessionService result = (SessionService) bean;
+    final LinkedList<Runnable> teardown = new LinkedList<>();
+    if (environment.getProperty("auth.session.journal.enabled", Boolean.class, false)) {
+      if (bean instanceof InMemorySessionService) {
+        final JournaledSessionService decorator = new JournaledSessionService((InMemorySessionService) bean,
+            environment.getProperty("auth.session.journal.dir", "journal"),
+            environment.getProperty("auth.session.journal.fsync", "batch"),
+            environment.getProperty("auth.session.journal.fsync_interval", Long.class, 100L),
+            environment.getProperty("auth.session.journal.max_batch_size", Integer.class, 1024),
+            environment.getProperty("auth.session.journal.snapshot_interval", Long.class, 3600L),
+            environment.getProperty("auth.session.journal.recovery_threads", Integer.class, 4));
+        try {
+          decorator.init();
+        } catch (IOException e) {
+          throw new BeanInitializationException("Session journal recovery failed", e);
+        }
+        journaled.add(decorator);
+        teardown.addFirst(decorator::destroy);
+        result = decorator;
+        log.info("Modifications of session service {} are journaled", beanName);
+      } else {
+        log.warn("Session journal is supported only by in-memory storage, {} is not journaled", beanName);
+      }
+    }
+    if (environment.getProperty("auth.session.write_behind.enabled", Boolean.class, false)) {
+      final WriteBehindSessionService decorator = new WriteBehindSessionService(result,
+          environment.getProperty("auth.session.write_behind.max_size", Integer.class, 1000),
+          environment.getProperty("auth.session.write_behind.flush_interval", Long.class, 1000L));
+      writeBehind.add(decorator);
+      teardown.addFirst(decorator::destroy);
+      result = decorator;
+      log.info("Deferrable writes of session service {} are written behind", beanName);
+    }
+    if (environment.getProperty("auth.session.batch.enabled", Boolean.class, false)) {
+      final BatchingSessionService decorator = new BatchingSessionService(result,
+          environment.getProperty("auth.session.batch.max_size", Integer.class, 64),
+          environment.getProperty("auth.session.batch.window_micros", Long.class, 1000L));
+      batching.add(decorator);
+      teardown.addFirst(decorator::destroy);
+      result = decorator;
+      log.info("Token lookups of session service {} are batched", beanName);
+    }
+    if (result != bean && bean instanceof PublicMetrics)
+      decoratedMetrics.add((PublicMetrics) bean);
+    if (!teardown.isEmpty())
+      teardowns.put(beanName, teardown);
+    return result;
+  }
+
+  /**
+   * Context destroys raw storage, not the decorator that replaced it, so decorators are destroyed here
+   */
+  @Override
+  public void postProcessBeforeDestruction(Object bean, String beanName) throws BeansException {
+    final List<Runnable> teardown = teardowns.remove(beanName);
+    if (teardown == null)
+      return;
+    log.info("Destroying decorators of session service {}", beanName);
+    teardown.forEach(Runnable::run);
+  }
+
+  /**
+   * Runs before destroy callbacks of other post processors, e.g. @PreDestroy of storage
+   */
+  @Override
+  public int getOrder() {
+    return HIGHEST_PRECEDENCE;
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = new ArrayList<>();
+    batching.forEach(decorator -> result.addAll(decorator.metrics()));
+    journaled.forEach(decorator -> result.addAll(decorator.metrics()));
+    writeBehind.forEach(decorator -> result.addAll(decorator.metrics()));
+    decoratedMetrics.forEach(storage -> result.addAll(storage.metrics()));
+    return result;
+  }
+}
@@ -0,0 +1,101 @@
+package ru.ratauth.server.configuration;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import ru.ratauth.server.persistence.InMemorySessionService;
+import ru.ratauth.server.persistence.ShardedSessionService;
+import ru.ratauth.services.SessionHintProvider;
+import ru.ratauth.services.SessionService;
+import rx.Observable;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Session storage of several in-memory shards, enabled by auth.session.storage=sharded.
+ * Every shard has memory settings of in-memory storage
+ * @since 18/10/26
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "auth.session.storage", havingValue = "sharded")
+public class ShardedStorageConfiguration {
+  private static final String SHARD_PREFIX = "shard-";
+
+  @Value("${auth.session.shard.count:4}")
+  private Integer count;//final
+  @Value("${auth.session.shard.virtual_nodes:128}")
+  private Integer virtualNodes;//final
+  @Value("${auth.session.memory.max_bytes:268435456}")
+  private Long maxBytes;//final
+  @Value("${auth.session.memory.expired_retention:300}")
+  private Integer expiredRetention;//final
+  @Value("${auth.session.memory.tick:1000}")
+  private Integer tick;//final
+  @Value("${auth.session.memory.wheel_size:4096}")
+  private Integer wheelSize;//final
+
+  private final Map<String, InMemorySessionService> shards = new LinkedHashMap<>();
+  private ShardedSessionService sessionService;
+
+  @Bean(destroyMethod = "destroy")
+  public synchronized ShardedSessionService shardedSessionService() {
+    for (int i = 0; i < count; i++)
+      shards.put(SHARD_PREFIX + i, newShard());
+    sessionService = new ShardedSessionService(new LinkedHashMap<>(shards), virtualNodes);
+    return sessionService;
+  }
+
+  /**
+   * Codes and tokens of sessions carry hash of session, so they are looked up in single shard
+   */
+  @Bean
+  public SessionHintProvider sessionHintProvider() {
+    return ShardedSessionService::hint;
+  }
+
+  /**
+   * Changes count of shards online, shards are added and removed from the end.
+   * Removed shards are destroyed after their sessions are moved
+   * @param count new count of shards
+   * @return Observable of moved sessions count
+   */
+  public synchronized Observable<Long> resize(int count) {
+    final Map<String, SessionService> resized = new LinkedHashMap<>();
+    final List<InMemorySessionService> removed = new ArrayList<>();
+    for (int i = 0; i < Math.max(count, shards.size()); i++) {
+      final String name = SHARD_PREFIX + i;
+      if (i >= count)
+        removed.add(shards.get(name));
+      else
+        resized.put(name, shards.computeIfAbsent(name, it -> newShard()));
+    }
+    log.info("Resizing session storage from {} to {} shards", shards.size(), count);
+    return sessionService.rebalance(resized)
+        .doOnNext(moved -> {
+          synchronized (this) {
+            removed.forEach(shard -> {
+              shards.values().remove(shard);
+              shard.destroy();
+            });
+          }
+        });
+  }
+
+  @PreDestroy
+  public synchronized void destroy() {
+    shards.values().forEach(InMemorySessionService::destroy);
+  }
+
+  private InMemorySessionService newShard() {
+    final InMemorySessionService shard = new InMemorySessionService(maxBytes, expiredRetention, tick, wheelSize);
+    shard.init();
+    return shard;
+  }
+}
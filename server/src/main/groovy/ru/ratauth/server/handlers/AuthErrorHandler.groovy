@@ -13,6 +13,7 @@ import ru.ratauth.exception.AuthorizationException
 import ru.ratauth.exception.BaseAuthServerException
 import ru.ratauth.exception.ExpiredException
 import ru.ratauth.exception.IdentifiedException
+import ru.ratauth.exception.ThrottledException
 import ru.ratauth.server.handlers.readers.ReadRequestException
 import ru.ratauth.utils.ExceptionUtils
 
@@ -27,6 +28,7 @@ class AuthErrorHandler implements ServerErrorHandler {
   ObjectMapper jacksonObjectMapper
 
   public static final int AUTHENTICATION_TIMEOUT = 419
+  public static final int TOO_MANY_REQUESTS = 429
   public static final int MAX_EXCEPTION_DEPTH = 10
 
   @Override
@@ -39,6 +41,8 @@ class AuthErrorHandler implements ServerErrorHandler {
       sendIdentifiedError(context, HttpResponseStatus.BAD_REQUEST.code(), exception)
     else if (exception in AuthorizationException.class)
       sendIdentifiedError(context, HttpResponseStatus.FORBIDDEN.code(), exception)
+    else if (exception in ThrottledException.class)
+      sendIdentifiedError(context, TOO_MANY_REQUESTS, exception)
     else if(exception)
       sendError(context, HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), exception)
     else
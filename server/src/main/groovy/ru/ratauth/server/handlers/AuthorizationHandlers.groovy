@@ -1,6 +1,8 @@
 package ru.ratauth.server.handlers
 
 import groovy.util.logging.Slf4j
+import io.netty.handler.codec.http.HttpHeaderNames
+import io.netty.handler.codec.http.HttpHeaderValues
 import io.netty.handler.codec.http.HttpResponseStatus
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
@@ -13,18 +15,26 @@ import ratpack.handling.Context
 import ru.ratauth.interaction.GrantType
 import ru.ratauth.providers.registrations.dto.RegResult
 import ru.ratauth.server.handlers.dto.CheckTokenDTO
+import ru.ratauth.server.handlers.dto.CheckTokenResultDTO
 import ru.ratauth.server.handlers.dto.RegisterDTO
 import ru.ratauth.server.handlers.dto.TokenDTO
 import ru.ratauth.server.services.AuthTokenService
 import ru.ratauth.server.services.AuthorizeService
+import ru.ratauth.server.services.OpenIdDiscoveryService
 import ru.ratauth.server.services.RegistrationService
+import ru.ratauth.server.services.UserStatusService
 
 import static ratpack.groovy.Groovy.chain
 import static ratpack.groovy.Groovy.groovyMarkupTemplate
+import static ratpack.jackson.Jackson.chunkedJsonList
 import static ratpack.jackson.Jackson.json
 import static ratpack.rx.RxRatpack.observe
+import static ratpack.rx.RxRatpack.publisher
 import static ru.ratauth.server.handlers.readers.AuthzRequestReader.readAuthzRequest
 import static ru.ratauth.server.handlers.readers.RegistrationRequestReader.readRegistrationRequest
+import static ru.ratauth.server.handlers.readers.RequestUtil.extractAuth
+import static ru.ratauth.server.handlers.readers.RequestUtil.extractField
+import static ru.ratauth.server.handlers.readers.TokenRequestReader.readBatchCheckTokenRequest
 import static ru.ratauth.server.handlers.readers.TokenRequestReader.readCheckTokenRequest
 import static ru.ratauth.server.handlers.readers.TokenRequestReader.readTokenRequest
 
@@ -36,6 +46,7 @@ import static ru.ratauth.server.handlers.readers.TokenRequestReader.readTokenReq
 @Slf4j
 @Configuration
 class AuthorizationHandlers {
+  private static final String USER_ID = 'user_id'
 
   @Bean
   Action<Chain> authChain() {
@@ -94,6 +105,18 @@ class AuthorizationHandlers {
             throwable -> ctx.get(ServerErrorHandler.class).error(ctx, throwable)
           })
         }
+        post('batch') { Context ctx ->
+          def authTokenService = ctx.get(AuthTokenService.class)
+          Promise<Form> formPromise = ctx.parse(Form.class);
+          observe(formPromise).flatMap { params ->
+            authTokenService.checkTokens readBatchCheckTokenRequest(params, ctx.request.headers)
+          } subscribe ({
+            //results are streamed as soon as they are ready, not in order of request
+            res -> ctx.render chunkedJsonList(ctx, publisher(res.map { new CheckTokenResultDTO(it) }))
+          }, /*on error*/{
+            throwable -> ctx.get(ServerErrorHandler.class).error(ctx, throwable)
+          })
+        }
       }
 
       prefix('register') {
@@ -118,6 +141,21 @@ class AuthorizationHandlers {
         }
       }
 
+      prefix('user_blocked') {
+        post { Context ctx ->
+          def userStatusService = ctx.get(UserStatusService.class)
+          Promise<Form> formPromise = ctx.parse(Form.class);
+          observe(formPromise).flatMap { params ->
+            def auth = extractAuth(ctx.request.headers)
+            userStatusService.pushUserBlocked(auth[0], auth[1], extractField(params, USER_ID, true))
+          } subscribe ({
+            res -> ctx.render json([invalidated_sessions: res])
+          }, /*on error*/{
+            throwable -> ctx.get(ServerErrorHandler.class).error(ctx, throwable)
+          })
+        }
+      }
+
       prefix('login') {
         get { Context ctx ->
           render groovyMarkupTemplate('login.gtpl',
@@ -134,6 +172,19 @@ class AuthorizationHandlers {
         }
       }
 
+      prefix('.well-known') {
+        get('jwks.json') { Context ctx ->
+          def discoveryService = ctx.get(OpenIdDiscoveryService.class)
+          ctx.response.headers.set(HttpHeaderNames.CACHE_CONTROL, discoveryService.cacheControl)
+          ctx.response.send(HttpHeaderValues.APPLICATION_JSON.toString(), discoveryService.jwks)
+        }
+        get('openid-configuration') { Context ctx ->
+          def discoveryService = ctx.get(OpenIdDiscoveryService.class)
+          ctx.response.headers.set(HttpHeaderNames.CACHE_CONTROL, discoveryService.cacheControl)
+          ctx.response.send(HttpHeaderValues.APPLICATION_JSON.toString(), discoveryService.configuration)
+        }
+      }
+
       fileSystem 'public', { f -> f.files() }
     }
   }
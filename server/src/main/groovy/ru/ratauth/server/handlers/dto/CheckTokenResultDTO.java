@@ -0,0 +1,28 @@
+package ru.ratauth.server.handlers.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.ratauth.interaction.CheckTokenResult;
+
+/**
+ * @since 18/10/26
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CheckTokenResultDTO {
+  private String token;
+  @JsonUnwrapped
+  private CheckTokenDTO result;
+  private String error;
+
+  public CheckTokenResultDTO(CheckTokenResult result) {
+    this.token = result.getToken();
+    this.result = result.getResponse() == null ? null : new CheckTokenDTO(result.getResponse());
+    this.error = result.getError();
+  }
+}
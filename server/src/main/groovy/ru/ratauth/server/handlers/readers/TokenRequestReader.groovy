@@ -5,6 +5,7 @@ import ratpack.form.Form
 import ratpack.http.Headers
 import ru.ratauth.exception.AuthorizationException
 import ru.ratauth.interaction.AuthzResponseType
+import ru.ratauth.interaction.BatchCheckTokenRequest
 import ru.ratauth.interaction.CheckTokenRequest
 import ru.ratauth.interaction.GrantType
 import ru.ratauth.interaction.TokenRequest
@@ -57,6 +58,21 @@ class TokenRequestReader {
     request
   }
 
+  static BatchCheckTokenRequest readBatchCheckTokenRequest(Form form, Headers headers) {
+    def tokens = form.getAll(TOKEN)
+    if(!tokens)
+      throw new ReadRequestException(ReadRequestException.ID.FIELD_MISSED, TOKEN)
+    def auth = extractAuth(headers)
+    def request = BatchCheckTokenRequest.builder()
+        .tokens(tokens)
+        .clientId(auth[0])
+        .clientSecret(auth[1])
+        .externalClientId(extractField(form, CLIENT_ID, false))
+        .build()
+    ActionLogger.addBaseRequestInfo(request.clientId, AuthAction.CHECK_TOKEN)
+    request
+  }
+
   static CheckTokenRequest readCheckTokenRequest(Form form, Headers headers) {
     CheckTokenRequest.CheckTokenRequestBuilder builder = CheckTokenRequest.builder().token(extractField(form, TOKEN, true));
     def auth = extractAuth(headers)
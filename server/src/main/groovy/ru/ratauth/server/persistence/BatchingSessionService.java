@@ -0,0 +1,240 @@
+package ru.ratauth.server.persistence;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import ru.ratauth.entities.AuthEntry;
+import ru.ratauth.entities.Session;
+import ru.ratauth.entities.Token;
+import ru.ratauth.exception.ExpiredException;
+import ru.ratauth.server.utils.LatencyStats;
+import ru.ratauth.services.SessionService;
+import rx.Observable;
+import rx.subjects.AsyncSubject;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gathers concurrent {@link #getByValidToken} calls issued within batch window or up to max batch size
+ * into one {@link SessionService#getByTokens} call and fans results out. Expiration is checked by decorator itself.
+ * Storages without bulk reads are served by per-token default of {@link SessionService#getByTokens}, so batching
+ * is worth enabling only for storages with multi-get. Falls back to point reads if storage rejects bulk loading.
+ * Other operations are delegated as is
+ * @since 18/10/26
+ */
+@Slf4j
+public class BatchingSessionService implements SessionService, PublicMetrics {
+  private final SessionService delegate;
+  private final int maxBatchSize;
+  private final long batchWindowMicros;
+  private final ScheduledExecutorService scheduler;
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder batchedLookups = new LongAdder();
+  private final LongAccumulator maxBatch = new LongAccumulator(Long::max, 0);
+  /**
+   * time spent by lookups in batch before storage call
+   */
+  private final LatencyStats wait = new LatencyStats();
+  private final LatencyStats load = new LatencyStats();
+  private volatile boolean bulkSupported = true;
+  private List<Lookup> pending = new ArrayList<>();
+
+  public BatchingSessionService(SessionService delegate, int maxBatchSize, long batchWindowMicros) {
+    this.delegate = delegate;
+    this.maxBatchSize = maxBatchSize;
+    this.batchWindowMicros = batchWindowMicros;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "session-batch-flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public void destroy() {
+    scheduler.shutdownNow();
+  }
+
+  @Override
+  public Observable<Session> getByValidToken(String token, Date now) {
+    if (!bulkSupported)
+      return delegate.getByValidToken(token, now);
+    return Observable.defer(() -> {
+      final Lookup lookup = new Lookup(token, now);
+      enqueue(lookup);
+      return lookup.result;
+    });
+  }
+
+  private void enqueue(Lookup lookup) {
+    List<Lookup> full = null;
+    boolean first;
+    synchronized (this) {
+      pending.add(lookup);
+      first = pending.size() == 1;
+      if (pending.size() >= maxBatchSize) {
+        full = pending;
+        pending = new ArrayList<>();
+      }
+    }
+    if (full != null)
+      dispatch(full);
+    else if (first)
+      scheduler.schedule(this::flush, batchWindowMicros, TimeUnit.MICROSECONDS);
+  }
+
+  private void flush() {
+    final List<Lookup> batch;
+    synchronized (this) {
+      if (pending.isEmpty())
+        return;
+      batch = pending;
+      pending = new ArrayList<>();
+    }
+    dispatch(batch);
+  }
+
+  private void dispatch(List<Lookup> batch) {
+    final long start = System.nanoTime();
+    batch.forEach(lookup -> wait.record(start - lookup.enqueued));
+    batches.increment();
+    batchedLookups.add(batch.size());
+    maxBatch.accumulate(batch.size());
+    final Set<String> tokens = new HashSet<>();
+    batch.forEach(lookup -> tokens.add(lookup.token));
+    delegate.getByTokens(tokens)
+        .defaultIfEmpty(Collections.emptyMap())
+        .subscribe(sessions -> {
+          load.record(System.nanoTime() - start);
+          batch.forEach(lookup -> complete(lookup, sessions.get(lookup.token)));
+        }, throwable -> {
+          if (throwable instanceof UnsupportedOperationException) {
+            log.warn("Session storage doesn't support bulk loading, batching is disabled");
+            bulkSupported = false;
+            batch.forEach(lookup -> delegate.getByValidToken(lookup.token, lookup.now).subscribe(lookup.result));
+            return;
+          }
+          load.error();
+          batch.forEach(lookup -> lookup.result.onError(throwable));
+        });
+  }
+
+  private static void complete(Lookup lookup, Session session) {
+    if (session == null) {
+      lookup.result.onCompleted();
+      return;
+    }
+    final Optional<Token> token = session.getEntries().stream()
+        .map(AuthEntry::getTokens)
+        .filter(Objects::nonNull)
+        .flatMap(Collection::stream)
+        .filter(it -> lookup.token.equals(it.getToken()))
+        .findFirst();
+    if (token.isPresent() && token.get().getExpiresIn() != null && token.get().getExpiresIn().before(lookup.now)) {
+      lookup.result.onError(new ExpiredException(ExpiredException.ID.TOKEN_EXPIRED));
+      return;
+    }
+    lookup.result.onNext(session);
+    lookup.result.onCompleted();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    final long count = batches.sum();
+    Collection<Metric<?>> result = new ArrayList<>();
+    result.add(new Metric<>("session.batch.batches", count));
+    result.add(new Metric<>("session.batch.size.mean", count == 0 ? 0.0 : batchedLookups.sum() / (double) count));
+    result.add(new Metric<>("session.batch.size.max", maxBatch.get()));
+    result.addAll(wait.metrics("session.batch.wait"));
+    result.addAll(load.metrics("session.batch.load"));
+    return result;
+  }
+
+  @Override
+  public Observable<Map<String, Session>> getByTokens(Collection<String> tokens) {
+    return delegate.getByTokens(tokens);
+  }
+
+  @Override
+  public Observable<Session> create(Session session) {
+    return delegate.create(session);
+  }
+
+  @Override
+  public Observable<Session> getByValidCode(String code, Date now) {
+    return delegate.getByValidCode(code, now);
+  }
+
+  @Override
+  public Observable<Session> getByValidRefreshToken(String token, Date now) {
+    return delegate.getByValidRefreshToken(token, now);
+  }
+
+  @Override
+  public Observable<Boolean> addEntry(String sessionId, AuthEntry entry) {
+    return delegate.addEntry(sessionId, entry);
+  }
+
+  @Override
+  public Observable<Boolean> addToken(String sessionId, String relyingParty, Token token) {
+    return delegate.addToken(sessionId, relyingParty, token);
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSession(String sessionId, Date blocked) {
+    return delegate.invalidateSession(sessionId, blocked);
+  }
+
+  @Override
+  public Observable<Boolean> invalidateForClient(String relyingParty, Date blocked) {
+    return delegate.invalidateForClient(relyingParty, blocked);
+  }
+
+  @Override
+  public Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked) {
+    return delegate.invalidateForUser(identityProvider, userId, blocked);
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) {
+    return delegate.updateCheckDate(sessionId, lastCheck);
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSessions(Collection<String> sessionIds, Date blocked) {
+    return delegate.invalidateSessions(sessionIds, blocked);
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDates(Collection<String> sessionIds, Date lastCheck) {
+    return delegate.updateCheckDates(sessionIds, lastCheck);
+  }
+
+  @Override
+  public Observable<Boolean> isActive(String sessionId, Date now) {
+    return delegate.isActive(sessionId, now);
+  }
+
+  @Override
+  public Observable<String> getInvalidatedSessions(Date since, Date now) {
+    return delegate.getInvalidatedSessions(since, now);
+  }
+
+  @Override
+  public Observable<Map<String, Date>> getInvalidatedClients(Date since) {
+    return delegate.getInvalidatedClients(since);
+  }
+
+  @RequiredArgsConstructor
+  private static class Lookup {
+    private final String token;
+    private final Date now;
+    private final long enqueued = System.nanoTime();
+    private final AsyncSubject<Session> result = AsyncSubject.create();
+  }
+}
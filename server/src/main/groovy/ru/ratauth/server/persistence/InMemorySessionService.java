@@ -0,0 +1,567 @@
+package ru.ratauth.server.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.ratauth.entities.AuthEntry;
+import ru.ratauth.entities.Session;
+import ru.ratauth.entities.Status;
+import ru.ratauth.entities.Token;
+import ru.ratauth.exception.ExpiredException;
+import ru.ratauth.exception.InternalLogicException;
+import ru.ratauth.server.utils.LatencyStats;
+import ru.ratauth.server.utils.TimingWheel;
+import ru.ratauth.services.SessionService;
+import rx.Observable;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Session storage for single node deployments, enabled by auth.session.storage=memory.
+ * Sessions are kept in concurrent hash indexes by id, auth code, refresh token, access token, client and user,
+ * so every operation touches only affected sessions. Expired sessions and tokens are dropped by timing wheel
+ * after expired_retention, until then lookups report expiration instead of absence.
+ * New sessions are rejected when estimated memory usage exceeds max_bytes.
+ * Returned sessions are copies, so callers can not modify stored state
+ * @since 18/10/26
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "auth.session.storage", havingValue = "memory")
+public class InMemorySessionService implements SessionService, MovableSessionStorage, PublicMetrics {
+  private static final int SESSION_OVERHEAD = 512;
+  private static final int ENTRY_OVERHEAD = 256;
+  private static final int TOKEN_OVERHEAD = 256;
+
+  @Value("${auth.session.memory.max_bytes:268435456}")
+  private Long maxBytes;//final
+  @Value("${auth.session.memory.expired_retention:300}")
+  private Integer expiredRetention;//final
+  @Value("${auth.session.memory.tick:1000}")
+  private Integer tick;//final
+  @Value("${auth.session.memory.wheel_size:4096}")
+  private Integer wheelSize;//final
+
+  private final Map<String, Stored> sessions = new ConcurrentHashMap<>();
+  private final Map<String, String> codes = new ConcurrentHashMap<>();
+  private final Map<String, String> refreshTokens = new ConcurrentHashMap<>();
+  private final Map<String, String> tokens = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> clientSessions = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> userSessions = new ConcurrentHashMap<>();
+  /**
+   * blocking dates of invalidated sessions that have not expired yet
+   */
+  private final Map<String, Date> invalidated = new ConcurrentHashMap<>();
+  /**
+   * latest blocking dates of clients
+   */
+  private final Map<String, Date> invalidatedClients = new ConcurrentHashMap<>();
+  private final AtomicLong bytes = new AtomicLong();
+  private final LongAdder expired = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LatencyStats lookups = new LatencyStats();
+  private TimingWheel wheel;
+  private ScheduledExecutorService executorService;
+
+  public InMemorySessionService() {
+  }
+
+  /**
+   * Used for storages created outside of context, e.g. shards of {@link ShardedSessionService}
+   */
+  public InMemorySessionService(long maxBytes, int expiredRetention, int tick, int wheelSize) {
+    this.maxBytes = maxBytes;
+    this.expiredRetention = expiredRetention;
+    this.tick = tick;
+    this.wheelSize = wheelSize;
+  }
+
+  @PostConstruct
+  public void init() {
+    wheel = new TimingWheel(tick, wheelSize, System.currentTimeMillis());
+    executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "session-storage-expiration");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executorService.scheduleAtFixedRate(this::expire, tick, tick, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    executorService.shutdownNow();
+  }
+
+  @Override
+  public Observable<Session> create(Session session) {
+    if (session.getId() == null)
+      session.setId(UUID.randomUUID().toString());
+    if (session.getCreated() == null)
+      session.setCreated(new Date());
+    final Stored stored = new Stored(copy(session, entry -> true, null));
+    final long weight = weigh(stored.session);
+    if (bytes.get() + weight > maxBytes) {
+      rejected.increment();
+      return Observable.error(new InternalLogicException("Session storage memory budget is exceeded"));
+    }
+    final String sessionId = stored.session.getId();
+    //session is replaced, e.g. on journal replay
+    final Stored previous = sessions.get(sessionId);
+    if (previous != null)
+      unlink(sessionId, previous);
+    synchronized (stored) {
+      stored.weight = weight;
+      bytes.addAndGet(weight);
+      sessions.put(sessionId, stored);
+      if (Status.BLOCKED == stored.session.getStatus() && stored.session.getBlocked() != null)
+        invalidated.put(sessionId, stored.session.getBlocked());
+      stored.session.getEntries().forEach(entry -> index(sessionId, entry));
+      if (stored.session.getUserId() != null)
+        addIndex(userSessions, userKey(stored.session.getIdentityProvider(), stored.session.getUserId()), sessionId);
+    }
+    schedule(stored.session.getExpiresIn(), () -> remove(sessionId, stored));
+    return Observable.just(session);
+  }
+
+  @Override
+  public Observable<Session> getByValidCode(String code, Date now) {
+    return lookup(codes.get(code), now, entry -> code.equals(entry.getAuthCode()), stored -> {
+      final AuthEntry entry = findEntry(stored.session, it -> code.equals(it.getAuthCode()));
+      if (isExpired(entry.getCodeExpiresIn(), now))
+        throw new ExpiredException(ExpiredException.ID.AUTH_CODE_EXPIRED);
+      return copy(stored.session, it -> it == entry, null);
+    });
+  }
+
+  @Override
+  public Observable<Session> getByValidRefreshToken(String token, Date now) {
+    return lookup(refreshTokens.get(token), now, entry -> token.equals(entry.getRefreshToken()), stored -> {
+      final AuthEntry entry = findEntry(stored.session, it -> token.equals(it.getRefreshToken()));
+      if (isExpired(entry.getRefreshTokenExpiresIn(), now))
+        throw new ExpiredException(ExpiredException.ID.REFRESH_TOKEN_EXPIRED);
+      return copy(stored.session, it -> it == entry, null);
+    });
+  }
+
+  @Override
+  public Observable<Session> getByValidToken(String token, Date now) {
+    return lookup(tokens.get(token), now, entry -> findToken(entry, token) != null, stored -> {
+      final AuthEntry entry = findEntry(stored.session, it -> findToken(it, token) != null);
+      if (isExpired(findToken(entry, token).getExpiresIn(), now))
+        throw new ExpiredException(ExpiredException.ID.TOKEN_EXPIRED);
+      return copy(stored.session, it -> it == entry, token);
+    });
+  }
+
+  @Override
+  public Observable<Map<String, Session>> getByTokens(Collection<String> values) {
+    final long start = System.nanoTime();
+    final Map<String, Session> result = new HashMap<>();
+    for (String token : values) {
+      final String sessionId = tokens.get(token);
+      final Stored stored = sessionId == null ? null : sessions.get(sessionId);
+      if (stored == null)
+        continue;
+      synchronized (stored) {
+        final AuthEntry entry = findEntry(stored.session, it -> findToken(it, token) != null);
+        if (entry != null && Status.ACTIVE == stored.session.getStatus())
+          result.put(token, copy(stored.session, it -> it == entry, token));
+      }
+    }
+    lookups.record(System.nanoTime() - start);
+    return Observable.just(result);
+  }
+
+  @Override
+  public Observable<Boolean> addEntry(String sessionId, AuthEntry entry) {
+    final Stored stored = sessions.get(sessionId);
+    if (stored == null)
+      return Observable.just(false);
+    synchronized (stored) {
+      final AuthEntry copy = copyEntry(entry, entry.getTokens());
+      stored.session.getEntries().add(copy);
+      stored.add(weigh(copy));
+      index(sessionId, copy);
+    }
+    return Observable.just(true);
+  }
+
+  @Override
+  public Observable<Boolean> addToken(String sessionId, String relyingParty, Token token) {
+    final Stored stored = sessions.get(sessionId);
+    if (stored == null)
+      return Observable.just(false);
+    synchronized (stored) {
+      final AuthEntry entry = findEntry(stored.session, it -> relyingParty.equals(it.getRelyingParty()));
+      if (entry == null)
+        return Observable.just(false);
+      final Token copy = copyToken(token);
+      entry.addToken(copy);
+      stored.add(weigh(copy));
+      indexToken(sessionId, relyingParty, copy);
+    }
+    return Observable.just(true);
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSession(String sessionId, Date blocked) {
+    return Observable.just(block(sessionId, blocked));
+  }
+
+  @Override
+  public Observable<Boolean> invalidateForClient(String relyingParty, Date blocked) {
+    invalidatedClients.merge(relyingParty, blocked, (first, second) -> first.after(second) ? first : second);
+    clientSessions.getOrDefault(relyingParty, Collections.emptySet())
+        .forEach(sessionId -> block(sessionId, blocked));
+    return Observable.just(true);
+  }
+
+  @Override
+  public Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked) {
+    final List<String> result = new ArrayList<>();
+    userSessions.getOrDefault(userKey(identityProvider, userId), Collections.emptySet())
+        .forEach(sessionId -> {
+          if (block(sessionId, blocked))
+            result.add(sessionId);
+        });
+    return Observable.from(result);
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) {
+    final Stored stored = sessions.get(sessionId);
+    if (stored == null)
+      return Observable.just(false);
+    synchronized (stored) {
+      stored.session.setLastCheck(lastCheck);
+    }
+    return Observable.just(true);
+  }
+
+  @Override
+  public Observable<String> getInvalidatedSessions(Date since, Date now) {
+    final List<String> result = new ArrayList<>();
+    invalidated.forEach((sessionId, blocked) -> {
+      final Stored stored = sessions.get(sessionId);
+      if (!blocked.before(since) && stored != null && !isExpired(stored.session.getExpiresIn(), now))
+        result.add(sessionId);
+    });
+    return Observable.from(result);
+  }
+
+  @Override
+  public Observable<Map<String, Date>> getInvalidatedClients(Date since) {
+    final Map<String, Date> result = new HashMap<>();
+    invalidatedClients.forEach((relyingParty, blocked) -> {
+      if (!blocked.before(since))
+        result.put(relyingParty, blocked);
+    });
+    return Observable.just(result);
+  }
+
+  @Override
+  public Observable<Boolean> isActive(String sessionId, Date now) {
+    final Stored stored = sessions.get(sessionId);
+    if (stored == null)
+      return Observable.just(false);
+    synchronized (stored) {
+      return Observable.just(Status.ACTIVE == stored.session.getStatus() && !isExpired(stored.session.getExpiresIn(), now));
+    }
+  }
+
+  /**
+   * Iterates over copies of all stored sessions, e.g. for snapshots. Sessions created or modified concurrently
+   * could be visited in any state
+   * @param consumer session consumer
+   */
+  @Override
+  public void forEach(Consumer<Session> consumer) {
+    for (Stored stored : sessions.values()) {
+      final Session copy;
+      synchronized (stored) {
+        copy = copy(stored.session, entry -> true, null);
+      }
+      consumer.accept(copy);
+    }
+  }
+
+  @Override
+  public Session get(String sessionId) {
+    final Stored stored = sessions.get(sessionId);
+    if (stored == null)
+      return null;
+    synchronized (stored) {
+      return copy(stored.session, entry -> true, null);
+    }
+  }
+
+  @Override
+  public boolean evict(String sessionId) {
+    final Stored stored = sessions.get(sessionId);
+    return stored != null && unlink(sessionId, stored);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = new ArrayList<>();
+    result.add(new Metric<>("session.memory.sessions", sessions.size()));
+    result.add(new Metric<>("session.memory.codes", codes.size()));
+    result.add(new Metric<>("session.memory.refresh_tokens", refreshTokens.size()));
+    result.add(new Metric<>("session.memory.tokens", tokens.size()));
+    result.add(new Metric<>("session.memory.users", userSessions.size()));
+    result.add(new Metric<>("session.memory.invalidated", invalidated.size()));
+    result.add(new Metric<>("session.memory.bytes", bytes.get()));
+    result.add(new Metric<>("session.memory.max_bytes", maxBytes));
+    result.add(new Metric<>("session.memory.expired", expired.sum()));
+    result.add(new Metric<>("session.memory.rejected", rejected.sum()));
+    result.addAll(lookups.metrics("session.memory.lookup"));
+    return result;
+  }
+
+  /**
+   * Blocked sessions are not found by codes and tokens, expired ones are reported by entry expiration or
+   * session expiration
+   */
+  private Observable<Session> lookup(String sessionId, Date now, Predicate<AuthEntry> matcher,
+                                     Function<Stored, Session> loader) {
+    final long start = System.nanoTime();
+    try {
+      final Stored stored = sessionId == null ? null : sessions.get(sessionId);
+      if (stored == null)
+        return Observable.empty();
+      synchronized (stored) {
+        if (Status.ACTIVE != stored.session.getStatus() || findEntry(stored.session, matcher) == null)
+          return Observable.empty();
+        final Session session = loader.apply(stored);
+        if (isExpired(stored.session.getExpiresIn(), now))
+          throw new ExpiredException(ExpiredException.ID.SESSION_EXPIRED);
+        return Observable.just(session);
+      }
+    } catch (ExpiredException e) {
+      return Observable.error(e);
+    } finally {
+      lookups.record(System.nanoTime() - start);
+    }
+  }
+
+  private boolean block(String sessionId, Date blocked) {
+    final Stored stored = sessions.get(sessionId);
+    if (stored == null)
+      return false;
+    synchronized (stored) {
+      if (Status.BLOCKED == stored.session.getStatus())
+        return false;
+      stored.session.setStatus(Status.BLOCKED);
+      stored.session.setBlocked(blocked);
+      invalidated.put(sessionId, blocked);
+      return true;
+    }
+  }
+
+  private void index(String sessionId, AuthEntry entry) {
+    if (entry.getAuthCode() != null) {
+      codes.put(entry.getAuthCode(), sessionId);
+      final String code = entry.getAuthCode();
+      schedule(entry.getCodeExpiresIn(), () -> codes.remove(code, sessionId));
+    }
+    if (entry.getRefreshToken() != null) {
+      refreshTokens.put(entry.getRefreshToken(), sessionId);
+      final String refreshToken = entry.getRefreshToken();
+      schedule(entry.getRefreshTokenExpiresIn(), () -> refreshTokens.remove(refreshToken, sessionId));
+    }
+    if (entry.getTokens() != null)
+      entry.getTokens().forEach(token -> indexToken(sessionId, entry.getRelyingParty(), token));
+    if (entry.getRelyingParty() != null)
+      addIndex(clientSessions, entry.getRelyingParty(), sessionId);
+  }
+
+  private void indexToken(String sessionId, String relyingParty, Token token) {
+    tokens.put(token.getToken(), sessionId);
+    schedule(token.getExpiresIn(), () -> removeToken(sessionId, relyingParty, token));
+  }
+
+  private void removeToken(String sessionId, String relyingParty, Token token) {
+    tokens.remove(token.getToken(), sessionId);
+    final Stored stored = sessions.get(sessionId);
+    if (stored == null)
+      return;
+    synchronized (stored) {
+      final AuthEntry entry = findEntry(stored.session, it -> relyingParty.equals(it.getRelyingParty()));
+      if (entry != null && entry.getTokens() != null && entry.getTokens().remove(token))
+        stored.add(-weigh(token));
+    }
+  }
+
+  private void remove(String sessionId, Stored stored) {
+    if (unlink(sessionId, stored))
+      expired.increment();
+  }
+
+  private boolean unlink(String sessionId, Stored stored) {
+    if (!sessions.remove(sessionId, stored))
+      return false;
+    synchronized (stored) {
+      for (AuthEntry entry : stored.session.getEntries()) {
+        if (entry.getAuthCode() != null)
+          codes.remove(entry.getAuthCode(), sessionId);
+        if (entry.getRefreshToken() != null)
+          refreshTokens.remove(entry.getRefreshToken(), sessionId);
+        if (entry.getTokens() != null)
+          entry.getTokens().forEach(token -> tokens.remove(token.getToken(), sessionId));
+        if (entry.getRelyingParty() != null)
+          removeIndex(clientSessions, entry.getRelyingParty(), sessionId);
+      }
+      if (stored.session.getUserId() != null)
+        removeIndex(userSessions, userKey(stored.session.getIdentityProvider(), stored.session.getUserId()), sessionId);
+      invalidated.remove(sessionId);
+      bytes.addAndGet(-stored.weight);
+    }
+    return true;
+  }
+
+  private void schedule(Date expiresIn, Runnable task) {
+    if (expiresIn != null)
+      wheel.schedule(expiresIn.getTime() + TimeUnit.SECONDS.toMillis(expiredRetention), task);
+  }
+
+  private void expire() {
+    try {
+      wheel.advance(System.currentTimeMillis());
+    } catch (Exception e) {
+      log.error("Session storage expiration failed", e);
+    }
+  }
+
+  private static void addIndex(Map<String, Set<String>> index, String key, String sessionId) {
+    index.compute(key, (k, ids) -> {
+      final Set<String> result = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+      result.add(sessionId);
+      return result;
+    });
+  }
+
+  private static void removeIndex(Map<String, Set<String>> index, String key, String sessionId) {
+    index.computeIfPresent(key, (k, ids) -> {
+      ids.remove(sessionId);
+      return ids.isEmpty() ? null : ids;
+    });
+  }
+
+  private static String userKey(String identityProvider, String userId) {
+    return identityProvider + ':' + userId;
+  }
+
+  private static boolean isExpired(Date expiresIn, Date now) {
+    return expiresIn != null && expiresIn.before(now);
+  }
+
+  private static AuthEntry findEntry(Session session, Predicate<AuthEntry> matcher) {
+    for (AuthEntry entry : session.getEntries())
+      if (matcher.test(entry))
+        return entry;
+    return null;
+  }
+
+  private static Token findToken(AuthEntry entry, String token) {
+    if (entry.getTokens() == null)
+      return null;
+    for (Token value : entry.getTokens())
+      if (token.equals(value.getToken()))
+        return value;
+    return null;
+  }
+
+  /**
+   * @param entries filter of copied entries
+   * @param token the only token of copied entries or null if all tokens are copied
+   */
+  private static Session copy(Session session, Predicate<AuthEntry> entries, String token) {
+    final Set<AuthEntry> copies = new HashSet<>();
+    if (session.getEntries() != null)
+      for (AuthEntry entry : session.getEntries())
+        if (entries.test(entry)) {
+          final Token single = token == null ? null : findToken(entry, token);
+          copies.add(copyEntry(entry, single == null ? entry.getTokens() : Collections.singleton(single)));
+        }
+    return new Session(session.getId(), session.getIdentityProvider(), session.getAuthClient(),
+        session.getUserId(), session.getUserInfo(), session.getStatus(), session.getCreated(), session.getBlocked(),
+        session.getExpiresIn(), session.getLastCheck(), copies);
+  }
+
+  private static AuthEntry copyEntry(AuthEntry entry, Collection<Token> tokens) {
+    Set<Token> copies = null;
+    if (tokens != null) {
+      copies = new HashSet<>();
+      for (Token token : tokens)
+        copies.add(copyToken(token));
+    }
+    return new AuthEntry(entry.getId(), entry.getAuthCode(), entry.getCodeExpiresIn(), entry.getCreated(),
+        entry.getRefreshToken(), entry.getRefreshTokenExpiresIn(),
+        entry.getScopes() == null ? null : new HashSet<>(entry.getScopes()), entry.getRelyingParty(),
+        copies, entry.getAuthType(), entry.getRedirectUrl());
+  }
+
+  private static Token copyToken(Token token) {
+    return new Token(token.getToken(), token.getCreated(), token.getExpiresIn());
+  }
+
+  private static long weigh(Session session) {
+    long result = SESSION_OVERHEAD + 2 * (length(session.getId()) + length(session.getIdentityProvider())
+        + length(session.getAuthClient()) + length(session.getUserId()) + length(session.getUserInfo()));
+    for (AuthEntry entry : session.getEntries())
+      result += weigh(entry);
+    return result;
+  }
+
+  private static long weigh(AuthEntry entry) {
+    long chars = length(entry.getId()) + length(entry.getAuthCode()) + length(entry.getRefreshToken())
+        + length(entry.getRelyingParty()) + length(entry.getRedirectUrl());
+    if (entry.getScopes() != null)
+      for (String scope : entry.getScopes())
+        chars += scope.length();
+    long result = ENTRY_OVERHEAD + 2 * chars;
+    if (entry.getTokens() != null)
+      for (Token token : entry.getTokens())
+        result += weigh(token);
+    return result;
+  }
+
+  private static long weigh(Token token) {
+    return TOKEN_OVERHEAD + 2 * length(token.getToken());
+  }
+
+  private static int length(String value) {
+    return value == null ? 0 : value.length();
+  }
+
+  /**
+   * Stored session with its estimated size, both are guarded by Stored monitor
+   */
+  private class Stored {
+    private final Session session;
+    private long weight;
+
+    Stored(Session session) {
+      this.session = session;
+    }
+
+    void add(long delta) {
+      weight += delta;
+      bytes.addAndGet(delta);
+    }
+  }
+}
@@ -0,0 +1,473 @@
+package ru.ratauth.server.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import ru.ratauth.entities.AuthEntry;
+import ru.ratauth.entities.Session;
+import ru.ratauth.entities.Token;
+import ru.ratauth.services.SessionService;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Func0;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Makes {@link InMemorySessionService} durable by write-ahead journal of all modifications and periodic snapshots.
+ * Modification is applied after its journal record is written according to fsync policy, so failed write leaves
+ * no trace in memory. Session creation is the only exception: it is applied first, since it could be rejected
+ * by memory budget, and is rolled back if its record is not written; nobody knows tokens of session until
+ * creation is acknowledged anyway.
+ * Snapshot is taken without stopping writes: journal is rotated after in-flight modifications are applied,
+ * then all stored sessions are written, so journal files after rotation contain every modification missing
+ * in snapshot. Replay of records is idempotent,
+ * so modifications included into snapshot and repeated in journal are harmless.
+ * On startup the latest snapshot and following journal files are replayed by several threads,
+ * records of the same session are replayed by one thread in journal order
+ * @since 18/10/26
+ */
+@Slf4j
+public class JournaledSessionService implements SessionService, PublicMetrics {
+  private static final String SNAPSHOT_SUFFIX = ".snapshot";
+  private static final byte CREATE = 1;
+  private static final byte ADD_ENTRY = 2;
+  private static final byte ADD_TOKEN = 3;
+  private static final byte INVALIDATE = 4;
+  private static final byte UPDATE_CHECK_DATE = 5;
+  private static final byte INVALIDATE_CLIENT = 6;
+  private static final byte INVALIDATE_USER = 7;
+
+  private final InMemorySessionService delegate;
+  private final File dir;
+  private final WriteAheadLog journal;
+  private final long snapshotInterval;
+  private final int recoveryThreads;
+  private final LongAdder snapshots = new LongAdder();
+  /**
+   * modifications hold read lock from journal write until they are applied, snapshot rotates journal
+   * under write lock, stamped lock is used since read lock is released by journal writer thread
+   */
+  private final StampedLock gate = new StampedLock();
+  private ScheduledExecutorService executorService;
+  private volatile long recoveryTime;
+  private volatile long recoveredRecords;
+  private volatile long snapshotTime;
+  private volatile long snapshotSessions;
+
+  /**
+   * @param snapshotInterval seconds between snapshots
+   * @param fsyncInterval millis between syncs of periodic policy
+   */
+  public JournaledSessionService(InMemorySessionService delegate, String dir, String fsyncPolicy, long fsyncInterval,
+                                 int maxBatchSize, long snapshotInterval, int recoveryThreads) {
+    this.delegate = delegate;
+    this.dir = new File(dir);
+    this.journal = new WriteAheadLog(this.dir, WriteAheadLog.FsyncPolicy.valueOf(fsyncPolicy.toUpperCase()),
+        fsyncInterval, maxBatchSize);
+    this.snapshotInterval = snapshotInterval;
+    this.recoveryThreads = recoveryThreads;
+  }
+
+  /**
+   * Recovers sessions and starts journal, must be called before storage usage
+   */
+  public void init() throws IOException {
+    Files.createDirectories(dir.toPath());
+    final long sequence = recover();
+    journal.open(sequence);
+    executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "session-snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executorService.scheduleWithFixedDelay(this::snapshot, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+  }
+
+  public void destroy() {
+    executorService.shutdownNow();
+    try {
+      journal.close();
+    } catch (Exception e) {
+      log.error("Session journal close failed", e);
+    }
+  }
+
+  @Override
+  public Observable<Session> create(Session session) {
+    return gated(() -> delegate.create(session)
+        .flatMap(created -> journal.append(createRecord(created))
+            .onErrorResumeNext(throwable -> {
+              delegate.evict(created.getId());
+              return Observable.error(throwable);
+            })
+            .map(res -> created)));
+  }
+
+  @Override
+  public Observable<Session> getByValidCode(String code, Date now) {
+    return delegate.getByValidCode(code, now);
+  }
+
+  @Override
+  public Observable<Session> getByValidRefreshToken(String token, Date now) {
+    return delegate.getByValidRefreshToken(token, now);
+  }
+
+  @Override
+  public Observable<Session> getByValidToken(String token, Date now) {
+    return delegate.getByValidToken(token, now);
+  }
+
+  @Override
+  public Observable<Map<String, Session>> getByTokens(Collection<String> tokens) {
+    return delegate.getByTokens(tokens);
+  }
+
+  @Override
+  public Observable<Boolean> addEntry(String sessionId, AuthEntry entry) {
+    return journaled(() -> record(ADD_ENTRY, sessionId, out -> {
+      final byte[] encoded = SessionCodec.encode(Session.builder()
+          .id(sessionId)
+          .entries(Collections.singleton(entry))
+          .build());
+      out.writeInt(encoded.length);
+      out.write(encoded);
+    }), () -> delegate.addEntry(sessionId, entry));
+  }
+
+  @Override
+  public Observable<Boolean> addToken(String sessionId, String relyingParty, Token token) {
+    return journaled(() -> record(ADD_TOKEN, sessionId, out -> {
+      out.writeUTF(relyingParty);
+      out.writeUTF(token.getToken());
+      out.writeLong(toLong(token.getCreated()));
+      out.writeLong(toLong(token.getExpiresIn()));
+    }), () -> delegate.addToken(sessionId, relyingParty, token));
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSession(String sessionId, Date blocked) {
+    return journaled(() -> record(INVALIDATE, sessionId, out -> out.writeLong(blocked.getTime())),
+        () -> delegate.invalidateSession(sessionId, blocked));
+  }
+
+  @Override
+  public Observable<Boolean> invalidateForClient(String relyingParty, Date blocked) {
+    return journaled(() -> record(INVALIDATE_CLIENT, relyingParty, out -> out.writeLong(blocked.getTime())),
+        () -> delegate.invalidateForClient(relyingParty, blocked));
+  }
+
+  @Override
+  public Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked) {
+    return journaled(() -> record(INVALIDATE_USER, identityProvider, out -> {
+      out.writeUTF(userId);
+      out.writeLong(blocked.getTime());
+    }), () -> delegate.invalidateForUser(identityProvider, userId, blocked));
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) {
+    return journaled(() -> record(UPDATE_CHECK_DATE, sessionId, out -> out.writeLong(lastCheck.getTime())),
+        () -> delegate.updateCheckDate(sessionId, lastCheck));
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSessions(Collection<String> sessionIds, Date blocked) {
+    return Observable.from(sessionIds)
+        .flatMap(sessionId -> invalidateSession(sessionId, blocked))
+        .all(Boolean.TRUE::equals);
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDates(Collection<String> sessionIds, Date lastCheck) {
+    return Observable.from(sessionIds)
+        .flatMap(sessionId -> updateCheckDate(sessionId, lastCheck))
+        .all(Boolean.TRUE::equals);
+  }
+
+  @Override
+  public Observable<String> getInvalidatedSessions(Date since, Date now) {
+    return delegate.getInvalidatedSessions(since, now);
+  }
+
+  @Override
+  public Observable<Map<String, Date>> getInvalidatedClients(Date since) {
+    return delegate.getInvalidatedClients(since);
+  }
+
+  @Override
+  public Observable<Boolean> isActive(String sessionId, Date now) {
+    return delegate.isActive(sessionId, now);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = journal.metrics("session.journal");
+    result.add(new Metric<>("session.journal.recovery.time", recoveryTime));
+    result.add(new Metric<>("session.journal.recovery.records", recoveredRecords));
+    result.add(new Metric<>("session.journal.snapshots", snapshots.sum()));
+    result.add(new Metric<>("session.journal.snapshot.time", snapshotTime));
+    result.add(new Metric<>("session.journal.snapshot.sessions", snapshotSessions));
+    return result;
+  }
+
+  /**
+   * Writes all stored sessions into new snapshot and deletes journal files and snapshots covered by it
+   */
+  synchronized void snapshot() {
+    final long start = System.currentTimeMillis();
+    try {
+      final long sequence;
+      final long stamp = gate.writeLock();
+      try {
+        sequence = journal.rotate();
+      } finally {
+        gate.unlockWrite(stamp);
+      }
+      final File tmp = new File(dir, sequence + SNAPSHOT_SUFFIX + ".tmp");
+      final Date now = new Date();
+      final long[] count = new long[1];
+      try (FileOutputStream file = new FileOutputStream(tmp);
+           OutputStream output = new BufferedOutputStream(file, 1 << 16)) {
+        delegate.forEach(session -> {
+          if (session.getExpiresIn() != null && session.getExpiresIn().before(now))
+            return;
+          try {
+            output.write(WriteAheadLog.frame(createRecord(session)));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          count[0]++;
+        });
+        output.flush();
+        file.getFD().sync();
+      }
+      Files.move(tmp.toPath(), new File(dir, sequence + SNAPSHOT_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+      for (long covered : sequences(SNAPSHOT_SUFFIX))
+        if (covered < sequence)
+          Files.deleteIfExists(new File(dir, covered + SNAPSHOT_SUFFIX).toPath());
+      for (long covered : sequences(WriteAheadLog.SUFFIX))
+        if (covered < sequence)
+          Files.deleteIfExists(WriteAheadLog.file(dir, covered).toPath());
+      snapshots.increment();
+      snapshotSessions = count[0];
+      snapshotTime = System.currentTimeMillis() - start;
+      log.info("Session snapshot {} written, {} sessions in {} ms", sequence, count[0], snapshotTime);
+    } catch (Exception e) {
+      log.error("Session snapshot failed", e);
+    }
+  }
+
+  /**
+   * @return number of the next journal file
+   */
+  private long recover() throws IOException {
+    final long start = System.currentTimeMillis();
+    final List<Long> snapshotSequences = sequences(SNAPSHOT_SUFFIX);
+    final long snapshot = snapshotSequences.isEmpty() ? -1 : snapshotSequences.get(snapshotSequences.size() - 1);
+    final List<Long> journalSequences = sequences(WriteAheadLog.SUFFIX);
+    long records = 0;
+    final Replayer replayer = new Replayer(recoveryThreads);
+    try {
+      if (snapshot >= 0)
+        records += WriteAheadLog.read(new File(dir, snapshot + SNAPSHOT_SUFFIX), replayer::replay);
+      for (long sequence : journalSequences)
+        if (sequence >= snapshot)
+          records += WriteAheadLog.read(WriteAheadLog.file(dir, sequence), replayer::replay);
+    } finally {
+      replayer.close();
+    }
+    recoveredRecords = records;
+    recoveryTime = System.currentTimeMillis() - start;
+    log.info("Sessions recovered from {} records in {} ms", records, recoveryTime);
+    long next = snapshot + 1;
+    for (long sequence : journalSequences)
+      next = Math.max(next, sequence + 1);
+    return Math.max(next, 0);
+  }
+
+  private List<Long> sequences(String suffix) {
+    final List<Long> result = new ArrayList<>();
+    final File[] files = dir.listFiles((file, name) -> name.endsWith(suffix));
+    for (File file : files == null ? new File[0] : files)
+      result.add(Long.parseLong(file.getName().substring(0, file.getName().length() - suffix.length())));
+    Collections.sort(result);
+    return result;
+  }
+
+  /**
+   * Writes record and then applies operation, record of operation that changes nothing is harmless on replay
+   */
+  private <T> Observable<T> journaled(RecordFactory record, Func0<Observable<T>> operation) {
+    return gated(() -> journal.append(record.create()).flatMap(written -> operation.call()));
+  }
+
+  /**
+   * Holds snapshot gate from subscription until operation terminates
+   */
+  private <T> Observable<T> gated(Func0<Observable<T>> operation) {
+    return Observable.defer(() -> {
+      final long stamp = gate.readLock();
+      final AtomicBoolean released = new AtomicBoolean();
+      final Action0 release = () -> {
+        if (released.compareAndSet(false, true))
+          gate.unlockRead(stamp);
+      };
+      try {
+        return operation.call().doOnTerminate(release).doOnUnsubscribe(release);
+      } catch (RuntimeException e) {
+        release.call();
+        throw e;
+      }
+    });
+  }
+
+  private static byte[] createRecord(Session session) {
+    final byte[] encoded = SessionCodec.encode(session);
+    return ByteBuffer.allocate(1 + 4 + encoded.length)
+        .put(CREATE)
+        .putInt(encoded.length)
+        .put(encoded)
+        .array();
+  }
+
+  /**
+   * @param key session identifier, client name of client invalidation or identity provider of user invalidation
+   */
+  private static byte[] record(byte type, String key, RecordWriter writer) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(type);
+      out.writeUTF(key);
+      writer.write(out);
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static long toLong(Date date) {
+    return date == null ? Long.MIN_VALUE : date.getTime();
+  }
+
+  /**
+   * Applies records to delegate by partitions of session identifier, client and user invalidations wait for all
+   * previous records since they affect sessions of every partition
+   */
+  private class Replayer {
+    private final ThreadPoolExecutor[] partitions;
+
+    Replayer(int threads) {
+      partitions = new ThreadPoolExecutor[threads];
+      for (int i = 0; i < threads; i++) {
+        final int number = i;
+        partitions[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(10000),
+            runnable -> new Thread(runnable, "session-recovery-" + number),
+            //reader waits for slow partition, so order of records is kept
+            (runnable, executor) -> {
+              try {
+                executor.getQueue().put(runnable);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+              }
+            });
+      }
+    }
+
+    void replay(byte[] payload) {
+      try {
+        if (payload[0] == INVALIDATE_CLIENT || payload[0] == INVALIDATE_USER) {
+          await();
+          apply(payload);
+          return;
+        }
+        final String key = payload[0] == CREATE ? SessionCodec.decodeId(ByteBuffer.wrap(payload, 5, payload.length - 5))
+            : new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1)).readUTF();
+        partitions[(key.hashCode() & Integer.MAX_VALUE) % partitions.length].execute(() -> {
+          try {
+            apply(payload);
+          } catch (Exception e) {
+            log.error("Session journal record replay failed", e);
+          }
+        });
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void close() {
+      await();
+      for (ThreadPoolExecutor partition : partitions)
+        partition.shutdown();
+    }
+
+    private void await() {
+      try {
+        final List<Future<?>> barriers = new ArrayList<>();
+        for (ThreadPoolExecutor partition : partitions)
+          barriers.add(partition.submit(() -> {}));
+        for (Future<?> barrier : barriers)
+          barrier.get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new IllegalStateException("Session recovery interrupted", e);
+      }
+    }
+
+    private void apply(byte[] payload) throws IOException {
+      if (payload[0] == CREATE) {
+        delegate.create(SessionCodec.decode(ByteBuffer.wrap(payload, 5, payload.length - 5))).toBlocking().single();
+        return;
+      }
+      final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+      final String key = in.readUTF();
+      switch (payload[0]) {
+        case ADD_ENTRY:
+          final byte[] encoded = new byte[in.readInt()];
+          in.readFully(encoded);
+          for (AuthEntry entry : SessionCodec.decode(ByteBuffer.wrap(encoded)).getEntries())
+            delegate.addEntry(key, entry).toBlocking().single();
+          break;
+        case ADD_TOKEN:
+          final String relyingParty = in.readUTF();
+          final Token token = new Token(in.readUTF(), SessionCodec.readDate(in.readLong()),
+              SessionCodec.readDate(in.readLong()));
+          delegate.addToken(key, relyingParty, token).toBlocking().single();
+          break;
+        case INVALIDATE:
+          delegate.invalidateSession(key, new Date(in.readLong())).toBlocking().single();
+          break;
+        case UPDATE_CHECK_DATE:
+          delegate.updateCheckDate(key, new Date(in.readLong())).toBlocking().single();
+          break;
+        case INVALIDATE_CLIENT:
+          delegate.invalidateForClient(key, new Date(in.readLong())).toBlocking().single();
+          break;
+        case INVALIDATE_USER:
+          final String userId = in.readUTF();
+          delegate.invalidateForUser(key, userId, new Date(in.readLong())).toList().toBlocking().single();
+          break;
+        default:
+          log.warn("Unknown session journal record type {}", payload[0]);
+      }
+    }
+  }
+
+  private interface RecordWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private interface RecordFactory {
+    byte[] create();
+  }
+}
@@ -0,0 +1,180 @@
+package ru.ratauth.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Memory-mapped open-addressing hash table of 64-bit key hashes to record addresses with linear probing.
+ * Keys themselves are not stored, so callers verify candidate records. The same hash could be put several times,
+ * e.g. for sessions of one user. Table is grown by rehashing into new file when load factor is exceeded.
+ * Not thread-safe, guarded by store lock
+ * @since 18/10/26
+ */
+final class MappedIndex {
+  private static final int MAGIC = 0x52415449;
+  private static final int HEADER_SIZE = 32;
+  private static final int SLOT_SIZE = 16;
+  private static final int SIZE = 8;
+  private static final int TOMBSTONES = 16;
+  private static final long EMPTY = 0;
+  private static final long TOMBSTONE = -1;
+  private static final double LOAD_FACTOR = 0.7;
+
+  private final File file;
+  private MappedByteBuffer buffer;
+  private int capacity;
+  private int mask;
+
+  private MappedIndex(File file, MappedByteBuffer buffer) {
+    this.file = file;
+    setBuffer(buffer);
+  }
+
+  /**
+   * @param capacity initial number of slots, rounded up to power of two
+   */
+  static MappedIndex open(File file, int capacity) throws IOException {
+    return new MappedIndex(file, map(file, Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1));
+  }
+
+  long find(long hash, LongPredicate matcher) {
+    for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+      final long address = address(slot);
+      if (address == EMPTY)
+        return EMPTY;
+      if (address != TOMBSTONE && hash(slot) == hash && matcher.test(address))
+        return address;
+    }
+  }
+
+  void forEach(long hash, LongConsumer consumer) {
+    for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+      final long address = address(slot);
+      if (address == EMPTY)
+        return;
+      if (address != TOMBSTONE && hash(slot) == hash)
+        consumer.accept(address);
+    }
+  }
+
+  void put(long hash, long address) throws IOException {
+    if (size() + tombstones() + 1 > capacity * LOAD_FACTOR)
+      rehash(size() + 1 > capacity * LOAD_FACTOR / 2 ? capacity * 2 : capacity);
+    for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+      final long current = address(slot);
+      if (current == EMPTY || current == TOMBSTONE) {
+        if (current == TOMBSTONE)
+          buffer.putLong(TOMBSTONES, tombstones() - 1);
+        write(slot, hash, address);
+        buffer.putLong(SIZE, size() + 1);
+        return;
+      }
+    }
+  }
+
+  boolean remove(long hash, long address) {
+    final int slot = findSlot(hash, address);
+    if (slot < 0)
+      return false;
+    write(slot, hash, TOMBSTONE);
+    buffer.putLong(SIZE, size() - 1);
+    buffer.putLong(TOMBSTONES, tombstones() + 1);
+    return true;
+  }
+
+  boolean replace(long hash, long address, long newAddress) {
+    final int slot = findSlot(hash, address);
+    if (slot < 0)
+      return false;
+    write(slot, hash, newAddress);
+    return true;
+  }
+
+  long size() {
+    return buffer.getLong(SIZE);
+  }
+
+  long bytes() {
+    return buffer.capacity();
+  }
+
+  void force() {
+    buffer.force();
+  }
+
+  private long tombstones() {
+    return buffer.getLong(TOMBSTONES);
+  }
+
+  private int findSlot(long hash, long address) {
+    for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+      final long current = address(slot);
+      if (current == EMPTY)
+        return -1;
+      if (current == address && hash(slot) == hash)
+        return slot;
+    }
+  }
+
+  private void rehash(int newCapacity) throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    Files.deleteIfExists(tmp.toPath());
+    final MappedIndex rehashed = new MappedIndex(tmp, map(tmp, newCapacity));
+    for (int slot = 0; slot < capacity; slot++) {
+      final long address = address(slot);
+      if (address != EMPTY && address != TOMBSTONE)
+        rehashed.put(hash(slot), address);
+    }
+    rehashed.force();
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    setBuffer(rehashed.buffer);
+  }
+
+  private void setBuffer(MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    this.capacity = buffer.getInt(4);
+    this.mask = capacity - 1;
+  }
+
+  private int slot(long hash) {
+    //murmur hashes are uniform, so low bits are enough
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  private long hash(int slot) {
+    return buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+  }
+
+  private long address(int slot) {
+    return buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+  }
+
+  private void write(int slot, long hash, long address) {
+    buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE, hash);
+    buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE + 8, address);
+  }
+
+  private static MappedByteBuffer map(File file, int capacity) throws IOException {
+    final boolean exists = file.exists();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      final long size = exists ? raf.length() : HEADER_SIZE + (long) capacity * SLOT_SIZE;
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("Session index is too large " + file);
+      final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if (!exists) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, capacity);
+      } else if (buffer.getInt(0) != MAGIC) {
+        throw new IOException("Wrong session index file " + file);
+      }
+      return buffer;
+    }
+  }
+}
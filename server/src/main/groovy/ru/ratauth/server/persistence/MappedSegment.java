@@ -0,0 +1,126 @@
+package ru.ratauth.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only memory-mapped file of session records.
+ * Header keeps write position and number of live bytes, so segment is reopened after restart without scanning.
+ * Not thread-safe, guarded by store lock
+ * @since 18/10/26
+ */
+final class MappedSegment {
+  static final int HEADER_SIZE = 16;
+  private static final int MAGIC = 0x52415453;
+  private static final int WRITE_POSITION = 4;
+  private static final int LIVE_BYTES = 8;
+
+  private final int number;
+  private final File file;
+  private final MappedByteBuffer buffer;
+
+  private MappedSegment(int number, File file, MappedByteBuffer buffer) {
+    this.number = number;
+    this.file = file;
+    this.buffer = buffer;
+  }
+
+  static MappedSegment open(File file, int number, int capacity) throws IOException {
+    final boolean exists = file.exists();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      final int size = exists ? (int) raf.length() : capacity;
+      final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if (!exists) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(WRITE_POSITION, HEADER_SIZE);
+        buffer.putLong(LIVE_BYTES, 0);
+      } else if (buffer.getInt(0) != MAGIC) {
+        throw new IOException("Wrong session segment file " + file);
+      }
+      return new MappedSegment(number, file, buffer);
+    }
+  }
+
+  int getNumber() {
+    return number;
+  }
+
+  /**
+   * @return offset of appended record or -1 if segment is full
+   */
+  int append(byte[] record) {
+    final int position = writePosition();
+    if (position + record.length > buffer.capacity())
+      return -1;
+    final ByteBuffer target = buffer.duplicate();
+    target.position(position);
+    target.put(record);
+    buffer.putInt(WRITE_POSITION, position + record.length);
+    addLive(record.length);
+    return position;
+  }
+
+  /**
+   * @return independent buffer positioned at record start
+   */
+  ByteBuffer read(int offset) {
+    final ByteBuffer result = buffer.duplicate();
+    result.position(offset);
+    return result;
+  }
+
+  /**
+   * Shared buffer for absolute reads and in-place updates
+   */
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  byte[] copy(int offset) {
+    final byte[] result = new byte[buffer.getInt(offset + SessionCodec.LENGTH)];
+    read(offset).get(result);
+    return result;
+  }
+
+  int writePosition() {
+    return buffer.getInt(WRITE_POSITION);
+  }
+
+  long liveBytes() {
+    return buffer.getLong(LIVE_BYTES);
+  }
+
+  void addLive(long delta) {
+    buffer.putLong(LIVE_BYTES, liveBytes() + delta);
+  }
+
+  /**
+   * Drops records after position, e.g. torn record found after unclean shutdown
+   * @param position new write position
+   * @param live number of live bytes before position
+   */
+  void truncate(int position, long live) {
+    buffer.putInt(WRITE_POSITION, position);
+    buffer.putLong(LIVE_BYTES, live);
+  }
+
+  int capacity() {
+    return buffer.capacity();
+  }
+
+  void force() {
+    buffer.force();
+  }
+
+  /**
+   * Mapping is released by GC, file data is not accessible after deletion anyway
+   */
+  void delete() {
+    if (!file.delete())
+      file.deleteOnExit();
+  }
+}
@@ -0,0 +1,31 @@
+package ru.ratauth.server.persistence;
+
+import ru.ratauth.entities.Session;
+
+import java.util.function.Consumer;
+
+/**
+ * Storage that can hand over its sessions to another storage, required by online rebalancing
+ * of {@link ShardedSessionService}
+ * @since 18/10/26
+ */
+public interface MovableSessionStorage {
+  /**
+   * Iterates over copies of all stored sessions
+   * @param consumer session consumer
+   */
+  void forEach(Consumer<Session> consumer);
+
+  /**
+   * @param sessionId session identifier
+   * @return copy of session with all entries and tokens or null if session is not stored
+   */
+  Session get(String sessionId);
+
+  /**
+   * Removes session with all its codes and tokens regardless of status and expiration
+   * @param sessionId session identifier
+   * @return true if session was stored
+   */
+  boolean evict(String sessionId);
+}
@@ -0,0 +1,712 @@
+package ru.ratauth.server.persistence;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.ratauth.entities.AuthEntry;
+import ru.ratauth.entities.Session;
+import ru.ratauth.entities.Status;
+import ru.ratauth.entities.Token;
+import ru.ratauth.exception.ExpiredException;
+import ru.ratauth.exception.InternalLogicException;
+import ru.ratauth.server.utils.LatencyStats;
+import ru.ratauth.services.SessionService;
+import rx.Observable;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Session storage for single node deployments with large number of sessions, enabled by auth.session.storage=offheap.
+ * Sessions are kept in {@link SessionCodec} layout in append-only memory-mapped segments, so they are not scanned by GC.
+ * Session id, auth code, refresh token, access token and user indexes are memory-mapped open-addressing tables.
+ * Status and check dates are updated in place, new entries and tokens append new version of session record.
+ * Background sweeper drops expired sessions and compacts segments with few live records.
+ * Storage is reopened after restart by remapping its files, indexes are rebuilt from segments after unclean shutdown.
+ * Mapped pages are flushed by OS, so data survives process crash but not OS failure, torn record at the end of segment
+ * is dropped by rebuild.
+ * Client invalidation and loading of invalidated sessions scan all records under read lock. Client revocation dates
+ * are kept in heap, so they are lost on restart, while sessions of revoked clients stay blocked
+ * @since 18/10/26
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "auth.session.storage", havingValue = "offheap")
+public class OffHeapSessionService implements SessionService, PublicMetrics {
+  private static final String SEGMENT_SUFFIX = ".segment";
+  private static final String CLEAN_MARKER = "clean";
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  @Value("${auth.session.offheap.dir:sessions}")
+  private String dir;//final
+  @Value("${auth.session.offheap.segment_size:268435456}")
+  private Integer segmentSize;//final
+  @Value("${auth.session.offheap.index_capacity:1048576}")
+  private Integer indexCapacity;//final
+  @Value("${auth.session.offheap.compaction_threshold:0.5}")
+  private Double compactionThreshold;//final
+  @Value("${auth.session.offheap.sweep_interval:60}")
+  private Integer sweepInterval;//final
+  @Value("${auth.session.offheap.expired_retention:300}")
+  private Integer expiredRetention;//final
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final NavigableMap<Integer, MappedSegment> segments = new TreeMap<>();
+  private volatile MappedSegment active;
+  private MappedIndex ids;
+  private MappedIndex codes;
+  private MappedIndex refreshTokens;
+  private MappedIndex tokens;
+  private MappedIndex users;
+  /**
+   * latest blocking dates of clients
+   */
+  private final Map<String, Date> invalidatedClients = new ConcurrentHashMap<>();
+  private final LongAdder expired = new LongAdder();
+  private final LongAdder compactions = new LongAdder();
+  private final LatencyStats lookups = new LatencyStats();
+  private ScheduledExecutorService executorService;
+
+  @PostConstruct
+  public void init() throws IOException {
+    final File directory = new File(dir);
+    Files.createDirectories(directory.toPath());
+    final File[] files = directory.listFiles((file, name) -> name.endsWith(SEGMENT_SUFFIX));
+    for (File file : files == null ? new File[0] : files) {
+      final int number = Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+      segments.put(number, MappedSegment.open(file, number, segmentSize));
+    }
+    active = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+    final File clean = new File(directory, CLEAN_MARKER);
+    final boolean rebuild = !clean.exists();
+    if (rebuild)
+      for (String name : new String[]{"ids", "codes", "refresh_tokens", "tokens", "users"})
+        Files.deleteIfExists(new File(directory, name + ".index").toPath());
+    Files.deleteIfExists(clean.toPath());
+    ids = MappedIndex.open(new File(directory, "ids.index"), indexCapacity);
+    codes = MappedIndex.open(new File(directory, "codes.index"), indexCapacity);
+    refreshTokens = MappedIndex.open(new File(directory, "refresh_tokens.index"), indexCapacity);
+    tokens = MappedIndex.open(new File(directory, "tokens.index"), indexCapacity);
+    users = MappedIndex.open(new File(directory, "users.index"), indexCapacity);
+    if (rebuild && !segments.isEmpty())
+      rebuildIndexes();
+    log.info("Off-heap session storage opened, {} segments, {} sessions", segments.size(), ids.size());
+    executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "session-storage-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executorService.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  public void destroy() throws IOException {
+    executorService.shutdownNow();
+    lock.writeLock().lock();
+    try {
+      segments.values().forEach(MappedSegment::force);
+      for (MappedIndex index : Arrays.asList(ids, codes, refreshTokens, tokens, users))
+        index.force();
+      Files.createFile(new File(dir, CLEAN_MARKER).toPath());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Observable<Session> create(Session session) {
+    if (session.getId() == null)
+      session.setId(UUID.randomUUID().toString());
+    if (session.getCreated() == null)
+      session.setCreated(new Date());
+    final byte[] record = SessionCodec.encode(session);
+    lock.writeLock().lock();
+    try {
+      index(append(record), session);
+    } catch (IOException e) {
+      return Observable.error(new InternalLogicException("Session storage write failed", e));
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return Observable.just(session);
+  }
+
+  @Override
+  public Observable<Session> getByValidCode(String code, Date now) {
+    return lookup(codes, code, now, entry -> code.equals(entry.getAuthCode()), (session, entry) -> {
+      if (isExpired(entry.getCodeExpiresIn(), now))
+        throw new ExpiredException(ExpiredException.ID.AUTH_CODE_EXPIRED);
+      return null;
+    });
+  }
+
+  @Override
+  public Observable<Session> getByValidRefreshToken(String token, Date now) {
+    return lookup(refreshTokens, token, now, entry -> token.equals(entry.getRefreshToken()), (session, entry) -> {
+      if (isExpired(entry.getRefreshTokenExpiresIn(), now))
+        throw new ExpiredException(ExpiredException.ID.REFRESH_TOKEN_EXPIRED);
+      return null;
+    });
+  }
+
+  @Override
+  public Observable<Session> getByValidToken(String token, Date now) {
+    return lookup(tokens, token, now, entry -> findToken(entry, token) != null, (session, entry) -> {
+      final Token value = findToken(entry, token);
+      if (isExpired(value.getExpiresIn(), now))
+        throw new ExpiredException(ExpiredException.ID.TOKEN_EXPIRED);
+      return value;
+    });
+  }
+
+  @Override
+  public Observable<Map<String, Session>> getByTokens(Collection<String> values) {
+    final long start = System.nanoTime();
+    final Map<String, Session> result = new HashMap<>();
+    lock.readLock().lock();
+    try {
+      for (String token : values) {
+        final Session session = find(tokens, token, it -> Status.ACTIVE == it.getStatus()
+            && findEntry(it, entry -> findToken(entry, token) != null) != null);
+        if (session != null) {
+          final AuthEntry entry = findEntry(session, it -> findToken(it, token) != null);
+          result.put(token, single(session, entry, findToken(entry, token)));
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    lookups.record(System.nanoTime() - start);
+    return Observable.just(result);
+  }
+
+  @Override
+  public Observable<Boolean> addEntry(String sessionId, AuthEntry entry) {
+    return update(sessionId, session -> session.getEntries().add(entry));
+  }
+
+  @Override
+  public Observable<Boolean> addToken(String sessionId, String relyingParty, Token token) {
+    return update(sessionId, session -> {
+      final AuthEntry entry = findEntry(session, it -> relyingParty.equals(it.getRelyingParty()));
+      if (entry == null)
+        return false;
+      entry.addToken(token);
+      return true;
+    });
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSession(String sessionId, Date blocked) {
+    lock.writeLock().lock();
+    try {
+      final long address = findAddress(sessionId);
+      if (address != 0)
+        block(address, blocked);
+      return Observable.just(address != 0);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * There is no client index, since every client has huge number of sessions, so all records are scanned
+   * under read lock and matched sessions are blocked by short write locks
+   */
+  @Override
+  public Observable<Boolean> invalidateForClient(String relyingParty, Date blocked) {
+    invalidatedClients.merge(relyingParty, blocked, (first, second) -> first.after(second) ? first : second);
+    try {
+      for (MappedSegment segment : segmentsSnapshot()) {
+        final List<String> matched = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+          forEachRecord(segment, (offset, session) -> {
+            if (findEntry(session, entry -> relyingParty.equals(entry.getRelyingParty())) != null)
+              matched.add(session.getId());
+          });
+        } finally {
+          lock.readLock().unlock();
+        }
+        //record could be moved by update or compaction after scan, so session is found again by id
+        for (String sessionId : matched)
+          withWriteLock(() -> {
+            final long address = findAddress(sessionId);
+            if (address != 0)
+              block(address, blocked);
+          });
+      }
+      return Observable.just(true);
+    } catch (IOException e) {
+      return Observable.error(new InternalLogicException("Session storage write failed", e));
+    }
+  }
+
+  @Override
+  public Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked) {
+    final List<String> result = new ArrayList<>();
+    lock.writeLock().lock();
+    try {
+      users.forEach(hash(userKey(identityProvider, userId)), address -> {
+        final Session session = decode(address);
+        if (userId.equals(session.getUserId()) && Objects.equals(identityProvider, session.getIdentityProvider())
+            && block(address, blocked))
+          result.add(session.getId());
+      });
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return Observable.from(result);
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) {
+    lock.writeLock().lock();
+    try {
+      final long address = findAddress(sessionId);
+      if (address != 0)
+        SessionCodec.writeDate(segment(address).buffer(), offset(address) + SessionCodec.LAST_CHECK, lastCheck);
+      return Observable.just(address != 0);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Observable<Boolean> isActive(String sessionId, Date now) {
+    lock.readLock().lock();
+    try {
+      final long address = findAddress(sessionId);
+      if (address == 0)
+        return Observable.just(false);
+      final ByteBuffer buffer = segment(address).buffer();
+      final int offset = offset(address);
+      final Date expiresIn = SessionCodec.readDate(buffer.getLong(offset + SessionCodec.EXPIRES_IN));
+      return Observable.just(Status.ACTIVE.ordinal() == buffer.get(offset + SessionCodec.STATUS) && !isExpired(expiresIn, now));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Observable<String> getInvalidatedSessions(Date since, Date now) {
+    final List<String> result = new ArrayList<>();
+    for (MappedSegment segment : segmentsSnapshot()) {
+      lock.readLock().lock();
+      try {
+        if (!segments.containsKey(segment.getNumber()))
+          continue;
+        final ByteBuffer buffer = segment.buffer();
+        forEachOffset(segment, offset -> {
+          final Date blocked = SessionCodec.readDate(buffer.getLong(offset + SessionCodec.BLOCKED));
+          final Date expiresIn = SessionCodec.readDate(buffer.getLong(offset + SessionCodec.EXPIRES_IN));
+          if (Status.BLOCKED.ordinal() == buffer.get(offset + SessionCodec.STATUS) && blocked != null
+              && !blocked.before(since) && !isExpired(expiresIn, now))
+            result.add(SessionCodec.decodeId(segment.read(offset)));
+        });
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+    return Observable.from(result);
+  }
+
+  @Override
+  public Observable<Map<String, Date>> getInvalidatedClients(Date since) {
+    final Map<String, Date> result = new HashMap<>();
+    invalidatedClients.forEach((relyingParty, blocked) -> {
+      if (!blocked.before(since))
+        result.put(relyingParty, blocked);
+    });
+    return Observable.just(result);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      long mapped = 0;
+      long live = 0;
+      for (MappedSegment segment : segments.values()) {
+        mapped += segment.capacity();
+        live += segment.liveBytes();
+      }
+      for (MappedIndex index : Arrays.asList(ids, codes, refreshTokens, tokens, users))
+        mapped += index.bytes();
+      result.add(new Metric<>("session.offheap.sessions", ids.size()));
+      result.add(new Metric<>("session.offheap.codes", codes.size()));
+      result.add(new Metric<>("session.offheap.refresh_tokens", refreshTokens.size()));
+      result.add(new Metric<>("session.offheap.tokens", tokens.size()));
+      result.add(new Metric<>("session.offheap.segments", segments.size()));
+      result.add(new Metric<>("session.offheap.bytes.mapped", mapped));
+      result.add(new Metric<>("session.offheap.bytes.live", live));
+    } finally {
+      lock.readLock().unlock();
+    }
+    result.add(new Metric<>("session.offheap.expired", expired.sum()));
+    result.add(new Metric<>("session.offheap.compactions", compactions.sum()));
+    result.addAll(lookups.metrics("session.offheap.lookup"));
+    return result;
+  }
+
+  /**
+   * Blocked sessions are not found by codes and tokens, expired ones are reported by entry expiration or
+   * session expiration
+   * @param check throws expiration exception, returns the only token of loaded entry or null
+   */
+  private Observable<Session> lookup(MappedIndex index, String key, Date now, Predicate<AuthEntry> matcher,
+                                     EntryCheck check) {
+    final long start = System.nanoTime();
+    lock.readLock().lock();
+    try {
+      final Session session = find(index, key, it -> findEntry(it, matcher) != null);
+      if (session == null || Status.ACTIVE != session.getStatus())
+        return Observable.empty();
+      final AuthEntry entry = findEntry(session, matcher);
+      final Token token = check.apply(session, entry);
+      if (isExpired(session.getExpiresIn(), now))
+        throw new ExpiredException(ExpiredException.ID.SESSION_EXPIRED);
+      return Observable.just(single(session, entry, token));
+    } catch (ExpiredException e) {
+      return Observable.error(e);
+    } finally {
+      lock.readLock().unlock();
+      lookups.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Appends new version of session record, previous one becomes garbage
+   * @param modifier returns false if session was not modified
+   */
+  private Observable<Boolean> update(String sessionId, Predicate<Session> modifier) {
+    lock.writeLock().lock();
+    try {
+      final long address = findAddress(sessionId);
+      if (address == 0)
+        return Observable.just(false);
+      final Session session = decode(address);
+      if (!modifier.test(session))
+        return Observable.just(false);
+      final long newAddress = append(SessionCodec.encode(session));
+      unindex(address, decode(address));
+      index(newAddress, session);
+      return Observable.just(true);
+    } catch (IOException e) {
+      return Observable.error(new InternalLogicException("Session storage write failed", e));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private Session find(MappedIndex index, String key, Predicate<Session> matcher) {
+    final Session[] result = new Session[1];
+    index.find(hash(key), address -> {
+      final Session session = decode(address);
+      if (!matcher.test(session))
+        return false;
+      result[0] = session;
+      return true;
+    });
+    return result[0];
+  }
+
+  private long findAddress(String sessionId) {
+    return ids.find(hash(sessionId), address -> sessionId.equals(SessionCodec.decodeId(read(address))));
+  }
+
+  private boolean block(long address, Date blocked) {
+    final ByteBuffer buffer = segment(address).buffer();
+    final int offset = offset(address);
+    if (Status.BLOCKED.ordinal() == buffer.get(offset + SessionCodec.STATUS))
+      return false;
+    buffer.put(offset + SessionCodec.STATUS, (byte) Status.BLOCKED.ordinal());
+    SessionCodec.writeDate(buffer, offset + SessionCodec.BLOCKED, blocked);
+    return true;
+  }
+
+  private long append(byte[] record) throws IOException {
+    if (record.length > segmentSize - MappedSegment.HEADER_SIZE)
+      throw new IOException("Session record is too large " + record.length);
+    int offset = active.append(record);
+    if (offset < 0) {
+      active = newSegment(active.getNumber() + 1);
+      offset = active.append(record);
+    }
+    return address(active, offset);
+  }
+
+  private MappedSegment newSegment(int number) throws IOException {
+    final MappedSegment segment = MappedSegment.open(new File(dir, number + SEGMENT_SUFFIX), number, segmentSize);
+    segments.put(number, segment);
+    return segment;
+  }
+
+  private void index(long address, Session session) throws IOException {
+    ids.put(hash(session.getId()), address);
+    for (AuthEntry entry : session.getEntries()) {
+      if (entry.getAuthCode() != null)
+        codes.put(hash(entry.getAuthCode()), address);
+      if (entry.getRefreshToken() != null)
+        refreshTokens.put(hash(entry.getRefreshToken()), address);
+      if (entry.getTokens() != null)
+        for (Token token : entry.getTokens())
+          tokens.put(hash(token.getToken()), address);
+    }
+    if (session.getUserId() != null)
+      users.put(hash(userKey(session.getIdentityProvider(), session.getUserId())), address);
+  }
+
+  /**
+   * Removes record from indexes and marks it as dead
+   */
+  private void unindex(long address, Session session) {
+    ids.remove(hash(session.getId()), address);
+    for (AuthEntry entry : session.getEntries()) {
+      if (entry.getAuthCode() != null)
+        codes.remove(hash(entry.getAuthCode()), address);
+      if (entry.getRefreshToken() != null)
+        refreshTokens.remove(hash(entry.getRefreshToken()), address);
+      if (entry.getTokens() != null)
+        for (Token token : entry.getTokens())
+          tokens.remove(hash(token.getToken()), address);
+    }
+    if (session.getUserId() != null)
+      users.remove(hash(userKey(session.getIdentityProvider(), session.getUserId())), address);
+    final MappedSegment segment = segment(address);
+    final int offset = offset(address);
+    segment.buffer().put(offset + SessionCodec.FLAGS, SessionCodec.FLAG_DEAD);
+    segment.addLive(-segment.buffer().getInt(offset + SessionCodec.LENGTH));
+  }
+
+  /**
+   * Later versions of the same session supersede earlier ones, since segments are scanned in append order
+   */
+  private void rebuildIndexes() throws IOException {
+    for (MappedSegment segment : segments.values()) {
+      final List<Long> live = new ArrayList<>();
+      final long[] liveBytes = new long[1];
+      final int end = forEachRecord(segment, (offset, session) -> {
+        live.add(address(segment, offset));
+        liveBytes[0] += segment.buffer().getInt(offset + SessionCodec.LENGTH);
+      });
+      if (end < segment.writePosition())
+        log.warn("Torn record at {} of session segment {} is dropped", end, segment.getNumber());
+      segment.truncate(end, liveBytes[0]);
+      for (long address : live) {
+        final Session session = decode(address);
+        final long previous = findAddress(session.getId());
+        if (previous != 0)
+          unindex(previous, decode(previous));
+        index(address, session);
+      }
+    }
+    log.info("Off-heap session storage indexes rebuilt, {} sessions", ids.size());
+  }
+
+  /**
+   * Drops expired sessions of every segment and compacts segments with few live records. Records are
+   * collected under read lock and removed by short write locks, so lookups are not blocked by the whole scan
+   */
+  private void sweep() {
+    try {
+      final long threshold = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(expiredRetention);
+      for (MappedSegment segment : segmentsSnapshot()) {
+        final List<Long> expiredRecords = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+          forEachRecord(segment, (offset, session) -> {
+            if (session.getExpiresIn() != null && session.getExpiresIn().getTime() < threshold)
+              expiredRecords.add(address(segment, offset));
+          });
+        } finally {
+          lock.readLock().unlock();
+        }
+        for (long address : expiredRecords)
+          withWriteLock(() -> {
+            if (!isDead(address)) {
+              unindex(address, decode(address));
+              expired.increment();
+            }
+          });
+        if (segment != active && segment.liveBytes() < compactionThreshold * segment.writePosition())
+          compact(segment);
+      }
+    } catch (Exception e) {
+      log.error("Off-heap session storage sweep failed", e);
+    }
+  }
+
+  /**
+   * Moves live records to active segment and deletes segment file
+   */
+  private void compact(MappedSegment segment) throws IOException {
+    final List<Long> live = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      forEachRecord(segment, (offset, session) -> live.add(address(segment, offset)));
+    } finally {
+      lock.readLock().unlock();
+    }
+    for (long address : live)
+      withWriteLock(() -> {
+        if (isDead(address))
+          return;
+        final Session session = decode(address);
+        final long newAddress = append(segment(address).copy(offset(address)));
+        unindex(address, session);
+        index(newAddress, session);
+      });
+    withWriteLock(() -> {
+      segments.remove(segment.getNumber());
+      segment.delete();
+    });
+    compactions.increment();
+    log.info("Session segment {} compacted, {} sessions moved", segment.getNumber(), live.size());
+  }
+
+  private void withWriteLock(IOAction action) throws IOException {
+    lock.writeLock().lock();
+    try {
+      action.run();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private List<MappedSegment> segmentsSnapshot() {
+    lock.readLock().lock();
+    try {
+      return new ArrayList<>(segments.values());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Iterates over live records of segment, must be called under lock
+   * @return end of last valid record
+   */
+  private static int forEachRecord(MappedSegment segment, RecordConsumer consumer) {
+    return forEachOffset(segment, offset -> consumer.accept(offset, SessionCodec.decode(segment.read(offset))));
+  }
+
+  /**
+   * Iterates over offsets of live records, stops at record with broken length, e.g. torn by crash
+   * @return end of last valid record
+   */
+  private static int forEachOffset(MappedSegment segment, IntConsumer consumer) {
+    final ByteBuffer buffer = segment.buffer();
+    final int end = segment.writePosition();
+    int offset = MappedSegment.HEADER_SIZE;
+    while (offset < end) {
+      final int length = offset + SessionCodec.HEADER_SIZE > end ? 0 : buffer.getInt(offset + SessionCodec.LENGTH);
+      if (length < SessionCodec.HEADER_SIZE || length > end - offset)
+        return offset;
+      if ((buffer.get(offset + SessionCodec.FLAGS) & SessionCodec.FLAG_DEAD) == 0)
+        consumer.accept(offset);
+      offset += length;
+    }
+    return offset;
+  }
+
+  private boolean isDead(long address) {
+    final MappedSegment segment = segments.get((int) (address >>> 32));
+    return segment == null || (segment.buffer().get(offset(address) + SessionCodec.FLAGS) & SessionCodec.FLAG_DEAD) != 0;
+  }
+
+  private Session decode(long address) {
+    return SessionCodec.decode(read(address));
+  }
+
+  private ByteBuffer read(long address) {
+    return segment(address).read(offset(address));
+  }
+
+  private MappedSegment segment(long address) {
+    final MappedSegment segment = segments.get((int) (address >>> 32));
+    if (segment == null)
+      throw new UncheckedIOException(new IOException("Session segment not found " + (address >>> 32)));
+    return segment;
+  }
+
+  private static long address(MappedSegment segment, int offset) {
+    return ((long) segment.getNumber() << 32) | offset;
+  }
+
+  private static int offset(long address) {
+    return (int) address;
+  }
+
+  private static long hash(String key) {
+    return HASH.hashString(key, StandardCharsets.UTF_8).asLong();
+  }
+
+  private static String userKey(String identityProvider, String userId) {
+    return identityProvider + ':' + userId;
+  }
+
+  private static boolean isExpired(Date expiresIn, Date now) {
+    return expiresIn != null && expiresIn.before(now);
+  }
+
+  private static AuthEntry findEntry(Session session, Predicate<AuthEntry> matcher) {
+    for (AuthEntry entry : session.getEntries())
+      if (matcher.test(entry))
+        return entry;
+    return null;
+  }
+
+  private static Token findToken(AuthEntry entry, String token) {
+    if (entry.getTokens() == null)
+      return null;
+    for (Token value : entry.getTokens())
+      if (token.equals(value.getToken()))
+        return value;
+    return null;
+  }
+
+  /**
+   * Decoded session is a fresh object, so it is trimmed to one entry and token in place
+   */
+  private static Session single(Session session, AuthEntry entry, Token token) {
+    if (token != null)
+      entry.setTokens(new HashSet<>(Collections.singleton(token)));
+    session.setEntries(new HashSet<>(Collections.singleton(entry)));
+    return session;
+  }
+
+  private interface EntryCheck {
+    Token apply(Session session, AuthEntry entry);
+  }
+
+  private interface RecordConsumer {
+    void accept(int offset, Session session);
+  }
+
+  private interface IOAction {
+    void run() throws IOException;
+  }
+}
@@ -0,0 +1,204 @@
+package ru.ratauth.server.persistence;
+
+import ru.ratauth.entities.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary layout of session with all its entries and tokens.
+ * Fixed header keeps mutable status fields, so they can be updated in place:
+ * <pre>
+ * int length | byte flags | byte status | long created | long expiresIn | long blocked | long lastCheck | body
+ * </pre>
+ * Body consists of varint length prefixed UTF-8 strings (0 is null), longs for dates (Long.MIN_VALUE is null)
+ * and varint counts of collections
+ * @since 18/10/26
+ */
+final class SessionCodec {
+  static final int LENGTH = 0;
+  static final int FLAGS = 4;
+  static final int STATUS = 5;
+  static final int CREATED = 6;
+  static final int EXPIRES_IN = 14;
+  static final int BLOCKED = 22;
+  static final int LAST_CHECK = 30;
+  static final int HEADER_SIZE = 38;
+  /**
+   * record is superseded or expired
+   */
+  static final byte FLAG_DEAD = 1;
+  private static final long NULL_DATE = Long.MIN_VALUE;
+  private static final byte NULL_ENUM = -1;
+
+  private SessionCodec() {
+  }
+
+  static byte[] encode(Session session) {
+    final Output out = new Output();
+    out.writeInt(0);
+    out.write(0);
+    out.write(session.getStatus() == null ? NULL_ENUM : session.getStatus().ordinal());
+    out.writeDate(session.getCreated());
+    out.writeDate(session.getExpiresIn());
+    out.writeDate(session.getBlocked());
+    out.writeDate(session.getLastCheck());
+    out.writeString(session.getId());
+    out.writeString(session.getIdentityProvider());
+    out.writeString(session.getAuthClient());
+    out.writeString(session.getUserId());
+    out.writeString(session.getUserInfo());
+    final Collection<AuthEntry> entries = session.getEntries() == null ? Collections.emptySet() : session.getEntries();
+    out.writeVarInt(entries.size());
+    for (AuthEntry entry : entries) {
+      out.writeString(entry.getId());
+      out.writeString(entry.getAuthCode());
+      out.writeDate(entry.getCodeExpiresIn());
+      out.writeDate(entry.getCreated());
+      out.writeString(entry.getRefreshToken());
+      out.writeDate(entry.getRefreshTokenExpiresIn());
+      final Collection<String> scopes = entry.getScopes() == null ? Collections.emptySet() : entry.getScopes();
+      out.writeVarInt(scopes.size());
+      scopes.forEach(out::writeString);
+      out.writeString(entry.getRelyingParty());
+      out.write(entry.getAuthType() == null ? NULL_ENUM : entry.getAuthType().ordinal());
+      out.writeString(entry.getRedirectUrl());
+      final Collection<Token> tokens = entry.getTokens() == null ? Collections.emptySet() : entry.getTokens();
+      out.writeVarInt(tokens.size());
+      for (Token token : tokens) {
+        out.writeString(token.getToken());
+        out.writeDate(token.getCreated());
+        out.writeDate(token.getExpiresIn());
+      }
+    }
+    final byte[] result = out.toByteArray();
+    ByteBuffer.wrap(result).putInt(LENGTH, result.length);
+    return result;
+  }
+
+  /**
+   * @param buffer buffer positioned at record start, position is changed
+   */
+  static Session decode(ByteBuffer buffer) {
+    final int start = buffer.position();
+    final Session session = new Session();
+    session.setStatus(readEnum(Status.values(), buffer.get(start + STATUS)));
+    session.setCreated(readDate(buffer.getLong(start + CREATED)));
+    session.setExpiresIn(readDate(buffer.getLong(start + EXPIRES_IN)));
+    session.setBlocked(readDate(buffer.getLong(start + BLOCKED)));
+    session.setLastCheck(readDate(buffer.getLong(start + LAST_CHECK)));
+    buffer.position(start + HEADER_SIZE);
+    session.setId(readString(buffer));
+    session.setIdentityProvider(readString(buffer));
+    session.setAuthClient(readString(buffer));
+    session.setUserId(readString(buffer));
+    session.setUserInfo(readString(buffer));
+    final int entryCount = readVarInt(buffer);
+    final Set<AuthEntry> entries = new HashSet<>();
+    for (int i = 0; i < entryCount; i++) {
+      final AuthEntry entry = new AuthEntry();
+      entry.setId(readString(buffer));
+      entry.setAuthCode(readString(buffer));
+      entry.setCodeExpiresIn(readDate(buffer.getLong()));
+      entry.setCreated(readDate(buffer.getLong()));
+      entry.setRefreshToken(readString(buffer));
+      entry.setRefreshTokenExpiresIn(readDate(buffer.getLong()));
+      final int scopeCount = readVarInt(buffer);
+      final Set<String> scopes = new HashSet<>();
+      for (int j = 0; j < scopeCount; j++)
+        scopes.add(readString(buffer));
+      entry.setScopes(scopes);
+      entry.setRelyingParty(readString(buffer));
+      entry.setAuthType(readEnum(AuthType.values(), buffer.get()));
+      entry.setRedirectUrl(readString(buffer));
+      final int tokenCount = readVarInt(buffer);
+      for (int j = 0; j < tokenCount; j++)
+        entry.addToken(new Token(readString(buffer), readDate(buffer.getLong()), readDate(buffer.getLong())));
+      entries.add(entry);
+    }
+    session.setEntries(entries);
+    return session;
+  }
+
+  /**
+   * Reads session identifier without decoding of the whole record
+   * @param buffer buffer positioned at record start, position is changed
+   */
+  static String decodeId(ByteBuffer buffer) {
+    buffer.position(buffer.position() + HEADER_SIZE);
+    return readString(buffer);
+  }
+
+  static void writeDate(ByteBuffer buffer, int index, Date date) {
+    buffer.putLong(index, date == null ? NULL_DATE : date.getTime());
+  }
+
+  static Date readDate(long value) {
+    return value == NULL_DATE ? null : new Date(value);
+  }
+
+  private static <T extends Enum<T>> T readEnum(T[] values, byte ordinal) {
+    return ordinal == NULL_ENUM ? null : values[ordinal];
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    final int length = readVarInt(buffer) - 1;
+    if (length < 0)
+      return null;
+    final byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int readVarInt(ByteBuffer buffer) {
+    int result = 0;
+    int shift = 0;
+    byte value;
+    do {
+      value = buffer.get();
+      result |= (value & 0x7F) << shift;
+      shift += 7;
+    } while (value < 0);
+    return result;
+  }
+
+  private static class Output extends ByteArrayOutputStream {
+    Output() {
+      super(512);
+    }
+
+    void writeInt(int value) {
+      for (int shift = 24; shift >= 0; shift -= 8)
+        write(value >>> shift);
+    }
+
+    void writeLong(long value) {
+      for (int shift = 56; shift >= 0; shift -= 8)
+        write((int) (value >>> shift));
+    }
+
+    void writeDate(Date date) {
+      writeLong(date == null ? NULL_DATE : date.getTime());
+    }
+
+    void writeVarInt(int value) {
+      while ((value & ~0x7F) != 0) {
+        write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      write(value);
+    }
+
+    void writeString(String value) {
+      if (value == null) {
+        writeVarInt(0);
+        return;
+      }
+      final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(bytes.length + 1);
+      write(bytes, 0, bytes.length);
+    }
+  }
+}
@@ -0,0 +1,555 @@
+package ru.ratauth.server.persistence;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import ru.ratauth.entities.AuthEntry;
+import ru.ratauth.entities.Session;
+import ru.ratauth.entities.Token;
+import ru.ratauth.services.SessionService;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.subjects.AsyncSubject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Spreads sessions across several storages (shards) by consistent hash of session id, every shard owns
+ * ranges of hash ring between its virtual nodes, so adding or removing shard moves only sessions of affected ranges.
+ * Codes and tokens issued with {@link #hint(String)} of session carry the same hash, so they are looked up
+ * in single shard, values without hint (e.g. issued before sharding) are looked up in all shards.
+ * Hint is separated by '~' like tag of value, so it never collides with UUID values and JWT.
+ * <p>
+ * Shards are changed online by {@link #rebalance(Map)}: new sessions are created by new ring at once,
+ * sessions of previous owners are moved in background. Until moves are finished lookups ask previous owner and then
+ * new one, writes of session and invalidations of all shards are excluded with moves, so no write is lost on the way.
+ * Mover waits for calls in flight, while calls started during move are retried after pause, so request threads
+ * are never blocked
+ * @since 18/10/26
+ */
+@Slf4j
+public class ShardedSessionService implements SessionService, PublicMetrics {
+  private static final HashFunction HASH = Hashing.murmur3_32();
+  private static final int HINT_LENGTH = 8;
+  private static final char HINT_SEPARATOR = '~';
+  private static final int STRIPES = 1024;
+  private static final int NOT_MOVING = -1;
+  private static final long DRAIN_PAUSE = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long MOVE_PAUSE = 1;
+  private static final long RETRY_PAUSE = TimeUnit.SECONDS.toMillis(1);
+
+  private final int virtualNodes;
+  private final ExecutorService mover;
+  /**
+   * writes in flight of sessions that could be moved by stripe of session
+   */
+  private final AtomicInteger[] writers = new AtomicInteger[STRIPES];
+  /**
+   * invalidations of all shards in flight while sessions could be moved
+   */
+  private final AtomicInteger exclusiveBroadcasts = new AtomicInteger();
+  /**
+   * stripe of session being moved
+   */
+  private volatile int movingStripe = NOT_MOVING;
+  private final LongAdder routed = new LongAdder();
+  private final LongAdder broadcasts = new LongAdder();
+  private final LongAdder moved = new LongAdder();
+  private final LongAdder moveFailures = new LongAdder();
+  private volatile Routing routing;
+
+  /**
+   * @param shards storages by unique shard names, ring positions depend on names only
+   * @param virtualNodes count of ring nodes per shard
+   */
+  public ShardedSessionService(Map<String, SessionService> shards, int virtualNodes) {
+    this.virtualNodes = virtualNodes;
+    this.routing = new Routing(new Ring(shards, virtualNodes), null);
+    for (int i = 0; i < STRIPES; i++)
+      writers[i] = new AtomicInteger();
+    this.mover = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "session-shard-mover");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public void destroy() {
+    mover.shutdownNow();
+  }
+
+  /**
+   * @param sessionId session identifier
+   * @return routing prefix for codes and tokens of session
+   */
+  public static String hint(String sessionId) {
+    final String hex = Integer.toHexString(hash(sessionId));
+    return "00000000".substring(hex.length()) + hex + HINT_SEPARATOR;
+  }
+
+  /**
+   * Switches sessions to new set of shards. Shards of current set, which are kept, must be passed by the same names.
+   * All current shards must implement {@link MovableSessionStorage}
+   * @param shards new storages by unique shard names
+   * @return Observable of moved sessions count emitted after all sessions are moved to their new owners,
+   * since then shards that are absent in new set are not used
+   */
+  public synchronized Observable<Long> rebalance(Map<String, SessionService> shards) {
+    final Routing stable = routing;
+    if (stable.previous != null)
+      throw new IllegalStateException("Sessions are already being rebalanced");
+    stable.current.shards.forEach((name, shard) -> {
+      if (!(shard instanceof MovableSessionStorage))
+        throw new IllegalArgumentException("Sessions of shard " + name + " can not be moved");
+    });
+    final Routing moving = new Routing(new Ring(shards, virtualNodes), stable.current);
+    routing = moving;
+    log.info("Rebalancing sessions from shards {} to shards {}", stable.current.shards.keySet(), shards.keySet());
+    final AsyncSubject<Long> result = AsyncSubject.create();
+    mover.execute(() -> {
+      try {
+        //operations routed by previous ring could target session being moved
+        drain(stable);
+        final long start = moved.sum();
+        while (moveAll(moving) > 0)
+          Thread.sleep(RETRY_PAUSE);
+        routing = new Routing(moving.current, null);
+        drain(moving);
+        log.info("Rebalancing finished, {} sessions moved", moved.sum() - start);
+        result.onNext(moved.sum() - start);
+        result.onCompleted();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        result.onError(e);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * @return count of sessions that were not moved and must be retried
+   */
+  private long moveAll(Routing moving) {
+    long failed = 0;
+    for (SessionService shard : moving.previous.shards.values()) {
+      final MovableSessionStorage source = (MovableSessionStorage) shard;
+      final List<String> sessionIds = new ArrayList<>();
+      source.forEach(session -> {
+        if (moving.current.owner(hash(session.getId())) != shard)
+          sessionIds.add(session.getId());
+      });
+      for (String sessionId : sessionIds) {
+        if (!move(sessionId, source, moving.current.owner(hash(sessionId))))
+          failed++;
+      }
+    }
+    if (failed > 0)
+      log.warn("{} sessions were not moved and will be retried", failed);
+    return failed;
+  }
+
+  /**
+   * Session is created by new owner before it is evicted by previous one, so lookups that ask previous owner
+   * and then new one always find it. Writes of session stripe and invalidations of all shards started before move
+   * are finished first, the ones started since then wait for move
+   */
+  private boolean move(String sessionId, MovableSessionStorage source, SessionService target) {
+    final int stripe = stripe(sessionId);
+    movingStripe = stripe;
+    try {
+      while (writers[stripe].get() > 0 || exclusiveBroadcasts.get() > 0)
+        LockSupport.parkNanos(DRAIN_PAUSE);
+      final Session session = source.get(sessionId);
+      if (session == null)
+        return true;
+      target.create(session).toBlocking().single();
+      source.evict(sessionId);
+      moved.increment();
+      return true;
+    } catch (Exception e) {
+      log.error("Session {} was not moved", sessionId, e);
+      moveFailures.increment();
+      return false;
+    } finally {
+      movingStripe = NOT_MOVING;
+    }
+  }
+
+  private static void drain(Routing routing) {
+    while (routing.inflight.get() > 0)
+      LockSupport.parkNanos(DRAIN_PAUSE);
+  }
+
+  @Override
+  public Observable<Session> create(Session session) {
+    if (session.getId() == null)
+      session.setId(UUID.randomUUID().toString());
+    return routed(routing -> {
+      routed.increment();
+      return routing.current.owner(hash(session.getId())).create(session);
+    });
+  }
+
+  @Override
+  public Observable<Session> getByValidCode(String code, Date now) {
+    return lookup(code, shard -> shard.getByValidCode(code, now));
+  }
+
+  @Override
+  public Observable<Session> getByValidRefreshToken(String token, Date now) {
+    return lookup(token, shard -> shard.getByValidRefreshToken(token, now));
+  }
+
+  @Override
+  public Observable<Session> getByValidToken(String token, Date now) {
+    return lookup(token, shard -> shard.getByValidToken(token, now));
+  }
+
+  @Override
+  public Observable<Map<String, Session>> getByTokens(Collection<String> tokens) {
+    return routed(routing -> {
+      final Map<SessionService, List<String>> byOwner = new LinkedHashMap<>();
+      final Map<SessionService, List<String>> byNewOwner = new LinkedHashMap<>();
+      for (String token : tokens) {
+        final Integer hash = hintedHash(token);
+        if (hash == null) {
+          broadcasts.increment();
+          routing.shards.forEach(shard -> group(byOwner, shard, token));
+          continue;
+        }
+        routed.increment();
+        final SessionService owner = routing.current.owner(hash);
+        final SessionService previousOwner = routing.previousOwner(hash);
+        group(byOwner, previousOwner, token);
+        if (previousOwner != owner)
+          group(byNewOwner, owner, token);
+      }
+      return getByTokens(byOwner)
+          .flatMap(found -> {
+            byNewOwner.values().forEach(values -> values.removeAll(found.keySet()));
+            return getByTokens(byNewOwner).map(moved -> {
+              found.putAll(moved);
+              return found;
+            });
+          });
+    });
+  }
+
+  private static Observable<Map<String, Session>> getByTokens(Map<SessionService, List<String>> byShard) {
+    return Observable.from(byShard.entrySet())
+        .filter(entry -> !entry.getValue().isEmpty())
+        .flatMap(entry -> entry.getKey().getByTokens(entry.getValue()))
+        .collect(HashMap::new, Map::putAll);
+  }
+
+  private static void group(Map<SessionService, List<String>> byShard, SessionService shard, String token) {
+    byShard.computeIfAbsent(shard, it -> new ArrayList<>()).add(token);
+  }
+
+  @Override
+  public Observable<Boolean> addEntry(String sessionId, AuthEntry entry) {
+    return write(sessionId, shard -> shard.addEntry(sessionId, entry));
+  }
+
+  @Override
+  public Observable<Boolean> addToken(String sessionId, String relyingParty, Token token) {
+    return write(sessionId, shard -> shard.addToken(sessionId, relyingParty, token));
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSession(String sessionId, Date blocked) {
+    return write(sessionId, shard -> shard.invalidateSession(sessionId, blocked));
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) {
+    return write(sessionId, shard -> shard.updateCheckDate(sessionId, lastCheck));
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSessions(Collection<String> sessionIds, Date blocked) {
+    return bulkWrite(sessionIds, (shard, ids) -> shard.invalidateSessions(ids, blocked),
+        sessionId -> invalidateSession(sessionId, blocked));
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDates(Collection<String> sessionIds, Date lastCheck) {
+    return bulkWrite(sessionIds, (shard, ids) -> shard.updateCheckDates(ids, lastCheck),
+        sessionId -> updateCheckDate(sessionId, lastCheck));
+  }
+
+  @Override
+  public Observable<Boolean> invalidateForClient(String relyingParty, Date blocked) {
+    return broadcast(shard -> shard.invalidateForClient(relyingParty, blocked), true)
+        .all(Boolean.TRUE::equals);
+  }
+
+  @Override
+  public Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked) {
+    return broadcast(shard -> shard.invalidateForUser(identityProvider, userId, blocked), true)
+        .distinct();
+  }
+
+  @Override
+  public Observable<String> getInvalidatedSessions(Date since, Date now) {
+    return broadcast(shard -> shard.getInvalidatedSessions(since, now), false)
+        .distinct();
+  }
+
+  @Override
+  public Observable<Map<String, Date>> getInvalidatedClients(Date since) {
+    return broadcast(shard -> shard.getInvalidatedClients(since), false)
+        .reduce(new HashMap<>(), (result, clients) -> {
+          clients.forEach((relyingParty, blocked) -> result.merge(relyingParty, blocked,
+              (first, second) -> first.after(second) ? first : second));
+          return result;
+        });
+  }
+
+  @Override
+  public Observable<Boolean> isActive(String sessionId, Date now) {
+    return routed(routing -> {
+      routed.increment();
+      final int hash = hash(sessionId);
+      final SessionService owner = routing.current.owner(hash);
+      final SessionService previousOwner = routing.previousOwner(hash);
+      if (owner == previousOwner)
+        return owner.isActive(sessionId, now);
+      return previousOwner.isActive(sessionId, now)
+          .flatMap(active -> active ? Observable.just(true) : owner.isActive(sessionId, now));
+    });
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    final Routing current = routing;
+    Collection<Metric<?>> result = new ArrayList<>();
+    result.add(new Metric<>("session.shard.shards", current.current.shards.size()));
+    result.add(new Metric<>("session.shard.rebalancing", current.previous == null ? 0 : 1));
+    result.add(new Metric<>("session.shard.routed", routed.sum()));
+    result.add(new Metric<>("session.shard.broadcast", broadcasts.sum()));
+    result.add(new Metric<>("session.shard.moved", moved.sum()));
+    result.add(new Metric<>("session.shard.move_failures", moveFailures.sum()));
+    final Map<String, SessionService> shards = new LinkedHashMap<>(current.current.shards);
+    if (current.previous != null)
+      current.previous.shards.forEach(shards::putIfAbsent);
+    shards.forEach((name, shard) -> {
+      if (shard instanceof PublicMetrics)
+        ((PublicMetrics) shard).metrics().forEach(metric ->
+            result.add(new Metric<Number>(shardMetric(name, metric.getName()), metric.getValue())));
+    });
+    return result;
+  }
+
+  private static String shardMetric(String shard, String name) {
+    return "session.shard." + shard + "." + (name.startsWith("session.") ? name.substring("session.".length()) : name);
+  }
+
+  /**
+   * Values without hint could be in any shard, only one shard finds value, except session being moved
+   */
+  private Observable<Session> lookup(String value, Function<SessionService, Observable<Session>> lookup) {
+    return routed(routing -> {
+      final Integer hash = hintedHash(value);
+      if (hash == null) {
+        broadcasts.increment();
+        return Observable.mergeDelayError(Observable.from(routing.shards).map(lookup::apply))
+            .take(1);
+      }
+      routed.increment();
+      final SessionService owner = routing.current.owner(hash);
+      final SessionService previousOwner = routing.previousOwner(hash);
+      if (owner == previousOwner)
+        return lookup.apply(owner);
+      return lookup.apply(previousOwner)
+          .switchIfEmpty(Observable.defer(() -> lookup.apply(owner)));
+    });
+  }
+
+  /**
+   * Session being moved is either in previous owner or in new one, it is not moved until write is finished
+   */
+  private Observable<Boolean> write(String sessionId, Function<SessionService, Observable<Boolean>> write) {
+    return routed(routing -> {
+      routed.increment();
+      final int hash = hash(sessionId);
+      final SessionService owner = routing.current.owner(hash);
+      final SessionService previousOwner = routing.previousOwner(hash);
+      if (owner == previousOwner)
+        return write.apply(owner);
+      final int stripe = stripe(sessionId);
+      return excludingMoves(writers[stripe], () -> movingStripe == stripe, () -> write.apply(previousOwner)
+          .flatMap(written -> written ? Observable.just(true) : write.apply(owner)));
+    });
+  }
+
+  private Observable<Boolean> bulkWrite(Collection<String> sessionIds,
+                                        BiFunction<SessionService, Collection<String>, Observable<Boolean>> bulk,
+                                        Function<String, Observable<Boolean>> single) {
+    return routed(routing -> {
+      //sessions being moved are written one by one, so every write is serialized with move
+      if (routing.previous != null)
+        return Observable.from(sessionIds)
+            .flatMap(single::apply)
+            .all(Boolean.TRUE::equals);
+      final Map<SessionService, List<String>> byOwner = new LinkedHashMap<>();
+      sessionIds.forEach(sessionId -> group(byOwner, routing.current.owner(hash(sessionId)), sessionId));
+      routed.add(sessionIds.size());
+      return Observable.from(byOwner.entrySet())
+          .flatMap(entry -> bulk.apply(entry.getKey(), entry.getValue()))
+          .all(Boolean.TRUE::equals);
+    });
+  }
+
+  /**
+   * @param exclusive whether shards are modified, so moves must be suspended while all shards are called
+   */
+  private <T> Observable<T> broadcast(Function<SessionService, Observable<T>> call, boolean exclusive) {
+    return routed(routing -> {
+      broadcasts.increment();
+      final Observable<T> result = Observable.merge(Observable.from(routing.shards).map(call::apply));
+      if (!exclusive || routing.previous == null)
+        return result;
+      return excludingMoves(exclusiveBroadcasts, () -> movingStripe != NOT_MOVING, () -> result);
+    });
+  }
+
+  /**
+   * Call is counted by holders until it is terminated or unsubscribed, it is started only if no conflicting move
+   * is in progress, otherwise it is retried after pause. Holders are counted before move is checked
+   * and mover marks move before it checks holders, so either call or move waits for another one
+   */
+  private static <T> Observable<T> excludingMoves(AtomicInteger holders, BooleanSupplier moving,
+                                                  Func0<Observable<T>> call) {
+    return Observable.defer(() -> {
+      holders.incrementAndGet();
+      if (moving.getAsBoolean()) {
+        holders.decrementAndGet();
+        return Observable.timer(MOVE_PAUSE, TimeUnit.MILLISECONDS)
+            .flatMap(tick -> excludingMoves(holders, moving, call));
+      }
+      return releasing(call::call, holders::decrementAndGet);
+    });
+  }
+
+  /**
+   * @param release called once when call is terminated, unsubscribed or fails to start
+   */
+  private static <T> Observable<T> releasing(Func0<Observable<T>> call, Action0 release) {
+    final AtomicBoolean released = new AtomicBoolean();
+    final Action0 once = () -> {
+      if (released.compareAndSet(false, true))
+        release.call();
+    };
+    try {
+      return call.call()
+          .doOnTerminate(once)
+          .doOnUnsubscribe(once);
+    } catch (RuntimeException e) {
+      once.call();
+      throw e;
+    }
+  }
+
+  /**
+   * Operation is counted as in flight by its routing until it is terminated or unsubscribed,
+   * so moves are started only after operations routed by previous ring are finished
+   */
+  private <T> Observable<T> routed(Function<Routing, Observable<T>> call) {
+    return Observable.defer(() -> {
+      final Routing routing = acquire();
+      return releasing(() -> call.apply(routing), routing.inflight::decrementAndGet);
+    });
+  }
+
+  private Routing acquire() {
+    while (true) {
+      final Routing current = routing;
+      current.inflight.incrementAndGet();
+      //routing could be switched and drained before increment
+      if (current == routing)
+        return current;
+      current.inflight.decrementAndGet();
+    }
+  }
+
+  private static int hash(String sessionId) {
+    return HASH.hashString(sessionId, StandardCharsets.UTF_8).asInt();
+  }
+
+  private static int stripe(String sessionId) {
+    return hash(sessionId) & (STRIPES - 1);
+  }
+
+  /**
+   * @return hash of session embedded into value or null if value has no hint
+   */
+  private static Integer hintedHash(String value) {
+    if (value == null || value.length() <= HINT_LENGTH || value.charAt(HINT_LENGTH) != HINT_SEPARATOR)
+      return null;
+    for (int i = 0; i < HINT_LENGTH; i++) {
+      if (Character.digit(value.charAt(i), 16) < 0)
+        return null;
+    }
+    return Integer.parseUnsignedInt(value.substring(0, HINT_LENGTH), 16);
+  }
+
+  private static final class Ring {
+    private final Map<String, SessionService> shards;
+    private final NavigableMap<Integer, SessionService> nodes = new TreeMap<>();
+
+    Ring(Map<String, SessionService> shards, int virtualNodes) {
+      if (shards.isEmpty())
+        throw new IllegalArgumentException("At least one shard is required");
+      this.shards = Collections.unmodifiableMap(new LinkedHashMap<>(shards));
+      shards.forEach((name, shard) -> {
+        for (int i = 0; i < virtualNodes; i++)
+          nodes.put(hash(name + '#' + i), shard);
+      });
+    }
+
+    SessionService owner(int hash) {
+      final Map.Entry<Integer, SessionService> node = nodes.ceilingEntry(hash);
+      return (node == null ? nodes.firstEntry() : node).getValue();
+    }
+  }
+
+  private static final class Routing {
+    private final Ring current;
+    /**
+     * ring of shards being rebalanced, null if sessions are not moved
+     */
+    private final Ring previous;
+    /**
+     * distinct shards of both rings
+     */
+    private final Set<SessionService> shards = new LinkedHashSet<>();
+    private final AtomicInteger inflight = new AtomicInteger();
+
+    Routing(Ring current, Ring previous) {
+      this.current = current;
+      this.previous = previous;
+      shards.addAll(current.shards.values());
+      if (previous != null)
+        shards.addAll(previous.shards.values());
+    }
+
+    SessionService previousOwner(int hash) {
+      return previous == null ? current.owner(hash) : previous.owner(hash);
+    }
+  }
+}
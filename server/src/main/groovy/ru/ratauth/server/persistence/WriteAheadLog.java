@@ -0,0 +1,293 @@
+package ru.ratauth.server.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.metrics.Metric;
+import ru.ratauth.server.utils.LatencyStats;
+import rx.Observable;
+import rx.schedulers.Schedulers;
+import rx.subjects.AsyncSubject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal with group commit. Records of concurrent writers are written by single thread,
+ * every batch is synced before acknowledgement or periodically depending on {@link FsyncPolicy}.
+ * Journal consists of numbered files, new file is started on rotation, e.g. before snapshot.
+ * Record frame is int payload length, int CRC32 of payload and payload itself.
+ * Records pending on close and appended after close are failed
+ * @since 18/10/26
+ */
+@Slf4j
+final class WriteAheadLog {
+  static final String SUFFIX = ".wal";
+  private static final int FRAME_HEADER = 8;
+
+  enum FsyncPolicy {
+    /**
+     * every batch is synced before acknowledgement
+     */
+    BATCH,
+    /**
+     * batches are acknowledged after write, journal is synced every fsync interval
+     */
+    PERIODIC
+  }
+
+  private final File dir;
+  private final FsyncPolicy fsyncPolicy;
+  private final long fsyncInterval;
+  private final int maxBatchSize;
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final LongAdder records = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+  private final LongAccumulator maxBatch = new LongAccumulator(Long::max, 0);
+  private final LatencyStats fsyncs = new LatencyStats();
+  private volatile boolean running;
+  private volatile boolean closed;
+  private Thread writer;
+  private FileChannel channel;
+  private volatile long sequence;
+  private boolean dirty;
+  private long lastSync;
+
+  WriteAheadLog(File dir, FsyncPolicy fsyncPolicy, long fsyncInterval, int maxBatchSize) {
+    this.dir = dir;
+    this.fsyncPolicy = fsyncPolicy;
+    this.fsyncInterval = fsyncInterval;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * @param sequence number of first journal file
+   */
+  void open(long sequence) throws IOException {
+    openFile(sequence);
+    running = true;
+    writer = new Thread(this::run, "session-journal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * @param payload record payload
+   * @return Observable of true emitted on computation scheduler after record is written according to fsync policy
+   * or Observable.error if journal is closed
+   */
+  Observable<Boolean> append(byte[] payload) {
+    final Pending pending = new Pending(frame(payload), false);
+    enqueue(pending);
+    return pending.result.observeOn(Schedulers.computation());
+  }
+
+  /**
+   * Starts new journal file, all records appended before rotation are in previous files
+   * @return number of new journal file
+   */
+  long rotate() {
+    final Pending pending = new Pending(null, true);
+    enqueue(pending);
+    pending.result.toBlocking().single();
+    return sequence;
+  }
+
+  void close() throws IOException, InterruptedException {
+    closed = true;
+    running = false;
+    writer.join();
+    failPending();
+    channel.force(false);
+    channel.close();
+  }
+
+  static File file(File dir, long sequence) {
+    return new File(dir, sequence + SUFFIX);
+  }
+
+  static byte[] frame(byte[] payload) {
+    final CRC32 crc = new CRC32();
+    crc.update(payload);
+    return ByteBuffer.allocate(FRAME_HEADER + payload.length)
+        .putInt(payload.length)
+        .putInt((int) crc.getValue())
+        .put(payload)
+        .array();
+  }
+
+  /**
+   * Reads record payloads until end of file or first torn or corrupted record, e.g. after crash during write
+   * @return number of read records
+   */
+  static long read(File file, Consumer<byte[]> consumer) throws IOException {
+    long count = 0;
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      while (true) {
+        final int length;
+        final int checksum;
+        try {
+          length = input.readInt();
+          checksum = input.readInt();
+        } catch (EOFException e) {
+          return count;
+        }
+        if (length < 0 || length > file.length()) {
+          log.warn("Corrupted record in journal {} after {} records", file, count);
+          return count;
+        }
+        final byte[] payload = new byte[length];
+        try {
+          input.readFully(payload);
+        } catch (EOFException e) {
+          log.warn("Torn record in journal {} after {} records", file, count);
+          return count;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+          log.warn("Corrupted record in journal {} after {} records", file, count);
+          return count;
+        }
+        consumer.accept(payload);
+        count++;
+      }
+    }
+  }
+
+  Collection<Metric<?>> metrics(String name) {
+    final long batchCount = batches.sum();
+    Collection<Metric<?>> result = new ArrayList<>();
+    result.add(new Metric<>(name + ".records", records.sum()));
+    result.add(new Metric<>(name + ".bytes", bytes.sum()));
+    result.add(new Metric<>(name + ".batches", batchCount));
+    result.add(new Metric<>(name + ".batch.size.mean", batchCount == 0 ? 0.0 : records.sum() / (double) batchCount));
+    result.add(new Metric<>(name + ".batch.size.max", maxBatch.get()));
+    result.add(new Metric<>(name + ".queue", queue.size()));
+    result.addAll(fsyncs.metrics(name + ".fsync"));
+    return result;
+  }
+
+  /**
+   * Record added concurrently with close is failed either by close or by its writer
+   */
+  private void enqueue(Pending pending) {
+    if (closed) {
+      pending.result.onError(new IOException("Session journal is closed"));
+      return;
+    }
+    queue.add(pending);
+    if (closed && !writer.isAlive())
+      failPending();
+  }
+
+  private void failPending() {
+    Pending pending;
+    while ((pending = queue.poll()) != null)
+      pending.result.onError(new IOException("Session journal is closed"));
+  }
+
+  private void run() {
+    final List<Pending> batch = new ArrayList<>();
+    while (running || !queue.isEmpty()) {
+      try {
+        final Pending first = queue.poll(fsyncInterval, TimeUnit.MILLISECONDS);
+        if (first != null) {
+          batch.add(first);
+          queue.drainTo(batch, maxBatchSize - 1);
+          write(batch);
+        }
+        if (dirty && System.currentTimeMillis() - lastSync >= fsyncInterval)
+          sync();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        log.error("Session journal write failed", e);
+        batch.forEach(pending -> pending.result.onError(e));
+      }
+      batch.clear();
+    }
+  }
+
+  private void write(List<Pending> batch) throws IOException {
+    final List<ByteBuffer> buffers = new ArrayList<>();
+    final List<Pending> written = new ArrayList<>();
+    for (Pending pending : batch) {
+      if (pending.rotation) {
+        flush(buffers, written);
+        sync();
+        channel.close();
+        openFile(sequence + 1);
+        pending.complete();
+      } else {
+        buffers.add(ByteBuffer.wrap(pending.record));
+        written.add(pending);
+      }
+    }
+    flush(buffers, written);
+  }
+
+  private void flush(List<ByteBuffer> buffers, List<Pending> written) throws IOException {
+    if (written.isEmpty())
+      return;
+    final ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+    long size = 0;
+    for (ByteBuffer buffer : array)
+      size += buffer.remaining();
+    long remaining = size;
+    while (remaining > 0)
+      remaining -= channel.write(array);
+    dirty = true;
+    if (FsyncPolicy.BATCH == fsyncPolicy)
+      sync();
+    records.add(written.size());
+    bytes.add(size);
+    batches.increment();
+    maxBatch.accumulate(written.size());
+    written.forEach(Pending::complete);
+    buffers.clear();
+    written.clear();
+  }
+
+  private void sync() throws IOException {
+    final long start = System.nanoTime();
+    channel.force(false);
+    fsyncs.record(System.nanoTime() - start);
+    dirty = false;
+    lastSync = System.currentTimeMillis();
+  }
+
+  private void openFile(long sequence) throws IOException {
+    this.channel = FileChannel.open(file(dir, sequence).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    this.sequence = sequence;
+  }
+
+  private static class Pending {
+    private final byte[] record;
+    private final boolean rotation;
+    private final AsyncSubject<Boolean> result = AsyncSubject.create();
+
+    Pending(byte[] record, boolean rotation) {
+      this.record = record;
+      this.rotation = rotation;
+    }
+
+    void complete() {
+      result.onNext(true);
+      result.onCompleted();
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package ru.ratauth.server.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import ru.ratauth.entities.AuthEntry;
+import ru.ratauth.entities.Session;
+import ru.ratauth.entities.Token;
+import ru.ratauth.server.utils.LatencyStats;
+import ru.ratauth.services.SessionService;
+import rx.Observable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Acknowledges deferrable writes immediately and flushes them in background by bulk storage calls.
+ * Only idempotent writes that do not affect token validation are deferred, i.e. check dates of background status
+ * checker, repeated writes of the same session are merged and the latest date wins. Pending writes are flushed
+ * every flush interval or as soon as max size is reached, they stay pending until written, so failed ones are
+ * retried by the next flush. Pending check dates are overlaid on loaded sessions, so session evicted from
+ * near cache after check is not reported as due again before its check date is written.
+ * Writes that affect token validation (sessions, entries, tokens and invalidation) are delegated synchronously
+ * @since 18/10/26
+ */
+@Slf4j
+public class WriteBehindSessionService implements SessionService, PublicMetrics {
+  private final SessionService delegate;
+  private final int maxSize;
+  private final ScheduledExecutorService scheduler;
+  /**
+   * last check dates by session id
+   */
+  private final Map<String, Date> pendingCheckDates = new ConcurrentHashMap<>();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private final LongAdder deferred = new LongAdder();
+  private final LongAdder merged = new LongAdder();
+  private final LongAdder flushed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LatencyStats flushes = new LatencyStats();
+
+  /**
+   * @param flushInterval millis between flushes
+   */
+  public WriteBehindSessionService(SessionService delegate, int maxSize, long flushInterval) {
+    this.delegate = delegate;
+    this.maxSize = maxSize;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "session-write-behind");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Flushes pending writes before shutdown
+   */
+  public void destroy() {
+    scheduler.shutdownNow();
+    flush();
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) {
+    defer(sessionId, lastCheck);
+    return Observable.just(true);
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDates(Collection<String> sessionIds, Date lastCheck) {
+    sessionIds.forEach(sessionId -> defer(sessionId, lastCheck));
+    return Observable.just(true);
+  }
+
+  private void defer(String sessionId, Date lastCheck) {
+    deferred.increment();
+    pendingCheckDates.compute(sessionId, (id, pending) -> {
+      if (pending == null)
+        return lastCheck;
+      merged.increment();
+      return latest(pending, lastCheck);
+    });
+    if (pendingCheckDates.size() >= maxSize && flushScheduled.compareAndSet(false, true))
+      scheduler.execute(this::flush);
+  }
+
+  /**
+   * Sessions checked by the same batch of status checker share check date, so they are written by one bulk call
+   */
+  synchronized void flush() {
+    flushScheduled.set(false);
+    final Map<Date, List<String>> byDate = new HashMap<>();
+    for (Map.Entry<String, Date> pending : new ArrayList<>(pendingCheckDates.entrySet())) {
+      final List<String> sessionIds = byDate.computeIfAbsent(pending.getValue(), date -> new ArrayList<>());
+      sessionIds.add(pending.getKey());
+      if (sessionIds.size() >= maxSize)
+        write(pending.getValue(), byDate.remove(pending.getValue()));
+    }
+    byDate.forEach(this::write);
+  }
+
+  /**
+   * Written dates are removed from buffer unless they were superseded by later ones meanwhile
+   */
+  private void write(Date lastCheck, List<String> sessionIds) {
+    final long start = System.nanoTime();
+    try {
+      delegate.updateCheckDates(sessionIds, lastCheck).toBlocking().single();
+      flushes.record(System.nanoTime() - start);
+      flushed.add(sessionIds.size());
+      sessionIds.forEach(sessionId -> pendingCheckDates.remove(sessionId, lastCheck));
+    } catch (Exception e) {
+      log.warn("Deferred update of {} check dates failed", sessionIds.size(), e);
+      flushes.error();
+      failed.add(sessionIds.size());
+    }
+  }
+
+  private Session overlay(Session session) {
+    final Date pending = session.getId() == null ? null : pendingCheckDates.get(session.getId());
+    if (pending != null && (session.getLastCheck() == null || pending.after(session.getLastCheck())))
+      session.setLastCheck(pending);
+    return session;
+  }
+
+  private static Date latest(Date first, Date second) {
+    return first.after(second) ? first : second;
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = new ArrayList<>();
+    result.add(new Metric<>("session.write_behind.pending", pendingCheckDates.size()));
+    result.add(new Metric<>("session.write_behind.deferred", deferred.sum()));
+    result.add(new Metric<>("session.write_behind.merged", merged.sum()));
+    result.add(new Metric<>("session.write_behind.flushed", flushed.sum()));
+    result.add(new Metric<>("session.write_behind.failed", failed.sum()));
+    result.addAll(flushes.metrics("session.write_behind.flush"));
+    return result;
+  }
+
+  @Override
+  public Observable<Session> create(Session session) {
+    return delegate.create(session);
+  }
+
+  @Override
+  public Observable<Session> getByValidCode(String code, Date now) {
+    return delegate.getByValidCode(code, now).map(this::overlay);
+  }
+
+  @Override
+  public Observable<Session> getByValidRefreshToken(String token, Date now) {
+    return delegate.getByValidRefreshToken(token, now).map(this::overlay);
+  }
+
+  @Override
+  public Observable<Session> getByValidToken(String token, Date now) {
+    return delegate.getByValidToken(token, now).map(this::overlay);
+  }
+
+  @Override
+  public Observable<Map<String, Session>> getByTokens(Collection<String> tokens) {
+    return delegate.getByTokens(tokens).doOnNext(sessions -> sessions.values().forEach(this::overlay));
+  }
+
+  @Override
+  public Observable<Boolean> addEntry(String sessionId, AuthEntry entry) {
+    return delegate.addEntry(sessionId, entry);
+  }
+
+  @Override
+  public Observable<Boolean> addToken(String sessionId, String relyingParty, Token token) {
+    return delegate.addToken(sessionId, relyingParty, token);
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSession(String sessionId, Date blocked) {
+    return delegate.invalidateSession(sessionId, blocked);
+  }
+
+  @Override
+  public Observable<Boolean> invalidateForClient(String relyingParty, Date blocked) {
+    return delegate.invalidateForClient(relyingParty, blocked);
+  }
+
+  @Override
+  public Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked) {
+    return delegate.invalidateForUser(identityProvider, userId, blocked);
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSessions(Collection<String> sessionIds, Date blocked) {
+    return delegate.invalidateSessions(sessionIds, blocked);
+  }
+
+  @Override
+  public Observable<Boolean> isActive(String sessionId, Date now) {
+    return delegate.isActive(sessionId, now);
+  }
+
+  @Override
+  public Observable<String> getInvalidatedSessions(Date since, Date now) {
+    return delegate.getInvalidatedSessions(since, now);
+  }
+
+  @Override
+  public Observable<Map<String, Date>> getInvalidatedClients(Date since) {
+    return delegate.getInvalidatedClients(since);
+  }
+}
@@ -0,0 +1,95 @@
+package ru.ratauth.server.secutiry;
+
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.*;
+
+/**
+ * Common JWT claims processing, concrete implementations provide only signature algorithm and keys
+ * @since 18/10/26
+ */
+public abstract class AbstractTokenProcessor implements TokenProcessor {
+  private static final String SCOPE = "scope";
+  private static final String CLIENT_ID = "client_id";
+
+  private static final List<String> LOCAL_REGISTERED_CLAIMS = Arrays.asList(SCOPE, CLIENT_ID);
+
+  @Value("${auth.token.issuer}")
+  private String issuer;//final
+
+  /**
+   * @param secret client secret
+   * @return header of new jwt
+   */
+  protected abstract JWSHeader createHeader(String secret);
+
+  /**
+   * @param secret client secret
+   * @return signer for new jwt
+   */
+  protected abstract JWSSigner getSigner(String secret);
+
+  /**
+   * @param header header of incoming jwt
+   * @param secret client secret
+   * @return verifier for incoming jwt
+   */
+  protected abstract JWSVerifier getVerifier(JWSHeader header, String secret);
+
+  @Override
+  @SneakyThrows
+  public String createToken(String clientId, String secret, String identifier,
+                            Date created, Date expiresIn,
+                            Set<String> audience, Set<String> scopes,
+                            String userId, Map<String, Object> userInfo) {
+    final JWSSigner signer = getSigner(secret);
+    final List<String> aud = new ArrayList<>(audience);
+    aud.add(clientId);
+// Prepare JWT with claims set
+    JWTClaimsSet.Builder jwtBuilder = new JWTClaimsSet.Builder()
+        .issuer(issuer)
+        .subject(userId)
+        .expirationTime(expiresIn)
+        .audience(aud)
+        .claim(SCOPE, scopes)
+        .claim(CLIENT_ID, clientId)
+        .jwtID(identifier)
+        .issueTime(created);
+    userInfo.forEach((key, value) -> jwtBuilder.claim(key, value));
+
+    SignedJWT signedJWT = new SignedJWT(createHeader(secret), jwtBuilder.build());
+
+// Apply the signature
+    signedJWT.sign(signer);
+
+// Serialize to compact form, produces something like
+// eyJhbGciOiJIUzI1NiJ9.SGVsbG8sIHdvcmxkIQ.onO9Ihudz3WkiauDO2Uhyuz0Y18UASXlSc1eS0NkWyA
+    return signedJWT.serialize();
+  }
+
+  @Override
+  @SneakyThrows
+  public Map<String, Object> extractInfo(String jwt, String secret) {
+    SignedJWT signedJWT = SignedJWT.parse(jwt);
+    final JWSVerifier verifier = getVerifier(signedJWT.getHeader(), secret);
+    if(!signedJWT.verify(verifier))
+      throw new JWTVerificationException("User info extraction error");
+    return signedJWT.getJWTClaimsSet().getClaims();
+  }
+
+  @Override
+  public Map<String, Object> filterUserInfo(Map<String, Object> info) {
+    Map<String,Object> result = new HashMap<>();
+    info.forEach((key,value) -> {
+      if(!JWTClaimsSet.getRegisteredNames().contains(key) && !LOCAL_REGISTERED_CLAIMS.contains(key))
+        result.put(key, value);
+    });
+    return result;
+  }
+}
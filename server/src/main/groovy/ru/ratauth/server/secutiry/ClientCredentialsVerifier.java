@@ -0,0 +1,178 @@
+package ru.ratauth.server.secutiry;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import ru.ratauth.entities.AuthClient;
+import ru.ratauth.exception.ThrottledException;
+import ru.ratauth.server.utils.MetricUtils;
+import ru.ratauth.server.utils.SingleFlight;
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks client passwords against stored {@link PasswordHasher} values. Since password hashing is slow by design,
+ * successful checks are cached by client name as HMAC of stored and presented passwords under process-local random key:
+ * one fixed size entry per client, nothing usable for offline guessing, and entry just stops matching
+ * when client password changes in storage. Failed checks are cached the same way, so repeated wrong password is not
+ * hashed again. Hashing itself runs on dedicated pool with limited number of concurrent hashes per client
+ * @since 18/10/26
+ */
+@Component
+public class ClientCredentialsVerifier implements PublicMetrics {
+  private static final String HMAC_SHA256 = "HmacSHA256";
+
+  @Value("${auth.client.credentials_cache_size:10000}")
+  private Integer cacheSize;//final
+  @Value("${auth.client.credentials_cache_ttl:300}")
+  private Integer cacheTTL;//final
+  @Value("${auth.client.credentials_hash_threads:4}")
+  private Integer hashThreads;//final
+  @Value("${auth.client.credentials_hash_concurrency:2}")
+  private Integer hashConcurrency;//final
+
+  private final ThreadLocal<Mac> mac = ThreadLocal.withInitial(this::initMac);
+  private final SingleFlight<String, Boolean> hashes = new SingleFlight<>();
+  private final LongAdder hashed = new LongAdder();
+  private final LongAdder throttled = new LongAdder();
+  private SecretKeySpec key;
+  /**
+   * digests of verified credentials by client name
+   */
+  private Cache<String, byte[]> verified;
+  /**
+   * digests of last rejected credentials by client name
+   */
+  private Cache<String, byte[]> rejected;
+  private Striped<Semaphore> hashPermits;
+  private ExecutorService hashExecutor;
+  private Scheduler hashScheduler;
+
+  @PostConstruct
+  public void init() {
+    final byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    key = new SecretKeySpec(secret, HMAC_SHA256);
+    verified = CacheBuilder.newBuilder()
+        .maximumSize(cacheSize)
+        .expireAfterWrite(cacheTTL, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+    rejected = CacheBuilder.newBuilder()
+        .maximumSize(cacheSize)
+        .expireAfterWrite(cacheTTL, TimeUnit.SECONDS)
+        .build();
+    hashPermits = Striped.lazyWeakSemaphore(cacheSize, hashConcurrency);
+    final AtomicInteger threads = new AtomicInteger();
+    hashExecutor = Executors.newFixedThreadPool(hashThreads, runnable -> {
+      Thread thread = new Thread(runnable, "client-credentials-hash-" + threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    hashScheduler = Schedulers.from(hashExecutor);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    hashExecutor.shutdownNow();
+  }
+
+  /**
+   * Checks password, cached results and plaintext passwords are checked synchronously,
+   * hashing is done on dedicated pool and is shared by concurrent checks of the same credentials
+   * @param client client loaded from storage
+   * @param password presented password
+   * @return observable of true if password matches, false if it does not,
+   * or ThrottledException error if client exceeded concurrent hashes limit
+   */
+  public Observable<Boolean> verify(AuthClient client, String password) {
+    if (password == null || client.getPassword() == null)
+      return Observable.just(false);
+    if (!PasswordHasher.isHashed(client.getPassword()))
+      return Observable.just(PasswordHasher.matches(password, client.getPassword()));
+    final byte[] digest = digest(client.getPassword(), password);
+    if (isCached(verified, client.getName(), digest))
+      return Observable.just(true);
+    if (isCached(rejected, client.getName(), digest))
+      return Observable.just(false);
+    return hashes.execute(client.getName() + '$' + Base64.getEncoder().encodeToString(digest),
+        () -> Observable.defer(() -> Observable.just(hash(client, password, digest))).subscribeOn(hashScheduler));
+  }
+
+  /**
+   * Drops verified and rejected credentials, e.g. in case of client password change
+   * @param clientName unique client name
+   */
+  public void invalidate(String clientName) {
+    verified.invalidate(clientName);
+    rejected.invalidate(clientName);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = MetricUtils.cacheMetrics("client_credentials", verified);
+    result.add(new Metric<>("client_credentials.hashed", hashed.sum()));
+    result.add(new Metric<>("client_credentials.throttled", throttled.sum()));
+    result.add(new Metric<>("client_credentials.rejected.size", rejected.size()));
+    result.addAll(hashes.metrics("client_credentials.hashes"));
+    return result;
+  }
+
+  private boolean hash(AuthClient client, String password, byte[] digest) {
+    final Semaphore permits = hashPermits.get(client.getName());
+    //throttled check is not a credentials rejection, so wrong passwords never lock correct ones out
+    if (!permits.tryAcquire()) {
+      throttled.increment();
+      throw new ThrottledException(ThrottledException.ID.CREDENTIALS_CHECK_THROTTLED);
+    }
+    try {
+      hashed.increment();
+      final boolean matches = PasswordHasher.matches(password, client.getPassword());
+      (matches ? verified : rejected).put(client.getName(), digest);
+      return matches;
+    } finally {
+      permits.release();
+    }
+  }
+
+  private static boolean isCached(Cache<String, byte[]> cache, String clientName, byte[] digest) {
+    final byte[] cached = cache.getIfPresent(clientName);
+    return cached != null && MessageDigest.isEqual(cached, digest);
+  }
+
+  private byte[] digest(String stored, String password) {
+    final Mac current = mac.get();
+    current.update(stored.getBytes(StandardCharsets.UTF_8));
+    current.update((byte) 0);
+    return current.doFinal(password.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @SneakyThrows
+  private Mac initMac() {
+    Mac result = Mac.getInstance(HMAC_SHA256);
+    result.init(key);
+    return result;
+  }
+}
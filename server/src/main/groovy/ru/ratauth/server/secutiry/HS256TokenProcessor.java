@@ -1,87 +1,40 @@
 package ru.ratauth.server.secutiry;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.JWSSigner;
 import com.nimbusds.jose.JWSVerifier;
-import com.nimbusds.jose.crypto.MACSigner;
-import com.nimbusds.jose.crypto.MACVerifier;
-import com.nimbusds.jwt.JWTClaimsSet;
-import com.nimbusds.jwt.SignedJWT;
 import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Service;
 
-import java.util.*;
-
 /**
+ * Signs tokens by shared secret. Primary processor since master_secret tokens are always HS256
  * @author mgorelikov
  * @since 03/11/15
  */
-@Service
+@Primary
+@Service("HS256")
 @RequiredArgsConstructor(onConstructor = @__(@Autowired))
-public class HS256TokenProcessor implements TokenProcessor {
+public class HS256TokenProcessor extends AbstractTokenProcessor {
+  private static final JWSHeader HEADER = new JWSHeader(JWSAlgorithm.HS256);
   private final ObjectMapper jacksonObjectMapper;
-  private static final String SCOPE = "scope";
-  private static final String CLIENT_ID = "client_id";
-
-  private static final List<String> LOCAL_REGISTERED_CLAIMS = Arrays.asList(SCOPE, CLIENT_ID);
-
-  @Value("${auth.token.issuer}")
-  private String issuer;//final
+  private final MacContextCache macContextCache;
 
   @Override
-  @SneakyThrows
-  public String createToken(String clientId, String secret, String identifier,
-                            Date created, Date expiresIn,
-                            Set<String> audience, Set<String> scopes,
-                            String userId, Map<String, Object> userInfo) {
-    final JWSSigner signer = new MACSigner(Base64Coder.decodeLines(secret));
-    final List<String> aud = new ArrayList<>(audience);
-    aud.add(clientId);
-// Prepare JWT with claims set
-    JWTClaimsSet.Builder jwtBuilder = new JWTClaimsSet.Builder()
-        .issuer(issuer)
-        .subject(userId)
-        .expirationTime(expiresIn)
-        .audience(aud)
-        .claim(SCOPE, scopes)
-        .claim(CLIENT_ID, clientId)
-        .jwtID(identifier)
-        .issueTime(created);
-    userInfo.forEach((key, value) -> jwtBuilder.claim(key, value));
-
-    SignedJWT signedJWT = new SignedJWT(new JWSHeader(JWSAlgorithm.HS256), jwtBuilder.build());
-
-// Apply the HMAC protection
-    signedJWT.sign(signer);
-
-// Serialize to compact form, produces something like
-// eyJhbGciOiJIUzI1NiJ9.SGVsbG8sIHdvcmxkIQ.onO9Ihudz3WkiauDO2Uhyuz0Y18UASXlSc1eS0NkWyA
-    return signedJWT.serialize();
+  protected JWSHeader createHeader(String secret) {
+    return HEADER;
   }
 
   @Override
-  @SneakyThrows
-  public Map<String, Object> extractInfo(String jwt, String secret) {
-    SignedJWT signedJWT = SignedJWT.parse(jwt);
-    final JWSVerifier verifier = new MACVerifier(Base64Coder.decodeLines(secret));
-    if(!signedJWT.verify(verifier))
-      throw new JWTVerificationException("User info extraction error");
-    return signedJWT.getJWTClaimsSet().getClaims();
+  protected JWSSigner getSigner(String secret) {
+    return macContextCache.get(secret).getSigner();
   }
 
   @Override
-  public Map<String, Object> filterUserInfo(Map<String, Object> info) {
-    Map<String,Object> result = new HashMap<>();
-    info.forEach((key,value) -> {
-      if(!JWTClaimsSet.getRegisteredNames().contains(key) && !LOCAL_REGISTERED_CLAIMS.contains(key))
-        result.put(key, value);
-    });
-    return result;
+  protected JWSVerifier getVerifier(JWSHeader header, String secret) {
+    return macContextCache.get(secret).getVerifier();
   }
 }
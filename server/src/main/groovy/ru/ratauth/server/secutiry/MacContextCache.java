@@ -0,0 +1,140 @@
+package ru.ratauth.server.secutiry;
+
+import com.fasterxml.jackson.dataformat.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.MACVerifier;
+import com.nimbusds.jose.util.Base64URL;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import ru.ratauth.server.utils.MetricUtils;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps decoded HMAC keys together with per-thread initialized {@link Mac} instances,
+ * so base64 decoding and Mac initialization happens once per secret instead of once per jwt.
+ * Entries are keyed by secret value itself, so rotated client secret just produces a new entry,
+ * the old one is invalidated by {@link ru.ratauth.server.services.ClientRegistry} refresh
+ * or evicted by size or idle timeout
+ * @since 18/10/26
+ */
+@Component
+public class MacContextCache implements PublicMetrics {
+  private static final String HMAC_SHA256 = "HmacSHA256";
+
+  @Value("${auth.crypto.cache_size:1000}")
+  private Integer cacheSize;//final
+  @Value("${auth.crypto.cache_ttl:3600}")
+  private Integer cacheTTL;//final
+
+  private Cache<String, MacContext> cache;
+
+  @PostConstruct
+  public void init() {
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(cacheSize)
+        .expireAfterAccess(cacheTTL, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * @param secret 256-bit secret encoded in base64
+   * @return cached signer/verifier pair for secret
+   */
+  @SneakyThrows
+  public MacContext get(String secret) {
+    return cache.get(secret, () -> new MacContext(Base64Coder.decodeLines(secret)));
+  }
+
+  /**
+   * Evicts crypto context, e.g. in case of client secret change
+   * @param secret old secret value
+   */
+  public void invalidate(String secret) {
+    cache.invalidate(secret);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    return MetricUtils.cacheMetrics("crypto_context", cache);
+  }
+
+  public static class MacContext {
+    private final JWSSigner signer;
+    private final JWSVerifier verifier;
+
+    MacContext(byte[] secret) throws JOSEException {
+      final SecretKeySpec key = new SecretKeySpec(secret, HMAC_SHA256);
+      final ThreadLocal<Mac> mac = ThreadLocal.withInitial(() -> initMac(key));
+      this.signer = new CachedMACSigner(secret, mac);
+      this.verifier = new CachedMACVerifier(secret, mac);
+    }
+
+    public JWSSigner getSigner() {
+      return signer;
+    }
+
+    public JWSVerifier getVerifier() {
+      return verifier;
+    }
+
+    @SneakyThrows
+    private static Mac initMac(SecretKeySpec key) {
+      Mac mac = Mac.getInstance(HMAC_SHA256);
+      mac.init(key);
+      return mac;
+    }
+  }
+
+  /**
+   * HS256 signer that reuses initialized Mac of current thread, other algorithms are processed by nimbus as is
+   */
+  private static class CachedMACSigner extends MACSigner {
+    private final ThreadLocal<Mac> mac;
+
+    CachedMACSigner(byte[] secret, ThreadLocal<Mac> mac) throws JOSEException {
+      super(secret);
+      this.mac = mac;
+    }
+
+    @Override
+    public Base64URL sign(JWSHeader header, byte[] signingInput) throws JOSEException {
+      if (!JWSAlgorithm.HS256.equals(header.getAlgorithm()))
+        return super.sign(header, signingInput);
+      return Base64URL.encode(mac.get().doFinal(signingInput));
+    }
+  }
+
+  private static class CachedMACVerifier extends MACVerifier {
+    private final ThreadLocal<Mac> mac;
+
+    CachedMACVerifier(byte[] secret, ThreadLocal<Mac> mac) throws JOSEException {
+      super(secret);
+      this.mac = mac;
+    }
+
+    @Override
+    public boolean verify(JWSHeader header, byte[] signedContent, Base64URL signature) throws JOSEException {
+      //critical header params are checked by nimbus
+      if (!JWSAlgorithm.HS256.equals(header.getAlgorithm()) || header.getCriticalParams() != null)
+        return super.verify(header, signedContent, signature);
+      return MessageDigest.isEqual(mac.get().doFinal(signedContent), signature.decode());
+    }
+  }
+}
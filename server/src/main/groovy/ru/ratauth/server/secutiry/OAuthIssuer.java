@@ -1,9 +1,32 @@
 package ru.ratauth.server.secutiry;
 
+import java.util.Date;
+
 public interface OAuthIssuer {
     public String accessToken() throws OAuthSystemException;
 
     public String authorizationCode() throws OAuthSystemException;
 
     public String refreshToken() throws OAuthSystemException;
+
+    /**
+     * @param expiresIn expiration date of token, could be embedded into value by implementation
+     */
+    default String accessToken(Date expiresIn) throws OAuthSystemException {
+        return accessToken();
+    }
+
+    /**
+     * @param expiresIn expiration date of code, could be embedded into value by implementation
+     */
+    default String authorizationCode(Date expiresIn) throws OAuthSystemException {
+        return authorizationCode();
+    }
+
+    /**
+     * @param expiresIn expiration date of token, could be embedded into value by implementation
+     */
+    default String refreshToken(Date expiresIn) throws OAuthSystemException {
+        return refreshToken();
+    }
 }
\ No newline at end of file
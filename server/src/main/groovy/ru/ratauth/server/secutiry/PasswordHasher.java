@@ -0,0 +1,81 @@
+package ru.ratauth.server.secutiry;
+
+import lombok.SneakyThrows;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * PBKDF2-HmacSHA256 password hashes in format $pbkdf2-sha256$iterations$salt$hash, salt and hash are base64 encoded.
+ * Values without prefix are treated as plaintext passwords for backward compatibility
+ * @since 18/10/26
+ */
+public final class PasswordHasher {
+  public static final String PREFIX = "$pbkdf2-sha256$";
+  public static final int DEFAULT_ITERATIONS = 100000;
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int SALT_LENGTH = 16;
+  private static final int HASH_LENGTH = 32;
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private PasswordHasher() {
+  }
+
+  /**
+   * @param password plaintext password
+   * @return hash for client storage
+   */
+  public static String hash(String password) {
+    return hash(password, DEFAULT_ITERATIONS);
+  }
+
+  public static String hash(String password, int iterations) {
+    final byte[] salt = new byte[SALT_LENGTH];
+    RANDOM.nextBytes(salt);
+    final Base64.Encoder encoder = Base64.getEncoder();
+    return PREFIX + iterations + '$' + encoder.encodeToString(salt) + '$'
+        + encoder.encodeToString(pbkdf2(password, salt, iterations, HASH_LENGTH));
+  }
+
+  public static boolean isHashed(String stored) {
+    return stored.startsWith(PREFIX);
+  }
+
+  /**
+   * Compares password with stored value in constant time
+   * @param password presented password
+   * @param stored hash or plaintext password from client storage
+   * @return true if password matches
+   */
+  public static boolean matches(String password, String stored) {
+    if (password == null || stored == null)
+      return false;
+    if (!isHashed(stored))
+      return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+    final String[] parts = stored.substring(PREFIX.length()).split("\\$");
+    if (parts.length != 3)
+      return false;
+    try {
+      final Base64.Decoder decoder = Base64.getDecoder();
+      final byte[] expected = decoder.decode(parts[2]);
+      return MessageDigest.isEqual(expected,
+          pbkdf2(password, decoder.decode(parts[1]), Integer.parseInt(parts[0]), expected.length));
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  @SneakyThrows
+  private static byte[] pbkdf2(String password, byte[] salt, int iterations, int length) {
+    final PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    } finally {
+      spec.clearPassword();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package ru.ratauth.server.secutiry;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.RSAKey;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Signs tokens by auth server RSA key, so relying party could verify them offline with published jwks.
+ * Client secret is not used
+ * @since 18/10/26
+ */
+@Service("RS256")
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class RS256TokenProcessor extends AbstractTokenProcessor {
+  private final SigningKeyStore signingKeyStore;
+
+  private final Map<String, JWSVerifier> verifiers = new ConcurrentHashMap<>();
+  /**
+   * signing key is resolved on first use, so servers without the key start unless RS256 idToken is requested
+   */
+  private final Supplier<JWSHeader> header = Suppliers.memoize(this::createSigningHeader);
+  private final Supplier<JWSSigner> signer = Suppliers.memoize(this::createSigner);
+
+  @Override
+  protected JWSHeader createHeader(String secret) {
+    return header.get();
+  }
+
+  @Override
+  protected JWSSigner getSigner(String secret) {
+    return signer.get();
+  }
+
+  @Override
+  protected JWSVerifier getVerifier(JWSHeader header, String secret) {
+    final String keyId = header.getKeyID() == null ? this.header.get().getKeyID() : header.getKeyID();
+    return verifiers.computeIfAbsent(keyId, this::createVerifier);
+  }
+
+  private JWSHeader createSigningHeader() {
+    return new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(signingKeyStore.getRSAKey().getKeyID()).build();
+  }
+
+  @SneakyThrows
+  private JWSSigner createSigner() {
+    return new RSASSASigner(signingKeyStore.getRSAKey());
+  }
+
+  @SneakyThrows
+  private JWSVerifier createVerifier(String keyId) {
+    final JWK key = signingKeyStore.getKey(keyId);
+    if (!(key instanceof RSAKey))
+      throw new JWTVerificationException("Unknown signing key");
+    return new RSASSAVerifier((RSAKey) key);
+  }
+}
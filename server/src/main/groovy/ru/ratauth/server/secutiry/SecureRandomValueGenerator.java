@@ -0,0 +1,145 @@
+package ru.ratauth.server.secutiry;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates 256-bit random values encoded in base64url.
+ * Random bytes are taken from striped independent PRNG instances (stripe is chosen by thread),
+ * each stripe keeps current and spare buffers, spare one is refilled in background
+ * so request threads only copy prepared bytes
+ * @since 18/10/26
+ */
+@Slf4j
+@Component
+public class SecureRandomValueGenerator implements ValueGenerator {
+  public static final int VALUE_BYTES = 32;
+  private static final String PRNG_ALGORITHM = "SHA1PRNG";
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+  @Value("${auth.token.generator.stripes:0}")
+  private Integer stripesCount;//final
+  @Value("${auth.token.generator.buffer_size:128}")
+  private Integer bufferSize;//final
+
+  private Stripe[] stripes;
+  private ExecutorService refillExecutor;
+
+  public SecureRandomValueGenerator() {
+  }
+
+  public SecureRandomValueGenerator(int stripesCount, int bufferSize) {
+    this.stripesCount = stripesCount;
+    this.bufferSize = bufferSize;
+  }
+
+  @PostConstruct
+  public void init() {
+    final int count = stripesCount > 0 ? stripesCount : Runtime.getRuntime().availableProcessors() * 2;
+    refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "value-generator-refill");
+      thread.setDaemon(true);
+      return thread;
+    });
+    stripes = new Stripe[count];
+    for (int i = 0; i < count; i++)
+      stripes[i] = new Stripe(newRandom(), bufferSize * VALUE_BYTES);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    refillExecutor.shutdownNow();
+  }
+
+  @Override
+  public String generateValue() {
+    final Stripe stripe = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+    return ENCODER.encodeToString(stripe.next());
+  }
+
+  /**
+   * @param param source value
+   * @return deterministic value derived from param
+   */
+  @Override
+  @SneakyThrows
+  public String generateValue(String param) {
+    return ENCODER.encodeToString(MessageDigest.getInstance("SHA-256").digest(param.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @SneakyThrows
+  private static SecureRandom newRandom() {
+    //independent instance without shared native lock, self-seeded from system entropy on first use
+    return SecureRandom.getInstance(PRNG_ALGORITHM);
+  }
+
+  private class Stripe {
+    private final SecureRandom random;
+    private byte[] current;
+    private int position;
+    /**
+     * buffer prepared by background refill, null while refill is in progress
+     */
+    private byte[] spare;
+    private byte[] released;
+
+    Stripe(SecureRandom random, int size) {
+      this.random = random;
+      this.current = new byte[size];
+      this.spare = new byte[size];
+      random.nextBytes(current);
+      random.nextBytes(spare);
+    }
+
+    synchronized byte[] next() {
+      if (position == current.length)
+        swap();
+      final byte[] result = Arrays.copyOfRange(current, position, position + VALUE_BYTES);
+      position += VALUE_BYTES;
+      return result;
+    }
+
+    private void swap() {
+      position = 0;
+      if (spare == null) {
+        //background refill has not finished yet
+        random.nextBytes(current);
+        return;
+      }
+      released = current;
+      current = spare;
+      spare = null;
+      try {
+        refillExecutor.execute(this::refill);
+      } catch (RuntimeException e) {
+        log.debug("Background refill rejected", e);
+        spare = released;
+        random.nextBytes(spare);
+      }
+    }
+
+    private void refill() {
+      final byte[] buffer;
+      synchronized (this) {
+        buffer = released;
+        released = null;
+      }
+      random.nextBytes(buffer);
+      synchronized (this) {
+        spare = buffer;
+      }
+    }
+  }
+}
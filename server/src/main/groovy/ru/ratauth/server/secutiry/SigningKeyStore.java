@@ -0,0 +1,155 @@
+package ru.ratauth.server.secutiry;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.*;
+import lombok.extern.slf4j.Slf4j;
+import net.minidev.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import ru.ratauth.entities.SignatureAlgorithm;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds auth server keys for asymmetric idToken signatures.
+ * Keys are loaded from JWK set file, first private RSA and P-256 EC keys are used for signing,
+ * all keys (e.g. retired public ones) are published and could be used for verification.
+ * Keys without kid are identified by their RFC 7638 thumbprint, since verification looks keys up by kid.
+ * Keys are required only for clients with RS256/ES256 idTokens, without them such idTokens can not be issued,
+ * unless ephemeral keys are allowed explicitly for single node deployments,
+ * since tokens signed by them can not be verified after restart or by other nodes
+ * @since 18/10/26
+ */
+@Slf4j
+@Component
+public class SigningKeyStore {
+  private static final String EC_CURVE = "secp256r1";
+
+  @Value("${auth.jwks.location:}")
+  private String location;//final
+  @Value("${auth.jwks.ephemeral:false}")
+  private Boolean ephemeral;//final
+
+  private JWKSet keys;
+  private RSAKey rsaKey;
+  private ECKey ecKey;
+
+  @PostConstruct
+  public void init() throws Exception {
+    final List<JWK> loaded = new ArrayList<>();
+    if (StringUtils.hasText(location))
+      for (JWK key : JWKSet.load(new File(location)).getKeys())
+        loaded.add(key.getKeyID() == null ? withThumbprintKeyId(key) : key);
+    rsaKey = loaded.stream()
+        .filter(key -> key instanceof RSAKey && key.isPrivate())
+        .map(key -> (RSAKey) key)
+        .findFirst().orElse(null);
+    ecKey = loaded.stream()
+        .filter(key -> key instanceof ECKey && key.isPrivate() && ECKey.Curve.P_256.equals(((ECKey) key).getCurve()))
+        .map(key -> (ECKey) key)
+        .findFirst().orElse(null);
+    if (rsaKey == null && ephemeral) {
+      log.warn("RSA signing key not found, ephemeral key will be used, tokens signed by it can not be verified by other nodes");
+      rsaKey = generateRSAKey();
+      loaded.add(rsaKey);
+    }
+    if (ecKey == null && ephemeral) {
+      log.warn("EC signing key not found, ephemeral key will be used, tokens signed by it can not be verified by other nodes");
+      ecKey = generateECKey();
+      loaded.add(ecKey);
+    }
+    if (rsaKey == null || ecKey == null)
+      log.warn("RSA or P-256 EC signing key is not found in auth.jwks.location='{}', RS256 or ES256 idTokens can not be issued "
+          + "until JWK set shared by all nodes is configured", location);
+    keys = new JWKSet(loaded);
+  }
+
+  /**
+   * @return RSA signing key
+   * @throws IllegalStateException if key is not configured
+   */
+  public RSAKey getRSAKey() {
+    if (rsaKey == null)
+      throw new IllegalStateException("RSA signing key is not configured in auth.jwks.location, RS256 idToken can not be issued");
+    return rsaKey;
+  }
+
+  /**
+   * @return P-256 EC signing key
+   * @throws IllegalStateException if key is not configured
+   */
+  public ECKey getECKey() {
+    if (ecKey == null)
+      throw new IllegalStateException("EC signing key is not configured in auth.jwks.location, ES256 idToken can not be issued");
+    return ecKey;
+  }
+
+  /**
+   * @param algorithm idToken signature algorithm
+   * @return true if idToken could be signed by algorithm, HS256 is signed by client secret and always supported
+   */
+  public boolean supports(SignatureAlgorithm algorithm) {
+    switch (algorithm) {
+      case RS256:
+        return rsaKey != null;
+      case ES256:
+        return ecKey != null;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * @param keyId kid header value
+   * @return key or null if not found
+   */
+  public JWK getKey(String keyId) {
+    return keyId == null ? null : keys.getKeyByKeyId(keyId);
+  }
+
+  /**
+   * @return set of public keys for publication
+   */
+  public JWKSet getPublicKeys() {
+    return keys.toPublicJWKSet();
+  }
+
+  private static JWK withThumbprintKeyId(JWK key) throws Exception {
+    final JSONObject json = key.toJSONObject();
+    json.put("kid", key.computeThumbprint().toString());
+    return JWK.parse(json);
+  }
+
+  private static RSAKey generateRSAKey() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    KeyPair keyPair = generator.generateKeyPair();
+    return new RSAKey.Builder((RSAPublicKey) keyPair.getPublic())
+        .privateKey((java.security.interfaces.RSAPrivateKey) keyPair.getPrivate())
+        .keyUse(KeyUse.SIGNATURE)
+        .algorithm(JWSAlgorithm.RS256)
+        .keyIDFromThumbprint()
+        .build();
+  }
+
+  private static ECKey generateECKey() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec(EC_CURVE));
+    KeyPair keyPair = generator.generateKeyPair();
+    return new ECKey.Builder(ECKey.Curve.P_256, (ECPublicKey) keyPair.getPublic())
+        .privateKey((java.security.interfaces.ECPrivateKey) keyPair.getPrivate())
+        .keyUse(KeyUse.SIGNATURE)
+        .algorithm(JWSAlgorithm.ES256)
+        .keyIDFromThumbprint()
+        .build();
+  }
+}
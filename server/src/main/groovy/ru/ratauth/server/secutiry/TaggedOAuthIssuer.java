@@ -0,0 +1,192 @@
+package ru.ratauth.server.secutiry;
+
+import com.fasterxml.jackson.dataformat.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Issues opaque values in form value~expiry~tag, where tag is truncated HMAC of kind, value and expiry
+ * keyed by derivation of master secret. It allows to reject forged, malformed and expired values
+ * without storage lookup. Untagged values (issued before tagging) are passed to storage unless enforced
+ * @since 18/10/26
+ */
+@Component
+public class TaggedOAuthIssuer extends OAuthIssuerImpl implements PublicMetrics {
+  private static final String HMAC_SHA256 = "HmacSHA256";
+  private static final byte[] KEY_LABEL = "ratauth-token-tag".getBytes(StandardCharsets.UTF_8);
+  private static final char SEPARATOR = '~';
+  private static final int TAG_BYTES = 12;
+  private static final int EXPIRY_RADIX = 36;
+
+  @Value("${auth.master_secret}")
+  private String masterSecret;//final
+  @Value("${auth.token.tag.enforce:false}")
+  private Boolean enforce;//final
+
+  private ThreadLocal<Mac> mac;
+  private final Map<TagStatus, LongAdder> counters = new EnumMap<>(TagStatus.class);
+
+  @Autowired
+  public TaggedOAuthIssuer(ValueGenerator valueGenerator) {
+    super(valueGenerator);
+    for (TagStatus status : TagStatus.values())
+      counters.put(status, new LongAdder());
+  }
+
+  @PostConstruct
+  public void init() {
+    //separate key, so tag never equals to any other MAC made by master secret
+    final byte[] key = hmac(new SecretKeySpec(Base64Coder.decodeLines(masterSecret), HMAC_SHA256), KEY_LABEL);
+    final SecretKeySpec keySpec = new SecretKeySpec(key, HMAC_SHA256);
+    mac = ThreadLocal.withInitial(() -> initMac(keySpec));
+  }
+
+  @Override
+  public String accessToken(Date expiresIn) {
+    return tag(Kind.ACCESS_TOKEN, accessToken(), expiresIn);
+  }
+
+  @Override
+  public String authorizationCode(Date expiresIn) {
+    return tag(Kind.AUTH_CODE, authorizationCode(), expiresIn);
+  }
+
+  @Override
+  public String refreshToken(Date expiresIn) {
+    return tag(Kind.REFRESH_TOKEN, refreshToken(), expiresIn);
+  }
+
+  /**
+   * @param hint routing prefix of value, e.g. shard hint of session, it is covered by tag
+   */
+  public String accessToken(Date expiresIn, String hint) {
+    return tag(Kind.ACCESS_TOKEN, hint + accessToken(), expiresIn);
+  }
+
+  /**
+   * @param hint routing prefix of value, e.g. shard hint of session, it is covered by tag
+   */
+  public String authorizationCode(Date expiresIn, String hint) {
+    return tag(Kind.AUTH_CODE, hint + authorizationCode(), expiresIn);
+  }
+
+  /**
+   * @param hint routing prefix of value, e.g. shard hint of session, it is covered by tag
+   */
+  public String refreshToken(Date expiresIn, String hint) {
+    return tag(Kind.REFRESH_TOKEN, hint + refreshToken(), expiresIn);
+  }
+
+  /**
+   * Checks value tag and embedded expiry
+   * @param kind expected kind of value
+   * @param value value from request
+   * @param now current date
+   * @return status of check, UNTAGGED only if tags are not enforced
+   */
+  public TagStatus verify(Kind kind, String value, Date now) {
+    final TagStatus status = check(kind, value, now);
+    counters.get(status).increment();
+    return status;
+  }
+
+  private TagStatus check(Kind kind, String value, Date now) {
+    if (value == null || value.isEmpty())
+      return TagStatus.MALFORMED;
+    final int tagStart = value.lastIndexOf(SEPARATOR);
+    if (tagStart < 0)
+      return enforce ? TagStatus.MALFORMED : TagStatus.UNTAGGED;
+    final int expiryStart = value.lastIndexOf(SEPARATOR, tagStart - 1);
+    if (expiryStart <= 0)
+      return TagStatus.MALFORMED;
+    final long expiry;
+    final byte[] tag;
+    try {
+      expiry = Long.parseLong(value.substring(expiryStart + 1, tagStart), EXPIRY_RADIX);
+      tag = Base64.getUrlDecoder().decode(value.substring(tagStart + 1));
+    } catch (IllegalArgumentException e) {
+      return TagStatus.MALFORMED;
+    }
+    if (tag.length != TAG_BYTES)
+      return TagStatus.MALFORMED;
+    if (!MessageDigest.isEqual(tag, computeTag(kind, value.substring(0, tagStart))))
+      return TagStatus.FORGED;
+    //only authentic expiry is trusted
+    if (TimeUnit.SECONDS.toMillis(expiry) < now.getTime())
+      return TagStatus.EXPIRED;
+    return TagStatus.VALID;
+  }
+
+  private String tag(Kind kind, String value, Date expiresIn) {
+    //rounded up, so value never expires earlier than storage record
+    final long expiry = TimeUnit.MILLISECONDS.toSeconds(expiresIn.getTime() + TimeUnit.SECONDS.toMillis(1) - 1);
+    final String tagged = value + SEPARATOR + Long.toString(expiry, EXPIRY_RADIX);
+    return tagged + SEPARATOR + Base64.getUrlEncoder().withoutPadding().encodeToString(computeTag(kind, tagged));
+  }
+
+  private byte[] computeTag(Kind kind, String taggedValue) {
+    final Mac current = mac.get();
+    current.update(kind.code);
+    return Arrays.copyOf(current.doFinal(taggedValue.getBytes(StandardCharsets.UTF_8)), TAG_BYTES);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = new ArrayList<>();
+    counters.forEach((status, counter) ->
+        result.add(new Metric<>("token.tag." + status.name().toLowerCase(), counter.sum())));
+    return result;
+  }
+
+  @SneakyThrows
+  private static byte[] hmac(SecretKeySpec key, byte[] data) {
+    return initMac(key).doFinal(data);
+  }
+
+  @SneakyThrows
+  private static Mac initMac(SecretKeySpec key) {
+    Mac mac = Mac.getInstance(HMAC_SHA256);
+    mac.init(key);
+    return mac;
+  }
+
+  public enum Kind {
+    ACCESS_TOKEN('a'),
+    REFRESH_TOKEN('r'),
+    AUTH_CODE('c');
+
+    private final byte code;
+
+    Kind(char code) {
+      this.code = (byte) code;
+    }
+  }
+
+  public enum TagStatus {
+    VALID,
+    /**
+     * value was issued without tag
+     */
+    UNTAGGED,
+    MALFORMED,
+    FORGED,
+    EXPIRED;
+
+    public boolean isRejected() {
+      return this != VALID && this != UNTAGGED;
+    }
+  }
+}
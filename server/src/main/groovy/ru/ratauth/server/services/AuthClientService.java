@@ -28,6 +28,15 @@ public interface AuthClientService {
    */
   Observable<AuthClient> loadClient(String name);
 
+  /**
+   * Checks client password, stored value could be plaintext or hash
+   *
+   * @param client   loaded client
+   * @param password presented password
+   * @return observable of true if password matches, could be emitted on other thread since hash check is slow
+   */
+  Observable<Boolean> checkPassword(AuthClient client, String password);
+
   /**
    * Loads Relying party by name and checks it password in case of auth required
    *
@@ -62,7 +71,8 @@ public interface AuthClientService {
    * @return modified observable
    */
   default <T extends AuthClient> Observable<T> addAuth(Observable<T> clientObservable, String password, boolean authRequired) {
-    return clientObservable.filter(rp -> !authRequired || rp.getPassword().equals(password))
+    return clientObservable.flatMap(rp -> !authRequired ? Observable.just(rp)
+        : checkPassword(rp, password).filter(matches -> matches).map(matches -> rp))
         .switchIfEmpty(Observable.error(new AuthorizationException(AuthorizationException.ID.CLIENT_NOT_FOUND)));
   }
 
@@ -4,6 +4,7 @@ import ru.ratauth.entities.RelyingParty;
 import ru.ratauth.entities.Session;
 import rx.Observable;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
 import java.util.Set;
@@ -78,4 +79,75 @@ public interface AuthSessionService {
    * @return Observable of single AuthEntry with single token or Observable.empty if token not found or Observable.error if token has expired
    */
   Observable<Session> getByValidToken(String token, Date now);
+
+  /**
+   * @param token access token value
+   * @return true if token is self-contained and must be checked by {@link #getByValidSelfContainedToken}
+   */
+  boolean isSelfContained(String token);
+
+  /**
+   * Verifies self-contained access token and checks only status of its session in storage.
+   * Session is not loaded, it is restored from token claims with single entry and token entity
+   *
+   * @param token self-contained access token value
+   * @param now   current date
+   * @return Observable of single Session or Observable.error if token is not valid, has expired or its session is not active
+   */
+  Observable<Session> getByValidSelfContainedToken(String token, Date now);
+
+  /**
+   * Invalidates session and drops all local data derived from it
+   *
+   * @param sessionId session identifier
+   * @param blocked   date of blocking
+   * @return Observable of operation result
+   */
+  Observable<Boolean> invalidateSession(String sessionId, Date blocked);
+
+  /**
+   * Invalidates all sessions of relying party and drops all local data derived from them
+   *
+   * @param relyingParty client unique name
+   * @param blocked      date of blocking
+   * @return Observable of operation result
+   */
+  Observable<Boolean> invalidateForClient(String relyingParty, Date blocked);
+
+  /**
+   * Invalidates all active sessions of user and drops all local data derived from them
+   *
+   * @param identityProvider unique name of identity provider
+   * @param userId           user identifier got from provider
+   * @param blocked          date of blocking
+   * @return Observable of identifiers of invalidated sessions
+   */
+  Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked);
+
+  /**
+   * Updates session lastCheck date
+   *
+   * @param sessionId session identifier
+   * @param lastCheck date of lastCheck
+   * @return Observable of operation result
+   */
+  Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck);
+
+  /**
+   * Invalidates several sessions and drops all local data derived from them
+   *
+   * @param sessionIds session identifiers
+   * @param blocked    date of blocking
+   * @return Observable of operation result
+   */
+  Observable<Boolean> invalidateSessions(Collection<String> sessionIds, Date blocked);
+
+  /**
+   * Updates lastCheck date of several sessions
+   *
+   * @param sessionIds session identifiers
+   * @param lastCheck  date of lastCheck
+   * @return Observable of operation result
+   */
+  Observable<Boolean> updateCheckDates(Collection<String> sessionIds, Date lastCheck);
 }
@@ -3,8 +3,10 @@ package ru.ratauth.server.services;
 import com.nimbusds.jose.JOSEException;
 import ru.ratauth.entities.RelyingParty;
 import ru.ratauth.entities.Session;
+import ru.ratauth.interaction.BatchCheckTokenRequest;
 import ru.ratauth.interaction.CheckTokenRequest;
 import ru.ratauth.interaction.CheckTokenResponse;
+import ru.ratauth.interaction.CheckTokenResult;
 import ru.ratauth.interaction.TokenRequest;
 import ru.ratauth.interaction.TokenResponse;
 import ru.ratauth.server.secutiry.OAuthSystemException;
@@ -25,6 +27,12 @@ public interface AuthTokenService {
    */
   Observable<CheckTokenResponse> checkToken(CheckTokenRequest oauthRequest);
 
+  /**
+   * Checks several access tokens of one requester, tokens are checked concurrently
+   * @return observable that emits stream of per-token results once requester is authenticated
+   */
+  Observable<Observable<CheckTokenResult>> checkTokens(BatchCheckTokenRequest oauthRequest);
+
   /**
    * Creates token response object for session corresponding to input relying party
    * @param session
@@ -4,52 +4,77 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Service;
 import ru.ratauth.entities.Session;
 import ru.ratauth.entities.Status;
 import ru.ratauth.providers.auth.AuthProvider;
 import ru.ratauth.providers.auth.dto.AuthInput;
-import ru.ratauth.server.utils.DateUtils;
-import ru.ratauth.services.SessionService;
+import ru.ratauth.server.secutiry.TokenProcessor;
+import ru.ratauth.server.utils.LatencyStats;
+import ru.ratauth.server.utils.SingleFlight;
+import rx.Observable;
+import rx.schedulers.Schedulers;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.time.LocalDateTime;
-import java.util.Date;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
+ * Schedules user status checks by session id. Every session has at most one pending check,
+ * which is due at lastCheck + check_interval, so repeated check_token calls of the same session are coalesced.
+ * Dispatcher blocks on delay queue until the nearest check is due, collects due checks during check_batch_window
+ * or up to check_batch_size, groups them by identity provider and starts one bulk status request per provider
+ * without waiting for result. Number of requests in flight is limited by check_concurrency
  * @author mgorelikov
  * @since 17/03/16
  */
 @Slf4j
 @Service
 @RequiredArgsConstructor(onConstructor = @__(@Autowired))
-public class BackgroundSessionStatusChecker implements SessionStatusChecker {
-  private final Queue<Session> queue = new ConcurrentLinkedQueue<>();
+public class BackgroundSessionStatusChecker implements SessionStatusChecker, PublicMetrics {
+  private final DelayQueue<CheckTask> queue = new DelayQueue<>();
+  /**
+   * pending and in-progress checks by session id
+   */
+  private final Map<String, CheckTask> tasks = new ConcurrentHashMap<>();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder processed = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+  private final Map<String, LatencyStats> providerStats = new ConcurrentHashMap<>();
+  private final SingleFlight<String, Boolean> userChecks = new SingleFlight<>();
+  private Semaphore permits;
   private ExecutorService executorService;
-  private final SessionService sessionService;
+  private final AuthSessionService sessionService;
   private final Map<String, AuthProvider> authProviders;
   private final TokenCacheService tokenCacheService;
 
   @Value("${auth.session.background_check_enabled:false}")
   private Boolean backgroundCheckEnabled;
-  @Value("${auth.session.check_threads}")
-  private Integer threads;
+  @Value("${auth.session.check_concurrency:100}")
+  private Integer concurrency;
+  @Value("${auth.session.check_timeout:10}")
+  private Integer checkTimeout;
+  @Value("${auth.session.check_batch_size:100}")
+  private Integer batchSize;
+  @Value("${auth.session.check_batch_window:100}")
+  private Integer batchWindow;
   @Value("${auth.session.check_interval}")
   private Integer checkInterval;
+  @Value("${auth.session.check_queue_size:100000}")
+  private Integer queueSize;
 
   @PostConstruct
   public void init() {
     if(backgroundCheckEnabled) {
-      executorService = Executors.newFixedThreadPool(threads);
-      for (int i = 0; i < threads; i++)
-        executorService.submit(new Consumer(queue));
+      permits = new Semaphore(concurrency);
+      executorService = Executors.newSingleThreadExecutor();
+      executorService.submit(new Dispatcher());
       executorService.shutdown();
     }
   }
@@ -62,49 +87,225 @@ public class BackgroundSessionStatusChecker implements SessionStatusChecker {
 
   @Override
   public void checkAndUpdateSession(Session session) {
-    if(backgroundCheckEnabled)
-      queue.offer(session);
-  }
-
-  private void process(Session session) {
-    //if not yet time
-    if(session.getLastCheck() != null
-        && DateUtils.toLocal(session.getLastCheck()).plusSeconds(checkInterval).isAfter(LocalDateTime.now())
-        || Status.BLOCKED == session.getStatus()) {
+    if(!backgroundCheckEnabled || session.getId() == null || Status.BLOCKED == session.getStatus())
+      return;
+    if(!hasProvider(session)) {
+      log.warn("Session check skipped, unknown identity provider {} of session {}", session.getIdentityProvider(), session.getId());
+      dropped.increment();
       return;
     }
-    Map<String, String> userInfo =
-        tokenCacheService.extractUserInfo(session.getUserInfo()).entrySet().stream()
-            .collect(Collectors.toMap(entry -> entry.getKey(), entry -> entry.getValue().toString()));
-    authProviders.get(session.getIdentityProvider())
-        .checkUserStatus(AuthInput.builder().relyingParty(session.getAuthClient()).data(userInfo).build())
-        .flatMap(userNotBlocked -> {
-          if (!userNotBlocked)
-            return sessionService.invalidateSession(session.getId(), new Date());
+    if(tasks.containsKey(session.getId())) {
+      coalesced.increment();
+      return;
+    }
+    if(tasks.size() >= queueSize) {
+      dropped.increment();
+      return;
+    }
+    final long dueTime = session.getLastCheck() == null ? System.currentTimeMillis()
+        : session.getLastCheck().getTime() + TimeUnit.SECONDS.toMillis(checkInterval);
+    final CheckTask task = new CheckTask(session, dueTime);
+    if(tasks.putIfAbsent(session.getId(), task) == null)
+      queue.put(task);
+    else
+      coalesced.increment();
+  }
+
+  private boolean hasProvider(Session session) {
+    return session.getIdentityProvider() != null && authProviders.containsKey(session.getIdentityProvider());
+  }
+
+  private void check(String identityProvider, List<CheckTask> batch) {
+    final LatencyStats stats = providerStats.computeIfAbsent(identityProvider, key -> new LatencyStats());
+    //sessions of the same user are checked by one input
+    final Map<String, List<String>> sessionsByUser = new HashMap<>();
+    final long start = System.nanoTime();
+    Observable.defer(() -> checkStatuses(identityProvider, toInputs(batch, sessionsByUser)))
+        .subscribeOn(Schedulers.io())
+        .timeout(checkTimeout, TimeUnit.SECONDS)
+        .doOnNext(statuses -> stats.record(System.nanoTime() - start))
+        .doOnError(throwable -> {
+          if (throwable instanceof TimeoutException)
+            stats.timeout();
           else
-            return sessionService.updateCheckDate(session.getId(), new Date());
+            stats.error();
+        })
+        .flatMap(statuses -> update(sessionsByUser, statuses))
+        .doAfterTerminate(() -> {
+          //removed only after check, so calls with the same session during check are coalesced too
+          batch.forEach(task -> tasks.remove(task.session.getId(), task));
+          permits.release();
         })
-        .toBlocking().single();
+        .subscribe(res -> {},
+            throwable -> log.error("Error during session check", throwable));
   }
 
-  @RequiredArgsConstructor
-  private class Consumer implements Runnable {
-    private final Queue<Session> queue;
+  /**
+   * Users with status check in flight (e.g. started by another batch for other session of the same user) join it,
+   * others are checked by one bulk call. Input of bulk call is complete before its users are registered as in flight,
+   * so batch that joins one of them never starts the call with partial input
+   */
+  private Observable<Map<String, Boolean>> checkStatuses(String identityProvider, Map<String, AuthInput> inputs) {
+    final List<Observable<Map.Entry<String, Boolean>>> statuses = new ArrayList<>();
+    final Map<String, AuthInput> called = new HashMap<>();
+    inputs.forEach((userId, input) -> {
+      final Observable<Boolean> running = userChecks.join(identityProvider + ':' + userId);
+      if (running != null)
+        statuses.add(status(userId, running));
+      else
+        called.put(userId, input);
+    });
+    if (!called.isEmpty()) {
+      final Map<String, AuthInput> input = Collections.unmodifiableMap(called);
+      final Observable<Map<String, Boolean>> bulk =
+          Observable.defer(() -> authProviders.get(identityProvider).checkUserStatuses(input)).cache();
+      //user registered by concurrent batch meanwhile is checked by both calls, its result is taken from that batch
+      input.keySet().forEach(userId -> statuses.add(status(userId, userChecks.execute(identityProvider + ':' + userId,
+          () -> bulk.flatMap(result -> result.containsKey(userId) ? Observable.just(result.get(userId)) : Observable.empty())))));
+    }
+    return Observable.merge(statuses).toMap(Map.Entry::getKey, Map.Entry::getValue);
+  }
+
+  private static Observable<Map.Entry<String, Boolean>> status(String userId, Observable<Boolean> status) {
+    return status.map(userNotBlocked -> new AbstractMap.SimpleImmutableEntry<>(userId, userNotBlocked));
+  }
+
+  private Map<String, AuthInput> toInputs(List<CheckTask> batch, Map<String, List<String>> sessionsByUser) {
+    final Map<String, AuthInput> inputs = new HashMap<>();
+    for (CheckTask task : batch) {
+      try {
+        final Map<String, Object> userInfo = tokenCacheService.extractUserInfo(task.session);
+        final String userId = userInfo.get(TokenProcessor.JWT_SUB).toString();
+        sessionsByUser.computeIfAbsent(userId, key -> new ArrayList<>()).add(task.session.getId());
+        inputs.computeIfAbsent(userId, key -> toInput(task.session, userInfo));
+      } catch (Exception e) {
+        log.error("Session check skipped, user info is not valid for session " + task.session.getId(), e);
+      }
+    }
+    return inputs;
+  }
+
+  private Observable<Boolean> update(Map<String, List<String>> sessionsByUser, Map<String, Boolean> statuses) {
+    final List<String> blocked = new ArrayList<>();
+    final List<String> active = new ArrayList<>();
+    statuses.forEach((userId, userNotBlocked) -> {
+      final List<String> sessionIds = sessionsByUser.get(userId);
+      if (sessionIds != null)
+        (userNotBlocked ? active : blocked).addAll(sessionIds);
+    });
+    final Date now = new Date();
+    Observable<Boolean> result = Observable.empty();
+    if (!blocked.isEmpty())
+      result = result.mergeWith(sessionService.invalidateSessions(blocked, now)
+          .doOnNext(res -> processed.add(blocked.size())));
+    if (!active.isEmpty())
+      result = result.mergeWith(sessionService.updateCheckDates(active, now)
+          .doOnNext(res -> processed.add(active.size())));
+    return result;
+  }
+
+  private static AuthInput toInput(Session session, Map<String, Object> userInfo) {
+    Map<String, String> data = userInfo.entrySet().stream()
+        .collect(Collectors.toMap(entry -> entry.getKey(), entry -> entry.getValue().toString()));
+    return AuthInput.builder().relyingParty(session.getAuthClient()).data(data).build();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = new ArrayList<>(Arrays.asList(
+        new Metric<>("session.check.queue.depth", tasks.size()),
+        new Metric<>("session.check.in_flight", permits == null ? 0 : concurrency - permits.availablePermits()),
+        new Metric<>("session.check.coalesced", coalesced.sum()),
+        new Metric<>("session.check.dropped", dropped.sum()),
+        new Metric<>("session.check.processed", processed.sum()),
+        new Metric<>("session.check.batches", batches.sum())));
+    result.addAll(userChecks.metrics("single_flight.user_status"));
+    providerStats.forEach((provider, stats) -> result.addAll(stats.metrics("session.check.provider." + provider)));
+    return result;
+  }
+
+  private class Dispatcher implements Runnable {
 
     @Override
     public void run() {
-      Session checkTask;
-      while (true && !Thread.currentThread().isInterrupted()) {
+      while (!Thread.currentThread().isInterrupted()) {
         try {
-          checkTask = queue.poll();
-          if(checkTask != null)
-            process(checkTask);
-          else
-            Thread.sleep(100);
+          collectDue().forEach((identityProvider, due) -> {
+            for (int from = 0; from < due.size(); from += batchSize)
+              dispatch(identityProvider, due.subList(from, Math.min(from + batchSize, due.size())));
+          });
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
         } catch (Exception e) {
-          log.error("Error during session check", e);
+          //dispatcher is the only thread that starts checks, so it must survive any failure
+          log.error("Error during session check dispatching", e);
         }
       }
     }
+
+    /**
+     * Waits for the nearest due check and then for others during batch window
+     * @return due checks by identity provider
+     */
+    private Map<String, List<CheckTask>> collectDue() throws InterruptedException {
+      final List<CheckTask> due = new ArrayList<>();
+      due.add(queue.take());
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindow);
+      while (due.size() < batchSize) {
+        final CheckTask task = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (task == null)
+          break;
+        due.add(task);
+      }
+      final Map<String, List<CheckTask>> dueByProvider = new HashMap<>();
+      for (CheckTask task : due) {
+        if (hasProvider(task.session))
+          dueByProvider.computeIfAbsent(task.session.getIdentityProvider(), key -> new ArrayList<>()).add(task);
+        else
+          skip(task);
+      }
+      return dueByProvider;
+    }
+
+    private void skip(CheckTask task) {
+      log.warn("Session check skipped, unknown identity provider {} of session {}",
+          task.session.getIdentityProvider(), task.session.getId());
+      tasks.remove(task.session.getId(), task);
+      dropped.increment();
+    }
+
+    private void dispatch(String identityProvider, List<CheckTask> batch) {
+      try {
+        permits.acquire();
+      } catch (InterruptedException e) {
+        batch.forEach(task -> tasks.remove(task.session.getId(), task));
+        Thread.currentThread().interrupt();
+        return;
+      }
+      batches.increment();
+      try {
+        check(identityProvider, batch);
+      } catch (Exception e) {
+        log.error("Error during session check", e);
+        batch.forEach(task -> tasks.remove(task.session.getId(), task));
+        permits.release();
+      }
+    }
+  }
+
+  @RequiredArgsConstructor
+  private static class CheckTask implements Delayed {
+    private final Session session;
+    private final long dueTime;
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(dueTime, ((CheckTask) other).dueTime);
+    }
   }
 }
@@ -0,0 +1,216 @@
+package ru.ratauth.server.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import ru.ratauth.entities.AuthClient;
+import ru.ratauth.entities.RelyingParty;
+import ru.ratauth.server.secutiry.MacContextCache;
+import ru.ratauth.server.utils.MetricUtils;
+import ru.ratauth.services.ClientService;
+import rx.Observable;
+import rx.functions.Func0;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * In-memory snapshot of all clients, so requests do not hit client storage.
+ * Snapshot is immutable and replaced as a whole every refresh_interval or by {@link #refresh()}.
+ * Clients missing in snapshot (e.g. created after last refresh or storage doesn't support loading of all clients)
+ * are loaded from storage and added to snapshot, not found names are cached for negative_cache_ttl.
+ * If storage doesn't support loading of all clients, clients loaded on demand are expired every refresh_interval.
+ * Crypto contexts of secrets that are changed or dropped by refresh are evicted from {@link MacContextCache}
+ * @since 18/10/26
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class ClientRegistry implements PublicMetrics {
+  private final ClientService clientService;
+  private final MacContextCache macContextCache;
+
+  @Value("${auth.client.refresh_interval:300}")
+  private Integer refreshInterval;//final
+  @Value("${auth.client.negative_cache_size:10000}")
+  private Integer negativeCacheSize;//final
+  @Value("${auth.client.negative_cache_ttl:60}")
+  private Integer negativeCacheTTL;//final
+
+  private volatile Snapshot snapshot = new Snapshot(ImmutableMap.of(), ImmutableMap.of(), 0);
+  /**
+   * names of clients and relying parties that were not found in storage
+   */
+  private Cache<String, Boolean> notFound;
+  private final LongAdder storeReads = new LongAdder();
+  private final LongAdder refreshFailures = new LongAdder();
+  /**
+   * storage doesn't support loading of all clients
+   */
+  private volatile boolean onDemand;
+  private ScheduledExecutorService executorService;
+
+  @PostConstruct
+  public void init() {
+    notFound = CacheBuilder.newBuilder()
+        .maximumSize(negativeCacheSize)
+        .expireAfterWrite(negativeCacheTTL, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+    refresh();
+    executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "client-registry-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executorService.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    executorService.shutdownNow();
+  }
+
+  /**
+   * @param name unique name
+   * @return observable of relying party or Observable.empty if not found
+   */
+  public Observable<RelyingParty> getRelyingParty(String name) {
+    final RelyingParty relyingParty = snapshot.relyingParties.get(name);
+    if (relyingParty != null)
+      return Observable.just(relyingParty);
+    return load(Kind.RELYING_PARTY, name, () -> clientService.getRelyingParty(name));
+  }
+
+  /**
+   * @param name unique name
+   * @return observable of client or Observable.empty if not found
+   */
+  public Observable<AuthClient> getClient(String name) {
+    final AuthClient client = snapshot.clients.get(name);
+    if (client != null)
+      return Observable.just(client);
+    return load(Kind.CLIENT, name, () -> clientService.getClient(name));
+  }
+
+  /**
+   * Reloads all clients from storage and drops negative cache. Could be used as invalidation hook on clients change
+   */
+  public synchronized void refresh() {
+    try {
+      final List<AuthClient> loaded = clientService.getClients().toList().toBlocking().single();
+      final Map<String, AuthClient> clients = new HashMap<>();
+      final Map<String, RelyingParty> relyingParties = new HashMap<>();
+      loaded.forEach(client -> {
+        clients.put(client.getName(), client);
+        if (client instanceof RelyingParty)
+          relyingParties.put(client.getName(), (RelyingParty) client);
+      });
+      final Snapshot previous = snapshot;
+      snapshot = new Snapshot(ImmutableMap.copyOf(relyingParties), ImmutableMap.copyOf(clients), System.currentTimeMillis());
+      notFound.invalidateAll();
+      evictSecrets(previous, clients);
+      log.info("Client registry refreshed, {} clients loaded", clients.size());
+    } catch (UnsupportedOperationException e) {
+      //clients loaded on demand are dropped, so they are reloaded with changes made since their load
+      final Snapshot previous = snapshot;
+      snapshot = new Snapshot(ImmutableMap.of(), ImmutableMap.of(), 0);
+      notFound.invalidateAll();
+      evictSecrets(previous, snapshot.clients);
+      if (!onDemand)
+        log.warn("Client storage doesn't support loading of all clients, registry is populated on demand");
+      onDemand = true;
+    } catch (Exception e) {
+      refreshFailures.increment();
+      log.error("Client registry refresh failed, previous snapshot is used", e);
+    }
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    final Snapshot current = snapshot;
+    Collection<Metric<?>> result = MetricUtils.cacheMetrics("client_not_found", notFound);
+    result.add(new Metric<>("client_registry.clients", current.clients.size()));
+    result.add(new Metric<>("client_registry.relying_parties", current.relyingParties.size()));
+    result.add(new Metric<>("client_registry.refresh.age",
+        current.loaded == 0 ? -1 : TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - current.loaded)));
+    result.add(new Metric<>("client_registry.refresh.failures", refreshFailures.sum()));
+    result.add(new Metric<>("client_registry.store_reads", storeReads.sum()));
+    return result;
+  }
+
+  private <T extends AuthClient> Observable<T> load(Kind kind, String name, Func0<Observable<T>> storeRead) {
+    final String key = kind.name() + ':' + name;
+    if (notFound.getIfPresent(key) != null)
+      return Observable.empty();
+    return Observable.defer(() -> {
+      storeReads.increment();
+      return storeRead.call();
+    })
+        .take(1)
+        .doOnNext(client -> remember(kind, name, client))
+        .switchIfEmpty(Observable.defer(() -> {
+          notFound.put(key, Boolean.TRUE);
+          return Observable.empty();
+        }));
+  }
+
+  private synchronized void remember(Kind kind, String name, AuthClient client) {
+    final Snapshot current = snapshot;
+    if (kind == Kind.RELYING_PARTY)
+      snapshot = new Snapshot(with(current.relyingParties, name, (RelyingParty) client), current.clients, current.loaded);
+    else
+      snapshot = new Snapshot(current.relyingParties, with(current.clients, name, client), current.loaded);
+  }
+
+  /**
+   * Evicts crypto contexts of previous snapshot clients whose secret is changed or which are not in snapshot anymore
+   */
+  private void evictSecrets(Snapshot previous, Map<String, AuthClient> clients) {
+    Stream.concat(previous.relyingParties.values().stream(), previous.clients.values().stream())
+        .filter(client -> client.getSecret() != null)
+        .filter(client -> !Objects.equals(client.getSecret(), secret(clients.get(client.getName()))))
+        .forEach(client -> macContextCache.invalidate(client.getSecret()));
+  }
+
+  private static String secret(AuthClient client) {
+    return client == null ? null : client.getSecret();
+  }
+
+  private static <T> ImmutableMap<String, T> with(ImmutableMap<String, T> map, String name, T value) {
+    final Map<String, T> result = new HashMap<>(map);
+    result.put(name, value);
+    return ImmutableMap.copyOf(result);
+  }
+
+  private enum Kind {
+    RELYING_PARTY, CLIENT
+  }
+
+  @RequiredArgsConstructor
+  private static class Snapshot {
+    private final ImmutableMap<String, RelyingParty> relyingParties;
+    private final ImmutableMap<String, AuthClient> clients;
+    /**
+     * time of last full load, 0 if clients were never loaded
+     */
+    private final long loaded;
+  }
+}
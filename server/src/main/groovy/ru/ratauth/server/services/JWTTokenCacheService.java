@@ -1,46 +1,219 @@
 package ru.ratauth.server.services;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Service;
 import ru.ratauth.entities.*;
 import ru.ratauth.server.secutiry.TokenProcessor;
+import ru.ratauth.server.utils.MetricUtils;
+import ru.ratauth.server.utils.SingleFlight;
 import rx.Observable;
+import rx.schedulers.Schedulers;
 
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Two level idToken cache: in-process L1 keyed by (access token, client) and persistent
+ * {@link ru.ratauth.services.TokenCacheService} as L2. New idToken is signed only if both levels missed,
+ * result is written back to L2 asynchronously. Without L2 implementation idTokens are cached in L1 only.
+ * Since every caller validates session before asking for idToken, L1 is not evicted on session invalidation.
  * @author mgorelikov
  * @since 19/02/16
  */
+@Slf4j
 @Service
 @RequiredArgsConstructor(onConstructor = @__(@Autowired))
-public class JWTTokenCacheService implements TokenCacheService {
+public class JWTTokenCacheService implements TokenCacheService, SessionInvalidationListener, PublicMetrics {
   private final TokenProcessor tokenProcessor;
+  /**
+   * processors by signature algorithm name
+   */
+  private final Map<String, TokenProcessor> tokenProcessors;
+  /**
+   * provided only by persistence modules that store idTokens
+   */
+  @Autowired(required = false)
+  private ru.ratauth.services.TokenCacheService persistentTokenCache;
 
   @Value("${auth.master_secret}")
   private String masterSecret;//final
+  @Value("${auth.session.user_info_cache_size:100000}")
+  private Integer userInfoCacheSize;//final
+  @Value("${auth.session.user_info_cache_ttl:3600}")
+  private Integer userInfoCacheTTL;//final
+  @Value("${auth.token.id_token_cache_size:100000}")
+  private Integer idTokenCacheSize;//final
+  @Value("${auth.token.id_token_cache_ttl:3600}")
+  private Integer idTokenCacheTTL;//final
+
+  /**
+   * verified session.userInfo claims by session id
+   */
+  private Cache<String, VerifiedUserInfo> userInfoCache;
+  /**
+   * L1 cache of signed idTokens by access token and client name
+   */
+  private Cache<String, TokenCache> idTokenCache;
+  private final LongAdder persistentHits = new LongAdder();
+  private final LongAdder persistentMisses = new LongAdder();
+  private final LongAdder signed = new LongAdder();
+  /**
+   * concurrent L1 misses of the same idToken
+   */
+  private final SingleFlight<String, TokenCache> idTokenLoads = new SingleFlight<>();
+
+  @PostConstruct
+  public void init() {
+    userInfoCache = CacheBuilder.newBuilder()
+        .maximumSize(userInfoCacheSize)
+        .expireAfterWrite(userInfoCacheTTL, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+    idTokenCache = CacheBuilder.newBuilder()
+        .maximumSize(idTokenCacheSize)
+        .expireAfterWrite(idTokenCacheTTL, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+  }
 
   @Override
   public Observable<TokenCache> getToken(Session session, AuthClient authClient, AuthEntry authEntry) {
     final Token token = authEntry.getLatestToken().get();
-    Map<String,Object> tokenInfo = extractUserInfo(session.getUserInfo());
-    return Observable.just(TokenCache.builder()
+    final String key = cacheKey(token.getToken(), authClient.getName());
+    final TokenCache cached = idTokenCache.getIfPresent(key);
+    if (cached != null && isAlive(token))
+      return Observable.just(cached);
+    return idTokenLoads.execute(key, () -> loadPersistent(token.getToken(), authClient.getName())
+        .switchIfEmpty(Observable.defer(() -> Observable.just(createToken(session, authClient, authEntry, token))
+            .doOnNext(this::storePersistent)))
+        .doOnNext(tokenCache -> {
+          if (isAlive(token))
+            idTokenCache.put(key, tokenCache);
+        }));
+  }
+
+  private TokenCache createToken(Session session, AuthClient authClient, AuthEntry authEntry, Token token) {
+    signed.increment();
+    Map<String,Object> tokenInfo = extractUserInfo(session);
+    final TokenProcessor idTokenProcessor = getProcessor(authClient);
+    return TokenCache.builder()
         .created(new Date())
         .session(session.getId())
         .token(token.getToken())
         .client(authClient.getName())
-        .idToken(tokenProcessor.createToken(authEntry.getRelyingParty(),
+        .idToken(idTokenProcessor.createToken(authEntry.getRelyingParty(),
             authClient.getSecret(), token.getToken(), token.getCreated(), token.getExpiresIn(),
             extractAudience(authEntry.getScopes()), authEntry.getScopes(),
-          tokenInfo.get(TokenProcessor.JWT_SUB).toString(), tokenProcessor.filterUserInfo(tokenInfo)
-            )).build());
+          tokenInfo.get(TokenProcessor.JWT_SUB).toString(), idTokenProcessor.filterUserInfo(tokenInfo)
+            )).build();
+  }
+
+  private TokenProcessor getProcessor(AuthClient authClient) {
+    final SignatureAlgorithm algorithm = authClient.getIdTokenSignatureAlgorithm() == null ?
+        SignatureAlgorithm.HS256 : authClient.getIdTokenSignatureAlgorithm();
+    final TokenProcessor processor = tokenProcessors.get(algorithm.name());
+    if (processor == null)
+      throw new IllegalStateException("Token processor not found for algorithm " + algorithm);
+    return processor;
+  }
+
+  /**
+   * Persistent cache is optimization only, so its failures just lead to new idToken signing
+   */
+  private Observable<TokenCache> loadPersistent(String token, String client) {
+    if (persistentTokenCache == null)
+      return Observable.empty();
+    return persistentTokenCache.get(token, client)
+        .filter(tokenCache -> tokenCache != null && tokenCache.getIdToken() != null)
+        .take(1)
+        .doOnNext(tokenCache -> persistentHits.increment())
+        .onErrorResumeNext(throwable -> {
+          log.warn("Persistent token cache read failed", throwable);
+          return Observable.empty();
+        })
+        .switchIfEmpty(Observable.defer(() -> {
+          persistentMisses.increment();
+          return Observable.empty();
+        }));
+  }
+
+  private void storePersistent(TokenCache tokenCache) {
+    if (persistentTokenCache == null)
+      return;
+    persistentTokenCache.create(tokenCache)
+        .subscribeOn(Schedulers.io())
+        .subscribe(res -> {}, throwable -> log.warn("Persistent token cache write failed", throwable));
   }
 
   @Override
   public Map<String, Object> extractUserInfo(String jwtToken) {
     return tokenProcessor.extractInfo(jwtToken, masterSecret);
   }
+
+  @Override
+  public Map<String, Object> extractUserInfo(Session session) {
+    if (session.getId() == null)
+      return extractUserInfo(session.getUserInfo());
+    final String signature = extractSignature(session.getUserInfo());
+    final long now = System.currentTimeMillis();
+    final VerifiedUserInfo cached = userInfoCache.getIfPresent(session.getId());
+    if (cached != null && cached.signature.equals(signature) && cached.expiresIn > now)
+      return cached.claims;
+
+    final Map<String, Object> claims = Collections.unmodifiableMap(extractUserInfo(session.getUserInfo()));
+    final long expiresIn = session.getExpiresIn() == null ? Long.MAX_VALUE : session.getExpiresIn().getTime();
+    if (expiresIn > now)
+      userInfoCache.put(session.getId(), new VerifiedUserInfo(signature, claims, expiresIn));
+    return claims;
+  }
+
+  @Override
+  public void onSessionInvalidated(String sessionId, Date blocked) {
+    userInfoCache.invalidate(sessionId);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = MetricUtils.cacheMetrics("user_info", userInfoCache);
+    result.addAll(MetricUtils.cacheMetrics("id_token", idTokenCache));
+    result.add(new Metric<>("cache.id_token.persistent.hit", persistentHits.sum()));
+    result.add(new Metric<>("cache.id_token.persistent.miss", persistentMisses.sum()));
+    result.add(new Metric<>("cache.id_token.signed", signed.sum()));
+    result.addAll(idTokenLoads.metrics("single_flight.id_token"));
+    return result;
+  }
+
+  private static String cacheKey(String token, String client) {
+    return token + ':' + client;
+  }
+
+  private static boolean isAlive(Token token) {
+    return token.getExpiresIn() == null || token.getExpiresIn().getTime() > System.currentTimeMillis();
+  }
+
+  /**
+   * Signature part of jwt is a MAC of header and claims, so it is used as a cheap digest of the whole token
+   */
+  private static String extractSignature(String jwt) {
+    return jwt.substring(jwt.lastIndexOf('.') + 1);
+  }
+
+  @RequiredArgsConstructor
+  private static class VerifiedUserInfo {
+    private final String signature;
+    private final Map<String, Object> claims;
+    private final long expiresIn;
+  }
 }
@@ -6,18 +6,23 @@ import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 import ru.ratauth.entities.*;
 import ru.ratauth.entities.Status;
 import ru.ratauth.exception.AuthorizationException;
+import ru.ratauth.exception.BaseAuthServerException;
 import ru.ratauth.exception.ExpiredException;
+import ru.ratauth.exception.IdentifiedException;
 import ru.ratauth.interaction.*;
 import ru.ratauth.interaction.TokenType;
 import ru.ratauth.providers.auth.AuthProvider;
 import ru.ratauth.providers.auth.dto.AuthInput;
+import ru.ratauth.server.handlers.readers.ReadRequestException;
 import ru.ratauth.server.secutiry.OAuthSystemException;
+import ru.ratauth.utils.ExceptionUtils;
 import rx.Observable;
 
 import java.util.Date;
@@ -36,6 +41,13 @@ public class OpenIdAuthTokenService implements AuthTokenService {
   private final TokenCacheService tokenCacheService;
   private final AuthClientService clientService;
   private final SessionStatusChecker sessionStatusChecker;
+  private static final int MAX_EXCEPTION_DEPTH = 10;
+  private static final String INTERNAL_ERROR = "INTERNAL_ERROR";
+
+  @Value("${auth.check_token.batch_max_size:100}")
+  private Integer batchMaxSize;//final
+  @Value("${auth.check_token.batch_concurrency:16}")
+  private Integer batchConcurrency;//final
 
   @Override
   @SneakyThrows
@@ -59,28 +71,69 @@ public class OpenIdAuthTokenService implements AuthTokenService {
 
   @Override
   public Observable<CheckTokenResponse> checkToken(CheckTokenRequest oauthRequest) {
-    return authSessionService.getByValidToken(oauthRequest.getToken(), new Date())
-        .doOnNext(session -> sessionStatusChecker.checkAndUpdateSession(session))
-        .doOnNext(session -> checkSession(session))
-        .zipWith(loadRelyingParty(oauthRequest),
-            (session, client) -> new ImmutablePair<>(session, client))
+    return checkToken(oauthRequest.getToken(),
+        loadRelyingParty(oauthRequest.getClientId(), oauthRequest.getClientSecret(), oauthRequest.getExternalClientId()))
+        .doOnCompleted(() -> log.info("Check token succeed"));
+  }
+
+  @Override
+  public Observable<Observable<CheckTokenResult>> checkTokens(BatchCheckTokenRequest oauthRequest) {
+    if (oauthRequest.getTokens().size() > batchMaxSize)
+      return Observable.error(new ReadRequestException(ReadRequestException.ID.WRONG_REQUEST, "token"));
+    //requester is authenticated once for whole batch
+    return loadRelyingParty(oauthRequest.getClientId(), oauthRequest.getClientSecret(), oauthRequest.getExternalClientId())
+        .map(client -> Observable.from(oauthRequest.getTokens())
+            .flatMap(token -> checkToken(token, Observable.just(client))
+                .map(response -> CheckTokenResult.builder().token(token).response(response).build())
+                .onErrorReturn(throwable -> CheckTokenResult.builder().token(token).error(errorId(throwable)).build()),
+                batchConcurrency)
+            .doOnCompleted(() -> log.info("Batch check token succeed")));
+  }
+
+  private Observable<CheckTokenResponse> checkToken(String token, Observable<AuthClient> client) {
+    return loadValidSession(token)
+        .zipWith(client,
+            (session, authClient) -> new ImmutablePair<>(session, authClient))
         .flatMap(sessionClient -> {
-          //load idToken(jwt) from cache or create new
           AuthEntry entry = sessionClient.getLeft().getEntries().iterator().next();
+          //session of self-contained token has no user info, so idToken is not issued for it
+          if (sessionClient.getLeft().getUserInfo() == null)
+            return Observable.just(toCheckTokenResponse(entry, null, sessionClient.getRight().getName()));
+          //load idToken(jwt) from cache or create new
           return tokenCacheService.getToken(sessionClient.getLeft(), sessionClient.getRight(), entry)
-              .map(token -> new ImmutablePair<>(entry, token));
+              .map(idToken -> toCheckTokenResponse(entry, idToken.getIdToken(), idToken.getClient()));
         })
-        .map(entryToken -> {
-          AuthEntry entry = entryToken.getLeft();
-          Token token = entry.getTokens().iterator().next();
-          return CheckTokenResponse.builder()
-              .idToken(entryToken.getRight().getIdToken())
-              .clientId(entryToken.getRight().getClient())
-              .expiresIn(token.getExpiresIn().getTime())
-              .scopes(entry.getScopes())
-              .build();})
-        .switchIfEmpty(Observable.error(new AuthorizationException(AuthorizationException.ID.TOKEN_NOT_FOUND)))
-        .doOnCompleted(() -> log.info("Check token succeed"));
+        .switchIfEmpty(Observable.error(new AuthorizationException(AuthorizationException.ID.TOKEN_NOT_FOUND)));
+  }
+
+  private static CheckTokenResponse toCheckTokenResponse(AuthEntry entry, String idToken, String clientId) {
+    Token accessToken = entry.getTokens().iterator().next();
+    return CheckTokenResponse.builder()
+        .idToken(idToken)
+        .clientId(clientId)
+        .expiresIn(accessToken.getExpiresIn().getTime())
+        .scopes(entry.getScopes())
+        .build();
+  }
+
+  private static String errorId(Throwable throwable) {
+    final BaseAuthServerException exception =
+        ExceptionUtils.getThrowable(throwable, BaseAuthServerException.class, MAX_EXCEPTION_DEPTH);
+    if (exception instanceof IdentifiedException)
+      return ((IdentifiedException) exception).getId();
+    log.error("Batch check token error", throwable);
+    return INTERNAL_ERROR;
+  }
+
+  private Observable<Session> loadValidSession(String token) {
+    //self-contained token is checked by signature and session status only, since loading of the whole session
+    //for background check would cancel its benefit. So status of users with self-contained tokens is not polled
+    //from identity provider, they are blocked only by pushed user status or session and client invalidation
+    if (authSessionService.isSelfContained(token))
+      return authSessionService.getByValidSelfContainedToken(token, new Date());
+    return authSessionService.getByValidToken(token, new Date())
+        .doOnNext(session -> sessionStatusChecker.checkAndUpdateSession(session))
+        .doOnNext(session -> checkSession(session));
   }
 
   private void checkSession(Session session) {
@@ -121,14 +174,16 @@ public class OpenIdAuthTokenService implements AuthTokenService {
   /**
    * Loads and authenticate requester(authClient) and authClient identified by externalClientId
    *
-   * @param request input checkTokenRequest
+   * @param clientId requester name
+   * @param clientSecret requester password
+   * @param externalClientId optional client that token is checked for
    * @return requester or externalClientId in case it is defined in request
    */
-  private Observable<AuthClient> loadRelyingParty(CheckTokenRequest request) {
-    Observable<AuthClient> res = clientService.loadAndAuthClient(request.getClientId(), request.getClientSecret(), true);
-    if (!StringUtils.isEmpty(request.getExternalClientId()))
+  private Observable<AuthClient> loadRelyingParty(String clientId, String clientSecret, String externalClientId) {
+    Observable<AuthClient> res = clientService.loadAndAuthClient(clientId, clientSecret, true);
+    if (!StringUtils.isEmpty(externalClientId))
       //since we want only to authenticate requester
-      return res.zipWith(clientService.loadClient(request.getExternalClientId()),
+      return res.zipWith(clientService.loadClient(externalClientId),
           (client, externalClient) -> externalClient);
     else
       return res;
@@ -6,7 +6,7 @@ import org.springframework.stereotype.Service;
 import ru.ratauth.entities.AuthClient;
 import ru.ratauth.entities.RelyingParty;
 import ru.ratauth.exception.AuthorizationException;
-import ru.ratauth.services.ClientService;
+import ru.ratauth.server.secutiry.ClientCredentialsVerifier;
 import rx.Observable;
 
 /**
@@ -16,17 +16,23 @@ import rx.Observable;
 @Service
 @RequiredArgsConstructor(onConstructor = @__(@Autowired))
 public class OpenIdClientService implements AuthClientService {
-  private final ClientService clientService;
+  private final ClientRegistry clientRegistry;
+  private final ClientCredentialsVerifier credentialsVerifier;
 
   @Override
   public Observable<RelyingParty> loadRelyingParty(String name) {
-    return clientService.getRelyingParty(name)
+    return clientRegistry.getRelyingParty(name)
         .switchIfEmpty(Observable.error(new AuthorizationException(AuthorizationException.ID.CLIENT_NOT_FOUND)));
   }
 
   @Override
   public Observable<AuthClient> loadClient(String name) {
-    return clientService.getClient(name)
+    return clientRegistry.getClient(name)
         .switchIfEmpty(Observable.error(new AuthorizationException(AuthorizationException.ID.CLIENT_NOT_FOUND)));
   }
+
+  @Override
+  public Observable<Boolean> checkPassword(AuthClient client, String password) {
+    return credentialsVerifier.verify(client, password);
+  }
 }
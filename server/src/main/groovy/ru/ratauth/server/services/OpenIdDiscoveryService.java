@@ -0,0 +1,92 @@
+package ru.ratauth.server.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.ratauth.entities.SignatureAlgorithm;
+import ru.ratauth.interaction.AuthzResponseType;
+import ru.ratauth.interaction.GrantType;
+import ru.ratauth.server.secutiry.SigningKeyStore;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Provides public metadata for offline idToken verification by relying parties.
+ * Documents are static during server lifetime, so they are serialized once
+ * @since 18/10/26
+ */
+@Service
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class OpenIdDiscoveryService {
+  public static final String JWKS_PATH = "/.well-known/jwks.json";
+
+  private final SigningKeyStore signingKeyStore;
+  private final ObjectMapper jacksonObjectMapper;
+
+  @Value("${auth.token.issuer}")
+  private String issuer;//final
+  @Value("${auth.jwks.max_age:3600}")
+  private Integer maxAge;//final
+
+  private String jwks;
+  private String configuration;
+  private String cacheControl;
+
+  @PostConstruct
+  @SneakyThrows
+  public void init() {
+    jwks = jacksonObjectMapper.writeValueAsString(signingKeyStore.getPublicKeys().toJSONObject(true));
+    cacheControl = "public, max-age=" + maxAge;
+
+    Map<String, Object> config = new LinkedHashMap<>();
+    config.put("issuer", issuer);
+    config.put("authorization_endpoint", issuer + "/authorize");
+    config.put("token_endpoint", issuer + "/token");
+    config.put("jwks_uri", issuer + JWKS_PATH);
+    config.put("response_types_supported", names(AuthzResponseType.values()));
+    config.put("grant_types_supported", names(GrantType.values()));
+    config.put("subject_types_supported", Collections.singletonList("public"));
+    config.put("id_token_signing_alg_values_supported", Arrays.stream(SignatureAlgorithm.values())
+        .filter(signingKeyStore::supports)
+        .map(alg -> alg.name())
+        .collect(Collectors.toList()));
+    config.put("token_endpoint_auth_methods_supported", Collections.singletonList("client_secret_basic"));
+    configuration = jacksonObjectMapper.writeValueAsString(config);
+  }
+
+  private static List<String> names(Enum<?>[] values) {
+    return Arrays.stream(values)
+        .map(value -> value.name().toLowerCase())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @return public signing keys in JWK set format
+   */
+  public String getJwks() {
+    return jwks;
+  }
+
+  /**
+   * @return openid provider metadata
+   */
+  public String getConfiguration() {
+    return configuration;
+  }
+
+  /**
+   * @return Cache-Control header value for both documents
+   */
+  public String getCacheControl() {
+    return cacheControl;
+  }
+}
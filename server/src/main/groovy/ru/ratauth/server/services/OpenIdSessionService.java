@@ -1,21 +1,31 @@
 package ru.ratauth.server.services;
 
 
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.util.Base64URL;
 import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Service;
 import ru.ratauth.entities.*;
+import ru.ratauth.exception.AuthorizationException;
+import ru.ratauth.exception.ExpiredException;
 import ru.ratauth.providers.Fields;
 import ru.ratauth.providers.auth.dto.BaseAuthFields;
-import ru.ratauth.server.secutiry.OAuthIssuerImpl;
+import ru.ratauth.server.secutiry.TaggedOAuthIssuer;
+import ru.ratauth.server.secutiry.TaggedOAuthIssuer.Kind;
+import ru.ratauth.server.secutiry.TaggedOAuthIssuer.TagStatus;
 import ru.ratauth.server.secutiry.TokenProcessor;
-import ru.ratauth.server.secutiry.UUIDValueGenerator;
 import ru.ratauth.server.services.log.ActionLogger;
 import ru.ratauth.server.utils.DateUtils;
+import ru.ratauth.server.utils.SingleFlight;
+import ru.ratauth.services.SessionHintProvider;
 import ru.ratauth.services.SessionService;
 import rx.Observable;
 
+import java.text.ParseException;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
@@ -26,40 +36,73 @@ import java.util.*;
  */
 @Service
 @RequiredArgsConstructor(onConstructor = @__(@Autowired))
-public class OpenIdSessionService implements AuthSessionService {
+public class OpenIdSessionService implements AuthSessionService, PublicMetrics {
   private final SessionService sessionService;
   private final TokenProcessor tokenProcessor;
   private final TokenCacheService tokenCacheService;
-  private final OAuthIssuerImpl codeGenerator = new OAuthIssuerImpl(new UUIDValueGenerator());
+  private final TaggedOAuthIssuer codeGenerator;
   private final ActionLogger actionLogger;
+  private final SessionNearCache sessionNearCache;
+  private final RevocationFilter revocationFilter;
+  private final List<SessionInvalidationListener> invalidationListeners;
+  /**
+   * provided only by storages that route sessions by their values
+   */
+  @Autowired(required = false)
+  private SessionHintProvider hintProvider;
 
   @Value("${auth.master_secret}")
   private String masterSecret;//final
+  /**
+   * self-contained tokens of sessions not known as revoked are accepted without storage status check,
+   * unless revocation filter is incomplete
+   */
+  @Value("${auth.revocation.trust_self_contained:false}")
+  private Boolean trustSelfContained;//final
+  /**
+   * concurrent loads of session by the same access token
+   */
+  private final SingleFlight<String, Session> tokenLoads = new SingleFlight<>();
 
   public static final String RATAUTH = "ratauth";
+  private static final String JWT_EXP = "exp";
+  private static final String JWT_IAT = "iat";
+  private static final String JWT_SCOPE = "scope";
+  private static final String JWT_CLIENT_ID = "client_id";
+  /**
+   * session identifier claim of self-contained access token
+   */
+  public static final String JWT_SID = "sid";
 
   @Override
   public Observable<Session> initSession(RelyingParty relyingParty, Map<String, Object> userInfo, Set<String> scopes,
                                          String redirectUrl) {
     final LocalDateTime now = LocalDateTime.now();
-    return createSession(relyingParty, userInfo, scopes, redirectUrl, now, null);
+    return createSession(relyingParty, userInfo, scopes, redirectUrl, now, UUID.randomUUID().toString(), null);
   }
 
   @Override
   public Observable<Session> createSession(RelyingParty relyingParty, Map<String, Object> userInfo, Set<String> scopes,
                                            String redirectUrl) {
     final LocalDateTime now = LocalDateTime.now();
+    //identifier is assigned before values are issued, so they carry routing hint of session
+    final String sessionId = UUID.randomUUID().toString();
+    if (AccessTokenFormat.JWT == relyingParty.getAccessTokenFormat())
+      //self-contained token refers to session, so it can be issued only after session is saved
+      return createSession(relyingParty, userInfo, scopes, redirectUrl, now, sessionId, null)
+          .flatMap(session -> addToken(session, relyingParty).map(res -> session));
     final LocalDateTime tokenExpires = now.plus(relyingParty.getTokenTTL(), ChronoUnit.SECONDS);
     final Token token = Token.builder()
-        .token(codeGenerator.accessToken())
+        .token(codeGenerator.accessToken(DateUtils.fromLocal(tokenExpires), hint(sessionId)))
         .expiresIn(DateUtils.fromLocal(tokenExpires))
         .created(DateUtils.fromLocal(now))
         .build();
-    return createSession(relyingParty, userInfo, scopes, redirectUrl, now, token);
+    return createSession(relyingParty, userInfo, scopes, redirectUrl, now, sessionId, token);
   }
 
   private Observable<Session> createSession(RelyingParty relyingParty, Map<String, Object> userInfo, Set<String> scopes,
-                                            String redirectUrl, LocalDateTime now, Token token) {
+                                            String redirectUrl, LocalDateTime now, String sessionId, Token token) {
+    final String hint = hint(sessionId);
     final LocalDateTime sessionExpires = now.plus(relyingParty.getSessionTTL(), ChronoUnit.SECONDS);
     final LocalDateTime refreshExpires = now.plus(relyingParty.getRefreshTokenTTL(), ChronoUnit.SECONDS);
     final LocalDateTime authCodeExpires = now.plus(relyingParty.getCodeTTL(), ChronoUnit.SECONDS);
@@ -71,9 +114,9 @@ public class OpenIdSessionService implements AuthSessionService {
 
     final AuthEntry authEntry = AuthEntry.builder()
         .created(DateUtils.fromLocal(now))
-        .authCode(codeGenerator.authorizationCode())
+        .authCode(codeGenerator.authorizationCode(DateUtils.fromLocal(authCodeExpires), hint))
         .codeExpiresIn(DateUtils.fromLocal(authCodeExpires))
-        .refreshToken(codeGenerator.refreshToken())
+        .refreshToken(codeGenerator.refreshToken(DateUtils.fromLocal(refreshExpires), hint))
         .refreshTokenExpiresIn(DateUtils.fromLocal(refreshExpires))
         .scopes(scopes)
         .relyingParty(relyingParty.getName())
@@ -82,6 +125,7 @@ public class OpenIdSessionService implements AuthSessionService {
         .build();
     authEntry.addToken(token);
     final Session session = Session.builder()
+        .id(sessionId)
         .identityProvider(relyingParty.getIdentityProvider())
         .authClient(relyingParty.getName())
         .status(Status.ACTIVE)
@@ -95,12 +139,18 @@ public class OpenIdSessionService implements AuthSessionService {
         .doOnNext(actionLogger::addSessionInfo);
   }
 
+  private String hint(String sessionId) {
+    return hintProvider == null ? "" : hintProvider.hint(sessionId);
+  }
+
   @Override
   public Observable<Boolean> addToken(Session session, RelyingParty relyingParty) {
     final LocalDateTime now = LocalDateTime.now();
     final LocalDateTime tokenExpires = now.plus(relyingParty.getTokenTTL(), ChronoUnit.SECONDS);
     final Token token = Token.builder()
-        .token(codeGenerator.accessToken())
+        .token(AccessTokenFormat.JWT == relyingParty.getAccessTokenFormat() ?
+            createSelfContainedToken(session, relyingParty, now, tokenExpires) :
+            codeGenerator.accessToken(DateUtils.fromLocal(tokenExpires), hint(session.getId())))
         .expiresIn(DateUtils.fromLocal(tokenExpires))
         .created(DateUtils.fromLocal(now))
         .build();
@@ -108,16 +158,31 @@ public class OpenIdSessionService implements AuthSessionService {
         .doOnNext(subs -> session.getEntry(relyingParty.getName()).ifPresent(entry -> entry.addToken(token)));
   }
 
+  /**
+   * Creates access token signed by server secret, it carries only scopes, expiry, session id and client,
+   * user info is never exposed to token bearer
+   */
+  private String createSelfContainedToken(Session session, RelyingParty relyingParty,
+                                          LocalDateTime now, LocalDateTime tokenExpires) {
+    final Set<String> scopes = session.getEntry(relyingParty.getName())
+        .map(AuthEntry::getScopes)
+        .orElse(Collections.emptySet());
+    return tokenProcessor.createToken(relyingParty.getName(), masterSecret, codeGenerator.accessToken(),
+        DateUtils.fromLocal(now), DateUtils.fromLocal(tokenExpires),
+        Collections.emptySet(), scopes, null, Collections.singletonMap(JWT_SID, session.getId()));
+  }
+
   @Override
   public Observable<Session> addEntry(Session session, RelyingParty relyingParty, Set<String> scopes, String redirectUrl) {
     final LocalDateTime now = LocalDateTime.now();
     final LocalDateTime refreshExpires = now.plus(relyingParty.getRefreshTokenTTL(), ChronoUnit.SECONDS);
     final LocalDateTime authCodeExpires = now.plus(relyingParty.getCodeTTL(), ChronoUnit.SECONDS);
+    final String hint = hint(session.getId());
     final AuthEntry authEntry = AuthEntry.builder()
         .created(DateUtils.fromLocal(now))
-        .authCode(codeGenerator.authorizationCode())
+        .authCode(codeGenerator.authorizationCode(DateUtils.fromLocal(authCodeExpires), hint))
         .codeExpiresIn(DateUtils.fromLocal(authCodeExpires))
-        .refreshToken(codeGenerator.refreshToken())
+        .refreshToken(codeGenerator.refreshToken(DateUtils.fromLocal(refreshExpires), hint))
         .refreshTokenExpiresIn(DateUtils.fromLocal(refreshExpires))
         .scopes(scopes)
         .relyingParty(relyingParty.getName())
@@ -131,19 +196,182 @@ public class OpenIdSessionService implements AuthSessionService {
 
   @Override
   public Observable<Session> getByValidCode(String code, Date now) {
+    final TagStatus tagStatus = codeGenerator.verify(Kind.AUTH_CODE, code, now);
+    if (tagStatus.isRejected())
+      return rejected(tagStatus, ExpiredException.ID.AUTH_CODE_EXPIRED);
     return sessionService.getByValidCode(code, now)
         .doOnNext(actionLogger::addSessionInfo);
   }
 
   @Override
   public Observable<Session> getByValidRefreshToken(String token, Date now) {
+    final TagStatus tagStatus = codeGenerator.verify(Kind.REFRESH_TOKEN, token, now);
+    if (tagStatus.isRejected())
+      return rejected(tagStatus, ExpiredException.ID.REFRESH_TOKEN_EXPIRED);
     return sessionService.getByValidRefreshToken(token, now)
         .doOnNext(actionLogger::addSessionInfo);
   }
 
   @Override
   public Observable<Session> getByValidToken(String token, Date now) {
-    return sessionService.getByValidToken(token, now)
-        .doOnNext(actionLogger::addSessionInfo);
+    final TagStatus tagStatus = codeGenerator.verify(Kind.ACCESS_TOKEN, token, now);
+    if (tagStatus.isRejected())
+      return rejected(tagStatus, ExpiredException.ID.TOKEN_EXPIRED);
+    if (!sessionNearCache.isEnabled())
+      return tokenLoads.execute(token, () -> sessionService.getByValidToken(token, now))
+          .doOnNext(actionLogger::addSessionInfo);
+    final Session cached = sessionNearCache.get(token, now);
+    final RevocationFilter.Verdict verdict = cached == null ? null : revocationFilter.check(cached);
+    if (verdict == RevocationFilter.Verdict.REVOKED) {
+      sessionNearCache.invalidate(cached.getId());
+      return Observable.error(new AuthorizationException(AuthorizationException.ID.SESSION_BLOCKED));
+    }
+    //possibly revoked sessions are reloaded from storage, which checks session status itself
+    final Observable<Session> session = verdict == RevocationFilter.Verdict.NOT_REVOKED ? Observable.just(cached) :
+        tokenLoads.execute(token, () -> sessionService.getByValidToken(token, now)
+            .doOnNext(loaded -> sessionNearCache.put(token, loaded)));
+    return session.doOnNext(actionLogger::addSessionInfo);
+  }
+
+  /**
+   * Forged and malformed values are processed as not found ones, so storage contract is kept
+   */
+  private static Observable<Session> rejected(TagStatus tagStatus, ExpiredException.ID expiredId) {
+    if (TagStatus.EXPIRED == tagStatus)
+      return Observable.error(new ExpiredException(expiredId));
+    return Observable.empty();
+  }
+
+  /**
+   * Token is self-contained only if it has three parts of JWS compact form and its header is parsed,
+   * so opaque values never reach JWT parsing
+   */
+  @Override
+  public boolean isSelfContained(String token) {
+    if (token == null)
+      return false;
+    final int headerEnd = token.indexOf('.');
+    final int payloadEnd = token.indexOf('.', headerEnd + 1);
+    if (headerEnd <= 0 || payloadEnd < 0 || token.indexOf('.', payloadEnd + 1) >= 0)
+      return false;
+    try {
+      JWSHeader.parse(new Base64URL(token.substring(0, headerEnd)));
+      return true;
+    } catch (ParseException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public Observable<Session> getByValidSelfContainedToken(String token, Date now) {
+    final Map<String, Object> claims;
+    try {
+      claims = tokenProcessor.extractInfo(token, masterSecret);
+    } catch (Exception e) {
+      return Observable.error(new AuthorizationException(AuthorizationException.ID.TOKEN_NOT_FOUND));
+    }
+    final String sessionId = (String) claims.get(JWT_SID);
+    final Date expiresIn = (Date) claims.get(JWT_EXP);
+    if (sessionId == null || expiresIn == null)
+      return Observable.error(new AuthorizationException(AuthorizationException.ID.TOKEN_NOT_FOUND));
+    if (expiresIn.before(now))
+      return Observable.error(new ExpiredException(ExpiredException.ID.TOKEN_EXPIRED));
+    final RevocationFilter.Verdict verdict = revocationFilter.check(sessionId, (String) claims.get(JWT_CLIENT_ID),
+        (Date) claims.get(JWT_IAT));
+    if (verdict == RevocationFilter.Verdict.REVOKED)
+      return Observable.error(new AuthorizationException(AuthorizationException.ID.SESSION_BLOCKED));
+    if (verdict == RevocationFilter.Verdict.NOT_REVOKED && trustSelfContained && revocationFilter.isComplete())
+      return Observable.just(toSession(token, claims));
+    return isActive(sessionId, token, now)
+        .map(active -> {
+          if (!active)
+            throw new AuthorizationException(AuthorizationException.ID.SESSION_BLOCKED);
+          return toSession(token, claims);
+        });
+  }
+
+  /**
+   * Storages without compact status check are asked for the whole session by token value,
+   * since self-contained token is stored as access token of its session too
+   */
+  private Observable<Boolean> isActive(String sessionId, String token, Date now) {
+    return sessionService.isActive(sessionId, now)
+        .onErrorResumeNext(throwable -> {
+          if (!(throwable instanceof UnsupportedOperationException))
+            return Observable.error(throwable);
+          return sessionService.getByValidToken(token, now)
+              .map(session -> session.getStatus() != Status.BLOCKED && session.getExpiresIn().after(now))
+              .defaultIfEmpty(false);
+        });
+  }
+
+  /**
+   * Builds session projection from self-contained token. Projection has no user info,
+   * so it never replaces user info cached for the session
+   */
+  @SuppressWarnings("unchecked")
+  private static Session toSession(String token, Map<String, Object> claims) {
+    final String relyingParty = (String) claims.get(JWT_CLIENT_ID);
+    final Date expiresIn = (Date) claims.get(JWT_EXP);
+    final AuthEntry entry = AuthEntry.builder()
+        .relyingParty(relyingParty)
+        .scopes(new HashSet<>((Collection<String>) claims.getOrDefault(JWT_SCOPE, Collections.emptyList())))
+        .authType(AuthType.COMMON)
+        .build();
+    entry.addToken(Token.builder()
+        .token(token)
+        .created((Date) claims.get(JWT_IAT))
+        .expiresIn(expiresIn)
+        .build());
+    return Session.builder()
+        .id((String) claims.get(JWT_SID))
+        .authClient(relyingParty)
+        .status(Status.ACTIVE)
+        .expiresIn(expiresIn)
+        .entries(new HashSet<>(Collections.singletonList(entry)))
+        .build();
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSession(String sessionId, Date blocked) {
+    return sessionService.invalidateSession(sessionId, blocked)
+        .doOnNext(res -> invalidationListeners.forEach(listener -> listener.onSessionInvalidated(sessionId, blocked)));
+  }
+
+  @Override
+  public Observable<Boolean> invalidateForClient(String relyingParty, Date blocked) {
+    return sessionService.invalidateForClient(relyingParty, blocked)
+        .doOnNext(res -> invalidationListeners.forEach(listener -> listener.onClientInvalidated(relyingParty, blocked)));
+  }
+
+  @Override
+  public Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked) {
+    return sessionService.invalidateForUser(identityProvider, userId, blocked)
+        .doOnNext(sessionId -> invalidationListeners.forEach(listener -> listener.onSessionInvalidated(sessionId, blocked)));
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) {
+    //cached session with previous lastCheck would cause repeated status checks
+    return sessionService.updateCheckDate(sessionId, lastCheck)
+        .doOnNext(res -> sessionNearCache.invalidate(sessionId));
+  }
+
+  @Override
+  public Observable<Boolean> invalidateSessions(Collection<String> sessionIds, Date blocked) {
+    return sessionService.invalidateSessions(sessionIds, blocked)
+        .doOnNext(res -> sessionIds.forEach(sessionId ->
+            invalidationListeners.forEach(listener -> listener.onSessionInvalidated(sessionId, blocked))));
+  }
+
+  @Override
+  public Observable<Boolean> updateCheckDates(Collection<String> sessionIds, Date lastCheck) {
+    return sessionService.updateCheckDates(sessionIds, lastCheck)
+        .doOnNext(res -> sessionIds.forEach(sessionNearCache::invalidate));
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    return tokenLoads.metrics("single_flight.session_by_token");
   }
 }
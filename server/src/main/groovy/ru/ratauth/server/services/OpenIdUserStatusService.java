@@ -0,0 +1,111 @@
+package ru.ratauth.server.services;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import ru.ratauth.exception.AuthorizationException;
+import ru.ratauth.exception.InternalLogicException;
+import ru.ratauth.providers.auth.AuthProvider;
+import ru.ratauth.providers.auth.UserStatusListener;
+import rx.Observable;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Invalidates sessions of blocked users by events pushed from identity providers, so background status polling
+ * could be turned off or reduced to slow reconciliation by large check_interval.
+ * Every identity provider pushes events by its own secret auth.user_status.push_secrets.&lt;provider name&gt;,
+ * push is disabled for providers without secret. Events are rejected if session storage doesn't support
+ * invalidation by user
+ * @since 18/10/26
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class OpenIdUserStatusService implements UserStatusService, UserStatusListener, PublicMetrics, EnvironmentAware {
+  private static final String PUSH_SECRET_PREFIX = "auth.user_status.push_secrets.";
+
+  private final AuthSessionService sessionService;
+  private final Map<String, AuthProvider> authProviders;
+  private final LongAdder blockedUsers = new LongAdder();
+  private final LongAdder invalidatedSessions = new LongAdder();
+
+  private Environment environment;
+  /**
+   * push secrets by identity provider name
+   */
+  private Map<String, byte[]> pushSecrets;
+
+  @Override
+  public void setEnvironment(Environment environment) {
+    this.environment = environment;
+  }
+
+  @PostConstruct
+  public void init() {
+    final Map<String, byte[]> secrets = new HashMap<>();
+    authProviders.keySet().forEach(identityProvider -> {
+      final String secret = environment.getProperty(PUSH_SECRET_PREFIX + identityProvider);
+      if (StringUtils.hasText(secret))
+        secrets.put(identityProvider, secret.getBytes(StandardCharsets.UTF_8));
+    });
+    pushSecrets = Collections.unmodifiableMap(secrets);
+    log.info("Push of user status is enabled for identity providers {}", pushSecrets.keySet());
+  }
+
+  @Override
+  public Observable<Integer> pushUserBlocked(String identityProvider, String secret, String userId) {
+    if (!isAuthenticated(identityProvider, secret))
+      return Observable.error(new AuthorizationException(AuthorizationException.ID.CREDENTIALS_WRONG));
+    return onUserBlocked(identityProvider, userId, new Date());
+  }
+
+  @Override
+  public Observable<Integer> onUserBlocked(String identityProvider, String userId, Date blocked) {
+    return sessionService.invalidateForUser(identityProvider, userId, blocked)
+        .onErrorResumeNext(throwable -> {
+          if (!(throwable instanceof UnsupportedOperationException))
+            return Observable.error(throwable);
+          log.warn("Session storage doesn't support invalidation by user, blocking of user {} of {} is rejected",
+              userId, identityProvider);
+          return Observable.error(new InternalLogicException("Push of user status is not supported by session storage"));
+        })
+        .count()
+        .doOnNext(count -> {
+          blockedUsers.increment();
+          invalidatedSessions.add(count);
+          log.info("User {} of {} blocked, {} sessions invalidated", userId, identityProvider, count);
+        });
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    return Arrays.asList(
+        new Metric<>("user_status.blocked", blockedUsers.sum()),
+        new Metric<>("user_status.invalidated_sessions", invalidatedSessions.sum()));
+  }
+
+  /**
+   * Secret is checked against the provider named in request, so secret of one provider never blocks users of another
+   */
+  private boolean isAuthenticated(String identityProvider, String secret) {
+    final byte[] pushSecret = identityProvider == null ? null : pushSecrets.get(identityProvider);
+    return pushSecret != null && secret != null
+        && MessageDigest.isEqual(pushSecret, secret.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,266 @@
+package ru.ratauth.server.services;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import ru.ratauth.entities.AuthEntry;
+import ru.ratauth.entities.Session;
+import ru.ratauth.services.SessionService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory set of revoked sessions consulted before trusting cached or self-contained tokens.
+ * Keeps exact set of revoked session ids, per-client revocation timestamps and bloom filter of all revoked ids,
+ * which is used only once exact set has overflowed, so its positive answer means that storage must be asked.
+ * Filter is rebuilt from storage on startup and every rebuild_interval, revocations of sessions and clients
+ * made by other nodes are loaded every refresh_interval, local revocations are applied immediately.
+ * Filter is incomplete if storage can't load invalidated sessions, then it tracks only local revocations
+ * @since 18/10/26
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class RevocationFilter implements SessionInvalidationListener, PublicMetrics {
+  /**
+   * approximate size of exact set entry with 36 chars session id
+   */
+  private static final int ENTRY_BYTES = 200;
+  private final SessionService sessionService;
+
+  @Value("${auth.revocation.exact_max_size:100000}")
+  private Integer exactMaxSize;//final
+  @Value("${auth.revocation.expected_size:1000000}")
+  private Integer expectedSize;//final
+  @Value("${auth.revocation.fpp:0.001}")
+  private Double fpp;//final
+  @Value("${auth.revocation.retention:2678400}")
+  private Integer retention;//final
+  @Value("${auth.revocation.refresh_interval:60}")
+  private Integer refreshInterval;//final
+  @Value("${auth.revocation.rebuild_interval:3600}")
+  private Integer rebuildInterval;//final
+
+  private volatile State state;
+  /**
+   * guards replacement of state, so local revocations made during rebuild are not lost
+   */
+  private final Object stateLock = new Object();
+  private volatile boolean complete;
+  private final Map<String, Long> revokedClients = new ConcurrentHashMap<>();
+  private final Map<Verdict, LongAdder> verdicts = new EnumMap<>(Verdict.class);
+  private volatile Date lastRefresh;
+  private ScheduledExecutorService executorService;
+
+  @PostConstruct
+  public void init() {
+    for (Verdict verdict : Verdict.values())
+      verdicts.put(verdict, new LongAdder());
+    state = new State();
+    rebuild();
+    executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "revocation-filter-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executorService.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.SECONDS);
+    executorService.scheduleWithFixedDelay(this::rebuild, rebuildInterval, rebuildInterval, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    executorService.shutdownNow();
+  }
+
+  /**
+   * @param sessionId session identifier
+   * @param relyingParty client of session or token
+   * @param created creation date of session or token, null if unknown
+   * @return verdict, {@link Verdict#POSSIBLY_REVOKED} means that session status must be loaded from storage
+   */
+  public Verdict check(String sessionId, String relyingParty, Date created) {
+    final Verdict verdict = verdict(sessionId, relyingParty, created);
+    verdicts.get(verdict).increment();
+    return verdict;
+  }
+
+  /**
+   * @param session session loaded or restored from self-contained token
+   * @return verdict for session and all its entries
+   */
+  public Verdict check(Session session) {
+    Verdict verdict = check(session.getId(), session.getAuthClient(), session.getCreated());
+    if (verdict == Verdict.NOT_REVOKED && session.getEntries() != null)
+      for (AuthEntry entry : session.getEntries())
+        if (isRevokedClient(entry.getRelyingParty(), session.getCreated())) {
+          verdict = Verdict.REVOKED;
+          break;
+        }
+    return verdict;
+  }
+
+  private Verdict verdict(String sessionId, String relyingParty, Date created) {
+    final State current = state;
+    if (sessionId != null && current.exact.getIfPresent(sessionId) != null)
+      return Verdict.REVOKED;
+    if (isRevokedClient(relyingParty, created))
+      return Verdict.REVOKED;
+    if (sessionId != null && current.overflowed && current.mightContain(sessionId))
+      return Verdict.POSSIBLY_REVOKED;
+    return Verdict.NOT_REVOKED;
+  }
+
+  private boolean isRevokedClient(String relyingParty, Date created) {
+    if (relyingParty == null)
+      return false;
+    final Long revoked = revokedClients.get(relyingParty);
+    //sessions of unknown age are treated as created before client revocation
+    return revoked != null && (created == null || created.getTime() <= revoked);
+  }
+
+  /**
+   * @return false if revocations of other nodes are not known, so filter verdict must not replace storage check
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  @Override
+  public void onSessionInvalidated(String sessionId, Date blocked) {
+    synchronized (stateLock) {
+      state.add(sessionId);
+    }
+  }
+
+  @Override
+  public void onClientInvalidated(String relyingParty, Date blocked) {
+    revokedClients.merge(relyingParty, blocked.getTime(), Math::max);
+  }
+
+  /**
+   * Loads sessions invalidated by other nodes since last refresh
+   */
+  public void refresh() {
+    final Date since = lastRefresh;
+    if (since == null)
+      return;
+    final Date now = new Date();
+    try {
+      //invalidation date of other nodes could be a bit behind, so intervals overlap
+      final Date from = new Date(since.getTime() - TimeUnit.SECONDS.toMillis(refreshInterval));
+      final List<String> revoked = sessionService.getInvalidatedSessions(from, now).toList().toBlocking().single();
+      loadClients(from);
+      synchronized (stateLock) {
+        revoked.forEach(state::add);
+      }
+      lastRefresh = now;
+    } catch (Exception e) {
+      log.error("Revocation filter refresh failed", e);
+    }
+  }
+
+  /**
+   * Rebuilds filter from storage, so expired revocations are dropped from bloom filter
+   */
+  public void rebuild() {
+    final Date now = new Date();
+    try {
+      final Date from = new Date(now.getTime() - TimeUnit.SECONDS.toMillis(retention));
+      final State rebuilt = new State();
+      sessionService.getInvalidatedSessions(from, now)
+          .toBlocking().forEach(rebuilt::add);
+      loadClients(from);
+      synchronized (stateLock) {
+        //local revocations made during rebuild
+        state.exact.asMap().keySet().forEach(rebuilt::add);
+        state = rebuilt;
+      }
+      lastRefresh = now;
+      complete = true;
+      log.info("Revocation filter rebuilt, {} revoked sessions", rebuilt.exact.size());
+    } catch (UnsupportedOperationException e) {
+      log.warn("Session storage doesn't support loading of invalidated sessions, only local revocations are tracked " +
+          "and self-contained tokens are always checked by storage");
+    } catch (Exception e) {
+      log.error("Revocation filter rebuild failed", e);
+    }
+  }
+
+  private void loadClients(Date since) {
+    sessionService.getInvalidatedClients(since)
+        .toBlocking()
+        .forEach(clients -> clients.forEach((relyingParty, blocked) -> onClientInvalidated(relyingParty, blocked)));
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    final State current = state;
+    Collection<Metric<?>> result = new ArrayList<>();
+    result.add(new Metric<>("revocation.sessions", current.exact.size()));
+    result.add(new Metric<>("revocation.clients", revokedClients.size()));
+    result.add(new Metric<>("revocation.overflowed", current.overflowed ? 1 : 0));
+    result.add(new Metric<>("revocation.memory.exact", current.exact.size() * ENTRY_BYTES));
+    result.add(new Metric<>("revocation.memory.bloom", bloomBytes()));
+    verdicts.forEach((verdict, count) -> result.add(new Metric<>("revocation.verdict." + verdict.name().toLowerCase(), count.sum())));
+    return result;
+  }
+
+  /**
+   * Optimal bloom filter size, the same formula is used by guava
+   */
+  private long bloomBytes() {
+    return (long) (-expectedSize * Math.log(fpp) / (Math.log(2) * Math.log(2))) / 8;
+  }
+
+  public enum Verdict {
+    REVOKED, POSSIBLY_REVOKED, NOT_REVOKED
+  }
+
+  private class State {
+    private final Cache<String, Boolean> exact;
+    private final BloomFilter<CharSequence> bloom = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), expectedSize, fpp);
+    private volatile boolean overflowed;
+
+    State() {
+      exact = CacheBuilder.newBuilder()
+          .maximumSize(exactMaxSize)
+          .expireAfterWrite(retention, TimeUnit.SECONDS)
+          .removalListener(notification -> {
+            if (notification.getCause() == RemovalCause.SIZE)
+              overflowed = true;
+          })
+          .build();
+    }
+
+    void add(String sessionId) {
+      exact.put(sessionId, Boolean.TRUE);
+      //guava bloom filter is not thread-safe for writes
+      synchronized (bloom) {
+        bloom.put(sessionId);
+      }
+    }
+
+    boolean mightContain(String sessionId) {
+      synchronized (bloom) {
+        return bloom.mightContain(sessionId);
+      }
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package ru.ratauth.server.services;
+
+import java.util.Date;
+
+/**
+ * Callback for local caches that hold session derived data and must drop it once session is invalidated
+ * @since 18/10/26
+ */
+public interface SessionInvalidationListener {
+  /**
+   * Called after session was successfully invalidated in persistence layer
+   * @param sessionId session identifier
+   * @param blocked date of blocking
+   */
+  void onSessionInvalidated(String sessionId, Date blocked);
+
+  /**
+   * Called after all sessions of relying party were successfully invalidated in persistence layer
+   * @param relyingParty client unique name
+   * @param blocked date of blocking
+   */
+  default void onClientInvalidated(String relyingParty, Date blocked) {
+  }
+}
@@ -0,0 +1,191 @@
+package ru.ratauth.server.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import ru.ratauth.entities.AuthEntry;
+import ru.ratauth.entities.Session;
+import ru.ratauth.entities.Token;
+import ru.ratauth.server.utils.MetricUtils;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process cache of sessions loaded by access token for check_token. Session is cached as loaded by
+ * {@link ru.ratauth.services.SessionService#getByValidToken}, i.e. with single entry and token, and must not be modified.
+ * Entry lives until the earliest of token expiration, session expiration and near_cache_ttl (max staleness),
+ * cache is bounded by approximate size of entries in bytes.
+ * Entries are dropped on local session/client invalidation and on lastCheck update,
+ * changes made by other nodes are visible after near_cache_ttl
+ * @since 18/10/26
+ */
+@Component
+public class SessionNearCache implements SessionInvalidationListener, PublicMetrics {
+  private static final int ENTRY_OVERHEAD = 512;
+
+  @Value("${auth.session.near_cache_max_weight:134217728}")
+  private Long maxWeight;//final
+  @Value("${auth.session.near_cache_ttl:10}")
+  private Integer cacheTTL;//final
+
+  private Cache<String, CachedSession> cache;
+  /**
+   * cached tokens by session identifier
+   */
+  private final Map<String, Set<String>> tokensBySession = new ConcurrentHashMap<>();
+  /**
+   * sessions and clients invalidated during last near_cache_ttl, protects from caching of session
+   * that was loaded before its invalidation
+   */
+  private Cache<String, Boolean> invalidated;
+
+  @PostConstruct
+  public void init() {
+    cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxWeight)
+        .weigher((String token, CachedSession cached) -> cached.weight)
+        .expireAfterWrite(cacheTTL, TimeUnit.SECONDS)
+        .removalListener(this::onRemoval)
+        .recordStats()
+        .build();
+    invalidated = CacheBuilder.newBuilder()
+        .expireAfterWrite(cacheTTL, TimeUnit.SECONDS)
+        .build();
+  }
+
+  public boolean isEnabled() {
+    return cacheTTL > 0;
+  }
+
+  /**
+   * @param token access token value
+   * @param now current date
+   * @return cached session or null
+   */
+  public Session get(String token, Date now) {
+    final CachedSession cached = cache.getIfPresent(token);
+    if (cached == null)
+      return null;
+    if (cached.expiresIn <= now.getTime()) {
+      cache.invalidate(token);
+      return null;
+    }
+    return cached.session;
+  }
+
+  public void put(String token, Session session) {
+    if (session.getId() == null)
+      return;
+    tokensBySession.compute(session.getId(), (sessionId, tokens) -> {
+      final Set<String> result = tokens == null ? ConcurrentHashMap.newKeySet() : tokens;
+      result.add(token);
+      return result;
+    });
+    cache.put(token, new CachedSession(session, expiresIn(session), weigh(token, session)));
+    if (invalidated.getIfPresent(sessionKey(session.getId())) != null
+        || invalidated.getIfPresent(clientKey(session.getAuthClient())) != null)
+      cache.invalidate(token);
+  }
+
+  /**
+   * Drops cached tokens of session, e.g. after its lastCheck update
+   * @param sessionId session identifier
+   */
+  public void invalidate(String sessionId) {
+    final Set<String> tokens = tokensBySession.remove(sessionId);
+    if (tokens != null)
+      cache.invalidateAll(tokens);
+  }
+
+  @Override
+  public void onSessionInvalidated(String sessionId, Date blocked) {
+    invalidated.put(sessionKey(sessionId), Boolean.TRUE);
+    invalidate(sessionId);
+  }
+
+  @Override
+  public void onClientInvalidated(String relyingParty, Date blocked) {
+    invalidated.put(clientKey(relyingParty), Boolean.TRUE);
+    cache.asMap().entrySet().removeIf(entry -> relyingParty.equals(entry.getValue().session.getAuthClient())
+        || entry.getValue().session.getEntries().stream().anyMatch(it -> relyingParty.equals(it.getRelyingParty())));
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    Collection<Metric<?>> result = MetricUtils.cacheMetrics("session", cache);
+    result.add(new Metric<>("cache.session.indexed_sessions", tokensBySession.size()));
+    return result;
+  }
+
+  private void onRemoval(RemovalNotification<String, CachedSession> notification) {
+    //token is still cached by put of the same token, so it must stay indexed
+    if (notification.getCause() == RemovalCause.REPLACED)
+      return;
+    final String sessionId = notification.getValue().session.getId();
+    tokensBySession.computeIfPresent(sessionId, (key, tokens) -> {
+      tokens.remove(notification.getKey());
+      return tokens.isEmpty() ? null : tokens;
+    });
+  }
+
+  private long expiresIn(Session session) {
+    long result = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(cacheTTL);
+    if (session.getExpiresIn() != null)
+      result = Math.min(result, session.getExpiresIn().getTime());
+    for (AuthEntry entry : session.getEntries())
+      for (Token token : entry.getTokens())
+        if (token.getExpiresIn() != null)
+          result = Math.min(result, token.getExpiresIn().getTime());
+    return result;
+  }
+
+  /**
+   * Approximate retained size in bytes, strings are counted as two bytes per char
+   */
+  private static int weigh(String token, Session session) {
+    int chars = token.length() + length(session.getId()) + length(session.getUserInfo())
+        + length(session.getUserId()) + length(session.getAuthClient()) + length(session.getIdentityProvider());
+    for (AuthEntry entry : session.getEntries()) {
+      chars += length(entry.getRefreshToken()) + length(entry.getRelyingParty()) + length(entry.getRedirectUrl());
+      if (entry.getScopes() != null)
+        for (String scope : entry.getScopes())
+          chars += scope.length();
+    }
+    return ENTRY_OVERHEAD + 2 * chars;
+  }
+
+  private static int length(String value) {
+    return value == null ? 0 : value.length();
+  }
+
+  private static String sessionKey(String sessionId) {
+    return "session:" + sessionId;
+  }
+
+  private static String clientKey(String relyingParty) {
+    return "client:" + relyingParty;
+  }
+
+  private static class CachedSession {
+    private final Session session;
+    private final long expiresIn;
+    private final int weight;
+
+    CachedSession(Session session, long expiresIn, int weight) {
+      this.session = session;
+      this.expiresIn = expiresIn;
+      this.weight = weight;
+    }
+  }
+}
@@ -30,6 +30,14 @@ public interface TokenCacheService {
    * @return extracted user info
    */
   Map<String,Object> extractUserInfo(String jwtToken);
+
+  /**
+   * Extract user info from session.userInfo jwt signed by master_secret.
+   * Since userInfo never changes during session lifetime verified claims could be cached until session expiration
+   * @param session session that holds jwt
+   * @return extracted user info
+   */
+  Map<String,Object> extractUserInfo(Session session);
   /**
    * Just extract from scopes like 'some_resource_server.read,some_resource_server.write' audience 'some_resource_server'
    * @param scopes
@@ -0,0 +1,17 @@
+package ru.ratauth.server.services;
+
+import rx.Observable;
+
+/**
+ * @since 18/10/26
+ */
+public interface UserStatusService {
+  /**
+   * Handles user blocking event pushed by identity provider
+   * @param identityProvider unique name of identity provider
+   * @param secret push secret of auth server
+   * @param userId user identifier got from provider
+   * @return Observable of number of invalidated sessions or Observable.error if provider authentication failed
+   */
+  Observable<Integer> pushUserBlocked(String identityProvider, String secret, String userId);
+}
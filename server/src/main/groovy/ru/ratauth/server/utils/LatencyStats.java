@@ -0,0 +1,54 @@
+package ru.ratauth.server.utils;
+
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency counters of remote calls
+ * @since 18/10/26
+ */
+public class LatencyStats {
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+
+  public void record(long nanos) {
+    count.increment();
+    totalNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+  }
+
+  public void error() {
+    errors.increment();
+  }
+
+  public void timeout() {
+    timeouts.increment();
+  }
+
+  /**
+   * @param name metric name prefix
+   * @return count, mean and max latency in ms, errors and timeouts
+   */
+  public Collection<Metric<?>> metrics(String name) {
+    final long calls = count.sum();
+    Collection<Metric<?>> result = new ArrayList<>();
+    result.add(new Metric<>(name + ".count", calls));
+    result.add(new Metric<>(name + ".latency.mean", calls == 0 ? 0.0 : toMillis(totalNanos.sum()) / calls));
+    result.add(new Metric<>(name + ".latency.max", toMillis(maxNanos.get())));
+    result.add(new Metric<>(name + ".errors", errors.sum()));
+    result.add(new Metric<>(name + ".timeouts", timeouts.sum()));
+    return result;
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
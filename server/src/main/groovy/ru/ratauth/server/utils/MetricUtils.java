@@ -0,0 +1,34 @@
+package ru.ratauth.server.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Helpers for exposing internal counters through actuator's /metrics endpoint
+ * @since 18/10/26
+ */
+public class MetricUtils {
+
+  /**
+   * Converts guava cache statistics to actuator metrics
+   * @param name cache name, metrics will be prefixed by 'cache.{name}.'
+   * @param cache cache with recordStats enabled
+   * @return collection of size, hit/miss and eviction metrics
+   */
+  public static Collection<Metric<?>> cacheMetrics(String name, Cache<?, ?> cache) {
+    final CacheStats stats = cache.stats();
+    final String prefix = "cache." + name + ".";
+    Collection<Metric<?>> result = new ArrayList<>();
+    result.add(new Metric<>(prefix + "size", cache.size()));
+    result.add(new Metric<>(prefix + "hit", stats.hitCount()));
+    result.add(new Metric<>(prefix + "miss", stats.missCount()));
+    result.add(new Metric<>(prefix + "hit.ratio", stats.hitRate()));
+    result.add(new Metric<>(prefix + "miss.ratio", stats.missRate()));
+    result.add(new Metric<>(prefix + "evictions", stats.evictionCount()));
+    return result;
+  }
+}
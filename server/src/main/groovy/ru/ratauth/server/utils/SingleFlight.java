@@ -0,0 +1,143 @@
+package ru.ratauth.server.utils;
+
+import org.springframework.boot.actuate.metrics.Metric;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.subjects.AsyncSubject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent calls with the same key into one in-flight call, whose result is shared by all callers.
+ * Call is created by {@link #execute} and started by the first subscription, key is released once call terminates,
+ * so results are never reused by later calls. Key of call older than max age is given to the next caller
+ * and stale keys are swept every max age, so stuck call never blocks its key. Call itself is never failed
+ * by max age, callers that need a deadline apply their own timeout
+ * @param <K> key type
+ * @param <V> result type
+ * @since 18/10/26
+ */
+public class SingleFlight<K, V> {
+  public static final long DEFAULT_MAX_AGE_SECONDS = 10;
+
+  private final Map<K, Call<V>> inFlight = new ConcurrentHashMap<>();
+  private final long maxAge;
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder collapsed = new LongAdder();
+  private final LongAdder expired = new LongAdder();
+  private volatile long nextSweep;
+
+  public SingleFlight() {
+    this(DEFAULT_MAX_AGE_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param maxAge max duration of sharing of call result by its key
+   * @param unit unit of maxAge
+   */
+  public SingleFlight(long maxAge, TimeUnit unit) {
+    this.maxAge = unit.toMillis(maxAge);
+    this.nextSweep = System.currentTimeMillis() + this.maxAge;
+  }
+
+  /**
+   * @param key call key
+   * @param call factory of call, invoked synchronously and only if there is no call with the same key in flight
+   * @return shared result of call
+   */
+  public Observable<V> execute(K key, Func0<Observable<V>> call) {
+    calls.increment();
+    final long now = System.currentTimeMillis();
+    sweep(now);
+    final Call<V> existing = running(key, now);
+    if (existing != null) {
+      collapsed.increment();
+      return existing.result;
+    }
+    //call is bound after registration, so the factory is never invoked by caller that lost the race
+    final AsyncSubject<Observable<V>> source = AsyncSubject.create();
+    final AtomicReference<Call<V>> shared = new AtomicReference<>();
+    shared.set(new Call<>(now + maxAge, source.flatMap(observable -> observable)
+        //released before callers are notified, so caller that retries after result starts new call
+        .doOnTerminate(() -> inFlight.remove(key, shared.get()))
+        .cache()));
+    final Call<V> winner = inFlight.putIfAbsent(key, shared.get());
+    if (winner != null) {
+      collapsed.increment();
+      return winner.result;
+    }
+    try {
+      source.onNext(call.call());
+      source.onCompleted();
+    } catch (RuntimeException e) {
+      inFlight.remove(key, shared.get());
+      source.onError(e);
+    }
+    return shared.get().result;
+  }
+
+  /**
+   * Joins call in flight without starting new one, e.g. to exclude keys with running calls from a bulk call
+   * @param key call key
+   * @return shared result of call in flight or null if there is no call with the key
+   */
+  public Observable<V> join(K key) {
+    final Call<V> existing = running(key, System.currentTimeMillis());
+    if (existing == null)
+      return null;
+    calls.increment();
+    collapsed.increment();
+    return existing.result;
+  }
+
+  /**
+   * Releases keys of calls that outlived max age and were not asked again, races of concurrent sweeps are harmless
+   */
+  private void sweep(long now) {
+    if (now < nextSweep)
+      return;
+    nextSweep = now + maxAge;
+    inFlight.forEach((key, call) -> {
+      if (call.deadline <= now && inFlight.remove(key, call))
+        expired.increment();
+    });
+  }
+
+  private Call<V> running(K key, long now) {
+    final Call<V> existing = inFlight.get(key);
+    if (existing == null || existing.deadline > now)
+      return existing;
+    if (inFlight.remove(key, existing))
+      expired.increment();
+    return null;
+  }
+
+  /**
+   * @param name metric name prefix
+   * @return number of calls, number of calls that joined already running one and number of calls that outlived max age
+   */
+  public Collection<Metric<?>> metrics(String name) {
+    Collection<Metric<?>> result = new ArrayList<>();
+    result.add(new Metric<>(name + ".calls", calls.sum()));
+    result.add(new Metric<>(name + ".collapsed", collapsed.sum()));
+    result.add(new Metric<>(name + ".expired", expired.sum()));
+    result.add(new Metric<>(name + ".in_flight", inFlight.size()));
+    return result;
+  }
+
+  private static class Call<V> {
+    private final long deadline;
+    private final Observable<V> result;
+
+    Call(long deadline, Observable<V> result) {
+      this.deadline = deadline;
+      this.result = result;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package ru.ratauth.server.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel of expiration tasks. Scheduling is O(1), every tick touches only tasks of one bucket,
+ * tasks with deadline more than one revolution ahead stay in bucket and are checked once per revolution.
+ * Wheel is advanced by owner thread, tasks are executed by that thread too, failure of task is logged
+ * and does not affect other tasks
+ * @since 18/10/26
+ */
+@Slf4j
+public class TimingWheel {
+  private final long tickMillis;
+  private final List<Queue<Timeout>> buckets;
+  private final int mask;
+  /**
+   * last tick that is being processed or has been processed
+   */
+  private volatile long currentTick;
+
+  /**
+   * @param tickMillis duration of one tick
+   * @param size number of buckets, rounded up to power of two
+   * @param now current time in millis
+   */
+  public TimingWheel(long tickMillis, int size, long now) {
+    this.tickMillis = tickMillis;
+    final int buckets = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+    this.buckets = new ArrayList<>(buckets);
+    for (int i = 0; i < buckets; i++)
+      this.buckets.add(new ConcurrentLinkedQueue<>());
+    this.mask = buckets - 1;
+    this.currentTick = now / tickMillis;
+  }
+
+  /**
+   * Task scheduled concurrently with processing of its bucket could be fired one revolution later
+   * @param deadline time in millis
+   * @param task expiration task
+   */
+  public void schedule(long deadline, Runnable task) {
+    //rounded up, so task is due when its bucket is processed
+    final long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+    buckets.get((int) (tick & mask)).add(new Timeout(deadline, task));
+  }
+
+  /**
+   * Fires all tasks with deadline before now
+   * @param now current time in millis
+   * @return number of fired tasks, including failed ones
+   */
+  public int advance(long now) {
+    final long lastTick = now / tickMillis;
+    int fired = 0;
+    //after long pause every bucket is processed only once
+    final long firstTick = Math.max(currentTick + 1, lastTick - mask);
+    for (long tick = firstTick; tick <= lastTick; tick++) {
+      currentTick = tick;
+      final Queue<Timeout> bucket = buckets.get((int) (tick & mask));
+      final List<Timeout> pending = new ArrayList<>();
+      Timeout timeout;
+      while ((timeout = bucket.poll()) != null) {
+        if (timeout.deadline <= now) {
+          fire(timeout);
+          fired++;
+        } else {
+          pending.add(timeout);
+        }
+      }
+      bucket.addAll(pending);
+    }
+    return fired;
+  }
+
+  private static void fire(Timeout timeout) {
+    try {
+      timeout.task.run();
+    } catch (Exception e) {
+      log.error("Expiration task failed", e);
+    }
+  }
+
+  /**
+   * @return number of scheduled tasks, O(n) operation for metrics only
+   */
+  public int size() {
+    int size = 0;
+    for (Queue<Timeout> bucket : buckets)
+      size += bucket.size();
+    return size;
+  }
+
+  private static class Timeout {
+    private final long deadline;
+    private final Runnable task;
+
+    Timeout(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package ru.ratauth.server
+
+import com.nimbusds.jose.crypto.ECDSAVerifier
+import com.nimbusds.jose.crypto.RSASSAVerifier
+import com.nimbusds.jose.jwk.ECKey
+import com.nimbusds.jose.jwk.JWKSet
+import com.nimbusds.jose.jwk.RSAKey
+import com.nimbusds.jwt.SignedJWT
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.restdocs.payload.JsonFieldType
+import ru.ratauth.server.secutiry.TokenProcessor
+
+import static com.jayway.restassured.RestAssured.given
+import static org.hamcrest.Matchers.containsString
+import static org.hamcrest.Matchers.hasItems
+import static org.hamcrest.Matchers.not
+import static org.hamcrest.Matchers.hasKey
+import static org.springframework.restdocs.payload.PayloadDocumentation.fieldWithPath
+import static org.springframework.restdocs.payload.PayloadDocumentation.responseFields
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document
+
+/**
+ * @since 18/10/26
+ */
+class DiscoveryAPISpec extends BaseDocumentationSpec {
+  @Autowired
+  @Qualifier('RS256')
+  TokenProcessor rs256TokenProcessor
+  @Autowired
+  @Qualifier('ES256')
+  TokenProcessor es256TokenProcessor
+
+  def 'should publish public signing keys'() {
+    given:
+    def setup = given(this.documentationSpec)
+      .filter(document('jwks_succeed',
+      responseFields(
+        fieldWithPath('keys')
+          .description('public keys of auth server that can be used for idToken signature verification')
+          .type(JsonFieldType.ARRAY)
+      )))
+    when:
+    def result = setup
+      .when()
+      .get('.well-known/jwks.json')
+    then:
+    result
+      .then()
+      .statusCode(HttpStatus.OK.value())
+      .header(HttpHeaders.CACHE_CONTROL, containsString('max-age'))
+      .body('keys.alg', hasItems('RS256', 'ES256'))
+      .body('keys[0]', not(hasKey('d')))
+  }
+
+  def 'should publish openid provider configuration'() {
+    given:
+    def setup = given(this.documentationSpec)
+      .filter(document('openid_configuration_succeed'))
+    when:
+    def result = setup
+      .when()
+      .get('.well-known/openid-configuration')
+    then:
+    result
+      .then()
+      .statusCode(HttpStatus.OK.value())
+      .body('jwks_uri', containsString('/.well-known/jwks.json'))
+      .body('id_token_signing_alg_values_supported', hasItems('HS256', 'RS256', 'ES256'))
+  }
+
+  def 'should verify #algorithm idToken by published signing keys'() {
+    given:
+    def processor = algorithm == 'RS256' ? rs256TokenProcessor : es256TokenProcessor
+    def idToken = SignedJWT.parse(processor.createToken('mine', null, 'jti', new Date(), new Date() + 1,
+      [] as Set, ['rs.read'] as Set, 'user', [:]))
+    when:
+    def jwks = JWKSet.parse(given().when().get('.well-known/jwks.json').asString())
+    def key = jwks.getKeyByKeyId(idToken.header.keyID)
+    then:
+    idToken.header.algorithm.name == algorithm
+    idToken.verify(key instanceof RSAKey ? new RSASSAVerifier((RSAKey) key) : new ECDSAVerifier((ECKey) key))
+    where:
+    algorithm << ['RS256', 'ES256']
+  }
+}
@@ -7,13 +7,18 @@ import org.springframework.beans.factory.annotation.Value
 import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpStatus
 import org.springframework.restdocs.payload.JsonFieldType
+import ru.ratauth.exception.AuthorizationException
+import ru.ratauth.exception.BaseAuthServerException
+import ru.ratauth.exception.ExpiredException
 import ru.ratauth.interaction.AuthzResponseType
 import ru.ratauth.interaction.GrantType
 import ru.ratauth.server.configuration.PersistenceServiceStubConfiguration
+import ru.ratauth.server.handlers.readers.ReadRequestException
 
 import static com.jayway.restassured.RestAssured.given
 import static org.hamcrest.Matchers.equalToIgnoringCase
 import static org.hamcrest.Matchers.notNullValue
+import static org.hamcrest.Matchers.nullValue
 import static org.springframework.restdocs.headers.HeaderDocumentation.headerWithName
 import static org.springframework.restdocs.headers.HeaderDocumentation.requestHeaders
 import static org.springframework.restdocs.operation.preprocess.Preprocessors.preprocessResponse
@@ -31,6 +36,8 @@ import static org.springframework.restdocs.restassured.RestAssuredRestDocumentat
 class TokenAPISpec extends BaseDocumentationSpec {
   @Value('${server.port}')
   String port
+  @Value('${auth.check_token.batch_max_size:100}')
+  int batchMaxSize
   @Autowired
   ObjectMapper objectMapper
 
@@ -134,4 +141,180 @@ class TokenAPISpec extends BaseDocumentationSpec {
       .body("client_id", equalToIgnoringCase(PersistenceServiceStubConfiguration.CLIENT_NAME))
   }
 
+  def 'should check token issued by implicit flow'() {
+    given:
+    def location = given(this.documentationSpec)
+      .accept(ContentType.URLENC)
+      .given()
+      .formParam('response_type', AuthzResponseType.TOKEN.name())
+      .formParam('scope', 'read')
+      .formParam('username', 'login')
+      .formParam('password', 'password')
+      .header(IntegrationSpecUtil.createAuthHeaders(PersistenceServiceStubConfiguration.CLIENT_NAME,
+      PersistenceServiceStubConfiguration.PASSWORD))
+      .when()
+      .post("authorize")
+      .then()
+      .statusCode(HttpStatus.FOUND.value())
+      .extract()
+      .header(HttpHeaders.LOCATION)
+    def token = location.split('[?&]').find { it.startsWith('token=') } - 'token='
+    def setup = given(this.documentationSpec)
+      .accept(ContentType.URLENC)
+      .given()
+      .formParam('token', token)
+      .header(IntegrationSpecUtil.createAuthHeaders(PersistenceServiceStubConfiguration.CLIENT_NAME,
+      PersistenceServiceStubConfiguration.PASSWORD))
+    when:
+    def result = setup
+      .when()
+      .post("check_token")
+    then:
+    //opaque token is issued without routing hint unless storage provides it
+    token.count('~') == 2
+    result
+      .then()
+      .statusCode(HttpStatus.OK.value())
+      .body("client_id", equalToIgnoringCase(PersistenceServiceStubConfiguration.CLIENT_NAME))
+      .body("scope", notNullValue())
+  }
+
+  def 'check tokens batch'() {
+    given:
+    def setup = given(this.documentationSpec)
+      .accept(ContentType.URLENC)
+      .filter(document('check_token_batch_succeed',
+      preprocessResponse(prettyPrint()),
+      requestParameters(
+        parameterWithName('token')
+          .description('access tokens that must be checked, parameter is repeated for every token'),
+      ),
+      requestHeaders(
+        headerWithName(HttpHeaders.AUTHORIZATION)
+          .description('Authorization header for relying party basic authorization')
+      ),
+      responseFields(
+        fieldWithPath('[].token')
+          .description('checked access token')
+          .type(JsonFieldType.STRING),
+        fieldWithPath('[].jti')
+          .description('JWT token, absent in case of invalid access token')
+          .type(JsonFieldType.STRING),
+        fieldWithPath('[].exp')
+          .description('expiration date of checked token')
+          .type(JsonFieldType.NUMBER),
+        fieldWithPath('[].client_id')
+          .description('relying party identifier')
+          .type(JsonFieldType.STRING),
+        fieldWithPath('[].scope')
+          .description('scopes of access token')
+          .type(JsonFieldType.ARRAY)
+      )
+    ))
+      .given()
+      .formParam('token', PersistenceServiceStubConfiguration.TOKEN)
+      .header(IntegrationSpecUtil.createAuthHeaders(PersistenceServiceStubConfiguration.CLIENT_NAME,
+      PersistenceServiceStubConfiguration.PASSWORD))
+    when:
+    def result = setup
+      .when()
+      .post("check_token/batch")
+    then:
+    result
+      .then()
+      .statusCode(HttpStatus.OK.value())
+      .body("[0].token", equalToIgnoringCase(PersistenceServiceStubConfiguration.TOKEN))
+      .body("[0].client_id", equalToIgnoringCase(PersistenceServiceStubConfiguration.CLIENT_NAME))
+  }
+
+  def 'should report invalid tokens of batch separately'() {
+    given:
+    def setup = given(this.documentationSpec)
+      .accept(ContentType.URLENC)
+      .filter(document('check_token_batch_invalid',
+      preprocessResponse(prettyPrint()),
+      responseFields(
+        fieldWithPath('[].token')
+          .description('checked access token')
+          .type(JsonFieldType.STRING),
+        fieldWithPath('[].error')
+          .description('error identifier, present in case of invalid access token only')
+          .type(JsonFieldType.STRING)
+          .optional(),
+        fieldWithPath('[].jti')
+          .description('JWT token, absent in case of invalid access token')
+          .type(JsonFieldType.STRING)
+          .optional(),
+        fieldWithPath('[].exp')
+          .description('expiration date of checked token')
+          .type(JsonFieldType.NUMBER)
+          .optional(),
+        fieldWithPath('[].client_id')
+          .description('relying party identifier')
+          .type(JsonFieldType.STRING)
+          .optional(),
+        fieldWithPath('[].scope')
+          .description('scopes of access token')
+          .type(JsonFieldType.ARRAY)
+          .optional()
+      )
+    ))
+      .given()
+      .formParam('token', [PersistenceServiceStubConfiguration.TOKEN, PersistenceServiceStubConfiguration.TOKEN_EXPIRED,
+                           'unknown'])
+      .header(IntegrationSpecUtil.createAuthHeaders(PersistenceServiceStubConfiguration.CLIENT_NAME,
+      PersistenceServiceStubConfiguration.PASSWORD))
+    when:
+    def result = setup
+      .when()
+      .post("check_token/batch")
+    then:
+    result
+      .then()
+      .statusCode(HttpStatus.OK.value())
+      .body("find { it.token == '${PersistenceServiceStubConfiguration.TOKEN}' }.error", nullValue())
+      .body("find { it.token == '${PersistenceServiceStubConfiguration.TOKEN}' }.client_id",
+      equalToIgnoringCase(PersistenceServiceStubConfiguration.CLIENT_NAME))
+      .body("find { it.token == '${PersistenceServiceStubConfiguration.TOKEN_EXPIRED}' }.error",
+      equalToIgnoringCase(ExpiredException.ID.TOKEN_EXPIRED.name()))
+      .body("find { it.token == '${PersistenceServiceStubConfiguration.TOKEN_EXPIRED}' }.client_id", nullValue())
+      .body("find { it.token == 'unknown' }.error", equalToIgnoringCase(AuthorizationException.ID.TOKEN_NOT_FOUND.name()))
+  }
+
+  def 'should reject batch larger than max size'() {
+    given:
+    def setup = given(this.documentationSpec)
+      .accept(ContentType.URLENC)
+      .given()
+      .formParam('token', (0..batchMaxSize).collect { PersistenceServiceStubConfiguration.TOKEN })
+      .header(IntegrationSpecUtil.createAuthHeaders(PersistenceServiceStubConfiguration.CLIENT_NAME,
+      PersistenceServiceStubConfiguration.PASSWORD))
+    when:
+    def result = setup
+      .when()
+      .post("check_token/batch")
+    then:
+    result
+      .then()
+      .statusCode(HttpStatus.BAD_REQUEST.value())
+      .body("id", equalToIgnoringCase(ReadRequestException.ID.WRONG_REQUEST.name()))
+  }
+
+  def 'should reject batch of requester with bad credentials'() {
+    given:
+    def setup = given(this.documentationSpec)
+      .accept(ContentType.URLENC)
+      .given()
+      .formParam('token', PersistenceServiceStubConfiguration.TOKEN)
+      .header(IntegrationSpecUtil.createAuthHeaders(PersistenceServiceStubConfiguration.CLIENT_NAME, 'bad'))
+    when:
+    def result = setup
+      .when()
+      .post("check_token/batch")
+    then:
+    result
+      .then()
+      .statusCode(HttpStatus.FORBIDDEN.value())
+      .body("type_id", equalToIgnoringCase(BaseAuthServerException.Type.AUTHORIZATION.name()))
+  }
 }
@@ -0,0 +1,67 @@
+package ru.ratauth.server
+
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.restdocs.payload.JsonFieldType
+import ru.ratauth.server.configuration.PersistenceServiceStubConfiguration
+
+import static com.jayway.restassured.RestAssured.given
+import static org.hamcrest.Matchers.equalTo
+import static org.springframework.restdocs.headers.HeaderDocumentation.headerWithName
+import static org.springframework.restdocs.headers.HeaderDocumentation.requestHeaders
+import static org.springframework.restdocs.payload.PayloadDocumentation.fieldWithPath
+import static org.springframework.restdocs.payload.PayloadDocumentation.responseFields
+import static org.springframework.restdocs.request.RequestDocumentation.parameterWithName
+import static org.springframework.restdocs.request.RequestDocumentation.requestParameters
+import static org.springframework.restdocs.restassured.RestAssuredRestDocumentation.document
+
+/**
+ * @since 18/10/26
+ */
+class UserStatusAPISpec extends BaseDocumentationSpec {
+  private static final String PUSH_SECRET = 'push_secret'
+
+  def 'should invalidate sessions of blocked user'() {
+    given:
+    def setup = given(this.documentationSpec)
+      .filter(document('user_blocked_succeed',
+      requestParameters(
+        parameterWithName('user_id')
+          .description('identifier of blocked user got from identity provider')
+      ),
+      requestHeaders(
+        headerWithName(HttpHeaders.AUTHORIZATION)
+          .description('Basic authorization of identity provider by its name and its push secret')
+      ),
+      responseFields(
+        fieldWithPath('invalidated_sessions')
+          .description('number of invalidated sessions')
+          .type(JsonFieldType.NUMBER)
+      )))
+      .given()
+      .formParam('user_id', PersistenceServiceStubConfiguration.BLOCKED_USER_ID)
+      .header(IntegrationSpecUtil.createAuthHeaders('STUB', PUSH_SECRET))
+    when:
+    def result = setup
+      .when()
+      .post('user_blocked')
+    then:
+    result
+      .then()
+      .statusCode(HttpStatus.OK.value())
+      .body('invalidated_sessions', equalTo(1))
+  }
+
+  def 'should reject user blocking with wrong push secret'() {
+    when:
+    def result = given(this.documentationSpec)
+      .formParam('user_id', PersistenceServiceStubConfiguration.BLOCKED_USER_ID)
+      .header(IntegrationSpecUtil.createAuthHeaders('STUB', 'wrong_secret'))
+      .when()
+      .post('user_blocked')
+    then:
+    result
+      .then()
+      .statusCode(HttpStatus.FORBIDDEN.value())
+  }
+}
@@ -12,6 +12,7 @@ import ru.ratauth.services.TokenCacheService
 import rx.Observable
 
 import java.time.LocalDateTime
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * @author mgorelikov
@@ -23,13 +24,21 @@ class PersistenceServiceStubConfiguration {
   public static final String CLIENT_NAME = 'mine'
   public static final String PASSWORD = 'password'
   public static final String TOKEN = '1234'
+  public static final String TOKEN_EXPIRED = '4321'
   public static final String REFRESH_TOKEN = '12345'
   public static final String CODE = '123'
   public static final String CODE_EXPIRED = '1111'
+  public static final String BLOCKED_USER_ID = 'blocked_user'
+  public static final String BLOCKED_SESSION_ID = 'blocked_session'
 
   private static final LocalDateTime NOW = LocalDateTime.now()
   private static final LocalDateTime TOMORROW = NOW.plusDays(1)
 
+  /**
+   * sessions created through API by their access tokens
+   */
+  private final Map<String, Session> createdSessions = new ConcurrentHashMap<>()
+
   @Bean
   @Primary
   public ClientService relyingPartyService() {
@@ -95,7 +104,7 @@ class PersistenceServiceStubConfiguration {
 
       @Override
       Observable<TokenCache> get(String token, String client) {
-        return null
+        return Observable.empty()
       }
     }
   }
@@ -163,10 +172,29 @@ class PersistenceServiceStubConfiguration {
                               created: new Date())] as Set
                       )] as Set)
           )
+        if (token == TOKEN_EXPIRED) {
+          def expiresIn = DateUtils.fromLocal(NOW.minusDays(1))
+          if (expiresIn.before(now))
+            return Observable.error(new ExpiredException(ExpiredException.ID.TOKEN_EXPIRED))
+          return Observable.just(
+              new Session(
+                  identityProvider: 'STUB',
+                  status: Status.ACTIVE,
+                  expiresIn: DateUtils.fromLocal(TOMORROW),
+                  entries: [
+                      new AuthEntry(relyingParty: CLIENT_NAME,
+                          scopes: ['rs.read'] as Set,
+                          tokens: [new Token(token: TOKEN_EXPIRED, expiresIn: expiresIn, created: new Date())] as Set
+                      )] as Set)
+          )
+        }
+        def created = createdSessions.get(token)
+        return created ? Observable.just(created) : Observable.empty()
       }
 
       @Override
       Observable<Session> create(Session session) {
+        session.entries*.tokens.flatten().each { createdSessions.put(it.token, session) }
         return Observable.just(session)
       }
 
@@ -190,10 +218,20 @@ class PersistenceServiceStubConfiguration {
         return null
       }
 
+      @Override
+      Observable<String> invalidateForUser(String identityProvider, String userId, Date blocked) {
+        return userId == BLOCKED_USER_ID ? Observable.just(BLOCKED_SESSION_ID) : Observable.empty()
+      }
+
       @Override
       Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) {
         return null
       }
+
+      @Override
+      Observable<Boolean> isActive(String sessionId, Date now) {
+        return Observable.just(sessionId != BLOCKED_SESSION_ID)
+      }
     }
   }
 }
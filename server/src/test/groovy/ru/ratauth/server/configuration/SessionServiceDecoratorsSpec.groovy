@@ -0,0 +1,91 @@
+package ru.ratauth.server.configuration
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer
+import org.springframework.core.env.MapPropertySource
+import ru.ratauth.server.persistence.InMemorySessionService
+import ru.ratauth.server.persistence.WriteBehindSessionService
+import ru.ratauth.services.SessionService
+import rx.Observable
+import spock.lang.Specification
+
+import javax.annotation.PreDestroy
+
+/**
+ * @since 18/10/26
+ */
+class SessionServiceDecoratorsSpec extends Specification {
+  private static final List<String> events = [].asSynchronized()
+
+  def setup() {
+    events.clear()
+  }
+
+  def 'should flush decorators before storage is destroyed'() {
+    given:
+    def context = context(['auth.session.write_behind.enabled': 'true', 'auth.session.write_behind.flush_interval': '3600000'])
+    def sessionService = context.getBean(SessionService)
+    sessionService.updateCheckDate('s1', new Date()).toBlocking().single()
+    when:
+    context.close()
+    then:
+    sessionService instanceof WriteBehindSessionService
+    events == ['write [s1]', 'storage destroyed']
+  }
+
+  def 'should destroy storage without decorators'() {
+    given:
+    def context = context([:])
+    def sessionService = context.getBean(SessionService)
+    when:
+    context.close()
+    then:
+    sessionService instanceof RecordingStorage
+    events == ['storage destroyed']
+  }
+
+  private static AnnotationConfigApplicationContext context(Map<String, Object> properties) {
+    def context = new AnnotationConfigApplicationContext()
+    context.environment.propertySources.addFirst(new MapPropertySource('test', properties))
+    context.register(SessionServiceDecorators, StorageConfiguration)
+    context.refresh()
+    context
+  }
+
+  @Configuration
+  static class StorageConfiguration {
+    @Bean
+    static PropertySourcesPlaceholderConfigurer placeholderConfigurer() {
+      new PropertySourcesPlaceholderConfigurer()
+    }
+
+    @Bean
+    SessionService sessionService() {
+      new RecordingStorage()
+    }
+  }
+
+  /**
+   * Records bulk writes and its own destruction
+   */
+  static class RecordingStorage extends InMemorySessionService {
+    RecordingStorage() {
+      super(Long.MAX_VALUE, 300, 50, 64)
+    }
+
+    @Override
+    Observable<Boolean> updateCheckDates(Collection<String> sessionIds, Date lastCheck) {
+      events << "write $sessionIds".toString()
+      Observable.just(true)
+    }
+
+    @Override
+    @PreDestroy
+    void destroy() {
+      events << 'storage destroyed'
+      super.destroy()
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package ru.ratauth.server.load;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency percentiles of measured phase
+ * @since 18/10/26
+ */
+public class LoadReport {
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final double NANOS_IN_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final LoadTestConfig config;
+  private final long scheduled;
+  private final long elapsedNanos;
+  private final Map<LoadScenario, Histogram> histograms;
+  private final Map<LoadScenario, Long> errors;
+
+  public LoadReport(LoadTestConfig config, long scheduled, long elapsedNanos,
+                    Map<LoadScenario, Histogram> histograms, Map<LoadScenario, Long> errors) {
+    this.config = config;
+    this.scheduled = scheduled;
+    this.elapsedNanos = elapsedNanos;
+    this.histograms = histograms;
+    this.errors = errors;
+  }
+
+  public Histogram getTotal() {
+    final Histogram total = new Histogram(3);
+    histograms.values().forEach(total::add);
+    return total;
+  }
+
+  public long getErrors() {
+    return errors.values().stream().mapToLong(Long::longValue).sum();
+  }
+
+  public String format() {
+    final StringBuilder report = new StringBuilder();
+    report.append("config: ").append(config).append('\n');
+    report.append(String.format("scheduled: %d, elapsed: %.1fs%n", scheduled, elapsedNanos / 1e9));
+    report.append(String.format("%-12s %10s %10s %8s", "scenario", "count", "rps", "errors"));
+    for (double percentile : PERCENTILES)
+      report.append(String.format(" %9s", "p" + percentile));
+    report.append(String.format(" %9s%n", "max"));
+    histograms.forEach((scenario, histogram) -> appendLine(report, scenario.name().toLowerCase(), histogram, errors.get(scenario)));
+    appendLine(report, "total", getTotal(), getErrors());
+    report.append("latency in ms, measured from intended start time\n");
+    return report.toString();
+  }
+
+  private void appendLine(StringBuilder report, String name, Histogram histogram, long errorCount) {
+    report.append(String.format("%-12s %10d %10.1f %8d", name, histogram.getTotalCount(),
+        histogram.getTotalCount() / (elapsedNanos / 1e9), errorCount));
+    for (double percentile : PERCENTILES)
+      report.append(String.format(" %9.2f", histogram.getValueAtPercentile(percentile) / NANOS_IN_MILLI));
+    report.append(String.format(" %9.2f%n", histogram.getMaxValue() / NANOS_IN_MILLI));
+  }
+}
@@ -0,0 +1,90 @@
+package ru.ratauth.server.load;
+
+import ru.ratauth.interaction.AuthzResponseType;
+import ru.ratauth.interaction.GrantType;
+import ru.ratauth.server.configuration.PersistenceServiceStubConfiguration;
+import ru.ratauth.server.configuration.ProvidersStubConfiguration;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Requests of load mix, the same as in API specs, so they succeed against stubbed persistence and providers
+ * @since 18/10/26
+ */
+public enum LoadScenario {
+  AUTHORIZE("authorize", 302, false,
+      "response_type", AuthzResponseType.CODE.name(),
+      "client_id", PersistenceServiceStubConfiguration.CLIENT_NAME,
+      "scope", "rs.read",
+      "username", "login",
+      "password", "password"),
+  TOKEN("token", 200, true,
+      "grant_type", GrantType.AUTHORIZATION_CODE.name(),
+      "response_type", AuthzResponseType.TOKEN.name(),
+      "code", PersistenceServiceStubConfiguration.CODE),
+  CHECK_TOKEN("check_token", 200, true,
+      "token", PersistenceServiceStubConfiguration.TOKEN),
+  REGISTER("register", 200, false,
+      "client_id", PersistenceServiceStubConfiguration.CLIENT_NAME,
+      "scope", "rs.read",
+      ProvidersStubConfiguration.REG_CREDENTIAL, "credential");
+
+  private final String path;
+  private final int expectedStatus;
+  private final String authorization;
+  private final byte[] body;
+
+  LoadScenario(String path, int expectedStatus, boolean clientAuth, String... params) {
+    this.path = path;
+    this.expectedStatus = expectedStatus;
+    this.authorization = clientAuth ? basicAuth(PersistenceServiceStubConfiguration.CLIENT_NAME,
+        PersistenceServiceStubConfiguration.PASSWORD) : null;
+    final Map<String, String> form = new LinkedHashMap<>();
+    for (int i = 0; i < params.length; i += 2)
+      form.put(params[i], params[i + 1]);
+    this.body = form.entrySet().stream()
+        .map(entry -> encode(entry.getKey()) + '=' + encode(entry.getValue()))
+        .collect(Collectors.joining("&"))
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public int getExpectedStatus() {
+    return expectedStatus;
+  }
+
+  /**
+   * @return basic authorization header value or null if endpoint does not require client authentication
+   */
+  public String getAuthorization() {
+    return authorization;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  public static LoadScenario of(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+
+  private static String basicAuth(String username, String password) {
+    return "Basic " + Base64.getEncoder().encodeToString((username + ':' + password).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package ru.ratauth.server.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Load test settings, read from system properties with load. prefix
+ * @since 18/10/26
+ */
+public class LoadTestConfig {
+  /**
+   * target arrival rate of all scenarios, requests per second
+   */
+  private final int rate;
+  private final int warmupSeconds;
+  private final int durationSeconds;
+  /**
+   * max requests in flight, further arrivals are queued and their waiting is counted in latency
+   */
+  private final int concurrency;
+  /**
+   * exponential inter-arrival times if true, constant otherwise
+   */
+  private final boolean poisson;
+  private final Map<LoadScenario, Integer> mix;
+  /**
+   * file for report copy, optional
+   */
+  private final String reportFile;
+
+  public LoadTestConfig(int rate, int warmupSeconds, int durationSeconds, int concurrency, boolean poisson,
+                        Map<LoadScenario, Integer> mix, String reportFile) {
+    if (rate <= 0 || durationSeconds <= 0 || concurrency <= 0 || mix.isEmpty())
+      throw new IllegalArgumentException("Rate, duration, concurrency and mix must be positive");
+    this.rate = rate;
+    this.warmupSeconds = warmupSeconds;
+    this.durationSeconds = durationSeconds;
+    this.concurrency = concurrency;
+    this.poisson = poisson;
+    this.mix = mix;
+    this.reportFile = reportFile;
+  }
+
+  public static LoadTestConfig fromSystemProperties() {
+    return new LoadTestConfig(
+        Integer.getInteger("load.rate", 500),
+        Integer.getInteger("load.warmup", 10),
+        Integer.getInteger("load.duration", 60),
+        Integer.getInteger("load.concurrency", 256),
+        Boolean.parseBoolean(System.getProperty("load.poisson", "true")),
+        parseMix(System.getProperty("load.mix", "authorize=1,token=1,check_token=8,register=1")),
+        System.getProperty("load.report"));
+  }
+
+  /**
+   * @param mix comma separated scenario=weight pairs, e.g. check_token=8,token=1
+   */
+  public static Map<LoadScenario, Integer> parseMix(String mix) {
+    final Map<LoadScenario, Integer> result = new EnumMap<>(LoadScenario.class);
+    for (String pair : mix.split(",")) {
+      final String[] parts = pair.split("=");
+      final int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+      if (weight > 0)
+        result.put(LoadScenario.of(parts[0]), weight);
+    }
+    return result;
+  }
+
+  public int getRate() {
+    return rate;
+  }
+
+  public int getWarmupSeconds() {
+    return warmupSeconds;
+  }
+
+  public int getDurationSeconds() {
+    return durationSeconds;
+  }
+
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  public boolean isPoisson() {
+    return poisson;
+  }
+
+  public Map<LoadScenario, Integer> getMix() {
+    return mix;
+  }
+
+  public String getReportFile() {
+    return reportFile;
+  }
+
+  @Override
+  public String toString() {
+    return "rate=" + rate + "/s, warmup=" + warmupSeconds + "s, duration=" + durationSeconds + "s, concurrency="
+        + concurrency + ", arrival=" + (poisson ? "poisson" : "constant") + ", mix=" + mix;
+  }
+}
@@ -0,0 +1,32 @@
+package ru.ratauth.server.load;
+
+import ratpack.test.ApplicationUnderTest;
+import ru.ratauth.server.RatAuthServerUnderTest;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Boots auth server with stubbed persistence and providers in the same JVM and drives it by load mix.
+ * Run by gradle loadTest task, settings are passed as -Pload.rate=1000 -Pload.mix=check_token=1 etc,
+ * see {@link LoadTestConfig}
+ * @since 18/10/26
+ */
+public class LoadTestRunner {
+
+  public static void main(String[] args) throws Exception {
+    final LoadTestConfig config = LoadTestConfig.fromSystemProperties();
+    final ApplicationUnderTest aut = new RatAuthServerUnderTest();
+    try {
+      final LoadReport report = new OpenModelLoadGenerator(aut.getAddress(), config).run();
+      final String formatted = report.format();
+      System.out.println(formatted);
+      if (config.getReportFile() != null)
+        Files.write(Paths.get(config.getReportFile()), formatted.getBytes(StandardCharsets.UTF_8));
+    } finally {
+      aut.close();
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,166 @@
+package ru.ratauth.server.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open model load generator: requests are started by schedule independent of responses,
+ * latency is measured from intended start time, so server stalls are not hidden by coordinated omission
+ * @since 18/10/26
+ */
+public class OpenModelLoadGenerator {
+  private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+  private static final int CONNECT_TIMEOUT = 5000;
+  private static final int READ_TIMEOUT = 30000;
+
+  private final URI baseUri;
+  private final LoadTestConfig config;
+  private final LoadScenario[] wheel;
+  private final Map<LoadScenario, Recorder> recorders = new EnumMap<>(LoadScenario.class);
+  private final Map<LoadScenario, LongAdder> errors = new EnumMap<>(LoadScenario.class);
+
+  public OpenModelLoadGenerator(URI baseUri, LoadTestConfig config) {
+    this.baseUri = baseUri;
+    this.config = config;
+    final int total = config.getMix().values().stream().mapToInt(Integer::intValue).sum();
+    this.wheel = new LoadScenario[total];
+    int index = 0;
+    for (Map.Entry<LoadScenario, Integer> entry : config.getMix().entrySet()) {
+      for (int i = 0; i < entry.getValue(); i++)
+        wheel[index++] = entry.getKey();
+      recorders.put(entry.getKey(), new Recorder(HIGHEST_TRACKABLE_NANOS, 3));
+      errors.put(entry.getKey(), new LongAdder());
+    }
+  }
+
+  /**
+   * Runs warmup and measured phases
+   * @return report of measured phase
+   */
+  public LoadReport run() throws InterruptedException {
+    //default keep-alive pool keeps only 5 connections per host
+    System.setProperty("http.maxConnections", Integer.toString(config.getConcurrency()));
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(config.getConcurrency(), config.getConcurrency(),
+        0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+      Thread thread = new Thread(runnable, "load-generator");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      if (config.getWarmupSeconds() > 0) {
+        drive(executor, config.getWarmupSeconds());
+        awaitQuiescence(executor);
+        resetRecorders();
+      }
+      final long started = System.nanoTime();
+      final long scheduled = drive(executor, config.getDurationSeconds());
+      //wait for in-flight requests, their latency belongs to measured phase
+      executor.shutdown();
+      executor.awaitTermination(READ_TIMEOUT, TimeUnit.MILLISECONDS);
+      final long elapsed = System.nanoTime() - started;
+      return buildReport(scheduled, elapsed);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private long drive(ExecutorService executor, int seconds) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final double meanIntervalNanos = TimeUnit.SECONDS.toNanos(1) / (double) config.getRate();
+    final long start = System.nanoTime();
+    final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    long intended = start;
+    long count = 0;
+    while (intended < end) {
+      final long delay = intended - System.nanoTime();
+      if (delay > 0)
+        LockSupport.parkNanos(delay);
+      final long intendedStart = intended;
+      final LoadScenario scenario = wheel[random.nextInt(wheel.length)];
+      executor.execute(() -> execute(scenario, intendedStart));
+      count++;
+      intended += config.isPoisson() ?
+          (long) (-Math.log(1.0 - random.nextDouble()) * meanIntervalNanos) : (long) meanIntervalNanos;
+    }
+    return count;
+  }
+
+  private void execute(LoadScenario scenario, long intendedStart) {
+    boolean succeed;
+    try {
+      succeed = send(scenario) == scenario.getExpectedStatus();
+    } catch (IOException e) {
+      succeed = false;
+    }
+    final long latency = System.nanoTime() - intendedStart;
+    recorders.get(scenario).recordValue(Math.min(latency, HIGHEST_TRACKABLE_NANOS));
+    if (!succeed)
+      errors.get(scenario).increment();
+  }
+
+  private int send(LoadScenario scenario) throws IOException {
+    final URL url = baseUri.resolve(scenario.getPath()).toURL();
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(READ_TIMEOUT);
+    connection.setInstanceFollowRedirects(false);
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+    if (scenario.getAuthorization() != null)
+      connection.setRequestProperty("Authorization", scenario.getAuthorization());
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(scenario.getBody());
+    }
+    final int status = connection.getResponseCode();
+    //response must be read fully to return connection into keep-alive pool
+    try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+      if (in != null)
+        drain(in);
+    }
+    return status;
+  }
+
+  /**
+   * Waits for warmup requests, so they are not recorded in measured phase
+   */
+  private static void awaitQuiescence(ThreadPoolExecutor executor) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + READ_TIMEOUT;
+    while ((executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+  }
+
+  private void resetRecorders() {
+    recorders.values().forEach(Recorder::reset);
+    errors.values().forEach(LongAdder::reset);
+  }
+
+  private LoadReport buildReport(long scheduled, long elapsedNanos) {
+    final Map<LoadScenario, Histogram> histograms = new EnumMap<>(LoadScenario.class);
+    final Map<LoadScenario, Long> errorCounts = new EnumMap<>(LoadScenario.class);
+    recorders.forEach((scenario, recorder) -> {
+      histograms.put(scenario, recorder.getIntervalHistogram());
+      errorCounts.put(scenario, errors.get(scenario).sum());
+    });
+    return new LoadReport(config, scheduled, elapsedNanos, histograms, errorCounts);
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    final byte[] buffer = new byte[4096];
+    while (in.read(buffer) >= 0) {
+      //skip
+    }
+  }
+}
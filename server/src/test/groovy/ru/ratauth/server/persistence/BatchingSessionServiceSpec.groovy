@@ -0,0 +1,130 @@
+package ru.ratauth.server.persistence
+
+import ru.ratauth.entities.AuthEntry
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Token
+import ru.ratauth.exception.ExpiredException
+import ru.ratauth.services.SessionService
+import rx.Observable
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * @since 18/10/26
+ */
+class BatchingSessionServiceSpec extends Specification {
+  private static final long HOUR = 3600000
+
+  private TokenStorage storage = new TokenStorage()
+  private BulkTokenStorage bulkStorage = new BulkTokenStorage()
+  private BatchingSessionService sessionService
+
+  def setup() {
+    bulkStorage.sessions = storage.sessions
+    storage.sessions['valid'] = session('s1', 'valid', new Date(System.currentTimeMillis() + HOUR))
+    storage.sessions['expired'] = session('s2', 'expired', new Date(System.currentTimeMillis() - HOUR))
+  }
+
+  def cleanup() {
+    sessionService?.destroy()
+  }
+
+  def 'should load concurrent lookups by one bulk call'() {
+    given:
+    sessionService = new BatchingSessionService(bulkStorage, 3, 1000000)
+    def now = new Date()
+    when:
+    def results = Observable.merge(['valid', 'valid', 'unknown'].collect {
+      sessionService.getByValidToken(it, now).map { it.id }.defaultIfEmpty('none')
+    }).toList().toBlocking().single()
+    then:
+    results.sort() == ['none', 's1', 's1']
+    bulkStorage.bulkCalls.get() == 1
+    bulkStorage.pointCalls.get() == 0
+    sessionService.metrics().find { it.name == 'session.batch.size.max' }.value == 3
+  }
+
+  def 'should report expired token of bulk loaded session'() {
+    given:
+    sessionService = new BatchingSessionService(bulkStorage, 64, 1000)
+    when:
+    sessionService.getByValidToken('expired', new Date()).toBlocking().single()
+    then:
+    def e = thrown(ExpiredException)
+    e.id == ExpiredException.ID.TOKEN_EXPIRED.name()
+  }
+
+  def 'should load expired sessions by default bulk loading'() {
+    when:
+    def sessions = storage.getByTokens(['valid', 'expired', 'unknown']).toBlocking().single()
+    then:
+    sessions.keySet() == ['valid', 'expired'] as Set
+    sessions['expired'].id == 's2'
+    storage.pointCalls.get() == 3
+  }
+
+  def 'should batch lookups over storage without bulk reads'() {
+    given:
+    sessionService = new BatchingSessionService(storage, 2, 1000000)
+    def now = new Date()
+    when:
+    def results = Observable.merge(['valid', 'expired'].collect {
+      sessionService.getByValidToken(it, now).map { it.id }.onErrorReturn { it.class.simpleName }
+    }).toList().toBlocking().single()
+    then:
+    results.sort() == ['ExpiredException', 's1']
+    storage.pointCalls.get() == 2
+  }
+
+  private static Session session(String id, String token, Date expiresIn) {
+    def entry = AuthEntry.builder().relyingParty('client').scopes(['rs.read'] as Set).build()
+    entry.addToken(Token.builder().token(token).created(new Date()).expiresIn(expiresIn).build())
+    Session.builder().id(id).authClient('client').expiresIn(expiresIn).entries([entry] as Set).build()
+  }
+
+  /**
+   * Storage of sessions by access token without bulk reads
+   */
+  private static class TokenStorage implements SessionService {
+    Map<String, Session> sessions = [:]
+    AtomicInteger pointCalls = new AtomicInteger()
+
+    @Override
+    Observable<Session> getByValidToken(String token, Date now) {
+      pointCalls.incrementAndGet()
+      def session = sessions[token]
+      if (session == null)
+        return Observable.empty()
+      if (session.expiresIn.before(now))
+        return Observable.error(new ExpiredException(ExpiredException.ID.TOKEN_EXPIRED))
+      Observable.just(session)
+    }
+
+    Observable<Session> create(Session session) { Observable.just(session) }
+
+    Observable<Session> getByValidCode(String code, Date now) { Observable.empty() }
+
+    Observable<Session> getByValidRefreshToken(String token, Date now) { Observable.empty() }
+
+    Observable<Boolean> addEntry(String sessionId, AuthEntry entry) { Observable.just(true) }
+
+    Observable<Boolean> addToken(String sessionId, String relyingParty, Token token) { Observable.just(true) }
+
+    Observable<Boolean> invalidateSession(String sessionId, Date blocked) { Observable.just(true) }
+
+    Observable<Boolean> invalidateForClient(String relyingParty, Date blocked) { Observable.just(true) }
+
+    Observable<Boolean> updateCheckDate(String sessionId, Date lastCheck) { Observable.just(true) }
+  }
+
+  private static class BulkTokenStorage extends TokenStorage {
+    AtomicInteger bulkCalls = new AtomicInteger()
+
+    @Override
+    Observable<Map<String, Session>> getByTokens(Collection<String> tokens) {
+      bulkCalls.incrementAndGet()
+      Observable.just(sessions.subMap(tokens))
+    }
+  }
+}
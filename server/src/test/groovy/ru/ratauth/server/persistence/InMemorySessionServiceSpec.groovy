@@ -0,0 +1,178 @@
+package ru.ratauth.server.persistence
+
+import ru.ratauth.entities.AuthEntry
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Status
+import ru.ratauth.entities.Token
+import ru.ratauth.exception.ExpiredException
+import ru.ratauth.exception.InternalLogicException
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+/**
+ * @since 18/10/26
+ */
+class InMemorySessionServiceSpec extends Specification {
+  private static final long HOUR = 3600000
+
+  private InMemorySessionService storage
+
+  def cleanup() {
+    storage?.destroy()
+  }
+
+  def 'should find session by code, refresh token and access token'() {
+    given:
+    storage = storage(Long.MAX_VALUE, 300)
+    def now = new Date()
+    storage.create(session('s1', 'client', 'user', new Date(now.time + HOUR))).toBlocking().single()
+    expect:
+    storage.getByValidCode('code-s1', now).toBlocking().single().id == 's1'
+    storage.getByValidRefreshToken('refresh-s1', now).toBlocking().single().id == 's1'
+    def byToken = storage.getByValidToken('token-s1', now).toBlocking().single()
+    byToken.id == 's1'
+    byToken.entries*.tokens.flatten()*.token == ['token-s1']
+    storage.getByValidToken('unknown', now).toList().toBlocking().single().empty
+  }
+
+  def 'should return copies of stored sessions'() {
+    given:
+    storage = storage(Long.MAX_VALUE, 300)
+    def now = new Date()
+    def session = session('s1', 'client', 'user', new Date(now.time + HOUR))
+    storage.create(session).toBlocking().single()
+    when:
+    session.status = Status.BLOCKED
+    storage.getByValidToken('token-s1', now).toBlocking().single().status = Status.BLOCKED
+    then:
+    storage.isActive('s1', now).toBlocking().single()
+  }
+
+  def 'should index tokens added to session'() {
+    given:
+    storage = storage(Long.MAX_VALUE, 300)
+    def now = new Date()
+    storage.create(session('s1', 'client', 'user', new Date(now.time + HOUR))).toBlocking().single()
+    when:
+    storage.addToken('s1', 'client', new Token(token: 'added', created: now, expiresIn: new Date(now.time + HOUR)))
+      .toBlocking().single()
+    storage.addEntry('s1', entry('other', 'other-token', new Date(now.time + HOUR))).toBlocking().single()
+    then:
+    storage.getByValidToken('added', now).toBlocking().single().entries*.relyingParty == ['client']
+    storage.getByValidToken('other-token', now).toBlocking().single().entries*.relyingParty == ['other']
+    storage.getByTokens(['added', 'other-token', 'token-s1', 'unknown']).toBlocking().single().keySet() ==
+      ['added', 'other-token', 'token-s1'] as Set
+  }
+
+  def 'should keep indexes consistent on invalidation and replace'() {
+    given:
+    storage = storage(Long.MAX_VALUE, 300)
+    def now = new Date()
+    def expiresIn = new Date(now.time + HOUR)
+    ['s1', 's2'].each { storage.create(session(it, 'client', 'user', expiresIn)).toBlocking().single() }
+    storage.create(session('s3', 'other', 'user', expiresIn)).toBlocking().single()
+    when:
+    def blockedByUser = storage.invalidateForUser('STUB', 'user', now).toList().toBlocking().single()
+    then:
+    blockedByUser.sort() == ['s1', 's2', 's3']
+    storage.invalidateForUser('STUB', 'user', now).toList().toBlocking().single().empty
+    storage.getByValidToken('token-s1', now).toList().toBlocking().single().empty
+    storage.getInvalidatedSessions(new Date(now.time - 1), now).toList().toBlocking().single().sort() == ['s1', 's2', 's3']
+    when:
+    storage.create(session('s1', 'client', 'user', expiresIn)).toBlocking().single()
+    then:
+    storage.getByValidToken('token-s1', now).toBlocking().single().status == Status.ACTIVE
+    storage.getInvalidatedSessions(new Date(now.time - 1), now).toList().toBlocking().single().sort() == ['s2', 's3']
+    metric('session.memory.sessions') == 3
+    metric('session.memory.tokens') == 3
+  }
+
+  def 'should invalidate sessions of client and report client revocation'() {
+    given:
+    storage = storage(Long.MAX_VALUE, 300)
+    def now = new Date()
+    storage.create(session('s1', 'client', 'user', new Date(now.time + HOUR))).toBlocking().single()
+    storage.create(session('s2', 'other', 'user', new Date(now.time + HOUR))).toBlocking().single()
+    when:
+    storage.invalidateForClient('client', now).toBlocking().single()
+    then:
+    !storage.isActive('s1', now).toBlocking().single()
+    storage.isActive('s2', now).toBlocking().single()
+    storage.getInvalidatedClients(new Date(now.time - 1)).toBlocking().single() == [client: now]
+    storage.getInvalidatedClients(new Date(now.time + 1)).toBlocking().single().isEmpty()
+  }
+
+  def 'should reject new sessions over memory budget and release memory of evicted ones'() {
+    given:
+    def expiresIn = new Date(System.currentTimeMillis() + HOUR)
+    storage = storage(Long.MAX_VALUE, 300)
+    storage.create(session('s0', 'client', 'user', expiresIn)).toBlocking().single()
+    def weight = metric('session.memory.bytes')
+    storage.destroy()
+    storage = storage(weight * 2, 300)
+    when:
+    storage.create(session('s1', 'client', 'user', expiresIn)).toBlocking().single()
+    storage.create(session('s2', 'client', 'user', expiresIn)).toBlocking().single()
+    storage.create(session('s3', 'client', 'user', expiresIn)).toBlocking().single()
+    then:
+    thrown(InternalLogicException)
+    metric('session.memory.rejected') == 1
+    metric('session.memory.bytes') == weight * 2
+    when:
+    storage.evict('s1')
+    storage.create(session('s3', 'client', 'user', expiresIn)).toBlocking().single()
+    then:
+    metric('session.memory.bytes') == weight * 2
+    storage.get('s3') != null
+  }
+
+  def 'should report expiration until retention passes and then drop session'() {
+    given:
+    storage = storage(Long.MAX_VALUE, 1)
+    def expiresIn = new Date(System.currentTimeMillis() + 200)
+    storage.create(session('s1', 'client', 'user', expiresIn)).toBlocking().single()
+    when:
+    Thread.sleep(300)
+    storage.getByValidToken('token-s1', new Date()).toBlocking().single()
+    then:
+    def e = thrown(ExpiredException)
+    e.id == ExpiredException.ID.TOKEN_EXPIRED.name()
+    new PollingConditions(timeout: 5).eventually {
+      assert storage.getByValidToken('token-s1', new Date()).map { it.id }.onErrorReturn { it.class.simpleName }
+        .toList().toBlocking().single().empty
+      assert metric('session.memory.expired') == 1
+      assert metric('session.memory.sessions') == 0
+      assert metric('session.memory.tokens') == 0
+      assert metric('session.memory.codes') == 0
+      assert metric('session.memory.refresh_tokens') == 0
+      assert metric('session.memory.users') == 0
+      assert metric('session.memory.bytes') == 0
+    }
+  }
+
+  private long metric(String name) {
+    storage.metrics().find { it.name == name }.value as long
+  }
+
+  private static InMemorySessionService storage(long maxBytes, int expiredRetention) {
+    def storage = new InMemorySessionService(maxBytes, expiredRetention, 50, 64)
+    storage.init()
+    storage
+  }
+
+  private static Session session(String id, String client, String userId, Date expiresIn) {
+    def entry = entry(client, "token-$id".toString(), expiresIn)
+    entry.authCode = "code-$id".toString()
+    entry.codeExpiresIn = expiresIn
+    entry.refreshToken = "refresh-$id".toString()
+    entry.refreshTokenExpiresIn = expiresIn
+    Session.builder().id(id).identityProvider('STUB').authClient(client).userId(userId).status(Status.ACTIVE)
+      .created(new Date()).expiresIn(expiresIn).entries([entry] as Set).build()
+  }
+
+  private static AuthEntry entry(String client, String token, Date expiresIn) {
+    def entry = AuthEntry.builder().relyingParty(client).scopes(['rs.read'] as Set).created(new Date()).build()
+    entry.addToken(Token.builder().token(token).created(new Date()).expiresIn(expiresIn).build())
+    entry
+  }
+}
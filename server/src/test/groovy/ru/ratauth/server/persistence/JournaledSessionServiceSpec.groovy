@@ -0,0 +1,130 @@
+package ru.ratauth.server.persistence
+
+import ru.ratauth.entities.AuthEntry
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Status
+import ru.ratauth.entities.Token
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+/**
+ * @since 18/10/26
+ */
+class JournaledSessionServiceSpec extends Specification {
+  private static final long HOUR = 3600000
+
+  private File dir = Files.createTempDirectory('journal').toFile()
+  private List<JournaledSessionService> services = []
+
+  def cleanup() {
+    services*.destroy()
+    dir.deleteDir()
+  }
+
+  def 'should recover all modifications from journal'() {
+    given:
+    def now = new Date()
+    def storage = open()
+    ['s1', 's2', 's3', 's4'].each { storage.create(session(it, it == 's4' ? 'other' : 'client', 'user-' + it)).toBlocking().single() }
+    storage.addToken('s1', 'client', new Token(token: 'added', created: now, expiresIn: new Date(now.time + HOUR))).toBlocking().single()
+    storage.addEntry('s2', entry('other', 'entry-token')).toBlocking().single()
+    storage.updateCheckDate('s1', now).toBlocking().single()
+    storage.invalidateSession('s2', now).toBlocking().single()
+    storage.invalidateForUser('STUB', 'user-s3', now).toList().toBlocking().single()
+    storage.invalidateForClient('other', now).toBlocking().single()
+    close(storage)
+    when:
+    def recovered = open()
+    then:
+    recovered.getByValidToken('added', now).toBlocking().single().lastCheck == now
+    recovered.getByValidToken('token-s1', now).toBlocking().single().id == 's1'
+    ['s2', 's3', 's4'].every { !recovered.isActive(it, now).toBlocking().single() }
+    recovered.getInvalidatedClients(new Date(now.time - 1)).toBlocking().single() == [other: now]
+    recovered.metrics().find { it.name == 'session.journal.recovery.records' }.value == 10
+  }
+
+  def 'should recover from snapshot and journal written after rotation'() {
+    given:
+    def now = new Date()
+    def storage = open()
+    (0..<10).each { storage.create(session("s$it", 'client', 'user')).toBlocking().single() }
+    storage.snapshot()
+    storage.invalidateSession('s0', now).toBlocking().single()
+    storage.create(session('s10', 'client', 'user')).toBlocking().single()
+    close(storage)
+    when:
+    def recovered = open()
+    then:
+    dir.list().findAll { it.endsWith('.snapshot') }.size() == 1
+    dir.list().findAll { it.endsWith('.wal') }.every { ((it - '.wal') as long) >= 1 }
+    !recovered.isActive('s0', now).toBlocking().single()
+    (1..10).every { recovered.getByValidToken("token-s$it", now).toBlocking().single().id == "s$it" }
+    recovered.metrics().find { it.name == 'session.journal.recovery.records' }.value == 12
+  }
+
+  def 'should recover records before torn one'() {
+    given:
+    def storage = open()
+    (0..<3).each { storage.create(session("s$it", 'client', 'user')).toBlocking().single() }
+    close(storage)
+    def file = dir.listFiles().find { it.name.endsWith('.wal') }
+    new RandomAccessFile(file, 'rw').withCloseable { it.setLength(file.length() - 3) }
+    when:
+    def recovered = open()
+    recovered.create(session('s3', 'client', 'user')).toBlocking().single()
+    then:
+    ['s0', 's1', 's3'].every { recovered.getByValidToken("token-$it", new Date()).toBlocking().single().id == it }
+    recovered.getByValidToken('token-s2', new Date()).toList().toBlocking().single().empty
+  }
+
+  def 'should not apply modifications that were not written'() {
+    given:
+    def now = new Date()
+    def delegate = delegate()
+    def storage = open(delegate)
+    storage.create(session('s1', 'client', 'user')).toBlocking().single()
+    close(storage)
+    when:
+    storage.create(session('s2', 'client', 'user')).toBlocking().single()
+    then:
+    thrown(RuntimeException)
+    delegate.get('s2') == null
+    when:
+    storage.invalidateSession('s1', now).toBlocking().single()
+    then:
+    thrown(RuntimeException)
+    delegate.isActive('s1', now).toBlocking().single()
+  }
+
+  private JournaledSessionService open(InMemorySessionService delegate = delegate()) {
+    def storage = new JournaledSessionService(delegate, dir.path, 'batch', 10, 64, 3600, 2)
+    storage.init()
+    services << storage
+    storage
+  }
+
+  private void close(JournaledSessionService storage) {
+    storage.destroy()
+    services.remove(storage)
+  }
+
+  private static InMemorySessionService delegate() {
+    def delegate = new InMemorySessionService(Long.MAX_VALUE, 300, 1000, 64)
+    delegate.init()
+    delegate
+  }
+
+  private static Session session(String id, String client, String userId) {
+    def expiresIn = new Date(System.currentTimeMillis() + HOUR)
+    Session.builder().id(id).identityProvider('STUB').authClient(client).userId(userId).status(Status.ACTIVE)
+      .created(new Date()).expiresIn(expiresIn).entries([entry(client, "token-$id".toString())] as Set).build()
+  }
+
+  private static AuthEntry entry(String client, String token) {
+    def expiresIn = new Date(System.currentTimeMillis() + HOUR)
+    def entry = AuthEntry.builder().relyingParty(client).scopes(['rs.read'] as Set).created(new Date()).build()
+    entry.addToken(Token.builder().token(token).created(new Date()).expiresIn(expiresIn).build())
+    entry
+  }
+}
@@ -0,0 +1,83 @@
+package ru.ratauth.server.persistence
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+/**
+ * @since 18/10/26
+ */
+class MappedIndexSpec extends Specification {
+  private File dir = Files.createTempDirectory('index').toFile()
+
+  def cleanup() {
+    dir.deleteDir()
+  }
+
+  def 'should find all addresses after growth by rehash'() {
+    given:
+    def index = MappedIndex.open(new File(dir, 'test.index'), 4)
+    def initialBytes = index.bytes()
+    when:
+    (1..1000).each { index.put(it * 7919L, it) }
+    then:
+    index.size() == 1000
+    index.bytes() > initialBytes
+    (1..1000).every { key -> index.find(key * 7919L, { it == key }) == key }
+    index.find(-5L, { true }) == 0
+  }
+
+  def 'should keep several addresses of the same hash'() {
+    given:
+    def index = MappedIndex.open(new File(dir, 'test.index'), 16)
+    when:
+    (1..3).each { index.put(42L, it) }
+    def addresses = []
+    index.forEach(42L, { addresses << it })
+    then:
+    addresses.sort() == [1L, 2L, 3L]
+    index.find(42L, { it == 2 }) == 2
+  }
+
+  def 'should remove and replace addresses'() {
+    given:
+    def index = MappedIndex.open(new File(dir, 'test.index'), 16)
+    (1..5).each { index.put(it, it * 10) }
+    when:
+    index.remove(2, 20)
+    index.replace(3, 30, 33)
+    then:
+    !index.remove(2, 20)
+    index.size() == 4
+    index.find(2, { true }) == 0
+    index.find(3, { true }) == 33
+    index.find(5, { true }) == 50
+  }
+
+  def 'should reuse tombstones instead of growing'() {
+    given:
+    def index = MappedIndex.open(new File(dir, 'test.index'), 64)
+    def bytes = index.bytes()
+    when:
+    1000.times {
+      index.put(it, it + 1)
+      index.remove(it, it + 1)
+    }
+    then:
+    index.size() == 0
+    index.bytes() == bytes
+  }
+
+  def 'should reopen index from file'() {
+    given:
+    def file = new File(dir, 'test.index')
+    def index = MappedIndex.open(file, 4)
+    (1..100).each { index.put(it, it) }
+    index.force()
+    when:
+    def reopened = MappedIndex.open(file, 4)
+    then:
+    reopened.size() == 100
+    (1..100).every { key -> reopened.find(key, { true }) == key }
+  }
+}
@@ -0,0 +1,178 @@
+package ru.ratauth.server.persistence
+
+import ru.ratauth.entities.AuthEntry
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Status
+import ru.ratauth.entities.Token
+import ru.ratauth.exception.ExpiredException
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+import static org.springframework.test.util.ReflectionTestUtils.invokeMethod
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class OffHeapSessionServiceSpec extends Specification {
+  private static final long HOUR = 3600000
+
+  private File dir = Files.createTempDirectory('sessions').toFile()
+  private OffHeapSessionService storage
+
+  def cleanup() {
+    storage?.destroy()
+    dir.deleteDir()
+  }
+
+  def 'should find session by code, refresh token and access token'() {
+    given:
+    storage = storage(1 << 20)
+    def now = new Date()
+    storage.create(session('s1', 'client', new Date(now.time + HOUR))).toBlocking().single()
+    expect:
+    storage.getByValidCode('code-s1', now).toBlocking().single().id == 's1'
+    storage.getByValidRefreshToken('refresh-s1', now).toBlocking().single().id == 's1'
+    storage.getByValidToken('token-s1', now).toBlocking().single().id == 's1'
+    storage.getByValidToken('unknown', now).toList().toBlocking().single().empty
+    storage.getByTokens(['token-s1', 'unknown']).toBlocking().single().keySet() == ['token-s1'] as Set
+  }
+
+  def 'should append new version of session on added token'() {
+    given:
+    storage = storage(1 << 20)
+    def now = new Date()
+    storage.create(session('s1', 'client', new Date(now.time + HOUR))).toBlocking().single()
+    when:
+    storage.addToken('s1', 'client', new Token(token: 'added', created: now, expiresIn: new Date(now.time + HOUR)))
+      .toBlocking().single()
+    then:
+    storage.getByValidToken('added', now).toBlocking().single().id == 's1'
+    storage.getByValidToken('token-s1', now).toBlocking().single().id == 's1'
+    metric('session.offheap.sessions') == 1
+    metric('session.offheap.tokens') == 2
+  }
+
+  def 'should report expired token'() {
+    given:
+    storage = storage(1 << 20)
+    def now = new Date()
+    storage.create(session('s1', 'client', new Date(now.time - 1000))).toBlocking().single()
+    when:
+    storage.getByValidToken('token-s1', now).toBlocking().single()
+    then:
+    def e = thrown(ExpiredException)
+    e.id == ExpiredException.ID.TOKEN_EXPIRED.name()
+  }
+
+  def 'should invalidate sessions of client and load invalidated sessions'() {
+    given:
+    storage = storage(1024)
+    def now = new Date()
+    (0..<20).each { storage.create(session("s$it".toString(), it % 2 ? 'client' : 'other', new Date(now.time + HOUR))).toBlocking().single() }
+    when:
+    storage.invalidateForClient('client', now).toBlocking().single()
+    storage.invalidateSession('s0', now).toBlocking().single()
+    then:
+    metric('session.offheap.segments') > 1
+    (0..<20).every { storage.isActive("s$it".toString(), now).toBlocking().single() == (it % 2 == 0 && it != 0) }
+    storage.getInvalidatedSessions(new Date(now.time - 1), now).toList().toBlocking().single().sort() ==
+      (0..<20).findAll { it % 2 || it == 0 }.collect { "s$it".toString() }.sort()
+    storage.getInvalidatedSessions(new Date(now.time + 1), now).toList().toBlocking().single().empty
+    storage.getInvalidatedClients(new Date(now.time - 1)).toBlocking().single() == [client: now]
+  }
+
+  def 'should drop expired sessions and compact segments with few live records'() {
+    given:
+    storage = storage(1024)
+    def now = new Date()
+    (0..<20).each {
+      def expiresIn = new Date(now.time + (it < 15 ? -HOUR : HOUR))
+      storage.create(session("s$it".toString(), 'client', expiresIn)).toBlocking().single()
+    }
+    def segmentsBefore = metric('session.offheap.segments')
+    when:
+    invokeMethod(storage, 'sweep')
+    then:
+    metric('session.offheap.expired') == 15
+    metric('session.offheap.compactions') > 0
+    metric('session.offheap.segments') < segmentsBefore
+    metric('session.offheap.sessions') == 5
+    (15..<20).every { storage.getByValidToken("token-s$it".toString(), now).toBlocking().single().id == "s$it" }
+  }
+
+  def 'should reopen storage after clean shutdown'() {
+    given:
+    storage = storage(1024)
+    def now = new Date()
+    (0..<10).each { storage.create(session("s$it".toString(), 'client', new Date(now.time + HOUR))).toBlocking().single() }
+    storage.invalidateSession('s0', now).toBlocking().single()
+    when:
+    storage.destroy()
+    storage = storage(1024)
+    then:
+    metric('session.offheap.sessions') == 10
+    !storage.isActive('s0', now).toBlocking().single()
+    (1..<10).every { storage.getByValidToken("token-s$it".toString(), now).toBlocking().single().id == "s$it" }
+  }
+
+  def 'should rebuild indexes and drop torn record after crash'() {
+    given:
+    storage = storage(1 << 20)
+    def now = new Date()
+    (0..<10).each { storage.create(session("s$it".toString(), 'client', new Date(now.time + HOUR))).toBlocking().single() }
+    storage.addToken('s1', 'client', new Token(token: 'added', created: now, expiresIn: new Date(now.time + HOUR)))
+      .toBlocking().single()
+    storage.destroy()
+    new File(dir, 'clean').delete()
+    tearLastSegment()
+    when:
+    storage = storage(1 << 20)
+    storage.create(session('s10', 'client', new Date(now.time + HOUR))).toBlocking().single()
+    storage.destroy()
+    new File(dir, 'clean').delete()
+    storage = storage(1 << 20)
+    then:
+    metric('session.offheap.sessions') == 11
+    storage.getByValidToken('added', now).toBlocking().single().id == 's1'
+    (0..10).every { storage.getByValidToken("token-s$it".toString(), now).toBlocking().single().id == "s$it" }
+  }
+
+  /**
+   * Moves write position forward as if position was flushed and record was not
+   */
+  private void tearLastSegment() {
+    def file = dir.listFiles().findAll { it.name.endsWith('.segment') }.max { it.name }
+    def raf = new RandomAccessFile(file, 'rw')
+    try {
+      raf.seek(4)
+      def position = raf.readInt()
+      raf.seek(4)
+      raf.writeInt(position + 100)
+    } finally {
+      raf.close()
+    }
+  }
+
+  private long metric(String name) {
+    storage.metrics().find { it.name == name }.value as long
+  }
+
+  private OffHeapSessionService storage(int segmentSize) {
+    def storage = new OffHeapSessionService()
+    [dir: dir.path, segmentSize: segmentSize, indexCapacity: 16, compactionThreshold: 0.5d, sweepInterval: 3600,
+     expiredRetention: 0].each { name, value -> setField(storage, name, value) }
+    storage.init()
+    storage
+  }
+
+  private static Session session(String id, String client, Date expiresIn) {
+    def entry = AuthEntry.builder().relyingParty(client).scopes(['rs.read'] as Set).created(new Date())
+      .authCode("code-$id".toString()).codeExpiresIn(expiresIn)
+      .refreshToken("refresh-$id".toString()).refreshTokenExpiresIn(expiresIn).build()
+    entry.addToken(Token.builder().token("token-$id".toString()).created(new Date()).expiresIn(expiresIn).build())
+    Session.builder().id(id).identityProvider('STUB').authClient(client).userId('user').status(Status.ACTIVE)
+      .created(new Date()).expiresIn(expiresIn).entries([entry] as Set).build()
+  }
+}
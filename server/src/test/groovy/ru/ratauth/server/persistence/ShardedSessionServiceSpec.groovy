@@ -0,0 +1,193 @@
+package ru.ratauth.server.persistence
+
+import ru.ratauth.entities.AuthEntry
+import ru.ratauth.entities.AuthType
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Status
+import ru.ratauth.entities.Token
+import ru.ratauth.server.secutiry.TaggedOAuthIssuer
+import ru.ratauth.server.secutiry.UUIDValueGenerator
+import ru.ratauth.services.SessionService
+import rx.Observable
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class ShardedSessionServiceSpec extends Specification {
+  private static final int SESSIONS = 300
+  private static final String CLIENT = 'client'
+  private static final String MASTER_SECRET = 'cnlqV2hVQml3aWdrc1RqWXBSaFpma3l5enhNVU1TS1A='
+
+  private Map<String, InMemorySessionService> shards = [:]
+  private ShardedSessionService sessionService
+
+  def setup() {
+    (0..<3).each { shards["shard-$it".toString()] = shard() }
+    sessionService = new ShardedSessionService(new LinkedHashMap<String, SessionService>(shards), 128)
+    (0..<SESSIONS).each { sessionService.create(session("session-$it")).toBlocking().single() }
+  }
+
+  def cleanup() {
+    sessionService.destroy()
+    shards.values()*.destroy()
+  }
+
+  def 'should spread sessions across shards by session id'() {
+    expect:
+    shards.values().every { count(it) > 0 }
+    shards.values().sum { count(it) } == SESSIONS
+  }
+
+  def 'should find session by hinted values in its shard'() {
+    given:
+    def now = new Date()
+    when:
+    def found = (0..<SESSIONS).collect {
+      def hint = ShardedSessionService.hint("session-$it")
+      [sessionService.getByValidCode("${hint}code-$it", now),
+       sessionService.getByValidRefreshToken("${hint}refresh-$it", now),
+       sessionService.getByValidToken("${hint}token-$it", now)]
+        .collect { it.toBlocking().single().id }
+    }
+    then:
+    found.withIndex().every { ids, i -> ids.every { it == "session-$i" } }
+    sessionService.metrics().find { it.name == 'session.shard.broadcast' }.value == 0
+  }
+
+  def 'should find session by value without hint in all shards'() {
+    given:
+    def legacy = session('legacy')
+    legacy.entries.first().tokens.first().token = 'legacy-token'
+    sessionService.create(legacy).toBlocking().single()
+    expect:
+    sessionService.getByValidToken('legacy-token', new Date()).toBlocking().single().id == 'legacy'
+    sessionService.getByValidToken('unknown-token', new Date()).toList().toBlocking().single().empty
+  }
+
+  def 'should route values issued with hint and broadcast UUID values and JWT'() {
+    given:
+    def issuer = new TaggedOAuthIssuer(new UUIDValueGenerator())
+    setField(issuer, 'masterSecret', MASTER_SECRET)
+    setField(issuer, 'enforce', false)
+    issuer.init()
+    def now = new Date()
+    def expiresIn = new Date(now.time + 3600000)
+    def session = session('issued')
+    def entry = session.entries.first()
+    entry.authCode = issuer.authorizationCode(expiresIn, ShardedSessionService.hint('issued'))
+    entry.refreshToken = issuer.refreshToken(expiresIn, ShardedSessionService.hint('issued'))
+    entry.tokens.first().token = issuer.accessToken(expiresIn, ShardedSessionService.hint('issued'))
+    sessionService.create(session).toBlocking().single()
+    when:
+    def found = [sessionService.getByValidCode(entry.authCode, now),
+                 sessionService.getByValidRefreshToken(entry.refreshToken, now),
+                 sessionService.getByValidToken(entry.tokens.first().token, now)]
+      .collect { it.toBlocking().single().id }
+    then:
+    found == ['issued'] * 3
+    issuer.verify(TaggedOAuthIssuer.Kind.ACCESS_TOKEN, entry.tokens.first().token, now) ==
+      TaggedOAuthIssuer.TagStatus.VALID
+    metric('session.shard.broadcast') == 0
+    when:
+    sessionService.getByValidToken(UUID.randomUUID().toString(), now).toList().toBlocking().single()
+    sessionService.getByValidToken('eyJhbGciOiJIUzI1NiJ9.e30.c2ln', now).toList().toBlocking().single()
+    sessionService.getByValidToken(issuer.accessToken(expiresIn), now).toList().toBlocking().single()
+    then:
+    metric('session.shard.broadcast') == 3
+  }
+
+  def 'should move sessions to new shards on rebalancing'() {
+    given:
+    def resized = new LinkedHashMap<String, SessionService>(shards)
+    resized.remove('shard-0')
+    resized['shard-3'] = shards['shard-3'] = shard()
+    def now = new Date()
+    when:
+    def moved = sessionService.rebalance(resized).toBlocking().single()
+    then:
+    moved > 0
+    count(shards['shard-0']) == 0
+    count(shards['shard-3']) > 0
+    (0..<SESSIONS).every {
+      def hint = ShardedSessionService.hint("session-$it")
+      sessionService.getByValidToken("${hint}token-$it", now).toBlocking().single().id == "session-$it"
+    }
+  }
+
+  def 'should keep writes made during rebalancing'() {
+    given:
+    def resized = new LinkedHashMap<String, SessionService>(shards)
+    resized.remove('shard-0')
+    resized['shard-3'] = shards['shard-3'] = shard()
+    def blocked = new Date()
+    when:
+    def rebalanced = sessionService.rebalance(resized).toBlocking().toFuture()
+    Observable.merge((0..<SESSIONS).findAll { it % 2 == 0 }
+      .collect { sessionService.invalidateSession("session-$it", blocked) }).toList().toBlocking().single()
+    def blockedByUser = sessionService.invalidateForUser('idp', 'user-1', blocked).toList().toBlocking().single()
+    rebalanced.get(10, TimeUnit.SECONDS)
+    then:
+    blockedByUser == ['session-1']
+    count(shards['shard-0']) == 0
+    (0..<SESSIONS).every {
+      sessionService.isActive("session-$it", new Date()).toBlocking().single() == (it % 2 == 1 && it != 1)
+    }
+  }
+
+  def 'should invalidate sessions of user in all shards'() {
+    expect:
+    sessionService.invalidateForUser('idp', 'user-7', new Date()).toList().toBlocking().single() == ['session-7']
+    sessionService.isActive('session-7', new Date()).toBlocking().single() == false
+    sessionService.isActive('session-8', new Date()).toBlocking().single()
+  }
+
+  private long metric(String name) {
+    sessionService.metrics().find { it.name == name }.value as long
+  }
+
+  private static InMemorySessionService shard() {
+    def shard = new InMemorySessionService(Long.MAX_VALUE, 300, 1000, 4096)
+    shard.init()
+    shard
+  }
+
+  private static long count(InMemorySessionService shard) {
+    long result = 0
+    shard.forEach { result++ }
+    result
+  }
+
+  private static Session session(String id) {
+    def hint = ShardedSessionService.hint(id)
+    def suffix = id - 'session-'
+    def created = new Date()
+    def expiresIn = new Date(created.time + 3600000)
+    def entry = AuthEntry.builder()
+      .authCode("${hint}code-$suffix")
+      .codeExpiresIn(expiresIn)
+      .refreshToken("${hint}refresh-$suffix")
+      .refreshTokenExpiresIn(expiresIn)
+      .relyingParty(CLIENT)
+      .scopes(['rs.read'] as Set)
+      .authType(AuthType.COMMON)
+      .created(created)
+      .build()
+    entry.addToken(Token.builder().token("${hint}token-$suffix").created(created).expiresIn(expiresIn).build())
+    Session.builder()
+      .id(id)
+      .identityProvider('idp')
+      .authClient(CLIENT)
+      .userId("user-$suffix")
+      .userInfo('info')
+      .status(Status.ACTIVE)
+      .created(created)
+      .expiresIn(expiresIn)
+      .entries([entry] as Set)
+      .build()
+  }
+}
@@ -0,0 +1,88 @@
+package ru.ratauth.server.persistence
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+/**
+ * @since 18/10/26
+ */
+class WriteAheadLogSpec extends Specification {
+  private File dir = Files.createTempDirectory('journal').toFile()
+  private WriteAheadLog journal = new WriteAheadLog(dir, WriteAheadLog.FsyncPolicy.BATCH, 10, 16)
+
+  def cleanup() {
+    dir.deleteDir()
+  }
+
+  def 'should read appended records in order'() {
+    given:
+    journal.open(0)
+    when:
+    (0..<100).each { journal.append(bytes("record-$it")).toBlocking().single() }
+    journal.close()
+    then:
+    read(WriteAheadLog.file(dir, 0)) == (0..<100).collect { "record-$it".toString() }
+    journal.metrics('test').find { it.name == 'test.records' }.value == 100
+  }
+
+  def 'should start new file on rotation'() {
+    given:
+    journal.open(3)
+    journal.append(bytes('before')).toBlocking().single()
+    when:
+    def sequence = journal.rotate()
+    journal.append(bytes('after')).toBlocking().single()
+    journal.close()
+    then:
+    sequence == 4
+    read(WriteAheadLog.file(dir, 3)) == ['before']
+    read(WriteAheadLog.file(dir, 4)) == ['after']
+  }
+
+  def 'should stop reading at torn record'() {
+    given:
+    journal.open(0)
+    (0..<3).each { journal.append(bytes("record-$it")).toBlocking().single() }
+    journal.close()
+    def file = WriteAheadLog.file(dir, 0)
+    new RandomAccessFile(file, 'rw').withCloseable { it.setLength(file.length() - 2) }
+    expect:
+    read(file) == ['record-0', 'record-1']
+  }
+
+  def 'should stop reading at corrupted record'() {
+    given:
+    journal.open(0)
+    (0..<3).each { journal.append(bytes("record-$it")).toBlocking().single() }
+    journal.close()
+    def file = WriteAheadLog.file(dir, 0)
+    new RandomAccessFile(file, 'rw').withCloseable {
+      it.seek(file.length() - 1)
+      it.write((int) ('X' as char))
+    }
+    expect:
+    read(file) == ['record-0', 'record-1']
+  }
+
+  def 'should fail appends after close'() {
+    given:
+    journal.open(0)
+    journal.close()
+    when:
+    journal.append(bytes('late')).toBlocking().single()
+    then:
+    thrown(RuntimeException)
+    read(WriteAheadLog.file(dir, 0)).empty
+  }
+
+  private static byte[] bytes(String value) {
+    value.getBytes('UTF-8')
+  }
+
+  private static List<String> read(File file) {
+    def result = []
+    WriteAheadLog.read(file, { result << new String(it, 'UTF-8') })
+    result
+  }
+}
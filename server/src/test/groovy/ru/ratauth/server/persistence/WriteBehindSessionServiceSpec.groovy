@@ -0,0 +1,216 @@
+package ru.ratauth.server.persistence
+
+import ru.ratauth.entities.AuthEntry
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Status
+import ru.ratauth.entities.Token
+import rx.Observable
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+/**
+ * @since 18/10/26
+ */
+class WriteBehindSessionServiceSpec extends Specification {
+  private static final long HOUR = 3600000
+  private static final long NEVER = HOUR
+
+  private RecordingStorage storage
+  private WriteBehindSessionService writeBehind
+
+  def setup() {
+    storage = new RecordingStorage()
+    storage.init()
+  }
+
+  def cleanup() {
+    writeBehind?.destroy()
+    storage.destroy()
+  }
+
+  def 'should merge repeated check dates of the same session'() {
+    given:
+    writeBehind = new WriteBehindSessionService(storage, 100, NEVER)
+    def now = new Date()
+    create('s1', now)
+    when:
+    writeBehind.updateCheckDate('s1', new Date(now.time + 2000)).toBlocking().single()
+    writeBehind.updateCheckDate('s1', new Date(now.time + 1000)).toBlocking().single()
+    writeBehind.updateCheckDates(['s1'], new Date(now.time + 3000)).toBlocking().single()
+    then:
+    storage.writes.empty
+    metric('session.write_behind.deferred') == 3
+    metric('session.write_behind.merged') == 2
+    metric('session.write_behind.pending') == 1
+    when:
+    writeBehind.flush()
+    then:
+    storage.writes == [[['s1'], new Date(now.time + 3000)]]
+    lastCheck('s1', now) == new Date(now.time + 3000)
+    metric('session.write_behind.flushed') == 1
+    metric('session.write_behind.pending') == 0
+  }
+
+  def 'should write sessions checked together by one bulk call'() {
+    given:
+    writeBehind = new WriteBehindSessionService(storage, 100, NEVER)
+    def now = new Date()
+    ['s1', 's2', 's3'].each { create(it, now) }
+    when:
+    writeBehind.updateCheckDates(['s1', 's2'], now).toBlocking().single()
+    writeBehind.updateCheckDate('s3', new Date(now.time + 1000)).toBlocking().single()
+    writeBehind.flush()
+    then:
+    storage.writes.size() == 2
+    storage.writes.find { it[1] == now }[0].sort() == ['s1', 's2']
+    storage.writes.find { it[1] == new Date(now.time + 1000) }[0] == ['s3']
+  }
+
+  def 'should flush as soon as max size is reached'() {
+    given:
+    writeBehind = new WriteBehindSessionService(storage, 2, NEVER)
+    def now = new Date()
+    def conditions = new PollingConditions(timeout: 5)
+    ['s1', 's2'].each { create(it, now) }
+    when:
+    writeBehind.updateCheckDate('s1', now).toBlocking().single()
+    then:
+    metric('session.write_behind.pending') == 1
+    when:
+    writeBehind.updateCheckDate('s2', now).toBlocking().single()
+    then:
+    conditions.eventually {
+      assert storage.writes.collect { it[0] }.flatten().sort() == ['s1', 's2']
+      assert metric('session.write_behind.pending') == 0
+    }
+  }
+
+  def 'should retry failed writes by the next flush'() {
+    given:
+    writeBehind = new WriteBehindSessionService(storage, 100, NEVER)
+    def now = new Date()
+    create('s1', now)
+    writeBehind.updateCheckDate('s1', now).toBlocking().single()
+    storage.failing = true
+    when:
+    writeBehind.flush()
+    then:
+    storage.writes.empty
+    metric('session.write_behind.failed') == 1
+    metric('session.write_behind.pending') == 1
+    when:
+    storage.failing = false
+    writeBehind.flush()
+    then:
+    storage.writes == [[['s1'], now]]
+    lastCheck('s1', now) == now
+    metric('session.write_behind.pending') == 0
+  }
+
+  def 'should keep later check date deferred while earlier one is written'() {
+    given:
+    writeBehind = new WriteBehindSessionService(storage, 100, NEVER)
+    def now = new Date()
+    def later = new Date(now.time + 1000)
+    create('s1', now)
+    writeBehind.updateCheckDate('s1', now).toBlocking().single()
+    storage.onWrite = { writeBehind.updateCheckDate('s1', later).toBlocking().single() }
+    when:
+    writeBehind.flush()
+    then:
+    storage.writes == [[['s1'], now]]
+    metric('session.write_behind.pending') == 1
+    when:
+    storage.onWrite = null
+    writeBehind.flush()
+    then:
+    storage.writes[1] == [['s1'], later]
+    lastCheck('s1', now) == later
+  }
+
+  def 'should overlay pending check dates on loaded sessions'() {
+    given:
+    writeBehind = new WriteBehindSessionService(storage, 100, NEVER)
+    def now = new Date()
+    def checked = new Date(now.time + 1000)
+    create('s1', now)
+    create('s2', now)
+    when:
+    writeBehind.updateCheckDate('s1', checked).toBlocking().single()
+    then:
+    storage.getByValidToken('token-s1', now).toBlocking().single().lastCheck == now
+    writeBehind.getByValidToken('token-s1', now).toBlocking().single().lastCheck == checked
+    writeBehind.getByValidCode('code-s1', now).toBlocking().single().lastCheck == checked
+    writeBehind.getByValidRefreshToken('refresh-s1', now).toBlocking().single().lastCheck == checked
+    def byTokens = writeBehind.getByTokens(['token-s1', 'token-s2']).toBlocking().single()
+    byTokens['token-s1'].lastCheck == checked
+    byTokens['token-s2'].lastCheck == now
+  }
+
+  def 'should not overlay check dates older than stored ones'() {
+    given:
+    writeBehind = new WriteBehindSessionService(storage, 100, NEVER)
+    def now = new Date()
+    create('s1', now)
+    when:
+    writeBehind.updateCheckDate('s1', new Date(now.time - 1000)).toBlocking().single()
+    then:
+    writeBehind.getByValidToken('token-s1', now).toBlocking().single().lastCheck == now
+  }
+
+  def 'should flush pending check dates on destroy'() {
+    given:
+    writeBehind = new WriteBehindSessionService(storage, 100, NEVER)
+    def now = new Date()
+    create('s1', now)
+    writeBehind.updateCheckDate('s1', now).toBlocking().single()
+    when:
+    writeBehind.destroy()
+    then:
+    storage.writes == [[['s1'], now]]
+  }
+
+  private void create(String id, Date now) {
+    storage.create(session(id, now)).toBlocking().single()
+  }
+
+  private Date lastCheck(String id, Date now) {
+    storage.getByValidToken("token-$id".toString(), now).toBlocking().single().lastCheck
+  }
+
+  private long metric(String name) {
+    writeBehind.metrics().find { it.name == name }.value as long
+  }
+
+  private static Session session(String id, Date now) {
+    def expiresIn = new Date(now.time + HOUR)
+    def entry = AuthEntry.builder().relyingParty('client').scopes(['rs.read'] as Set).created(now)
+      .authCode("code-$id".toString()).codeExpiresIn(expiresIn)
+      .refreshToken("refresh-$id".toString()).refreshTokenExpiresIn(expiresIn).build()
+    entry.addToken(Token.builder().token("token-$id".toString()).created(now).expiresIn(expiresIn).build())
+    Session.builder().id(id).identityProvider('STUB').authClient('client').userId('user').status(Status.ACTIVE)
+      .created(now).lastCheck(now).expiresIn(expiresIn).entries([entry] as Set).build()
+  }
+
+  /**
+   * Records bulk writes, fails them while failing flag is set
+   */
+  private static class RecordingStorage extends InMemorySessionService {
+    final List<List> writes = [].asSynchronized()
+    volatile boolean failing
+    volatile Closure onWrite
+
+    RecordingStorage() {
+      super(Long.MAX_VALUE, 300, 50, 64)
+    }
+
+    @Override
+    Observable<Boolean> updateCheckDates(Collection<String> sessionIds, Date lastCheck) {
+      if (failing)
+        return Observable.error(new IllegalStateException('storage is unavailable'))
+      onWrite?.call()
+      writes << [new ArrayList<>(sessionIds), lastCheck]
+      Observable.from(sessionIds).flatMap { updateCheckDate(it, lastCheck) }.all { it }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package ru.ratauth.server.secutiry
+
+import ru.ratauth.entities.AuthClient
+import ru.ratauth.exception.ThrottledException
+import rx.Observable
+import spock.lang.Specification
+
+import static org.springframework.test.util.ReflectionTestUtils.getField
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class ClientCredentialsVerifierSpec extends Specification {
+  private ClientCredentialsVerifier verifier
+
+  def setup() {
+    verifier = verifier(2)
+  }
+
+  def cleanup() {
+    verifier.destroy()
+  }
+
+  def 'should check plaintext password without hashing'() {
+    given:
+    def client = new AuthClient(name: 'client', password: 'secret')
+    expect:
+    verify(client, 'secret')
+    !verify(client, 'wrong')
+    !verify(client, null)
+    !verify(new AuthClient(name: 'client'), 'secret')
+    metric('client_credentials.hashed') == 0
+  }
+
+  def 'should hash password once and serve repeated checks from cache'() {
+    given:
+    def client = new AuthClient(name: 'client', password: PasswordHasher.hash('secret', 1000))
+    when:
+    def results = (1..3).collect { verify(client, 'secret') }
+    then:
+    results == [true] * 3
+    metric('client_credentials.hashed') == 1
+  }
+
+  def 'should cache rejected password'() {
+    given:
+    def client = new AuthClient(name: 'client', password: PasswordHasher.hash('secret', 1000))
+    when:
+    def results = (1..3).collect { verify(client, 'wrong') }
+    then:
+    results == [false] * 3
+    metric('client_credentials.hashed') == 1
+    verify(client, 'secret')
+    metric('client_credentials.hashed') == 2
+  }
+
+  def 'should not use cached check after password change'() {
+    given:
+    def client = new AuthClient(name: 'client', password: PasswordHasher.hash('secret', 1000))
+    verify(client, 'secret')
+    when:
+    client.password = PasswordHasher.hash('changed', 1000)
+    then:
+    !verify(client, 'secret')
+    verify(client, 'changed')
+    metric('client_credentials.hashed') == 3
+  }
+
+  def 'should reject malformed hash'() {
+    given:
+    def client = new AuthClient(name: 'client', password: PasswordHasher.PREFIX + 'many$c2FsdA==$aGFzaA==')
+    expect:
+    !verify(client, 'secret')
+  }
+
+  def 'should hash off the calling thread'() {
+    given:
+    def client = new AuthClient(name: 'client', password: PasswordHasher.hash('secret', 1000))
+    when:
+    def thread = verifier.verify(client, 'secret').map { Thread.currentThread().name }.toBlocking().single()
+    then:
+    thread.startsWith('client-credentials-hash-')
+  }
+
+  def 'should share hash between concurrent checks of the same credentials'() {
+    given:
+    def client = new AuthClient(name: 'client', password: PasswordHasher.hash('secret', 100000))
+    when:
+    def results = Observable.merge((1..4).collect { verifier.verify(client, 'secret') }).toList().toBlocking().single()
+    then:
+    results == [true] * 4
+    metric('client_credentials.hashed') == 1
+    metric('client_credentials.hashes.collapsed') == 3
+  }
+
+  def 'should limit concurrent hashes of one client by retryable error'() {
+    given:
+    verifier.destroy()
+    verifier = verifier(1)
+    def client = new AuthClient(name: 'client', password: PasswordHasher.hash('secret', 1000))
+    def other = new AuthClient(name: 'other', password: PasswordHasher.hash('secret', 1000))
+    def permits = getField(verifier, 'hashPermits').get('client')
+    when:
+    permits.acquire()
+    def throttled = verifier.verify(client, 'secret').materialize().toBlocking().first().throwable
+    def otherClient = verify(other, 'secret')
+    permits.release()
+    then:
+    throttled instanceof ThrottledException
+    otherClient
+    metric('client_credentials.throttled') == 1
+    metric('client_credentials.rejected.size') == 0
+    verify(client, 'secret')
+  }
+
+  private boolean verify(AuthClient client, String password) {
+    verifier.verify(client, password).toBlocking().single()
+  }
+
+  private long metric(String name) {
+    verifier.metrics().find { it.name == name }.value as long
+  }
+
+  private static ClientCredentialsVerifier verifier(int hashConcurrency) {
+    def verifier = new ClientCredentialsVerifier()
+    [cacheSize: 100, cacheTTL: 300, hashThreads: 4, hashConcurrency: hashConcurrency].each { name, value ->
+      setField(verifier, name, value)
+    }
+    verifier.init()
+    verifier
+  }
+}
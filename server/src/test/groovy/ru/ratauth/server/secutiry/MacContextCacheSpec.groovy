@@ -0,0 +1,125 @@
+package ru.ratauth.server.secutiry
+
+import com.fasterxml.jackson.dataformat.yaml.snakeyaml.external.biz.base64Coder.Base64Coder
+import com.nimbusds.jose.JWSAlgorithm
+import com.nimbusds.jose.JWSHeader
+import com.nimbusds.jose.crypto.MACSigner
+import com.nimbusds.jose.crypto.MACVerifier
+import com.nimbusds.jose.util.Base64URL
+import com.nimbusds.jwt.JWTClaimsSet
+import com.nimbusds.jwt.SignedJWT
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class MacContextCacheSpec extends Specification {
+  private static final String SECRET = 'cnlqV2hVQml3aWdrc1RqWXBSaFpma3l5enhNVU1TS1A='
+  private static final String OTHER_SECRET = 'HdC4t2Wpjn/obYj9JHLVwmGzSqQ5SlatYqMF6zuAL0s='
+
+  private MacContextCache cache = macContextCache(10)
+
+  def 'should reuse context of the same secret'() {
+    when:
+    def context = cache.get(SECRET)
+    then:
+    cache.get(SECRET).is(context)
+    !cache.get(OTHER_SECRET).is(context)
+    metric('cache.crypto_context.size') == 2
+    metric('cache.crypto_context.hit') == 1
+    metric('cache.crypto_context.miss') == 2
+  }
+
+  def 'should create new context after invalidation'() {
+    given:
+    def context = cache.get(SECRET)
+    when:
+    cache.invalidate(SECRET)
+    then:
+    !cache.get(SECRET).is(context)
+  }
+
+  def 'should evict contexts over cache size'() {
+    given:
+    cache = macContextCache(1)
+    def context = cache.get(SECRET)
+    when:
+    cache.get(OTHER_SECRET)
+    then:
+    !cache.get(SECRET).is(context)
+    metric('cache.crypto_context.evictions') > 0
+  }
+
+  def 'should sign and verify compatible with nimbus'() {
+    given:
+    def context = cache.get(SECRET)
+    def key = Base64Coder.decodeLines(SECRET)
+    when:
+    def cached = sign(context.signer, JWSAlgorithm.HS256)
+    def plain = sign(new MACSigner(key), JWSAlgorithm.HS256)
+    then:
+    cached.verify(new MACVerifier(key))
+    plain.verify(context.verifier)
+    !tampered(cached).verify(context.verifier)
+    !plain.verify(cache.get(OTHER_SECRET).verifier)
+  }
+
+  def 'should delegate other algorithms to nimbus'() {
+    given:
+    def secret = new String(Base64Coder.encode(new byte[64].with { new Random(1).nextBytes(it); it }))
+    def context = cache.get(secret)
+    def key = Base64Coder.decodeLines(secret)
+    when:
+    def cached = sign(context.signer, JWSAlgorithm.HS512)
+    then:
+    cached.header.algorithm == JWSAlgorithm.HS512
+    cached.verify(new MACVerifier(key))
+    sign(new MACSigner(key), JWSAlgorithm.HS512).verify(context.verifier)
+    !tampered(cached).verify(context.verifier)
+  }
+
+  def 'should sign on concurrent threads by their own Mac'() {
+    given:
+    def context = cache.get(SECRET)
+    def verifier = new MACVerifier(Base64Coder.decodeLines(SECRET))
+    def executor = Executors.newFixedThreadPool(8)
+    when:
+    def results = executor.invokeAll((0..<8).collect {
+      { -> (0..<200).every { sign(context.signer, JWSAlgorithm.HS256).verify(verifier) } } as Callable<Boolean>
+    })*.get()
+    then:
+    results.every()
+    cleanup:
+    executor.shutdownNow()
+  }
+
+  private long metric(String name) {
+    cache.metrics().find { it.name == name }.value as long
+  }
+
+  private static SignedJWT sign(signer, JWSAlgorithm algorithm) {
+    def jwt = new SignedJWT(new JWSHeader(algorithm),
+      new JWTClaimsSet.Builder().subject('user').jwtID(UUID.randomUUID().toString()).build())
+    jwt.sign(signer)
+    jwt
+  }
+
+  private static SignedJWT tampered(SignedJWT jwt) {
+    def parts = jwt.serialize().split('\\.')
+    def claims = new JWTClaimsSet.Builder().subject('admin').build()
+    SignedJWT.parse("${parts[0]}.${Base64URL.encode(claims.toString())}.${parts[2]}")
+  }
+
+  private static MacContextCache macContextCache(int size) {
+    def cache = new MacContextCache()
+    setField(cache, 'cacheSize', size)
+    setField(cache, 'cacheTTL', 60)
+    cache.init()
+    cache
+  }
+}
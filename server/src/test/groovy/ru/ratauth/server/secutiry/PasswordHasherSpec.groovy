@@ -0,0 +1,48 @@
+package ru.ratauth.server.secutiry
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * @since 18/10/26
+ */
+class PasswordHasherSpec extends Specification {
+
+  def 'should match hashed password'() {
+    given:
+    def stored = PasswordHasher.hash('secret', 1000)
+    expect:
+    PasswordHasher.isHashed(stored)
+    stored.startsWith(PasswordHasher.PREFIX + '1000$')
+    PasswordHasher.matches('secret', stored)
+    !PasswordHasher.matches('wrong', stored)
+  }
+
+  def 'should salt hashes of the same password'() {
+    expect:
+    PasswordHasher.hash('secret', 1000) != PasswordHasher.hash('secret', 1000)
+  }
+
+  def 'should fall back to plaintext comparison for values without prefix'() {
+    expect:
+    !PasswordHasher.isHashed('secret')
+    PasswordHasher.matches('secret', 'secret')
+    !PasswordHasher.matches('wrong', 'secret')
+    !PasswordHasher.matches(null, 'secret')
+    !PasswordHasher.matches('secret', null)
+  }
+
+  @Unroll
+  def 'should reject malformed hash #stored'() {
+    expect:
+    !PasswordHasher.matches('secret', stored)
+    where:
+    stored << [PasswordHasher.PREFIX,
+               PasswordHasher.PREFIX + '1000$c2FsdA==',
+               PasswordHasher.PREFIX + 'many$c2FsdA==$aGFzaA==',
+               PasswordHasher.PREFIX + '1000$!!!$aGFzaA==',
+               PasswordHasher.PREFIX + '0$c2FsdA==$aGFzaA==',
+               PasswordHasher.PREFIX + '1000$c2FsdA==$',
+               PasswordHasher.PREFIX + '1000$c2FsdA==$aGFzaA==$extra']
+  }
+}
@@ -0,0 +1,80 @@
+package ru.ratauth.server.secutiry
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+/**
+ * @since 18/10/26
+ */
+class SecureRandomValueGeneratorSpec extends Specification {
+  private static final int ENCODED_LENGTH = 43
+
+  private SecureRandomValueGenerator generator
+
+  def cleanup() {
+    generator?.destroy()
+  }
+
+  def 'should generate 256-bit values encoded in base64url'() {
+    given:
+    generator = generator(1, 4)
+    when:
+    def value = generator.generateValue()
+    then:
+    value.length() == ENCODED_LENGTH
+    value ==~ /[A-Za-z0-9_-]+/
+    Base64.urlDecoder.decode(value).length == SecureRandomValueGenerator.VALUE_BYTES
+  }
+
+  def 'should generate unique values across refilled buffers'() {
+    given:
+    generator = generator(1, 2)
+    when:
+    def values = (0..<1000).collect { generator.generateValue() }
+    then:
+    values.toSet().size() == values.size()
+  }
+
+  def 'should generate values after background refill is stopped'() {
+    given:
+    generator = generator(1, 2)
+    generator.destroy()
+    when:
+    def values = (0..<20).collect { generator.generateValue() }
+    then:
+    values.toSet().size() == values.size()
+    values.every { it.length() == ENCODED_LENGTH }
+  }
+
+  def 'should generate unique values on concurrent threads'() {
+    given:
+    generator = generator(2, 8)
+    def executor = Executors.newFixedThreadPool(8)
+    when:
+    def values = executor.invokeAll((0..<8).collect {
+      { -> (0..<500).collect { generator.generateValue() } } as Callable<List<String>>
+    })*.get().flatten()
+    then:
+    values.size() == 4000
+    values.toSet().size() == values.size()
+    cleanup:
+    executor.shutdownNow()
+  }
+
+  def 'should derive the same value from the same param'() {
+    given:
+    generator = generator(1, 4)
+    expect:
+    generator.generateValue('param') == generator.generateValue('param')
+    generator.generateValue('param') != generator.generateValue('other')
+    generator.generateValue('param').length() == ENCODED_LENGTH
+  }
+
+  private static SecureRandomValueGenerator generator(int stripes, int bufferSize) {
+    def generator = new SecureRandomValueGenerator(stripes, bufferSize)
+    generator.init()
+    generator
+  }
+}
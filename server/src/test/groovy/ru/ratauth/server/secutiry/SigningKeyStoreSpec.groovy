@@ -0,0 +1,123 @@
+package ru.ratauth.server.secutiry
+
+import com.nimbusds.jose.crypto.ECDSAVerifier
+import com.nimbusds.jose.crypto.RSASSAVerifier
+import com.nimbusds.jose.jwk.ECKey
+import com.nimbusds.jose.jwk.JWKSet
+import com.nimbusds.jose.jwk.RSAKey
+import com.nimbusds.jwt.SignedJWT
+import ru.ratauth.entities.SignatureAlgorithm
+import spock.lang.Specification
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class SigningKeyStoreSpec extends Specification {
+
+  def 'should start without configured keys and support HS256 only'() {
+    given:
+    def keyStore = keyStore('', false)
+    when:
+    keyStore.init()
+    then:
+    keyStore.publicKeys.keys.empty
+    keyStore.supports(SignatureAlgorithm.HS256)
+    !keyStore.supports(SignatureAlgorithm.RS256)
+    !keyStore.supports(SignatureAlgorithm.ES256)
+  }
+
+  def 'should fail #algorithm idToken signing without configured key'() {
+    given:
+    def keyStore = keyStore('', false)
+    keyStore.init()
+    def processor = processorType.newInstance(keyStore)
+    setField(processor, 'issuer', 'http://ratauth.ru')
+    when:
+    processor.createToken('client', null, 'jti', new Date(), new Date() + 1, [] as Set, ['rs.read'] as Set, 'user', [:])
+    then:
+    thrown(IllegalStateException)
+    where:
+    algorithm | processorType
+    'RS256'   | RS256TokenProcessor
+    'ES256'   | ES256TokenProcessor
+  }
+
+  def 'should publish only public part of ephemeral keys'() {
+    given:
+    def keyStore = keyStore('', true)
+    when:
+    keyStore.init()
+    then:
+    keyStore.getRSAKey().isPrivate()
+    keyStore.getECKey().isPrivate()
+    keyStore.publicKeys.keys.size() == 2
+    keyStore.publicKeys.keys.every { !it.isPrivate() }
+  }
+
+  def 'should load signing keys from JWK set file'() {
+    given:
+    def generated = keyStore('', true)
+    generated.init()
+    def file = File.createTempFile('jwks', '.json')
+    file.deleteOnExit()
+    file.text = new JWKSet([generated.getRSAKey(), generated.getECKey()]).toJSONObject(false).toJSONString()
+    def keyStore = keyStore(file.path, false)
+    when:
+    keyStore.init()
+    then:
+    keyStore.getRSAKey().keyID == generated.getRSAKey().keyID
+    keyStore.getECKey().keyID == generated.getECKey().keyID
+  }
+
+  def 'should identify loaded keys without kid by thumbprint'() {
+    given:
+    def generated = keyStore('', true)
+    generated.init()
+    def file = File.createTempFile('jwks', '.json')
+    file.deleteOnExit()
+    file.text = new JWKSet([generated.getRSAKey(), generated.getECKey()]).toJSONObject(false).toJSONString()
+      .replaceAll(/"kid":"[^"]*",?/, '')
+    def keyStore = keyStore(file.path, false)
+    when:
+    keyStore.init()
+    def processor = new RS256TokenProcessor(keyStore)
+    setField(processor, 'issuer', 'http://ratauth.ru')
+    def token = processor.createToken('client', null, 'jti', new Date(), new Date() + 1, [] as Set, ['rs.read'] as Set, 'user', [:])
+    then:
+    keyStore.getRSAKey().keyID == generated.getRSAKey().computeThumbprint().toString()
+    keyStore.getECKey().keyID == generated.getECKey().computeThumbprint().toString()
+    keyStore.getKey(keyStore.getRSAKey().keyID).is(keyStore.getRSAKey())
+    SignedJWT.parse(token).header.keyID == keyStore.getRSAKey().keyID
+    processor.extractInfo(token, null).sub == 'user'
+  }
+
+  def 'should verify #algorithm idToken by published keys'() {
+    given:
+    def keyStore = keyStore('', true)
+    keyStore.init()
+    def processor = processorType.newInstance(keyStore)
+    setField(processor, 'issuer', 'http://ratauth.ru')
+    def published = JWKSet.parse(keyStore.publicKeys.toJSONObject(true).toJSONString())
+    when:
+    def jwt = SignedJWT.parse(processor.createToken('client', null, 'jti', new Date(), new Date() + 1,
+      [] as Set, ['rs.read'] as Set, 'user', [:]))
+    def key = published.getKeyByKeyId(jwt.header.keyID)
+    then:
+    jwt.header.algorithm.name == algorithm
+    jwt.verify(key instanceof RSAKey ? new RSASSAVerifier((RSAKey) key) : new ECDSAVerifier((ECKey) key))
+    processor.extractInfo(jwt.serialize(), null).sub == 'user'
+    where:
+    algorithm | processorType
+    'RS256'   | RS256TokenProcessor
+    'ES256'   | ES256TokenProcessor
+  }
+
+  private static SigningKeyStore keyStore(String location, boolean ephemeral) {
+    def keyStore = new SigningKeyStore()
+    setField(keyStore, 'location', location)
+    setField(keyStore, 'ephemeral', ephemeral)
+    keyStore
+  }
+}
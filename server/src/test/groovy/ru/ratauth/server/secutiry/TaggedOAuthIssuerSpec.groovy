@@ -0,0 +1,128 @@
+package ru.ratauth.server.secutiry
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+import static ru.ratauth.server.secutiry.TaggedOAuthIssuer.Kind
+import static ru.ratauth.server.secutiry.TaggedOAuthIssuer.TagStatus
+
+/**
+ * @since 18/10/26
+ */
+class TaggedOAuthIssuerSpec extends Specification {
+  private static final String MASTER_SECRET = 'cnlqV2hVQml3aWdrc1RqWXBSaFpma3l5enhNVU1TS1A='
+  private static final long HOUR = 3600000
+
+  def 'should accept value issued for the same kind'() {
+    given:
+    def issuer = issuer(true)
+    def now = new Date()
+    expect:
+    issuer.verify(Kind.ACCESS_TOKEN, issuer.accessToken(new Date(now.time + HOUR)), now) == TagStatus.VALID
+    issuer.verify(Kind.REFRESH_TOKEN, issuer.refreshToken(new Date(now.time + HOUR)), now) == TagStatus.VALID
+    issuer.verify(Kind.AUTH_CODE, issuer.authorizationCode(new Date(now.time + HOUR)), now) == TagStatus.VALID
+  }
+
+  @Unroll
+  def 'should reject value with forged #part'() {
+    given:
+    def issuer = issuer(false)
+    def now = new Date()
+    def value = issuer.accessToken(new Date(now.time + HOUR))
+    when:
+    def parts = value.split('~')
+    parts[index] = forge(parts[index])
+    then:
+    issuer.verify(Kind.ACCESS_TOKEN, parts.join('~'), now) == TagStatus.FORGED
+    where:
+    part    | index
+    'value' | 0
+    'tag'   | 2
+  }
+
+  def 'should reject value with prolonged expiry'() {
+    given:
+    def issuer = issuer(false)
+    def now = new Date()
+    def parts = issuer.accessToken(new Date(now.time - HOUR)).split('~')
+    parts[1] = Long.toString(Long.parseLong(parts[1], 36) + 7200, 36)
+    expect:
+    issuer.verify(Kind.ACCESS_TOKEN, parts.join('~'), now) == TagStatus.FORGED
+  }
+
+  def 'should reject value issued for another kind'() {
+    given:
+    def issuer = issuer(false)
+    def now = new Date()
+    expect:
+    issuer.verify(Kind.ACCESS_TOKEN, issuer.refreshToken(new Date(now.time + HOUR)), now) == TagStatus.FORGED
+  }
+
+  def 'should report expired value by embedded expiry'() {
+    given:
+    def issuer = issuer(false)
+    def now = new Date()
+    expect:
+    issuer.verify(Kind.AUTH_CODE, issuer.authorizationCode(new Date(now.time - HOUR)), now) == TagStatus.EXPIRED
+  }
+
+  @Unroll
+  def 'should report #status for untagged value when enforce is #enforce'() {
+    expect:
+    issuer(enforce).verify(Kind.ACCESS_TOKEN, 'legacy-token', new Date()) == status
+    where:
+    enforce | status
+    false   | TagStatus.UNTAGGED
+    true    | TagStatus.MALFORMED
+  }
+
+  @Unroll
+  def 'should report malformed value #value'() {
+    expect:
+    issuer(false).verify(Kind.ACCESS_TOKEN, value, new Date()) == TagStatus.MALFORMED
+    where:
+    value << [null, '', '~abc', 'value~!!~tag', 'value~zz~c2hvcnQ']
+  }
+
+  def 'should keep hint inside tagged value'() {
+    given:
+    def issuer = issuer(true)
+    def now = new Date()
+    when:
+    def value = issuer.accessToken(new Date(now.time + HOUR), 'hint')
+    then:
+    value.startsWith('hint')
+    issuer.verify(Kind.ACCESS_TOKEN, value, now) == TagStatus.VALID
+    issuer.verify(Kind.ACCESS_TOKEN, 'tnih' + value.substring(4), now) == TagStatus.FORGED
+  }
+
+  def 'should count verification results'() {
+    given:
+    def issuer = issuer(false)
+    def now = new Date()
+    when:
+    issuer.verify(Kind.ACCESS_TOKEN, issuer.accessToken(new Date(now.time + HOUR)), now)
+    issuer.verify(Kind.ACCESS_TOKEN, 'legacy-token', now)
+    issuer.verify(Kind.ACCESS_TOKEN, 'legacy-token', now)
+    then:
+    def metrics = issuer.metrics().collectEntries { [it.name, it.value] }
+    metrics['token.tag.valid'] == 1
+    metrics['token.tag.untagged'] == 2
+    metrics['token.tag.forged'] == 0
+  }
+
+  private static TaggedOAuthIssuer issuer(boolean enforce) {
+    def issuer = new TaggedOAuthIssuer(new UUIDValueGenerator())
+    setField(issuer, 'masterSecret', MASTER_SECRET)
+    setField(issuer, 'enforce', enforce)
+    issuer.init()
+    issuer
+  }
+
+  private static String forge(String part) {
+    def chars = part.toCharArray()
+    chars[0] = chars[0] == 'A' as char ? 'B' as char : 'A' as char
+    new String(chars)
+  }
+}
@@ -0,0 +1,174 @@
+package ru.ratauth.server.services
+
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Status
+import ru.ratauth.providers.auth.AuthProvider
+import rx.Observable
+import rx.subjects.PublishSubject
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class BackgroundSessionStatusCheckerSpec extends Specification {
+  private PollingConditions conditions = new PollingConditions(timeout: 5)
+  private AuthSessionService sessionService = Mock(AuthSessionService)
+  private TokenCacheService tokenCacheService = Mock(TokenCacheService)
+  private AuthProvider provider = Mock(AuthProvider)
+  private List<Map> calls = new CopyOnWriteArrayList<>()
+  private Set<String> updated = ConcurrentHashMap.newKeySet()
+  private Set<String> blocked = ConcurrentHashMap.newKeySet()
+  private BackgroundSessionStatusChecker checker
+
+  def setup() {
+    tokenCacheService.extractUserInfo(_ as Session) >> { Session session -> [sub: session.userId] }
+    provider.checkUserStatuses(_) >> { Map inputs ->
+      calls << inputs
+      Observable.just(inputs.keySet().collectEntries { [it, it != 'blocked-user'] })
+    }
+    sessionService.updateCheckDates(_, _) >> { Collection ids, Date date -> updated.addAll(ids); Observable.just(true) }
+    sessionService.invalidateSessions(_, _) >> { Collection ids, Date date -> blocked.addAll(ids); Observable.just(true) }
+    checker = checker([STUB: provider])
+  }
+
+  def cleanup() {
+    checker.destroy()
+  }
+
+  def 'should check due sessions of provider by one bulk call'() {
+    when:
+    checker.checkAndUpdateSession(session('s1', 'user', 'STUB'))
+    checker.checkAndUpdateSession(session('s2', 'user', 'STUB'))
+    checker.checkAndUpdateSession(session('s3', 'blocked-user', 'STUB'))
+    then:
+    conditions.eventually {
+      assert updated == ['s1', 's2'] as Set
+      assert blocked == ['s3'] as Set
+    }
+    calls.size() == 1
+    calls[0].keySet() == ['user', 'blocked-user'] as Set
+  }
+
+  def 'should delay check until check interval since last check passes'() {
+    given:
+    def checked = session('s1', 'user', 'STUB')
+    checked.lastCheck = new Date(System.currentTimeMillis() - 59000)
+    when:
+    checker.checkAndUpdateSession(checked)
+    checker.checkAndUpdateSession(session('s2', 'user', 'STUB'))
+    then:
+    conditions.eventually {
+      assert updated == ['s2'] as Set
+    }
+    metric('session.check.queue.depth') == 1
+    when:
+    Thread.sleep(300)
+    then:
+    updated == ['s2'] as Set
+    conditions.eventually {
+      assert updated == ['s1', 's2'] as Set
+    }
+    calls.size() == 2
+  }
+
+  def 'should coalesce checks of the same session'() {
+    when:
+    3.times { checker.checkAndUpdateSession(session('s1', 'user', 'STUB')) }
+    then:
+    conditions.eventually {
+      assert updated == ['s1'] as Set
+    }
+    calls.size() == 1
+    metric('session.check.coalesced') == 2
+  }
+
+  def 'should skip sessions without known identity provider'() {
+    when:
+    checker.checkAndUpdateSession(session('s1', 'user', null))
+    checker.checkAndUpdateSession(session('s2', 'user', 'UNKNOWN'))
+    checker.checkAndUpdateSession(session('s3', 'user', 'STUB'))
+    then:
+    conditions.eventually {
+      assert updated == ['s3'] as Set
+    }
+    metric('session.check.dropped') == 2
+    metric('session.check.queue.depth') == 0
+  }
+
+  def 'should keep dispatching after failed check'() {
+    given:
+    def failing = Mock(AuthProvider)
+    failing.checkUserStatuses(_) >> { throw new IllegalStateException('provider failure') }
+    checker.destroy()
+    checker = checker([STUB: provider, FAILING: failing])
+    when:
+    checker.checkAndUpdateSession(session('s1', 'user', 'FAILING'))
+    then:
+    conditions.eventually {
+      assert metric('session.check.queue.depth') == 0
+    }
+    when:
+    checker.checkAndUpdateSession(session('s2', 'user', 'STUB'))
+    then:
+    conditions.eventually {
+      assert updated == ['s2'] as Set
+    }
+  }
+
+  def 'should join status check of user in flight instead of checking user again'() {
+    given:
+    def slowResult = PublishSubject.<Map<String, Boolean>> create()
+    def slow = Mock(AuthProvider)
+    def inputs = new CopyOnWriteArrayList<Map>()
+    slow.checkUserStatuses(_) >> { Map input ->
+      inputs << new HashMap(input)
+      inputs.size() == 1 ? slowResult : Observable.just(input.keySet().collectEntries { [it, true] })
+    }
+    checker.destroy()
+    checker = checker([SLOW: slow])
+    when:
+    checker.checkAndUpdateSession(session('s1', 'user', 'SLOW'))
+    then:
+    conditions.eventually {
+      assert inputs.size() == 1
+    }
+    when:
+    checker.checkAndUpdateSession(session('s2', 'user', 'SLOW'))
+    checker.checkAndUpdateSession(session('s3', 'other', 'SLOW'))
+    then:
+    conditions.eventually {
+      assert inputs.size() == 2
+    }
+    inputs[1].keySet() == ['other'] as Set
+    when:
+    slowResult.onNext([user: true])
+    slowResult.onCompleted()
+    then:
+    conditions.eventually {
+      assert updated == ['s1', 's2', 's3'] as Set
+    }
+  }
+
+  private BackgroundSessionStatusChecker checker(Map<String, AuthProvider> providers) {
+    def checker = new BackgroundSessionStatusChecker(sessionService, providers, tokenCacheService)
+    [backgroundCheckEnabled: true, concurrency: 10, checkTimeout: 5, batchSize: 100, batchWindow: 50,
+     checkInterval: 60, queueSize: 1000].each { name, value -> setField(checker, name, value) }
+    checker.init()
+    checker
+  }
+
+  private long metric(String name) {
+    checker.metrics().find { it.name == name }.value as long
+  }
+
+  private static Session session(String id, String userId, String identityProvider) {
+    new Session(id: id, userId: userId, identityProvider: identityProvider, authClient: 'client',
+      status: Status.ACTIVE, expiresIn: new Date(System.currentTimeMillis() + 3600000))
+  }
+}
@@ -0,0 +1,136 @@
+package ru.ratauth.server.services
+
+import ru.ratauth.entities.AuthClient
+import ru.ratauth.entities.RelyingParty
+import ru.ratauth.server.secutiry.MacContextCache
+import ru.ratauth.services.ClientService
+import rx.Observable
+import spock.lang.Specification
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class ClientRegistrySpec extends Specification {
+  private static final String SECRET = 'cnlqV2hVQml3aWdrc1RqWXBSaFpma3l5enhNVU1TS1A='
+  private static final String OTHER_SECRET = 'HdC4t2Wpjn/obYj9JHLVwmGzSqQ5SlatYqMF6zuAL0s='
+
+  private ClientService clientService = Mock(ClientService)
+  private MacContextCache macContextCache = macContextCache()
+  private ClientRegistry registry
+
+  def cleanup() {
+    registry?.destroy()
+  }
+
+  def 'should serve clients from snapshot without storage reads'() {
+    given:
+    clientService.getClients() >> Observable.just(new RelyingParty(name: 'rp'), new AuthClient(name: 'rs'))
+    registry = registry()
+    when:
+    def relyingParty = registry.getRelyingParty('rp').toBlocking().single()
+    def client = registry.getClient('rs').toBlocking().single()
+    then:
+    relyingParty.name == 'rp'
+    client.name == 'rs'
+    0 * clientService.getRelyingParty(_)
+    0 * clientService.getClient(_)
+    storeReads() == 0
+  }
+
+  def 'should load missing client once and cache not found names'() {
+    given:
+    clientService.getClients() >> Observable.empty()
+    registry = registry()
+    when:
+    def loaded = (1..3).collect { registry.getRelyingParty('new').toBlocking().single() }
+    def missing = (1..3).collect { registry.getRelyingParty('unknown').toList().toBlocking().single() }
+    then:
+    1 * clientService.getRelyingParty('new') >> Observable.just(new RelyingParty(name: 'new'))
+    1 * clientService.getRelyingParty('unknown') >> Observable.empty()
+    loaded*.name == ['new'] * 3
+    missing.every { it.empty }
+  }
+
+  def 'should keep previous snapshot if refresh fails'() {
+    given:
+    clientService.getClients() >>> [Observable.just(new RelyingParty(name: 'rp')),
+                                    Observable.error(new IllegalStateException('storage is down'))]
+    registry = registry()
+    when:
+    registry.refresh()
+    then:
+    registry.getRelyingParty('rp').toBlocking().single().name == 'rp'
+    registry.metrics().find { it.name == 'client_registry.refresh.failures' }.value == 1
+  }
+
+  def 'should expire clients loaded on demand if storage does not load all clients'() {
+    given:
+    clientService.getClients() >> Observable.error(new UnsupportedOperationException())
+    registry = registry()
+    def passwords = ['first', 'second'].iterator()
+    clientService.getRelyingParty('rp') >> { Observable.just(new RelyingParty(name: 'rp', password: passwords.next())) }
+    when:
+    def first = registry.getRelyingParty('rp').toBlocking().single()
+    def cached = registry.getRelyingParty('rp').toBlocking().single()
+    registry.refresh()
+    def reloaded = registry.getRelyingParty('rp').toBlocking().single()
+    then:
+    first.password == 'first'
+    cached.password == 'first'
+    reloaded.password == 'second'
+    storeReads() == 2
+  }
+
+  def 'should evict crypto context of changed and removed secrets on refresh'() {
+    given:
+    def thirdSecret = 'c2VjcmV0LW9mLXRoZS10aGlyZC1jbGllbnQtMTIzNDU='
+    clientService.getClients() >>> [
+      Observable.just(new RelyingParty(name: 'rp', secret: SECRET), new AuthClient(name: 'rs', secret: OTHER_SECRET),
+        new AuthClient(name: 'removed', secret: thirdSecret)),
+      Observable.just(new RelyingParty(name: 'rp', secret: SECRET), new AuthClient(name: 'rs', secret: 'changed'))]
+    registry = registry()
+    def unchanged = macContextCache.get(SECRET)
+    def changed = macContextCache.get(OTHER_SECRET)
+    def removed = macContextCache.get(thirdSecret)
+    when:
+    registry.refresh()
+    then:
+    macContextCache.get(SECRET).is(unchanged)
+    !macContextCache.get(OTHER_SECRET).is(changed)
+    !macContextCache.get(thirdSecret).is(removed)
+  }
+
+  def 'should evict crypto context of clients loaded on demand on refresh'() {
+    given:
+    clientService.getClients() >> Observable.error(new UnsupportedOperationException())
+    clientService.getRelyingParty('rp') >> Observable.just(new RelyingParty(name: 'rp', secret: SECRET))
+    registry = registry()
+    registry.getRelyingParty('rp').toBlocking().single()
+    def context = macContextCache.get(SECRET)
+    when:
+    registry.refresh()
+    then:
+    !macContextCache.get(SECRET).is(context)
+  }
+
+  private ClientRegistry registry() {
+    def registry = new ClientRegistry(clientService, macContextCache)
+    [refreshInterval: 3600, negativeCacheSize: 100, negativeCacheTTL: 60].each { name, value -> setField(registry, name, value) }
+    registry.init()
+    registry
+  }
+
+  private static MacContextCache macContextCache() {
+    def cache = new MacContextCache()
+    setField(cache, 'cacheSize', 10)
+    setField(cache, 'cacheTTL', 60)
+    cache.init()
+    cache
+  }
+
+  private long storeReads() {
+    registry.metrics().find { it.name == 'client_registry.store_reads' }.value as long
+  }
+}
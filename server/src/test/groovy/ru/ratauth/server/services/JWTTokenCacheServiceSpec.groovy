@@ -0,0 +1,190 @@
+package ru.ratauth.server.services
+
+import ru.ratauth.entities.AuthClient
+import ru.ratauth.entities.AuthEntry
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Token
+import ru.ratauth.entities.TokenCache
+import ru.ratauth.server.secutiry.TokenProcessor
+import rx.Observable
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class JWTTokenCacheServiceSpec extends Specification {
+  private static final String MASTER_SECRET = 'cnlqV2hVQml3aWdrc1RqWXBSaFpma3l5enhNVU1TS1A='
+  private static final String CLIENT = 'client'
+  private static final long HOUR = 3600000
+
+  private TokenProcessor tokenProcessor = Mock(TokenProcessor)
+  private TokenProcessor idTokenProcessor = Mock(TokenProcessor)
+  private ru.ratauth.services.TokenCacheService persistentTokenCache = Mock(ru.ratauth.services.TokenCacheService)
+  private JWTTokenCacheService tokenCacheService
+
+  def setup() {
+    tokenCacheService = new JWTTokenCacheService(tokenProcessor, [HS256: idTokenProcessor])
+    [persistentTokenCache: persistentTokenCache, masterSecret: MASTER_SECRET, userInfoCacheSize: 10, userInfoCacheTTL: 60, idTokenCacheSize: 10, idTokenCacheTTL: 60]
+      .each { name, value -> setField(tokenCacheService, name, value) }
+    tokenCacheService.init()
+    _ * idTokenProcessor.filterUserInfo(_) >> { Map info -> info.findAll { it.key != 'sub' } }
+  }
+
+  def 'should verify user info of session once'() {
+    given:
+    def session = session('s1', 'header.claims.signature', HOUR)
+    when:
+    def first = tokenCacheService.extractUserInfo(session)
+    def second = tokenCacheService.extractUserInfo(session)
+    then:
+    1 * tokenProcessor.extractInfo('header.claims.signature', MASTER_SECRET) >> [sub: 'user']
+    first == [sub: 'user']
+    second.is(first)
+    metric('cache.user_info.hit') == 1
+  }
+
+  def 'should verify user info again when it is changed'() {
+    when:
+    tokenCacheService.extractUserInfo(session('s1', 'header.claims.signature', HOUR))
+    def changed = tokenCacheService.extractUserInfo(session('s1', 'header.other.changed', HOUR))
+    then:
+    1 * tokenProcessor.extractInfo('header.claims.signature', MASTER_SECRET) >> [sub: 'user']
+    1 * tokenProcessor.extractInfo('header.other.changed', MASTER_SECRET) >> [sub: 'other']
+    changed == [sub: 'other']
+  }
+
+  def 'should not cache user info of session without id or expired one'() {
+    when:
+    2.times { tokenCacheService.extractUserInfo(session(null, 'header.claims.signature', HOUR)) }
+    2.times { tokenCacheService.extractUserInfo(session('s1', 'header.claims.signature', -HOUR)) }
+    then:
+    4 * tokenProcessor.extractInfo('header.claims.signature', MASTER_SECRET) >> [sub: 'user']
+    metric('cache.user_info.size') == 0
+  }
+
+  def 'should verify user info again after session invalidation'() {
+    given:
+    def session = session('s1', 'header.claims.signature', HOUR)
+    when:
+    tokenCacheService.extractUserInfo(session)
+    tokenCacheService.onSessionInvalidated('s1', new Date())
+    tokenCacheService.extractUserInfo(session)
+    then:
+    2 * tokenProcessor.extractInfo('header.claims.signature', MASTER_SECRET) >> [sub: 'user']
+  }
+
+  def 'should sign idToken once and keep it in both cache levels'() {
+    given:
+    def session = session('s1', 'header.claims.signature', HOUR)
+    def stored = []
+    def signedArgs = null
+    when:
+    def first = tokenCacheService.getToken(session, client(), session.entries.first()).toBlocking().single()
+    def second = tokenCacheService.getToken(session, client(), session.entries.first()).toBlocking().single()
+    then:
+    1 * persistentTokenCache.get('token', CLIENT) >> Observable.empty()
+    1 * tokenProcessor.extractInfo(_, MASTER_SECRET) >> [sub: 'user', email: 'user@ratauth.ru']
+    1 * idTokenProcessor.createToken(*_) >> { args -> signedArgs = args; 'id-token' }
+    (0..1) * persistentTokenCache.create(_) >> { TokenCache tokenCache -> stored << tokenCache; Observable.just(tokenCache) }
+    signedArgs[0..2] == [CLIENT, 'secret', 'token']
+    signedArgs[5..8] == [['rs'] as Set, ['rs.read'] as Set, 'user', [email: 'user@ratauth.ru']]
+    first.idToken == 'id-token'
+    first.session == 's1'
+    second.is(first)
+    new PollingConditions(timeout: 5).eventually {
+      assert stored*.idToken == ['id-token']
+    }
+    metric('cache.id_token.signed') == 1
+    metric('cache.id_token.persistent.miss') == 1
+    metric('cache.id_token.hit') == 1
+  }
+
+  def 'should serve idToken from persistent cache without signing'() {
+    given:
+    def session = session('s1', 'header.claims.signature', HOUR)
+    def persistent = new TokenCache(token: 'token', client: CLIENT, idToken: 'stored-id-token')
+    when:
+    def first = tokenCacheService.getToken(session, client(), session.entries.first()).toBlocking().single()
+    def second = tokenCacheService.getToken(session, client(), session.entries.first()).toBlocking().single()
+    then:
+    1 * persistentTokenCache.get('token', CLIENT) >> Observable.just(persistent)
+    0 * idTokenProcessor.createToken(*_)
+    0 * persistentTokenCache.create(_)
+    first.is(persistent)
+    second.is(persistent)
+    metric('cache.id_token.persistent.hit') == 1
+  }
+
+  def 'should sign idToken when persistent cache fails'() {
+    given:
+    def session = session('s1', 'header.claims.signature', HOUR)
+    when:
+    def result = tokenCacheService.getToken(session, client(), session.entries.first()).toBlocking().single()
+    then:
+    1 * persistentTokenCache.get('token', CLIENT) >> Observable.error(new IllegalStateException('unavailable'))
+    1 * tokenProcessor.extractInfo(_, MASTER_SECRET) >> [sub: 'user']
+    1 * idTokenProcessor.createToken(*_) >> 'id-token'
+    (0..1) * persistentTokenCache.create(_) >> Observable.error(new IllegalStateException('unavailable'))
+    result.idToken == 'id-token'
+  }
+
+  def 'should not keep idToken of expired access token in memory'() {
+    given:
+    def session = session('s1', 'header.claims.signature', HOUR)
+    session.entries.first().tokens.first().expiresIn = new Date(System.currentTimeMillis() - HOUR)
+    def persistent = new TokenCache(token: 'token', client: CLIENT, idToken: 'stored-id-token')
+    when:
+    2.times { tokenCacheService.getToken(session, client(), session.entries.first()).toBlocking().single() }
+    then:
+    2 * persistentTokenCache.get('token', CLIENT) >> Observable.just(persistent)
+    metric('cache.id_token.size') == 0
+  }
+
+  def 'should cache idToken in memory only without persistent cache'() {
+    given:
+    setField(tokenCacheService, 'persistentTokenCache', null)
+    def session = session('s1', 'header.claims.signature', HOUR)
+    when:
+    def first = tokenCacheService.getToken(session, client(), session.entries.first()).toBlocking().single()
+    def second = tokenCacheService.getToken(session, client(), session.entries.first()).toBlocking().single()
+    then:
+    1 * tokenProcessor.extractInfo(_, MASTER_SECRET) >> [sub: 'user']
+    1 * idTokenProcessor.createToken(*_) >> 'id-token'
+    0 * persistentTokenCache._
+    first.idToken == 'id-token'
+    second.is(first)
+    metric('cache.id_token.persistent.miss') == 0
+  }
+
+  def 'should fail for client with unknown signature algorithm'() {
+    given:
+    def session = session('s1', 'header.claims.signature', HOUR)
+    def client = client()
+    client.idTokenSignatureAlgorithm = ru.ratauth.entities.SignatureAlgorithm.RS256
+    persistentTokenCache.get(*_) >> Observable.empty()
+    tokenProcessor.extractInfo(*_) >> [sub: 'user']
+    when:
+    tokenCacheService.getToken(session, client, session.entries.first()).toBlocking().single()
+    then:
+    thrown(IllegalStateException)
+  }
+
+  private long metric(String name) {
+    tokenCacheService.metrics().find { it.name == name }.value as long
+  }
+
+  private static AuthClient client() {
+    new AuthClient(name: CLIENT, secret: 'secret')
+  }
+
+  private static Session session(String id, String userInfo, long ttl) {
+    def now = new Date()
+    def entry = AuthEntry.builder().relyingParty(CLIENT).scopes(['rs.read'] as Set).created(now).build()
+    entry.addToken(Token.builder().token('token').created(now).expiresIn(new Date(now.time + HOUR)).build())
+    Session.builder().id(id).userInfo(userInfo).created(now).expiresIn(new Date(now.time + ttl))
+      .entries([entry] as Set).build()
+  }
+}
@@ -0,0 +1,220 @@
+package ru.ratauth.server.services
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.nimbusds.jwt.SignedJWT
+import ru.ratauth.entities.AccessTokenFormat
+import ru.ratauth.entities.RelyingParty
+import ru.ratauth.entities.Session
+import ru.ratauth.exception.AuthorizationException
+import ru.ratauth.interaction.CheckTokenRequest
+import ru.ratauth.server.persistence.InMemorySessionService
+import ru.ratauth.server.secutiry.HS256TokenProcessor
+import ru.ratauth.server.secutiry.MacContextCache
+import ru.ratauth.server.secutiry.TaggedOAuthIssuer
+import ru.ratauth.server.secutiry.UUIDValueGenerator
+import ru.ratauth.server.services.log.ActionLogger
+import ru.ratauth.services.SessionHintProvider
+import rx.Observable
+import spock.lang.Specification
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class OpenIdSessionServiceSpec extends Specification {
+  private static final String MASTER_SECRET = 'cnlqV2hVQml3aWdrc1RqWXBSaFpma3l5enhNVU1TS1A='
+  private static final String CLIENT = 'client'
+
+  private CompactCheckStorage storage
+  private RevocationFilter revocationFilter
+  private TokenCacheService tokenCacheService = Mock(TokenCacheService)
+  private OpenIdSessionService sessionService
+
+  def setup() {
+    storage = new CompactCheckStorage()
+    storage.init()
+    revocationFilter = new RevocationFilter(storage)
+    [exactMaxSize: 1000, expectedSize: 1000, fpp: 0.001d, retention: 3600, refreshInterval: 60, rebuildInterval: 3600]
+      .each { name, value -> setField(revocationFilter, name, value) }
+    revocationFilter.init()
+    def macContextCache = new MacContextCache()
+    setField(macContextCache, 'cacheSize', 10)
+    setField(macContextCache, 'cacheTTL', 60)
+    macContextCache.init()
+    def tokenProcessor = new HS256TokenProcessor(new ObjectMapper(), macContextCache)
+    setField(tokenProcessor, 'issuer', 'http://ratauth.ru')
+    def issuer = new TaggedOAuthIssuer(new UUIDValueGenerator())
+    setField(issuer, 'masterSecret', MASTER_SECRET)
+    setField(issuer, 'enforce', false)
+    issuer.init()
+    def nearCache = new SessionNearCache()
+    setField(nearCache, 'maxWeight', 1024L)
+    setField(nearCache, 'cacheTTL', 0)
+    nearCache.init()
+    _ * tokenCacheService.extractAudience(_) >> ([] as Set)
+    sessionService = new OpenIdSessionService(storage, tokenProcessor, tokenCacheService, issuer, Mock(ActionLogger),
+      nearCache, revocationFilter, [revocationFilter, nearCache])
+    setField(sessionService, 'masterSecret', MASTER_SECRET)
+    setField(sessionService, 'trustSelfContained', false)
+  }
+
+  def cleanup() {
+    revocationFilter.destroy()
+    storage.destroy()
+  }
+
+  def 'should issue self-contained token without user info'() {
+    when:
+    def session = createSession()
+    def claims = SignedJWT.parse(accessToken(session)).JWTClaimsSet
+    then:
+    claims.getClaim(OpenIdSessionService.JWT_SID) == session.id
+    claims.getClaim('client_id') == CLIENT
+    claims.getClaim('scope') == ['rs.read']
+    claims.expirationTime != null
+    claims.subject == null
+    claims.getClaim('user_id') == null
+    claims.getClaim('email') == null
+  }
+
+  def 'should check self-contained token by session status'() {
+    given:
+    def session = createSession()
+    def token = accessToken(session)
+    when:
+    def restored = sessionService.getByValidSelfContainedToken(token, new Date()).toBlocking().single()
+    then:
+    restored.id == session.id
+    restored.userInfo == null
+    restored.entries.first().scopes == ['rs.read'] as Set
+    restored.entries.first().tokens.first().token == token
+    when:
+    sessionService.invalidateSession(session.id, new Date()).toBlocking().single()
+    sessionService.getByValidSelfContainedToken(token, new Date()).toBlocking().single()
+    then:
+    def e = thrown(AuthorizationException)
+    e.id == AuthorizationException.ID.SESSION_BLOCKED.name()
+  }
+
+  def 'should reject self-contained token of unknown session'() {
+    given:
+    def session = createSession()
+    def token = accessToken(session)
+    storage.evict(session.id)
+    when:
+    sessionService.getByValidSelfContainedToken(token, new Date()).toBlocking().single()
+    then:
+    def e = thrown(AuthorizationException)
+    e.id == AuthorizationException.ID.SESSION_BLOCKED.name()
+  }
+
+  def 'should check self-contained token by whole session if storage has no compact status check'() {
+    given:
+    storage.compactCheck = false
+    def session = createSession()
+    def other = createSession()
+    when:
+    def restored = sessionService.getByValidSelfContainedToken(accessToken(session), new Date()).toBlocking().single()
+    then:
+    restored.id == session.id
+    when:
+    sessionService.invalidateSession(session.id, new Date()).toBlocking().single()
+    sessionService.getByValidSelfContainedToken(accessToken(session), new Date()).toBlocking().single()
+    then:
+    def blocked = thrown(AuthorizationException)
+    blocked.id == AuthorizationException.ID.SESSION_BLOCKED.name()
+    when:
+    storage.evict(other.id)
+    sessionService.getByValidSelfContainedToken(accessToken(other), new Date()).toBlocking().single()
+    then:
+    def unknown = thrown(AuthorizationException)
+    unknown.id == AuthorizationException.ID.SESSION_BLOCKED.name()
+  }
+
+  def 'should detect self-contained token'() {
+    expect:
+    sessionService.isSelfContained(token) == selfContained
+    where:
+    token                                         | selfContained
+    null                                          | false
+    ''                                            | false
+    'opaque~1~tag'                                | false
+    '0a1b2c3d~opaque~1~tag'                       | false
+    UUID.randomUUID().toString()                  | false
+    'header.body.sig'                             | false
+    '.e30.sig'                                    | false
+    'eyJhbGciOiJIUzI1NiJ9.e30'                    | false
+    'eyJhbGciOiJIUzI1NiJ9.e30.sig.sig'            | false
+    'eyJhbGciOiJIUzI1NiJ9.e30.c2ln'               | true
+  }
+
+  def 'should issue opaque values without hint unless storage provides it'() {
+    when:
+    def plain = createSession(AccessTokenFormat.OPAQUE)
+    then:
+    [plain.entries.first().authCode, plain.entries.first().refreshToken, accessToken(plain)]
+      .every { it.count('~') == 2 }
+    !sessionService.isSelfContained(accessToken(plain))
+    when:
+    setField(sessionService, 'hintProvider', { sessionId -> 'hint-of-' + sessionId + '~' } as SessionHintProvider)
+    def hinted = createSession(AccessTokenFormat.OPAQUE)
+    then:
+    [hinted.entries.first().authCode, hinted.entries.first().refreshToken, accessToken(hinted)]
+      .every { it.startsWith("hint-of-${hinted.id}~") }
+    !sessionService.isSelfContained(accessToken(hinted))
+    sessionService.getByValidToken(accessToken(hinted), new Date()).toBlocking().single().id == hinted.id
+  }
+
+  def 'should check self-contained token without idToken'() {
+    given:
+    def session = createSession()
+    def authClientService = Mock(AuthClientService)
+    authClientService.loadAndAuthClient('rs', 'password', true) >> Observable.just(new RelyingParty(name: 'rs'))
+    def tokenService = new OpenIdAuthTokenService([:], sessionService, tokenCacheService, authClientService,
+      Mock(SessionStatusChecker))
+    when:
+    def response = tokenService.checkToken(new CheckTokenRequest(accessToken(session), 'rs', 'password', null))
+      .toBlocking().single()
+    then:
+    0 * tokenCacheService.getToken(*_)
+    response.idToken == null
+    response.clientId == 'rs'
+    response.scopes == ['rs.read'] as Set
+    response.expiresIn > System.currentTimeMillis()
+  }
+
+  private Session createSession(AccessTokenFormat format = AccessTokenFormat.JWT) {
+    def relyingParty = new RelyingParty(
+      name: CLIENT,
+      identityProvider: 'STUB',
+      accessTokenFormat: format,
+      codeTTL: 600L,
+      refreshTokenTTL: 3600L,
+      sessionTTL: 3600L,
+      tokenTTL: 600L)
+    sessionService.createSession(relyingParty, [user_id: 'user', email: 'user@ratauth.ru'], ['rs.read'] as Set, null)
+      .toBlocking().single()
+  }
+
+  private static String accessToken(Session session) {
+    session.getEntry(CLIENT).get().latestToken.get().token
+  }
+
+  /**
+   * Storage that could lack compact status check, as storages implemented before self-contained tokens
+   */
+  private static class CompactCheckStorage extends InMemorySessionService {
+    volatile boolean compactCheck = true
+
+    CompactCheckStorage() {
+      super(Long.MAX_VALUE, 300, 1000, 4096)
+    }
+
+    @Override
+    Observable<Boolean> isActive(String sessionId, Date now) {
+      compactCheck ? super.isActive(sessionId, now) :
+        Observable.error(new UnsupportedOperationException('Session status check is not supported'))
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package ru.ratauth.server.services
+
+import ru.ratauth.exception.AuthorizationException
+import ru.ratauth.exception.InternalLogicException
+import ru.ratauth.providers.auth.AuthProvider
+import rx.Observable
+import org.springframework.mock.env.MockEnvironment
+import spock.lang.Specification
+
+/**
+ * @since 18/10/26
+ */
+class OpenIdUserStatusServiceSpec extends Specification {
+  private AuthSessionService sessionService = Mock(AuthSessionService)
+  private OpenIdUserStatusService userStatusService
+
+  def setup() {
+    userStatusService = new OpenIdUserStatusService(sessionService,
+      [STUB: Mock(AuthProvider), OTHER: Mock(AuthProvider), SILENT: Mock(AuthProvider)])
+    userStatusService.environment = new MockEnvironment()
+      .withProperty('auth.user_status.push_secrets.STUB', 'secret')
+      .withProperty('auth.user_status.push_secrets.OTHER', 'other-secret')
+    userStatusService.init()
+  }
+
+  def 'should invalidate sessions of pushed blocked user'() {
+    given:
+    sessionService.invalidateForUser('STUB', 'user', _) >> Observable.just('s1', 's2')
+    expect:
+    userStatusService.pushUserBlocked('STUB', 'secret', 'user').toBlocking().single() == 2
+    userStatusService.metrics().find { it.name == 'user_status.invalidated_sessions' }.value == 2
+  }
+
+  def 'should reject push with wrong secret'() {
+    when:
+    userStatusService.pushUserBlocked('STUB', 'wrong', 'user').toBlocking().single()
+    then:
+    thrown(AuthorizationException)
+    0 * sessionService.invalidateForUser(*_)
+  }
+
+  def 'should reject push by secret of other provider or without provider secret'() {
+    when:
+    userStatusService.pushUserBlocked(identityProvider, secret, 'user').toBlocking().single()
+    then:
+    thrown(AuthorizationException)
+    0 * sessionService.invalidateForUser(*_)
+    where:
+    identityProvider | secret
+    'OTHER'          | 'secret'
+    'STUB'           | 'other-secret'
+    'SILENT'         | ''
+    'UNKNOWN'        | 'secret'
+    null             | 'secret'
+  }
+
+  def 'should reject push if storage does not support invalidation by user'() {
+    given:
+    sessionService.invalidateForUser(*_) >> Observable.error(new UnsupportedOperationException())
+    when:
+    userStatusService.pushUserBlocked('STUB', 'secret', 'user').toBlocking().single()
+    then:
+    thrown(InternalLogicException)
+    userStatusService.metrics().find { it.name == 'user_status.blocked' }.value == 0
+  }
+}
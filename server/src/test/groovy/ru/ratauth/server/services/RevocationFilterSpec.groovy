@@ -0,0 +1,168 @@
+package ru.ratauth.server.services
+
+import ru.ratauth.entities.AuthEntry
+import ru.ratauth.entities.AuthType
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Status
+import ru.ratauth.server.persistence.InMemorySessionService
+import ru.ratauth.services.SessionService
+import rx.Observable
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+import static ru.ratauth.server.services.RevocationFilter.Verdict
+
+/**
+ * @since 18/10/26
+ */
+class RevocationFilterSpec extends Specification {
+  private static final long HOUR = 3600000
+
+  private InMemorySessionService storage
+  private List<RevocationFilter> filters = []
+
+  def setup() {
+    storage = new InMemorySessionService(Long.MAX_VALUE, 300, 1000, 4096)
+    storage.init()
+  }
+
+  def cleanup() {
+    filters*.destroy()
+    storage.destroy()
+  }
+
+  def 'should revoke locally invalidated session'() {
+    given:
+    def filter = filter(storage, 100)
+    when:
+    filter.onSessionInvalidated('s1', new Date())
+    then:
+    filter.check('s1', 'client', null) == Verdict.REVOKED
+    filter.check('s2', 'client', null) == Verdict.NOT_REVOKED
+    filter.isComplete()
+  }
+
+  def 'should ask storage about sessions that overflowed exact set'() {
+    given:
+    def filter = filter(storage, 10)
+    when:
+    (0..<100).each { filter.onSessionInvalidated("s$it".toString(), new Date()) }
+    then:
+    filter.metrics().find { it.name == 'revocation.overflowed' }.value == 1
+    (0..<100).every { filter.check("s$it".toString(), 'client', null) != Verdict.NOT_REVOKED }
+    (0..<100).count { filter.check("s$it".toString(), 'client', null) == Verdict.POSSIBLY_REVOKED } >= 90
+    filter.check('unknown', 'client', null) == Verdict.NOT_REVOKED
+  }
+
+  def 'should load revocations of other nodes on refresh'() {
+    given:
+    storeSession('s1', 'client')
+    storeSession('s2', 'other')
+    def filter = filter(storage, 100)
+    def now = new Date()
+    when:
+    storage.invalidateSession('s1', now).toBlocking().single()
+    storage.invalidateForClient('other', now).toBlocking().single()
+    then:
+    filter.check('s1', 'client', null) == Verdict.NOT_REVOKED
+    when:
+    filter.refresh()
+    then:
+    filter.check('s1', 'client', null) == Verdict.REVOKED
+    filter.check('s3', 'other', new Date(now.time - HOUR)) == Verdict.REVOKED
+    filter.check('s4', 'other', new Date(now.time + HOUR)) == Verdict.NOT_REVOKED
+  }
+
+  def 'should rebuild from storage keeping local revocations'() {
+    given:
+    storeSession('s1', 'client')
+    storage.invalidateSession('s1', new Date()).toBlocking().single()
+    def filter = filter(storage, 100)
+    filter.onSessionInvalidated('local', new Date())
+    when:
+    filter.rebuild()
+    then:
+    filter.check('s1', 'client', null) == Verdict.REVOKED
+    filter.check('local', 'client', null) == Verdict.REVOKED
+  }
+
+  def 'should keep revocations made during rebuild'() {
+    given:
+    def slowStorage = new SlowStorage()
+    slowStorage.init()
+    def filter = filter(slowStorage, 100)
+    def executor = Executors.newSingleThreadExecutor()
+    when:
+    slowStorage.slowDown()
+    def rebuild = executor.submit { filter.rebuild() }
+    slowStorage.loading.await(5, TimeUnit.SECONDS)
+    (0..<50).each { filter.onSessionInvalidated("s$it".toString(), new Date()) }
+    slowStorage.release.countDown()
+    rebuild.get(5, TimeUnit.SECONDS)
+    then:
+    (0..<50).every { filter.check("s$it".toString(), 'client', null) == Verdict.REVOKED }
+    cleanup:
+    executor.shutdownNow()
+    slowStorage.destroy()
+  }
+
+  def 'should be incomplete without storage support'() {
+    given:
+    def unsupported = Mock(SessionService)
+    unsupported.getInvalidatedSessions(_, _) >> { throw new UnsupportedOperationException() }
+    when:
+    def filter = filter(unsupported, 100)
+    filter.onSessionInvalidated('s1', new Date())
+    then:
+    !filter.isComplete()
+    filter.check('s1', 'client', null) == Verdict.REVOKED
+  }
+
+  private RevocationFilter filter(SessionService sessionService, int exactMaxSize) {
+    def filter = new RevocationFilter(sessionService)
+    [exactMaxSize: exactMaxSize, expectedSize: 1000, fpp: 0.001d, retention: 3600, refreshInterval: 3600,
+     rebuildInterval: 3600].each { name, value -> setField(filter, name, value) }
+    filter.init()
+    filters << filter
+    filter
+  }
+
+  private void storeSession(String id, String client) {
+    def now = new Date()
+    def entry = AuthEntry.builder().relyingParty(client).authType(AuthType.COMMON).scopes(['rs.read'] as Set)
+      .created(now).build()
+    storage.create(Session.builder().id(id).identityProvider('STUB').authClient(client).userId('user')
+      .status(Status.ACTIVE).created(now).expiresIn(new Date(now.time + HOUR)).entries([entry] as Set).build())
+      .toBlocking().single()
+  }
+
+  /**
+   * Storage that waits until revocations are made while invalidated sessions are loaded
+   */
+  private static class SlowStorage extends InMemorySessionService {
+    CountDownLatch loading
+    CountDownLatch release
+
+    SlowStorage() {
+      super(Long.MAX_VALUE, 300, 1000, 4096)
+    }
+
+    void slowDown() {
+      loading = new CountDownLatch(1)
+      release = new CountDownLatch(1)
+    }
+
+    @Override
+    Observable<String> getInvalidatedSessions(Date since, Date now) {
+      if (loading != null) {
+        loading.countDown()
+        release.await(5, TimeUnit.SECONDS)
+      }
+      super.getInvalidatedSessions(since, now)
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package ru.ratauth.server.services
+
+import ru.ratauth.entities.AuthEntry
+import ru.ratauth.entities.Session
+import ru.ratauth.entities.Token
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import static org.springframework.test.util.ReflectionTestUtils.setField
+
+/**
+ * @since 18/10/26
+ */
+class SessionNearCacheSpec extends Specification {
+  private static final long HOUR = 3600000
+
+  private SessionNearCache cache = nearCache(Long.MAX_VALUE, 60)
+
+  def 'should serve cached session by token'() {
+    given:
+    def session = session('s1', 'client', 'token', new Date(System.currentTimeMillis() + HOUR))
+    when:
+    cache.put('token', session)
+    then:
+    cache.get('token', new Date()).is(session)
+    cache.get('other', new Date()) == null
+  }
+
+  def 'should keep index of token cached twice'() {
+    given:
+    def expiresIn = new Date(System.currentTimeMillis() + HOUR)
+    cache.put('token', session('s1', 'client', 'token', expiresIn))
+    cache.put('token', session('s1', 'client', 'token', expiresIn))
+    when:
+    cache.invalidate('s1')
+    then:
+    cache.get('token', new Date()) == null
+    metric('cache.session.indexed_sessions') == 0
+  }
+
+  def 'should drop session cached longer than its token lives'() {
+    given:
+    def now = new Date()
+    cache.put('token', session('s1', 'client', 'token', new Date(now.time + 1000)))
+    expect:
+    cache.get('token', now) != null
+    cache.get('token', new Date(now.time + 1000)) == null
+    metric('cache.session.indexed_sessions') == 0
+  }
+
+  def 'should expire sessions after near cache ttl'() {
+    given:
+    cache = nearCache(Long.MAX_VALUE, 1)
+    cache.put('token', session('s1', 'client', 'token', new Date(System.currentTimeMillis() + HOUR)))
+    expect:
+    cache.get('token', new Date()) != null
+    new PollingConditions(timeout: 5).eventually {
+      assert cache.get('token', new Date()) == null
+    }
+  }
+
+  def 'should not cache session invalidated before put'() {
+    given:
+    def expiresIn = new Date(System.currentTimeMillis() + HOUR)
+    cache.put('token', session('s1', 'client', 'token', expiresIn))
+    when:
+    cache.onSessionInvalidated('s1', new Date())
+    cache.put('late', session('s1', 'client', 'late', expiresIn))
+    then:
+    cache.get('token', new Date()) == null
+    cache.get('late', new Date()) == null
+  }
+
+  def 'should drop sessions of invalidated client'() {
+    given:
+    def expiresIn = new Date(System.currentTimeMillis() + HOUR)
+    cache.put('token1', session('s1', 'client', 'token1', expiresIn))
+    cache.put('token2', session('s2', 'other', 'token2', expiresIn))
+    when:
+    cache.onClientInvalidated('client', new Date())
+    cache.put('token3', session('s3', 'client', 'token3', expiresIn))
+    then:
+    cache.get('token1', new Date()) == null
+    cache.get('token2', new Date()) != null
+    cache.get('token3', new Date()) == null
+    metric('cache.session.indexed_sessions') == 1
+  }
+
+  def 'should bound cache by weight of sessions'() {
+    given:
+    cache = nearCache(10000, 60)
+    def expiresIn = new Date(System.currentTimeMillis() + HOUR)
+    when:
+    (0..<100).each { cache.put("token$it".toString(), session("s$it".toString(), 'client', "token$it".toString(), expiresIn)) }
+    then:
+    (0..<100).count { cache.get("token$it".toString(), new Date()) != null } < 20
+    metric('cache.session.indexed_sessions') < 20
+  }
+
+  private long metric(String name) {
+    cache.metrics().find { it.name == name }.value as long
+  }
+
+  private static SessionNearCache nearCache(long maxWeight, int cacheTTL) {
+    def cache = new SessionNearCache()
+    setField(cache, 'maxWeight', maxWeight)
+    setField(cache, 'cacheTTL', cacheTTL)
+    cache.init()
+    cache
+  }
+
+  private static Session session(String id, String client, String token, Date expiresIn) {
+    def entry = AuthEntry.builder().relyingParty(client).scopes(['rs.read'] as Set).build()
+    entry.addToken(Token.builder().token(token).created(new Date()).expiresIn(expiresIn).build())
+    Session.builder().id(id).authClient(client).expiresIn(expiresIn).entries([entry] as Set).build()
+  }
+}
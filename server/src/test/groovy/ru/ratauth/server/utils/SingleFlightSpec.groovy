@@ -0,0 +1,134 @@
+package ru.ratauth.server.utils
+
+import rx.Observable
+import rx.subjects.PublishSubject
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * @since 18/10/26
+ */
+class SingleFlightSpec extends Specification {
+  private SingleFlight<String, String> singleFlight = new SingleFlight<>()
+
+  def 'should share one call between concurrent callers'() {
+    given:
+    def source = PublishSubject.<String> create()
+    def created = 0
+    when:
+    def first = singleFlight.execute('key') { created++; source }
+    def second = singleFlight.execute('key') { created++; source }
+    def results = Observable.merge(first, second).toList().toBlocking().toFuture()
+    source.onNext('value')
+    source.onCompleted()
+    then:
+    results.get(5, TimeUnit.SECONDS) == ['value', 'value']
+    created == 1
+    metric('test.collapsed') == 1
+  }
+
+  def 'should not share calls with different keys'() {
+    when:
+    def first = singleFlight.execute('first') { Observable.just('1') }.toBlocking().single()
+    def second = singleFlight.execute('second') { Observable.just('2') }.toBlocking().single()
+    then:
+    first == '1'
+    second == '2'
+    metric('test.collapsed') == 0
+  }
+
+  def 'should share error between callers'() {
+    given:
+    def source = PublishSubject.<String> create()
+    def first = singleFlight.execute('key') { source }
+    def second = singleFlight.execute('key') { source }
+    def errors = [first, second].collect { it.materialize().filter { it.onError }.map { it.throwable }.toBlocking().toFuture() }
+    when:
+    source.onError(new IllegalStateException('failure'))
+    then:
+    errors*.get(5, TimeUnit.SECONDS)*.message == ['failure', 'failure']
+    metric('test.in_flight') == 0
+  }
+
+  def 'should release key after call terminates'() {
+    given:
+    def created = 0
+    when:
+    def results = (1..3).collect { singleFlight.execute('key') { created++; Observable.just("value$created".toString()) }.toBlocking().single() }
+    then:
+    results == ['value1', 'value2', 'value3']
+    metric('test.in_flight') == 0
+  }
+
+  def 'should release key if call factory fails'() {
+    when:
+    singleFlight.execute('key') { throw new IllegalStateException('failure') }.toBlocking().single()
+    then:
+    thrown(IllegalStateException)
+    metric('test.in_flight') == 0
+    singleFlight.execute('key') { Observable.just('value') }.toBlocking().single() == 'value'
+  }
+
+  def 'should join call in flight without starting new one'() {
+    given:
+    def source = PublishSubject.<String> create()
+    def first = singleFlight.execute('key') { source }.toList().toBlocking().toFuture()
+    when:
+    def joined = singleFlight.join('key').toList().toBlocking().toFuture()
+    source.onNext('value')
+    source.onCompleted()
+    then:
+    first.get(5, TimeUnit.SECONDS) == ['value']
+    joined.get(5, TimeUnit.SECONDS) == ['value']
+    singleFlight.join('key') == null
+    singleFlight.join('other') == null
+    metric('test.collapsed') == 1
+  }
+
+  def 'should not fail call that outlives max age'() {
+    given:
+    singleFlight = new SingleFlight<>(100, TimeUnit.MILLISECONDS)
+    def source = PublishSubject.<String> create()
+    def slow = singleFlight.execute('key') { source }.toList().toBlocking().toFuture()
+    when:
+    Thread.sleep(200)
+    def fresh = singleFlight.execute('key') { Observable.just('fresh') }.toBlocking().single()
+    source.onNext('slow')
+    source.onCompleted()
+    then:
+    fresh == 'fresh'
+    slow.get(5, TimeUnit.SECONDS) == ['slow']
+    metric('test.in_flight') == 0
+  }
+
+  def 'should give key of call older than max age to the next caller'() {
+    given:
+    singleFlight = new SingleFlight<>(100, TimeUnit.MILLISECONDS)
+    singleFlight.execute('key') { Observable.never() }
+    when:
+    Thread.sleep(200)
+    def result = singleFlight.execute('key') { Observable.just('value') }.toBlocking().single()
+    then:
+    result == 'value'
+    metric('test.expired') == 1
+    metric('test.collapsed') == 0
+  }
+
+  def 'should release stale keys that are not asked again'() {
+    given:
+    singleFlight = new SingleFlight<>(100, TimeUnit.MILLISECONDS)
+    singleFlight.execute('stuck') { Observable.never() }.subscribe()
+    when:
+    Thread.sleep(200)
+    singleFlight.execute('other') { Observable.just('value') }.toBlocking().single()
+    then:
+    singleFlight.join('stuck') == null
+    metric('test.expired') == 1
+    metric('test.in_flight') == 0
+  }
+
+  private long metric(String name) {
+    singleFlight.metrics('test').find { it.name == name }.value as long
+  }
+}
@@ -0,0 +1,68 @@
+package ru.ratauth.server.utils
+
+import spock.lang.Specification
+
+/**
+ * @since 18/10/26
+ */
+class TimingWheelSpec extends Specification {
+  private static final long TICK = 100
+
+  private TimingWheel wheel = new TimingWheel(TICK, 8, 0)
+  private List<String> fired = []
+
+  def 'should fire tasks once their deadline has passed'() {
+    given:
+    wheel.schedule(250, { fired << 'first' })
+    wheel.schedule(450, { fired << 'second' })
+    expect:
+    wheel.advance(200) == 0
+    wheel.advance(300) == 1
+    fired == ['first']
+    wheel.advance(500) == 1
+    fired == ['first', 'second']
+    wheel.size() == 0
+  }
+
+  def 'should keep tasks scheduled more than one revolution ahead'() {
+    given:
+    wheel.schedule(8 * TICK + 50, { fired << 'late' })
+    expect:
+    wheel.advance(8 * TICK) == 0
+    wheel.size() == 1
+    wheel.advance(9 * TICK) == 1
+    fired == ['late']
+  }
+
+  def 'should fire overdue task on next tick'() {
+    given:
+    wheel.advance(1000)
+    when:
+    wheel.schedule(10, { fired << 'overdue' })
+    then:
+    wheel.advance(1000) == 0
+    wheel.advance(1100) == 1
+  }
+
+  def 'should process every bucket once after long pause'() {
+    given:
+    (1..20).each { tick -> wheel.schedule(tick * TICK, { fired << tick }) }
+    when:
+    def count = wheel.advance(100 * TICK)
+    then:
+    count == 20
+    fired.sort() == (1..20).toList()
+  }
+
+  def 'should keep firing tasks after failed one'() {
+    given:
+    wheel.schedule(50, { throw new IllegalStateException('failure') })
+    wheel.schedule(60, { fired << 'next' })
+    when:
+    def count = wheel.advance(TICK)
+    then:
+    count == 2
+    fired == ['next']
+    wheel.size() == 0
+  }
+}